@@ -0,0 +1,131 @@
+package bench;
+
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+
+import remote.RemoteWhiteboard;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * ClientScalingBenchmark finds how many clients with slow callbacks a running server can keep up with. It joins
+ * clients in doubling steps, each taking callbackMillis to handle a chat refresh, sends a chat message and waits
+ * for every client to receive it. A step is sustained when the last client is notified within one second of its
+ * own callback delay. Run it once against a server started normally and once against a server started with
+ * -Dwhiteboard.virtualThreads=true on Java 21 or later to compare the platform pool with virtual threads.
+ * java bench.ClientScalingBenchmark <serverIPAddress> <serverPort> [callbackMillis] [maxClients]
+ */
+public class ClientScalingBenchmark {
+
+    private static final long BUDGET_MILLIS = 1000;
+    private static final long GIVE_UP_MILLIS = 30000;
+
+    /**
+     * Runs the benchmark.
+     * @param args input arguments
+     * @throws Exception if the server cannot be reached.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Arguments should be <serverIPAddress> <serverPort> [callbackMillis] [maxClients]");
+            System.exit(1);
+        }
+        long callbackMillis = args.length > 2 ? Long.parseLong(args[2]) : 200;
+        int maxClients = args.length > 3 ? Integer.parseInt(args[3]) : 512;
+
+        RemoteWhiteboard board = (RemoteWhiteboard) Naming.lookup("rmi://" + args[0] + ":" + args[1] + "/Whiteboard");
+        List<SlowClient> clients = new ArrayList<>();
+        int sustained = 0;
+
+        System.out.println("clients  send ms   last notified ms  result");
+        for (int step = 16; step <= maxClients; step *= 2) {
+            while (clients.size() < step) {
+                SlowClient client = new SlowClient(callbackMillis);
+                board.addUser("scale-" + clients.size(), client);
+                clients.add(client);
+            }
+            // Let the user list refreshes of the joins settle before timing
+            Thread.sleep(1000);
+
+            long start = System.nanoTime();
+            board.sendMessage("scale-0", "step " + step);
+            long sendMillis = (System.nanoTime() - start) / 1000000;
+            long lastMillis = awaitAll(clients, start);
+            boolean ok = lastMillis >= 0 && lastMillis <= callbackMillis + BUDGET_MILLIS;
+            System.out.printf("%-8d %-9d %-17s %s%n", step, sendMillis, lastMillis < 0 ? "timeout" : String.valueOf(lastMillis),
+                    ok ? "sustained" : "too slow");
+            if (!ok) {
+                break;
+            }
+            sustained = step;
+        }
+        System.out.println("Max sustainable clients: " + sustained);
+
+        for (int i = 0; i < clients.size(); i++) {
+            board.removeUser("scale-" + i);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Waits until every client has received the chat refresh of a message.
+     * @param clients the clients.
+     * @param start the time the message was sent, from System.nanoTime.
+     * @return the milliseconds until the last client was notified, or -1 if some never were.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private static long awaitAll(List<SlowClient> clients, long start) throws InterruptedException {
+        long deadline = start + GIVE_UP_MILLIS * 1000000;
+        long last = start;
+        for (SlowClient client : clients) {
+            long notifiedAt;
+            while ((notifiedAt = client.notifiedAfter(start)) == 0) {
+                if (System.nanoTime() > deadline) {
+                    return -1;
+                }
+                Thread.sleep(5);
+            }
+            last = Math.max(last, notifiedAt);
+        }
+        return (last - start) / 1000000;
+    }
+
+    /**
+     * A headless client that takes a while to handle each chat refresh, like a client on a slow link.
+     */
+    private static class SlowClient extends HeadlessClient {
+        private static final long serialVersionUID = 1L;
+        private final long callbackMillis;
+        private volatile long notifiedAt;
+
+        SlowClient(long callbackMillis) throws RemoteException {
+            this.callbackMillis = callbackMillis;
+        }
+
+        /**
+         * Returns when this client last handled a chat refresh, if that was after a given time.
+         * @param start the time from System.nanoTime.
+         * @return the time from System.nanoTime, or 0 if it has not handled one since start.
+         */
+        long notifiedAfter(long start) {
+            long at = notifiedAt;
+            return at - start > 0 ? at : 0;
+        }
+
+        /**
+         * Handles a chat refresh after the callback delay.
+         * @throws RemoteException
+         */
+        @Override
+        public void refreshChatPanel() throws RemoteException {
+            try {
+                Thread.sleep(callbackMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.refreshChatPanel();
+            notifiedAt = System.nanoTime();
+        }
+    }
+}
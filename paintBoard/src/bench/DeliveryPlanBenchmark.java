@@ -0,0 +1,162 @@
+package bench;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import client.TileCache;
+import remote.BoardState;
+import remote.DeliveryPlan;
+import remote.Layer;
+import remote.LayerState;
+import remote.RemoteWhiteboard;
+import remote.ThrottledException;
+
+import static client.Constants.PAINT_PANEL_HEIGHT;
+import static client.Constants.PAINT_PANEL_WIDTH;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * DeliveryPlanBenchmark shows the plans the server picks for a local, a broadband and a weak link, and measures
+ * what each strategy of a plan sends: the bytes of the preview in PNG and JPEG, and the bytes a client catches up
+ * with after missing a number of freehand segments, drawn as short strokes, by replaying the operations, by
+ * fetching the changed layers with their shapes, and by fetching them as raster tiles with a tile cache filled
+ * before it fell behind.
+ * Run it against a server started with -Dwhiteboard.userRateLimit=0, as the first user so it manages the board:
+ * java bench.DeliveryPlanBenchmark <serverIPAddress> <serverPort>
+ */
+public class DeliveryPlanBenchmark {
+
+    private static final int[] MISSED = {100, 200, 500, 1000, 2000, 5000};
+    private static final int SEGMENTS_PER_STROKE = 20;
+
+    /**
+     * Runs the benchmark.
+     * @param args input arguments
+     * @throws Exception if a call fails.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Arguments should be <serverIPAddress> <serverPort>");
+            System.exit(1);
+        }
+        RemoteWhiteboard board = (RemoteWhiteboard) Naming.lookup("rmi://" + args[0] + ":" + args[1] + "/Whiteboard");
+        String username = "plan-bench";
+        board.addUser(username, new HeadlessClient());
+        Random random = new Random(5);
+        long opId = draw(board, username, 0, 2000, random);
+
+        System.out.println("link        rtt ms  KB/s   plan       interval ms  max replay  preview  preview KB");
+        long[][] links = {{2, 0}, {60, 400}, {300, 40}};
+        for (long[] link : links) {
+            DeliveryPlan plan = board.reportLink(username, link[0], link[1] * 1024);
+            long previewBytes = sizeOf(board.getPreviewFor(username));
+            System.out.printf("%-11s %-7d %-6s %-10s %-12d %-11s 1/%-6d %.1f%n", link == links[0] ? "local" : link == links[1] ? "broadband" : "weak",
+                    link[0], link[1] == 0 ? "-" : String.valueOf(link[1]), plan.getLink(), plan.getIntervalMillis(),
+                    plan.getMaxReplay() == Integer.MAX_VALUE ? "all" : String.valueOf(plan.getMaxReplay()), 1 << plan.getPreviewLevel(),
+                    previewBytes / 1024.0);
+        }
+        System.out.println("Metrics: " + board.getMetrics().entrySet().stream().filter(entry -> entry.getKey().startsWith("delivery.")).toList());
+
+        System.out.println("segments missed  replay KB  layers KB  raster tiles KB");
+        for (int missed : MISSED) {
+            TileCache cache = new TileCache(Files.createTempDirectory("plan-bench"), 64L * 1024 * 1024);
+            BoardState before = cache.getChangedLayers(board, null, true);
+            Map<Layer, Long> versions = new EnumMap<>(Layer.class);
+            for (LayerState layer : before.getLayers()) {
+                versions.put(layer.getLayer(), layer.getVersion());
+            }
+            opId = draw(board, username, opId, missed, random);
+            long replay = sizeOf(board.getOperationsSince(before.getSeq()));
+            long layers = sizeOf(board.getChangedLayers(versions));
+            long rasters = sizeOf(board.getChangedLayerRasters(versions));
+            long misses = cache.getStatistics()[1];
+            AtomicLong tiles = new AtomicLong();
+            cache.getChangedLayers(counting(board, tiles), versions, true);
+            System.out.printf("%-16d %-10.1f %-10.1f %.1f (%d tiles fetched)%n", missed, replay / 1024.0, layers / 1024.0,
+                    (rasters + tiles.get()) / 1024.0, cache.getStatistics()[1] - misses);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Wraps a whiteboard so the serialized size of the tiles fetched through it is added up.
+     */
+    private static RemoteWhiteboard counting(RemoteWhiteboard board, AtomicLong bytes) {
+        return (RemoteWhiteboard) Proxy.newProxyInstance(RemoteWhiteboard.class.getClassLoader(),
+                new Class<?>[] {RemoteWhiteboard.class}, (proxy, method, args) -> {
+                    Object result;
+                    try {
+                        result = method.invoke(board, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                    if (method.getName().equals("getTiles")) {
+                        bytes.addAndGet(sizeOf(result));
+                    }
+                    return result;
+                });
+    }
+
+    /**
+     * Draws freehand segments in short strokes at random places and waits until the board has them.
+     * @return the next operation identifier.
+     */
+    private static long draw(RemoteWhiteboard board, String username, long opId, int segments, Random random) throws Exception {
+        long target = board.getBoardState().getSeq() + segments;
+        for (int i = 0; i < segments / SEGMENTS_PER_STROKE; i++) {
+            int x = random.nextInt(PAINT_PANEL_WIDTH);
+            int y = random.nextInt(PAINT_PANEL_HEIGHT);
+            Color color = new Color(random.nextInt(0xFFFFFF));
+            for (int j = 0; j < SEGMENTS_PER_STROKE; j++) {
+                int nx = Math.max(0, Math.min(PAINT_PANEL_WIDTH - 1, x + random.nextInt(11) - 5));
+                int ny = Math.max(0, Math.min(PAINT_PANEL_HEIGHT - 1, y + random.nextInt(11) - 5));
+                try {
+                    board.freeDraw(username, ++opId, Layer.DRAWING, x, y, nx, ny, color);
+                } catch (RemoteException e) {
+                    // RMI wraps the refusal of a full queue, the segment is sent again once the queue has drained
+                    if (!(e.getCause() instanceof ThrottledException)) {
+                        throw e;
+                    }
+                    Thread.sleep(Math.max(10, ((ThrottledException) e.getCause()).getRetryAfterMillis()));
+                    j--;
+                    continue;
+                }
+                x = nx;
+                y = ny;
+            }
+        }
+        while (board.getBoardState().getSeq() < target) {
+            Thread.sleep(20);
+        }
+        return opId;
+    }
+
+    private static long sizeOf(Object value) throws IOException {
+        AtomicLong size = new AtomicLong();
+        try (ObjectOutputStream out = new ObjectOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                size.incrementAndGet();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                size.addAndGet(len);
+            }
+        })) {
+            out.writeObject(value);
+        }
+        return size.get();
+    }
+}
@@ -0,0 +1,154 @@
+package bench;
+
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import remote.IClient;
+import remote.Presence;
+import remote.RemoteWhiteboard;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * HeadlessClient is a client without a GUI for benchmarks. It only counts the callbacks it receives.
+ */
+public class HeadlessClient extends UnicastRemoteObject implements IClient {
+
+	private static final long serialVersionUID = 1L;
+	private final AtomicLong refreshes = new AtomicLong();
+    private volatile String token;
+
+    /**
+     * Constructs and exports a HeadlessClient.
+     * @throws RemoteException if the client cannot be exported.
+     */
+    public HeadlessClient() throws RemoteException {
+    }
+
+    /**
+     * Returns the number of refresh callbacks received so far.
+     * @return the number of callbacks.
+     */
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    /**
+     * Returns the session token issued by the server.
+     * @return the token, or null if the client has not been admitted.
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Counts a paint panel refresh.
+     * @param seq the sequence number of the latest operation on the board.
+     * @throws RemoteException
+     */
+    @Override
+    public void refreshPaintPanel(long seq) throws RemoteException {
+        refreshes.incrementAndGet();
+    }
+
+    /**
+     * Counts a chat panel refresh.
+     * @throws RemoteException
+     */
+    @Override
+    public void refreshChatPanel() throws RemoteException {
+        refreshes.incrementAndGet();
+    }
+
+    /**
+     * Counts a user list refresh.
+     * @throws RemoteException
+     */
+    @Override
+    public void refreshUserListPanel() throws RemoteException {
+        refreshes.incrementAndGet();
+    }
+
+    /**
+     * Does nothing, the client has no GUI.
+     * @param wbserver the remote whiteboard interface.
+     * @throws RemoteException
+     */
+    @Override
+    public void createGUI(RemoteWhiteboard wbserver) throws RemoteException {
+    }
+
+    /**
+     * Does nothing, the benchmark ends on its own.
+     * @throws RemoteException
+     */
+    @Override
+    public void kickOutByManager() throws RemoteException {
+    }
+
+    /**
+     * Does nothing, the benchmark ends on its own.
+     * @throws RemoteException
+     */
+    @Override
+    public void closeByManager() throws RemoteException {
+    }
+
+    /**
+     * Denies every join request.
+     * @param server the remote whiteboard server interface.
+     * @param username the username of the user requesting permission.
+     * @param client the client object of the user requesting permission.
+     * @throws RemoteException
+     */
+    @Override
+    public void notifyManager(RemoteWhiteboard server, String username, IClient client) throws RemoteException {
+        server.denyPermission(username);
+    }
+
+    /**
+     * Does nothing, the client has no paint panel.
+     * @throws RemoteException
+     */
+    @Override
+    public void resetPaintPanel() throws RemoteException {
+    }
+
+    /**
+     * Does nothing, benchmarks run against a single server.
+     * @param wbserver the remote whiteboard now hosting the board.
+     * @throws RemoteException
+     */
+    @Override
+    public void relocate(RemoteWhiteboard wbserver) throws RemoteException {
+    }
+
+    /**
+     * Stores the session token issued by the server.
+     * @param token the session token.
+     * @throws RemoteException
+     */
+    @Override
+    public void sessionStarted(String token) throws RemoteException {
+        this.token = token;
+    }
+
+    /**
+     * Answers the heartbeat of the server.
+     * @throws RemoteException
+     */
+    @Override
+    public void ping() throws RemoteException {
+    }
+
+    /**
+     * Ignores the presences of the other users, a headless client shows no pointers.
+     * @param presences the presences.
+     * @param full true if the presences replace the ones shown.
+     * @throws RemoteException
+     */
+    @Override
+    public void updatePresence(List<Presence> presences, boolean full) throws RemoteException {
+    }
+}
@@ -0,0 +1,164 @@
+package bench;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.IntBuffer;
+import java.util.Random;
+
+import remote.PixelFill;
+import remote.RemoteWhiteboard.Eraser;
+import remote.RemoteWhiteboard.FreeDraw;
+import remote.RemoteWhiteboard.Line;
+import remote.RemoteWhiteboard.Rectangle;
+import remote.RemoteWhiteboard.Shape;
+
+import static client.Constants.LARGE_ERASER_SIZE;
+import static client.Constants.MEDIUM_ERASER_SIZE;
+import static client.Constants.PAINT_PANEL_HEIGHT;
+import static client.Constants.PAINT_PANEL_WIDTH;
+import static client.Constants.SMALL_ERASER_SIZE;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * PixelFillBenchmark checks that writing erasers, rectangle outlines and straight lines into the pixels gives the
+ * same image as drawing them with Java2D, on each kind of image the boards use and on an off-heap pixel buffer,
+ * with shapes reaching past the edges and translucent shapes in between. It then measures how many of each
+ * operation per second both ways do.
+ * java bench.PixelFillBenchmark [milliseconds per measurement]
+ */
+public class PixelFillBenchmark {
+
+    private static final int CHECK_SHAPES = 20000;
+
+    /**
+     * Runs the check and the benchmark.
+     * @param args input arguments
+     */
+    public static void main(String[] args) {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+        for (int type : new int[] {BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_ARGB_PRE, BufferedImage.TYPE_INT_RGB}) {
+            check(type);
+        }
+        System.out.println("Pixel check passed: pixel fills match Java2D on ARGB, premultiplied ARGB, RGB and off-heap pixels");
+
+        Shape[][] operations = {
+                erasers(SMALL_ERASER_SIZE), erasers(MEDIUM_ERASER_SIZE), erasers(LARGE_ERASER_SIZE),
+                {new Rectangle(100, 100, 300, 200, Color.BLUE), new Rectangle(150, 120, 40, 30, Color.RED)},
+                {new Line(50, 300, 650, 300, Color.BLACK), new FreeDraw(60, 320, 640, 320, Color.BLACK)},
+                {new FreeDraw(200, 200, 203, 200, Color.BLACK), new FreeDraw(210, 200, 210, 202, Color.BLACK)}
+        };
+        String[] names = {"eraser 20", "eraser 50", "eraser 80", "rectangle", "line 600", "segment 3"};
+        BufferedImage image = new BufferedImage(PAINT_PANEL_WIDTH, PAINT_PANEL_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        System.out.println("operation   java2d ops/s   pixel fill ops/s   speedup");
+        for (int i = 0; i < operations.length; i++) {
+            double java2d = measure(image, operations[i], false, millis);
+            double fill = measure(image, operations[i], true, millis);
+            System.out.printf("%-11s %-14.0f %-18.0f %.1fx%n", names[i], java2d, fill, fill / java2d);
+        }
+    }
+
+    /**
+     * Draws the same random shapes with Java2D and with pixel fills and compares the images.
+     * @param type the type of the images.
+     */
+    private static void check(int type) {
+        BufferedImage expected = new BufferedImage(PAINT_PANEL_WIDTH, PAINT_PANEL_HEIGHT, type);
+        BufferedImage actual = new BufferedImage(PAINT_PANEL_WIDTH, PAINT_PANEL_HEIGHT, type);
+        BufferedImage buffered = new BufferedImage(PAINT_PANEL_WIDTH, PAINT_PANEL_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        IntBuffer pixels = IntBuffer.wrap(((DataBufferInt) buffered.getRaster().getDataBuffer()).getData());
+        Graphics2D g = expected.createGraphics();
+        Graphics2D h = actual.createGraphics();
+        Graphics2D b = buffered.createGraphics();
+        Random random = new Random(type);
+        int filled = 0;
+        for (int i = 0; i < CHECK_SHAPES; i++) {
+            Shape shape = randomShape(random);
+            shape.draw(g);
+            if (PixelFill.draw(shape, actual)) {
+                filled++;
+            } else {
+                shape.draw(h);
+            }
+            if (type == BufferedImage.TYPE_INT_ARGB && !PixelFill.draw(shape, pixels, PAINT_PANEL_WIDTH, PAINT_PANEL_HEIGHT)) {
+                shape.draw(b);
+            }
+        }
+        g.dispose();
+        h.dispose();
+        b.dispose();
+        compare(expected, actual, "image type " + type);
+        if (type == BufferedImage.TYPE_INT_ARGB) {
+            compare(expected, buffered, "off-heap pixels");
+        }
+        if (filled < CHECK_SHAPES / 4) {
+            throw new AssertionError("Only " + filled + " shapes took the pixel path");
+        }
+    }
+
+    private static void compare(BufferedImage expected, BufferedImage actual, String label) {
+        int[] a = ((DataBufferInt) expected.getRaster().getDataBuffer()).getData();
+        int[] b = ((DataBufferInt) actual.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] != b[i]) {
+                throw new AssertionError(label + ": pixel fill differs from Java2D at " + i % PAINT_PANEL_WIDTH + "," + i / PAINT_PANEL_WIDTH
+                        + ": " + Integer.toHexString(a[i]) + " != " + Integer.toHexString(b[i]));
+            }
+        }
+    }
+
+    /**
+     * Returns a shape the pixel path takes or, now and then, one it leaves to Java2D, some reaching past the edges.
+     */
+    private static Shape randomShape(Random random) {
+        int x = random.nextInt(PAINT_PANEL_WIDTH + 200) - 100;
+        int y = random.nextInt(PAINT_PANEL_HEIGHT + 200) - 100;
+        Color color = random.nextInt(8) == 0 ? new Color(random.nextInt(), true) : new Color(random.nextInt());
+        switch (random.nextInt(6)) {
+            case 0:
+                return new Eraser(x, y, random.nextInt(90));
+            case 1:
+                return new Rectangle(x, y, random.nextInt(200) - 5, random.nextInt(200) - 5, color);
+            case 2:
+                return new Line(x, y, x + random.nextInt(400) - 200, y, color);
+            case 3:
+                return new FreeDraw(x, y, x, y + random.nextInt(21) - 10, color);
+            case 4:
+                return new FreeDraw(x, y, x, y, color);
+            default:
+                return new Line(x, y, random.nextInt(PAINT_PANEL_WIDTH), random.nextInt(PAINT_PANEL_HEIGHT), color);
+        }
+    }
+
+    /**
+     * Returns erasers at a few places, in the size given.
+     */
+    private static Shape[] erasers(int size) {
+        return new Shape[] {new Eraser(100, 100, size), new Eraser(350, 300, size), new Eraser(600, 500, size)};
+    }
+
+    /**
+     * Draws the shapes over and over for a while.
+     * @return the shapes drawn per second.
+     */
+    private static double measure(BufferedImage image, Shape[] shapes, boolean fill, long millis) {
+        Graphics2D g = image.createGraphics();
+        long count = 0;
+        long start = System.nanoTime();
+        long end = start + millis * 1000000;
+        long now;
+        do {
+            for (int i = 0; i < 1000; i++) {
+                Shape shape = shapes[i % shapes.length];
+                if (!fill || !PixelFill.draw(shape, image)) {
+                    shape.draw(g);
+                }
+            }
+            count += 1000;
+            now = System.nanoTime();
+        } while (now < end);
+        g.dispose();
+        return count * 1e9 / (now - start);
+    }
+}
@@ -0,0 +1,180 @@
+package bench;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import remote.BoardExporter;
+import remote.IClient;
+import remote.Layer;
+import remote.QuotaExceededException;
+import remote.RemoteWhiteboard;
+import remote.ThrottledException;
+
+import static client.Constants.PAINT_PANEL_HEIGHT;
+import static client.Constants.PAINT_PANEL_WIDTH;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * QuotaBenchmark draws freehand strokes on a board held to a small shape quota and shows that the shapes it keeps and
+ * the heap of the server stay bounded, checks that a compaction leaves the board looking as it did, then asks more users to
+ * join than the board admits and shows the refusals.
+ * Run it against a server started with -Dwhiteboard.userRateLimit=0 -Dwhiteboard.maxShapeMB=1 -Dwhiteboard.maxUsers=4,
+ * as the first user so it manages the board:
+ * java bench.QuotaBenchmark <serverIPAddress> <serverPort>
+ */
+public class QuotaBenchmark {
+
+    private static final int ROUNDS = 4;
+    private static final int STROKES_PER_ROUND = 1000;
+    private static final int SEGMENTS_PER_STROKE = 20;
+    private static final int JOINS = 6;
+    // How far the pixels of a stroke may reach beyond the points it goes through
+    private static final int STROKE_MARGIN = 4;
+    // The shape quota the server is started with
+    private static final long SHAPE_QUOTA_KB = 1024;
+
+    /**
+     * Runs the benchmark.
+     * @param args input arguments
+     * @throws Exception if a call fails.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Arguments should be <serverIPAddress> <serverPort>");
+            System.exit(1);
+        }
+        RemoteWhiteboard board = (RemoteWhiteboard) Naming.lookup("rmi://" + args[0] + ":" + args[1] + "/Whiteboard");
+        String username = "quota-bench";
+        board.setManager(username);
+        // Join requests are left pending for the benchmark to grant, rather than denied from within the callback
+        board.addUser(username, new HeadlessClient() {
+            @Override
+            public void notifyManager(RemoteWhiteboard server, String joiner, IClient client) {
+            }
+        });
+        Random random = new Random(7);
+        long opId = 0;
+
+        System.out.println("segments  shapes kept  compactions  live heap MB");
+        for (int round = 1; round <= ROUNDS; round++) {
+            long target = board.getBoardState().getSeq() + STROKES_PER_ROUND * SEGMENTS_PER_STROKE;
+            for (int i = 0; i < STROKES_PER_ROUND; i++) {
+                opId = stroke(board, username, opId, random, null);
+            }
+            while (board.getBoardState().getSeq() < target) {
+                Thread.sleep(20);
+            }
+            Map<String, Long> metrics = board.getMetrics();
+            System.out.printf("%-9d %-12d %-12d %d%n", round * STROKES_PER_ROUND * SEGMENTS_PER_STROKE, board.getShapes().size(),
+                    metrics.getOrDefault("quota.compactions", 0L), metrics.getOrDefault("quota.liveHeapMB", 0L));
+        }
+
+        // Draws until the next compaction and checks it left the board as it was, apart from the stroke that caused it
+        long compactions = board.getMetrics().getOrDefault("quota.compactions", 0L);
+        while (board.getMetrics().get("quota.shapeKB") < SHAPE_QUOTA_KB - 32) {
+            opId = stroke(board, username, opId, random, null);
+        }
+        boolean unchanged;
+        while (true) {
+            BufferedImage before = export(board, username);
+            Rectangle bounds = new Rectangle();
+            long target = board.getBoardState().getSeq() + SEGMENTS_PER_STROKE;
+            opId = stroke(board, username, opId, random, bounds);
+            while (board.getBoardState().getSeq() < target) {
+                Thread.sleep(5);
+            }
+            if (board.getMetrics().getOrDefault("quota.compactions", 0L) > compactions) {
+                bounds.grow(STROKE_MARGIN, STROKE_MARGIN);
+                unchanged = sameOutside(before, export(board, username), bounds);
+                break;
+            }
+        }
+        System.out.println("Board unchanged by compaction: " + unchanged);
+        System.out.println("Metrics: " + board.getMetrics().entrySet().stream().filter(entry -> entry.getKey().startsWith("quota.")).toList());
+
+        int refused = 0;
+        for (int i = 0; i < JOINS; i++) {
+            String joiner = "quota-join-" + i;
+            try {
+                board.requestPermission(joiner, new HeadlessClient());
+                board.grantPermission(joiner, new HeadlessClient());
+                System.out.println(joiner + " joined, " + board.getUserList().size() + " users");
+            } catch (RemoteException e) {
+                if (!(e.getCause() instanceof QuotaExceededException)) {
+                    throw e;
+                }
+                refused++;
+                System.out.println(joiner + " refused: " + e.getCause().getMessage());
+            }
+        }
+        System.out.println(refused + " of " + JOINS + " joins refused");
+        System.exit(0);
+    }
+
+    /**
+     * Draws a freehand stroke at a random place, sending each segment again while the server throttles it.
+     * @param bounds set to the bounds of the stroke, or null.
+     * @return the next operation identifier.
+     */
+    private static long stroke(RemoteWhiteboard board, String username, long opId, Random random, Rectangle bounds) throws Exception {
+        int x = random.nextInt(PAINT_PANEL_WIDTH);
+        int y = random.nextInt(PAINT_PANEL_HEIGHT);
+        Color color = new Color(random.nextInt(0xFFFFFF));
+        if (bounds != null) {
+            bounds.setBounds(x, y, 1, 1);
+        }
+        for (int j = 0; j < SEGMENTS_PER_STROKE; j++) {
+            int nx = Math.max(0, Math.min(PAINT_PANEL_WIDTH - 1, x + random.nextInt(11) - 5));
+            int ny = Math.max(0, Math.min(PAINT_PANEL_HEIGHT - 1, y + random.nextInt(11) - 5));
+            try {
+                board.freeDraw(username, ++opId, Layer.DRAWING, x, y, nx, ny, color);
+            } catch (RemoteException e) {
+                if (!(e.getCause() instanceof ThrottledException)) {
+                    throw e;
+                }
+                Thread.sleep(Math.max(10, ((ThrottledException) e.getCause()).getRetryAfterMillis()));
+                j--;
+                continue;
+            }
+            x = nx;
+            y = ny;
+            if (bounds != null) {
+                bounds.add(x, y);
+            }
+        }
+        return opId;
+    }
+
+    /**
+     * Returns the board as its manager exports it, every layer composited.
+     */
+    private static BufferedImage export(RemoteWhiteboard board, String username) throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(board.exportBoard(username, BoardExporter.Format.PNG)));
+    }
+
+    /**
+     * Returns whether two images have the same pixels outside an area.
+     */
+    private static boolean sameOutside(BufferedImage a, BufferedImage b, Rectangle area) {
+        if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight()) {
+            return false;
+        }
+        for (int y = 0; y < a.getHeight(); y++) {
+            for (int x = 0; x < a.getWidth(); x++) {
+                if (!area.contains(x, y) && a.getRGB(x, y) != b.getRGB(x, y)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,165 @@
+package bench;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import remote.Layer;
+import remote.RemoteWhiteboard.FreeDraw;
+import remote.RemoteWhiteboard.Line;
+import remote.RemoteWhiteboard.Rectangle;
+import remote.RemoteWhiteboard.Shape;
+import remote.RemoteWhiteboard.Text;
+import server.BoardLayers;
+import server.LayerRaster;
+import server.OffHeapRaster;
+import server.ServerMetrics;
+
+import static client.Constants.PAINT_PANEL_HEIGHT;
+import static client.Constants.PAINT_PANEL_WIDTH;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * RasterStorageBenchmark keeps a number of live boards in one process, drawing on their layers and compositing them
+ * round after round the way previews and exports do, and reports the heap left after a full collection, the bytes
+ * kept off the heap and the garbage collection pauses seen while drawing. It first checks that the storage
+ * composites the same pixels as the heap. Run it once per storage with the same heap size to compare them:
+ * java -Xmx1g -Dwhiteboard.rasterStorage=heap|direct|mapped bench.RasterStorageBenchmark [boards] [rounds]
+ */
+public class RasterStorageBenchmark {
+
+    private static final int SHAPES_PER_ROUND = 200;
+
+    /**
+     * Runs the check and the benchmark.
+     * @param args input arguments
+     * @throws Exception if the check fails.
+     */
+    public static void main(String[] args) throws Exception {
+        int boards = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        LayerRaster.Storage storage = LayerRaster.Storage.fromProperty();
+        checkPixels(storage == LayerRaster.Storage.HEAP ? LayerRaster.Storage.DIRECT : storage);
+
+        AtomicLong pauses = new AtomicLong();
+        AtomicLong pauseMillis = new AtomicLong();
+        AtomicLong maxPauseMillis = new AtomicLong();
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ((NotificationEmitter) collector).addNotificationListener((notification, handback) -> {
+                if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                    long millis = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData()).getGcInfo().getDuration();
+                    pauses.incrementAndGet();
+                    pauseMillis.addAndGet(millis);
+                    maxPauseMillis.accumulateAndGet(millis, Math::max);
+                }
+            }, null, null);
+        }
+
+        ServerMetrics metrics = new ServerMetrics();
+        List<BoardLayers> live = new ArrayList<>();
+        List<Random> randoms = new ArrayList<>();
+        for (int i = 0; i < boards; i++) {
+            live.add(new BoardLayers(PAINT_PANEL_WIDTH, PAINT_PANEL_HEIGHT, storage, metrics));
+            randoms.add(new Random(i));
+        }
+        long seq = 0;
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < boards; i++) {
+                BoardLayers layers = live.get(i);
+                Random random = randoms.get(i);
+                for (int n = 0; n < SHAPES_PER_ROUND; n++) {
+                    layers.add(random.nextInt(4) == 0 ? Layer.ANNOTATIONS : Layer.DRAWING, randomShape(random), ++seq);
+                }
+                if (random.nextInt(10) == 0) {
+                    layers.clear(Layer.ANNOTATIONS, ++seq);
+                }
+                layers.composite();
+            }
+        }
+        long drawMillis = (System.nanoTime() - start) / 1000000;
+
+        System.gc();
+        System.gc();
+        Thread.sleep(500);
+        long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        long pooled = 0;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            pooled += pool.getMemoryUsed();
+        }
+        System.out.println("storage  boards  heap after gc MB  off-heap MB  gc pauses  gc total ms  max pause ms  ms/round");
+        System.out.printf("%-8s %-7d %-17d %-12d %-10d %-12d %-13d %d%n", storage.name().toLowerCase(), boards,
+                heap >> 20, Math.max(pooled, OffHeapRaster.allocatedBytes()) >> 20, pauses.get(), pauseMillis.get(),
+                maxPauseMillis.get(), drawMillis / rounds);
+        // Keeps the boards reachable until they are measured
+        System.out.println("Drew " + seq + " operations on " + live.size() + " boards");
+    }
+
+    /**
+     * Draws the same shapes on layers kept on the heap and in another storage and compares the composites.
+     */
+    private static void checkPixels(LayerRaster.Storage storage) {
+        ServerMetrics metrics = new ServerMetrics();
+        BoardLayers heap = new BoardLayers(PAINT_PANEL_WIDTH, PAINT_PANEL_HEIGHT, LayerRaster.Storage.HEAP, metrics);
+        BoardLayers other = new BoardLayers(PAINT_PANEL_WIDTH, PAINT_PANEL_HEIGHT, storage, metrics);
+        BufferedImage background = new BufferedImage(PAINT_PANEL_WIDTH, PAINT_PANEL_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < background.getHeight(); y++) {
+            for (int x = 0; x < background.getWidth(); x++) {
+                background.setRGB(x, y, x * 255 / background.getWidth() << 16 | y * 255 / background.getHeight());
+            }
+        }
+        heap.setImage(Layer.BACKGROUND, background, 1);
+        other.setImage(Layer.BACKGROUND, background, 1);
+        Random random = new Random(7);
+        for (int i = 0; i < 3000; i++) {
+            Layer layer = Layer.values()[random.nextInt(Layer.values().length)];
+            Shape shape = randomShape(random);
+            heap.add(layer, shape, i + 2);
+            other.add(layer, shape, i + 2);
+            if (i % 500 == 0) {
+                compare(heap.composite(), other.composite(), storage);
+            }
+        }
+        compare(heap.composite(), other.composite(), storage);
+        System.out.println("Pixel check passed: " + storage.name().toLowerCase() + " composites the same board as heap");
+    }
+
+    private static void compare(BufferedImage expected, BufferedImage actual, LayerRaster.Storage storage) {
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                if (expected.getRGB(x, y) != actual.getRGB(x, y)) {
+                    throw new AssertionError(storage + " differs from heap at " + x + "," + y);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a shape in the mix a drawing session produces, mostly free draw segments, some translucent.
+     */
+    private static Shape randomShape(Random random) {
+        Color color = random.nextInt(5) == 0 ? new Color(random.nextInt(), true) : new Color(random.nextInt());
+        int x = random.nextInt(PAINT_PANEL_WIDTH + 40) - 20;
+        int y = random.nextInt(PAINT_PANEL_HEIGHT + 40) - 20;
+        int kind = random.nextInt(20);
+        if (kind < 14) {
+            return new FreeDraw(x, y, x + random.nextInt(21) - 10, y + random.nextInt(21) - 10, color);
+        } else if (kind < 17) {
+            return new Line(x, y, random.nextInt(PAINT_PANEL_WIDTH), random.nextInt(PAINT_PANEL_HEIGHT), color);
+        } else if (kind < 19) {
+            return new Rectangle(x, y, random.nextInt(150), random.nextInt(150), color);
+        }
+        return new Text(x, y, "note " + random.nextInt(1000), color);
+    }
+}
@@ -0,0 +1,235 @@
+package bench;
+
+import java.awt.Color;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import remote.CompactShape;
+import remote.RemoteWhiteboard.Circle;
+import remote.RemoteWhiteboard.Eraser;
+import remote.RemoteWhiteboard.FreeDraw;
+import remote.RemoteWhiteboard.Line;
+import remote.RemoteWhiteboard.Oval;
+import remote.RemoteWhiteboard.Polyline;
+import remote.RemoteWhiteboard.Rectangle;
+import remote.RemoteWhiteboard.Shape;
+import remote.RemoteWhiteboard.Text;
+import remote.WireProtocol;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * ShapeSerializationBenchmark checks that the compact shape encoding round-trips every shape type and still reads
+ * the legacy default form, then compares size and speed of a getShapes() payload in the legacy form, the compact
+ * Java serialization form and the binary transport form.
+ * java bench.ShapeSerializationBenchmark [shapes]
+ */
+public class ShapeSerializationBenchmark {
+
+    private static final int ROUNDS = 7;
+
+    /**
+     * Runs the checks and the benchmark.
+     * @param args input arguments
+     * @throws Exception if a check fails.
+     */
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        checkCompatibility();
+
+        List<Shape> shapes = randomShapes(count, new Random(42));
+        System.out.println("format       bytes        bytes/shape  write ms   read ms");
+        measure("legacy", shapes, ShapeSerializationBenchmark::legacyBytes, ShapeSerializationBenchmark::readSerialized);
+        measure("compact", shapes, ShapeSerializationBenchmark::compactBytes, ShapeSerializationBenchmark::readSerialized);
+        measure("binary", shapes, ShapeSerializationBenchmark::wireBytes, ShapeSerializationBenchmark::readWire);
+    }
+
+    /**
+     * Round-trips one shape of every type, including edge values, through every format and compares the results
+     * field by field using the legacy form, which covers all fields by reflection.
+     * @throws Exception if a shape does not survive a round trip.
+     */
+    private static void checkCompatibility() throws Exception {
+        List<Shape> samples = new ArrayList<>();
+        samples.add(new Line(0, 0, 699, 599, Color.BLACK));
+        samples.add(new Rectangle(-5, -10, 40, 30, new Color(10, 20, 30, 40)));
+        samples.add(new Circle(350, 300, 1000000, Color.RED));
+        samples.add(new Oval(Integer.MIN_VALUE, Integer.MAX_VALUE, 1, 2, Color.BLUE));
+        samples.add(new FreeDraw(1, 2, 3, 4, Color.GREEN));
+        samples.add(new Polyline(new int[] { 0, 5, -3, 700 }, new int[] { 600, 2, 2, -1 }, Color.MAGENTA));
+        samples.add(new Polyline(new int[0], new int[0], Color.ORANGE));
+        samples.add(new Eraser(10, 10, 20));
+        samples.add(new Text(5, 6, "h\u00e9llo \u4e16\u754c", Color.PINK));
+        samples.add(new Text(5, 6, "", Color.PINK));
+        long seq = 1;
+        for (Shape shape : samples) {
+            shape.setSeq(seq);
+            seq *= 1000;
+        }
+
+        for (Shape shape : samples) {
+            byte[] expected = legacyBytes(List.of(shape));
+            check(shape, "compact", legacyBytes(readSerialized(compactBytes(List.of(shape)))), expected);
+            check(shape, "binary", legacyBytes(readWire(wireBytes(List.of(shape)))), expected);
+            check(shape, "legacy", legacyBytes(readSerialized(expected)), expected);
+        }
+        System.out.println("Compatibility check passed for " + samples.size() + " shapes");
+    }
+
+    private static void check(Shape shape, String format, byte[] actual, byte[] expected) {
+        if (!Arrays.equals(actual, expected)) {
+            throw new AssertionError(format + " round trip changed " + shape.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Builds a board worth of shapes in the mix a drawing session produces, mostly free draw segments.
+     */
+    private static List<Shape> randomShapes(int count, Random random) {
+        List<Shape> shapes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Color color = new Color(random.nextInt(), true);
+            int x = random.nextInt(700);
+            int y = random.nextInt(600);
+            int kind = random.nextInt(20);
+            Shape shape;
+            if (kind < 12) {
+                shape = new FreeDraw(x, y, x + random.nextInt(7) - 3, y + random.nextInt(7) - 3, color);
+            } else if (kind < 14) {
+                shape = new Line(x, y, random.nextInt(700), random.nextInt(600), color);
+            } else if (kind == 14) {
+                shape = new Rectangle(x, y, random.nextInt(200), random.nextInt(200), color);
+            } else if (kind == 15) {
+                shape = new Circle(x, y, random.nextInt(100), color);
+            } else if (kind == 16) {
+                shape = new Oval(x, y, random.nextInt(200), random.nextInt(200), color);
+            } else if (kind == 17) {
+                shape = new Eraser(x, y, 20);
+            } else if (kind == 18) {
+                shape = new Text(x, y, "note " + i, color);
+            } else {
+                int points = 10 + random.nextInt(40);
+                int[] xs = new int[points];
+                int[] ys = new int[points];
+                for (int p = 0; p < points; p++) {
+                    xs[p] = x += random.nextInt(11) - 5;
+                    ys[p] = y += random.nextInt(11) - 5;
+                }
+                shape = new Polyline(xs, ys, color);
+            }
+            shape.setSeq(i + 1);
+            shapes.add(shape);
+        }
+        return shapes;
+    }
+
+    /**
+     * Times writing and reading a payload in one format.
+     */
+    private static void measure(String format, List<Shape> shapes, Writer writer, Reader reader) throws Exception {
+        long[] writes = new long[ROUNDS];
+        long[] reads = new long[ROUNDS];
+        byte[] bytes = null;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            bytes = writer.write(shapes);
+            writes[round] = System.nanoTime() - start;
+            start = System.nanoTime();
+            List<Shape> read = reader.read(bytes);
+            reads[round] = System.nanoTime() - start;
+            if (read.size() != shapes.size()) {
+                throw new AssertionError(format + " lost shapes");
+            }
+        }
+        Arrays.sort(writes);
+        Arrays.sort(reads);
+        System.out.printf("%-12s %-12d %-12.1f %-10.1f %-10.1f%n", format, bytes.length, (double) bytes.length / shapes.size(),
+                writes[ROUNDS / 2] / 1e6, reads[ROUNDS / 2] / 1e6);
+    }
+
+    /**
+     * Writes shapes in the legacy default form. A stream that swaps each compact stand-in back for its shape,
+     * after the shape has been replaced, gets the default field-by-field form.
+     */
+    private static byte[] legacyBytes(List<Shape> shapes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new LegacyOutputStream(bytes)) {
+            out.writeObject(new ArrayList<>(shapes));
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] compactBytes(List<Shape> shapes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(new ArrayList<>(shapes));
+        }
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Shape> readSerialized(byte[] bytes) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (List<Shape>) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static byte[] wireBytes(List<Shape> shapes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            WireProtocol.writeValue(out, shapes, NO_REFERENCES);
+        }
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Shape> readWire(byte[] bytes) throws IOException {
+        return (List<Shape>) WireProtocol.readValue(new DataInputStream(new ByteArrayInputStream(bytes)), NO_REFERENCES);
+    }
+
+    private static final WireProtocol.References NO_REFERENCES = new WireProtocol.References() {
+        @Override
+        public boolean writeReference(DataOutputStream out, Object value) {
+            return false;
+        }
+
+        @Override
+        public Object readReference(byte tag, DataInputStream in) throws IOException {
+            throw new IOException("Unexpected reference");
+        }
+    };
+
+    private interface Writer {
+        byte[] write(List<Shape> shapes) throws IOException;
+    }
+
+    private interface Reader {
+        List<Shape> read(byte[] bytes) throws IOException;
+    }
+
+    /**
+     * An object stream writing shapes in their legacy default form.
+     */
+    private static class LegacyOutputStream extends ObjectOutputStream {
+        LegacyOutputStream(OutputStream out) throws IOException {
+            super(out);
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) {
+            return obj instanceof CompactShape ? ((CompactShape) obj).getShape() : obj;
+        }
+    }
+}
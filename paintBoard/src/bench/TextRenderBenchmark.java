@@ -0,0 +1,150 @@
+package bench;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import remote.RemoteWhiteboard.Text;
+
+import static client.Constants.PAINT_PANEL_HEIGHT;
+import static client.Constants.PAINT_PANEL_WIDTH;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * TextRenderBenchmark measures what drawing and measuring the texts of a text heavy board costs, per text, the
+ * way a replay onto a fresh layer does it: with drawString, by blitting a sprite of the text rendered beforehand,
+ * and by drawing a glyph vector laid out beforehand. It also measures the bounds of the texts with font metrics
+ * and through the text shapes, which keep them. A board repeats its labels, so the sprites and glyph vectors are
+ * made once per distinct text, font and color.
+ * java bench.TextRenderBenchmark [texts] [replays]
+ */
+public class TextRenderBenchmark {
+
+    private static final int WARMUP_REPLAYS = 50;
+    private static final String[] LABELS = {"note", "TODO", "check the totals in this column", "meeting moved to Thursday afternoon"};
+
+    /**
+     * Runs the benchmark.
+     * @param args input arguments
+     */
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int replays = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+        Random random = new Random(11);
+        Font[] fonts = {Text.DEFAULT_FONT, new Font(Font.SERIF, Font.BOLD, 16), new Font(Font.MONOSPACED, Font.ITALIC, 11)};
+        FontRenderContext context = new FontRenderContext(null, false, false);
+        List<Label> labels = new ArrayList<>();
+        Map<String, Label> distinct = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            String text = LABELS[random.nextInt(LABELS.length)] + " " + random.nextInt(100);
+            Font font = fonts[random.nextInt(10) == 0 ? 1 + random.nextInt(2) : 0];
+            Color color = random.nextInt(4) == 0 ? new Color(random.nextInt(), true) : Color.BLACK;
+            Label label = new Label(random.nextInt(PAINT_PANEL_WIDTH), random.nextInt(PAINT_PANEL_HEIGHT), text, font, color);
+            Label same = distinct.putIfAbsent(text + font + color.getRGB(), label);
+            if (same != null) {
+                label.sprite = same.sprite;
+                label.spriteBounds = same.spriteBounds;
+                label.run = same.run;
+            } else {
+                label.run = font.createGlyphVector(context, text);
+                label.spriteBounds = label.run.getPixelBounds(context, 0, 0);
+                label.sprite = new BufferedImage(label.spriteBounds.width, label.spriteBounds.height, BufferedImage.TYPE_INT_ARGB);
+                Graphics2D g = label.sprite.createGraphics();
+                g.setFont(font);
+                g.setColor(color);
+                g.drawString(text, -label.spriteBounds.x, -label.spriteBounds.y);
+                g.dispose();
+            }
+            labels.add(label);
+        }
+
+        BufferedImage layer = new BufferedImage(PAINT_PANEL_WIDTH, PAINT_PANEL_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        String[] methods = {"drawString", "sprite blit", "glyph vector", "metrics bounds", "shape bounds"};
+        long[] nanos = new long[methods.length];
+        for (int replay = -WARMUP_REPLAYS; replay < replays; replay++) {
+            for (int method = 0; method < methods.length; method++) {
+                Graphics2D g = layer.createGraphics();
+                long start = System.nanoTime();
+                replay(g, labels, method);
+                if (replay >= 0) {
+                    nanos[method] += System.nanoTime() - start;
+                }
+                g.dispose();
+            }
+        }
+        System.out.println("texts  distinct  method          us/text");
+        for (int method = 0; method < methods.length; method++) {
+            System.out.printf("%-6d %-9d %-15s %.3f%n", count, distinct.size(), methods[method], nanos[method] / 1e3 / replays / count);
+        }
+    }
+
+    /**
+     * Draws or measures every text once.
+     * @param g a graphics context of a layer.
+     * @param labels the texts.
+     * @param method the index of the method.
+     */
+    private static void replay(Graphics2D g, List<Label> labels, int method) {
+        long sum = 0;
+        for (Label label : labels) {
+            switch (method) {
+                case 0:
+                    label.shape.draw(g);
+                    break;
+                case 1:
+                    g.drawImage(label.sprite, label.x + label.spriteBounds.x, label.y + label.spriteBounds.y, null);
+                    break;
+                case 2:
+                    g.setColor(label.color);
+                    g.drawGlyphVector(label.run, label.x, label.y);
+                    break;
+                case 3: {
+                    FontMetrics metrics = g.getFontMetrics(label.font);
+                    sum += metrics.stringWidth(label.text) + metrics.getAscent() + metrics.getHeight();
+                    break;
+                }
+                default:
+                    sum += label.shape.getBounds().width;
+                    break;
+            }
+        }
+        // Uses the sum so the measuring is not optimized away
+        if (sum == Long.MIN_VALUE) {
+            System.out.println(sum);
+        }
+    }
+
+    /**
+     * A text on the board with what each method needs to draw it.
+     */
+    private static final class Label {
+        final int x;
+        final int y;
+        final String text;
+        final Font font;
+        final Color color;
+        final Text shape;
+        BufferedImage sprite;
+        Rectangle spriteBounds;
+        GlyphVector run;
+
+        Label(int x, int y, String text, Font font, Color color) {
+            this.x = x;
+            this.y = y;
+            this.text = text;
+            this.font = font;
+            this.color = color;
+            shape = new Text(x, y, text, font, color);
+        }
+    }
+}
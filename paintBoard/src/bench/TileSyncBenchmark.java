@@ -0,0 +1,158 @@
+package bench;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.Naming;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import client.TileCache;
+import remote.BoardState;
+import remote.RemoteWhiteboard;
+
+import static client.Constants.PAINT_PANEL_HEIGHT;
+import static client.Constants.PAINT_PANEL_WIDTH;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * TileSyncBenchmark measures how many bytes a client receives to load a board with an image, fetching the layers
+ * whole and through a tile cache, first with an empty cache and then in a later session with the cache left by
+ * the first. It loads a blank board and then a board whose background is half picture, half blank, and checks
+ * that the images put back together from tiles have the same pixels as the whole ones. Run it against a server
+ * started with -Dwhiteboard.userRateLimit=0, as the first user so it manages the board:
+ * java bench.TileSyncBenchmark <serverIPAddress> <serverPort>
+ */
+public class TileSyncBenchmark {
+
+    private static final long CACHE_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Runs the benchmark.
+     * @param args input arguments
+     * @throws Exception if a call fails or the images differ.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Arguments should be <serverIPAddress> <serverPort>");
+            System.exit(1);
+        }
+        RemoteWhiteboard board = (RemoteWhiteboard) Naming.lookup("rmi://" + args[0] + ":" + args[1] + "/Whiteboard");
+        String username = "tile-bench";
+        board.addUser(username, new HeadlessClient());
+
+        BufferedImage blank = new BufferedImage(PAINT_PANEL_WIDTH, PAINT_PANEL_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = blank.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, PAINT_PANEL_WIDTH, PAINT_PANEL_HEIGHT);
+        g.dispose();
+        BufferedImage picture = new BufferedImage(PAINT_PANEL_WIDTH, PAINT_PANEL_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        picture.createGraphics().drawImage(blank, 0, 0, null);
+        for (int y = 0; y < PAINT_PANEL_HEIGHT / 2; y++) {
+            for (int x = 0; x < PAINT_PANEL_WIDTH; x++) {
+                picture.setRGB(x, y, (x * 7 ^ y * 13) & 0xFF | (x + y) % 256 << 8 | (x * y >> 6) % 256 << 16);
+            }
+        }
+
+        Path cacheDir = Files.createTempDirectory("tile-bench");
+        System.out.println("board           whole KB  empty cache KB  warm cache KB  tiles fetched cold/warm");
+        run("blank", board, username, blank, cacheDir);
+        run("half picture", board, username, picture, cacheDir);
+        System.exit(0);
+    }
+
+    /**
+     * Loads an image onto the board and fetches the board whole and through a cold and a warm cache.
+     * @param label the name of the board.
+     * @param board the whiteboard.
+     * @param username the username of the manager.
+     * @param image the image to load.
+     * @param cacheDir the directory of the cache, shared by the runs like sessions on one machine.
+     * @throws Exception if a call fails or the images differ.
+     */
+    private static void run(String label, RemoteWhiteboard board, String username, BufferedImage image, Path cacheDir) throws Exception {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        long seq = board.getBoardState().getSeq();
+        String upload = board.beginImageUpload(username, png.size());
+        board.uploadImageChunk(upload, 0, png.toByteArray());
+        board.finishImageUpload(upload);
+        while (board.getBoardState().getSeq() == seq) {
+            Thread.sleep(20);
+        }
+
+        AtomicLong bytes = new AtomicLong();
+        RemoteWhiteboard counted = counting(board, bytes);
+        BoardState whole = counted.getBoardState();
+        long wholeBytes = bytes.getAndSet(0);
+
+        TileCache cold = new TileCache(cacheDir, CACHE_BYTES);
+        BoardState first = cold.getChangedLayers(counted, null);
+        long coldBytes = bytes.getAndSet(0);
+        // A later session starts from what the earlier one left on disk
+        TileCache warm = new TileCache(cacheDir, CACHE_BYTES);
+        BoardState second = warm.getChangedLayers(counted, null);
+        long warmBytes = bytes.getAndSet(0);
+
+        compare(whole, first);
+        compare(whole, second);
+        System.out.printf("%-15s %-9.1f %-15.1f %-14.1f %d/%d%n", label, wholeBytes / 1024.0, coldBytes / 1024.0,
+                warmBytes / 1024.0, cold.getStatistics()[1], warm.getStatistics()[1]);
+    }
+
+    /**
+     * Wraps a whiteboard so the serialized size of every result is added up, as it would be sent over RMI.
+     */
+    private static RemoteWhiteboard counting(RemoteWhiteboard board, AtomicLong bytes) {
+        return (RemoteWhiteboard) Proxy.newProxyInstance(RemoteWhiteboard.class.getClassLoader(),
+                new Class<?>[] {RemoteWhiteboard.class}, (proxy, method, args) -> {
+                    Object result;
+                    try {
+                        result = method.invoke(board, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                    bytes.addAndGet(sizeOf(result));
+                    return result;
+                });
+    }
+
+    private static long sizeOf(Object value) throws IOException {
+        AtomicLong size = new AtomicLong();
+        try (ObjectOutputStream out = new ObjectOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                size.incrementAndGet();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                size.addAndGet(len);
+            }
+        })) {
+            out.writeObject(value);
+        }
+        return size.get();
+    }
+
+    private static void compare(BoardState expected, BoardState actual) {
+        BufferedImage a = expected.getImage().getImage();
+        BufferedImage b = actual.getImage().getImage();
+        for (int y = 0; y < a.getHeight(); y++) {
+            for (int x = 0; x < a.getWidth(); x++) {
+                if (a.getRGB(x, y) != b.getRGB(x, y)) {
+                    throw new AssertionError("Tiled image differs at " + x + "," + y);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package bench;
+
+import java.awt.Color;
+import java.rmi.Naming;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Arrays;
+import java.util.Map;
+
+import client.BinaryWhiteboard;
+import remote.Layer;
+import remote.RemoteWhiteboard;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * TransportBenchmark compares the RMI transport with the binary socket transport against a running server,
+ * using a headless client on each. Start the server with -Dwhiteboard.binaryPort so it serves both and with
+ * -Dwhiteboard.userRateLimit=0 so the benchmark user is not throttled, then run
+ * java bench.TransportBenchmark <serverIPAddress> <rmiPort> <binaryPort> [calls]
+ * The board is cleared before each run so both transports see the same number of shapes.
+ */
+public class TransportBenchmark {
+
+    private static final int WARMUP_CALLS = 2000;
+
+    /**
+     * Runs the benchmark.
+     * @param args input arguments
+     * @throws Exception if a transport fails.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Arguments should be <serverIPAddress> <rmiPort> <binaryPort> [calls]");
+            System.exit(1);
+        }
+        int calls = args.length > 3 ? Integer.parseInt(args[3]) : 20000;
+
+        RemoteWhiteboard rmi = (RemoteWhiteboard) Naming.lookup("rmi://" + args[0] + ":" + args[1] + "/Whiteboard");
+        RemoteWhiteboard binary = BinaryWhiteboard.connect(args[0] + ":" + args[2]);
+
+        System.out.println("transport  call            calls    mean us   p50 us   p99 us   calls/s");
+        run("rmi", rmi, calls);
+        run("binary", binary, calls);
+
+        Map<String, Long> metrics = rmi.getMetrics();
+        System.out.println("binary transport bytes in " + metrics.get("transport.binary.bytesIn")
+                + ", out " + metrics.get("transport.binary.bytesOut"));
+        System.exit(0);
+    }
+
+    /**
+     * Measures the main calls over one transport.
+     * @param label the name of the transport.
+     * @param board the whiteboard reached over the transport.
+     * @param calls the number of calls to time for each method.
+     * @throws Exception if a call fails.
+     */
+    private static void run(String label, RemoteWhiteboard board, int calls) throws Exception {
+        HeadlessClient client = new HeadlessClient();
+        String username = "bench-" + label;
+        board.addUser(username, client);
+        board.clearShapes(username);
+
+        for (int i = 0; i < WARMUP_CALLS; i++) {
+            board.drawLine(username, 0, Layer.DRAWING, i % 700, i % 600, (i * 7) % 700, (i * 3) % 600, Color.BLACK);
+            board.getManager();
+        }
+        board.clearShapes(username);
+
+        long[] draw = new long[calls];
+        for (int i = 0; i < calls; i++) {
+            long start = System.nanoTime();
+            board.drawLine(username, 0, Layer.DRAWING, i % 700, i % 600, (i * 7) % 700, (i * 3) % 600, Color.BLACK);
+            draw[i] = System.nanoTime() - start;
+        }
+        report(label, "drawLine", draw);
+
+        long[] small = new long[calls];
+        for (int i = 0; i < calls; i++) {
+            long start = System.nanoTime();
+            board.getUserList();
+            small[i] = System.nanoTime() - start;
+        }
+        report(label, "getUserList", small);
+
+        // Let the queued draws land so every getShapes returns the whole board
+        Thread.sleep(1000);
+        int reads = Math.max(10, calls / 1000);
+        long[] shapes = new long[reads];
+        int count = 0;
+        for (int i = 0; i < reads; i++) {
+            long start = System.nanoTime();
+            count = board.getShapes().size();
+            shapes[i] = System.nanoTime() - start;
+        }
+        report(label, "getShapes(" + count + ")", shapes);
+        System.out.println(label + " callbacks received: " + client.getRefreshes());
+
+        board.removeUser(username);
+        UnicastRemoteObject.unexportObject(client, true);
+    }
+
+    /**
+     * Prints the latency distribution of a series of calls.
+     */
+    private static void report(String label, String call, long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long n : sorted) {
+            total += n;
+        }
+        double mean = total / 1e3 / sorted.length;
+        System.out.printf("%-10s %-15s %6d %10.1f %8.1f %8.1f %9.0f%n", label, call, sorted.length, mean,
+                sorted[sorted.length / 2] / 1e3, sorted[(int) (sorted.length * 0.99)] / 1e3, sorted.length / (total / 1e9));
+    }
+}
@@ -0,0 +1,154 @@
+package bench;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import remote.UserListDelta;
+import server.UserRegistry;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * UserRegistryBenchmark checks that clients applying the deltas of a user registry end up with its list, even when
+ * they fell further behind than the changes it retains, and that readers iterating the list while users join and
+ * leave never see it change under them. It then compares, for boards of a growing number of users, the bytes a
+ * client is sent when one user joins as the whole list and as a delta, and the time to check for a user in a list
+ * and in the registry.
+ * java bench.UserRegistryBenchmark
+ */
+public class UserRegistryBenchmark {
+
+    private static final int[] USERS = {10, 100, 1000};
+    private static final int LOOKUPS = 1_000_000;
+
+    /**
+     * Runs the check and the benchmark.
+     * @param args input arguments
+     * @throws Exception if the check fails.
+     */
+    public static void main(String[] args) throws Exception {
+        check();
+        System.out.println("Registry check passed: deltas rebuild the list and readers never see it change while iterating");
+
+        System.out.println("users  full list B  one join delta B  list contains ns  registry contains ns");
+        for (int count : USERS) {
+            UserRegistry registry = new UserRegistry();
+            List<String> list = new ArrayList<>();
+            long seq = 0;
+            for (int i = 0; i < count; i++) {
+                registry.add("user-" + i, ++seq);
+                list.add("user-" + i);
+            }
+            long version = registry.since(-1).getVersion();
+            registry.add("user-" + count, ++seq);
+            list.add("user-" + count);
+            long full = sizeOf(registry.getUsers());
+            long delta = sizeOf(registry.since(version));
+            System.out.printf("%-6d %-12d %-17d %-17.1f %.1f%n", count, full, delta, time(list::contains, count), time(registry::contains, count));
+        }
+    }
+
+    /**
+     * Applies deltas to copies of the list at several lags behind a churning registry and compares them with it,
+     * while a reader thread iterates the list.
+     */
+    private static void check() throws Exception {
+        UserRegistry registry = new UserRegistry();
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicLong reads = new AtomicLong();
+        Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                for (String user : registry.getUsers()) {
+                    if (user == null) {
+                        throw new IllegalStateException("Null user");
+                    }
+                }
+                reads.incrementAndGet();
+            }
+        });
+        reader.start();
+        long seq = 0;
+        int[] lags = {1, 10, 100};
+        for (int lag : lags) {
+            List<String> copy = new ArrayList<>();
+            long version = -1;
+            for (int round = 0; round < 1000; round++) {
+                for (int i = 0; i < lag; i++) {
+                    String user = "user-" + (seq * 7 % 50);
+                    if (registry.contains(user)) {
+                        registry.remove(user, ++seq);
+                    } else {
+                        registry.add(user, ++seq);
+                    }
+                }
+                UserListDelta delta = registry.since(version);
+                if (delta.isFull()) {
+                    copy = new ArrayList<>(delta.getUsers());
+                } else {
+                    for (UserListDelta.Change change : delta.getChanges()) {
+                        if (change.isAdded()) {
+                            copy.add(change.getUsername());
+                        } else {
+                            copy.remove(change.getUsername());
+                        }
+                    }
+                }
+                version = delta.getVersion();
+                if (!copy.equals(registry.getUsers())) {
+                    throw new IllegalStateException("Copy " + copy + " differs from " + registry.getUsers() + " at lag " + lag);
+                }
+            }
+        }
+        done.set(true);
+        reader.join();
+        if (reads.get() == 0) {
+            throw new IllegalStateException("Reader never ran");
+        }
+    }
+
+    /**
+     * Measures the average time of checking for users, half of them present.
+     */
+    private static double time(Predicate<String> contains, int count) {
+        String[] names = new String[2 * count];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "user-" + i;
+        }
+        int found = 0;
+        for (int i = 0; i < LOOKUPS / 10; i++) {
+            found += contains.test(names[i % names.length]) ? 1 : 0;
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            found += contains.test(names[i % names.length]) ? 1 : 0;
+        }
+        long elapsed = System.nanoTime() - start;
+        if (found == 0) {
+            throw new IllegalStateException("No user found");
+        }
+        return (double) elapsed / LOOKUPS;
+    }
+
+    private static long sizeOf(Object value) throws IOException {
+        AtomicLong size = new AtomicLong();
+        try (ObjectOutputStream out = new ObjectOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                size.incrementAndGet();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                size.addAndGet(len);
+            }
+        })) {
+            out.writeObject(value);
+        }
+        return size.get();
+    }
+}
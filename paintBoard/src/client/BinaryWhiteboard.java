@@ -0,0 +1,365 @@
+package client;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.rmi.UnexpectedException;
+import java.rmi.UnmarshalException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import remote.IClient;
+import remote.RemoteWhiteboard;
+import remote.WireProtocol;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * BinaryWhiteboard is the client end of the socket transport. It implements RemoteWhiteboard with a proxy that
+ * sends each call as a {@link WireProtocol} frame over one NIO socket channel and waits for the matching reply.
+ * Client objects passed to the server are kept in a table for this process and receive the server's callbacks,
+ * which arrive as one-way frames and are delivered in order on a separate thread.
+ */
+public class BinaryWhiteboard implements InvocationHandler, WireProtocol.References {
+
+    private static final Method[] BOARD_METHODS = WireProtocol.methodTable(RemoteWhiteboard.class);
+    private static final Method[] CLIENT_METHODS = WireProtocol.methodTable(IClient.class);
+
+    // Identifies this process to the server so callbacks follow it across reconnects
+    private static final String CLIENT_ID = UUID.randomUUID().toString();
+
+    // Client objects passed to a server, shared by all connections like the RMI export table
+    private static final Map<IClient, Long> exportedIds = new IdentityHashMap<>();
+    private static final Map<Long, IClient> exported = new ConcurrentHashMap<>();
+    private static long nextObjectId = 1;
+
+    private final String hostName;
+    private final SocketChannel channel;
+    private final RemoteWhiteboard proxy;
+    private final Map<Long, CompletableFuture<Object>> pendingCalls = new ConcurrentHashMap<>();
+    private final AtomicLong nextCallId = new AtomicLong(1);
+    private final ExecutorService callbacks;
+    private volatile boolean closed;
+
+    /**
+     * Opens a connection to a whiteboard served over the socket transport.
+     * @param hostName the server address in the form host:port, where port is the binary transport port.
+     * @return the remote whiteboard.
+     * @throws RemoteException if the server cannot be reached.
+     */
+    public static RemoteWhiteboard connect(String hostName) throws RemoteException {
+        return new BinaryWhiteboard(hostName).proxy;
+    }
+
+    /**
+     * Connects to the server and starts the reader thread.
+     * @param hostName the server address in the form host:port.
+     * @throws RemoteException if the server cannot be reached.
+     */
+    private BinaryWhiteboard(String hostName) throws RemoteException {
+        this.hostName = hostName;
+        int colon = hostName.lastIndexOf(':');
+        try {
+            channel = SocketChannel.open(new InetSocketAddress(hostName.substring(0, colon),
+                    Integer.parseInt(hostName.substring(colon + 1))));
+            channel.socket().setTcpNoDelay(true);
+            WireProtocol.FrameBuffer hello = new WireProtocol.FrameBuffer(WireProtocol.HELLO);
+            hello.data().writeUTF(CLIENT_ID);
+            write(hello.toFrame());
+        } catch (IOException | RuntimeException e) {
+            throw new ConnectException("Connection refused to " + hostName, e);
+        }
+        proxy = (RemoteWhiteboard) Proxy.newProxyInstance(RemoteWhiteboard.class.getClassLoader(),
+                new Class<?>[] { RemoteWhiteboard.class }, this);
+        callbacks = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "binary-callbacks");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Thread reader = new Thread(this::readLoop, "binary-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Sends a call to the server and waits for its result.
+     */
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return "BinaryWhiteboard[" + hostName + "]";
+            default:
+                break;
+        }
+        if (closed) {
+            throw new ConnectException("Connection to " + hostName + " is closed");
+        }
+
+        long callId = nextCallId.getAndIncrement();
+        WireProtocol.FrameBuffer frame = new WireProtocol.FrameBuffer(WireProtocol.REQUEST);
+        DataOutputStream out = frame.data();
+        out.writeLong(callId);
+        out.writeShort(WireProtocol.indexOf(BOARD_METHODS, method));
+        for (int i = 0; args != null && i < args.length; i++) {
+            WireProtocol.writeValue(out, args[i], this);
+        }
+
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        pendingCalls.put(callId, result);
+        try {
+            if (closed) {
+                throw new IOException("closed while sending");
+            }
+            write(frame.toFrame());
+        } catch (IOException e) {
+            pendingCalls.remove(callId);
+            close();
+            throw new ConnectException("Connection to " + hostName + " failed", e);
+        }
+
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pendingCalls.remove(callId);
+            throw new RemoteException("Interrupted while waiting for " + method.getName());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RemoteException || cause instanceof RuntimeException || cause instanceof Error) {
+                throw cause;
+            }
+            throw new UnexpectedException("Unexpected exception from " + method.getName(), (Exception) cause);
+        }
+    }
+
+    /**
+     * Writes a whole frame. Frames from different threads must not interleave.
+     * @param frame the frame.
+     * @throws IOException if the connection fails.
+     */
+    private void write(ByteBuffer frame) throws IOException {
+        synchronized (channel) {
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+        }
+    }
+
+    /**
+     * Reads frames until the connection is closed, completing calls and dispatching callbacks.
+     */
+    private void readLoop() {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        try {
+            while (true) {
+                header.clear();
+                readFully(header);
+                int length = header.getInt(0);
+                if (length <= 0 || length > WireProtocol.MAX_FRAME_BYTES) {
+                    throw new StreamCorruptedException("Invalid frame length " + length);
+                }
+                ByteBuffer body = ByteBuffer.allocate(length);
+                readFully(body);
+                handleFrame(body.array());
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println("Binary transport connection to " + hostName + " closed: " + e.getMessage());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed by server");
+            }
+        }
+    }
+
+    /**
+     * Handles a frame received from the server.
+     * @param frame the frame body, starting with its kind.
+     * @throws IOException if the frame is malformed.
+     */
+    private void handleFrame(byte[] frame) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame, 1, frame.length - 1));
+        switch (frame[0]) {
+            case WireProtocol.RESPONSE:
+            case WireProtocol.FAILURE: {
+                CompletableFuture<Object> result = pendingCalls.remove(in.readLong());
+                Object value = WireProtocol.readValue(in, this);
+                if (result == null) {
+                    return;
+                }
+                if (frame[0] == WireProtocol.RESPONSE) {
+                    result.complete(value);
+                } else {
+                    result.completeExceptionally((Throwable) value);
+                }
+                break;
+            }
+            case WireProtocol.CALLBACK: {
+                IClient target = exported.get(in.readLong());
+                int index = in.readUnsignedShort();
+                if (index >= CLIENT_METHODS.length) {
+                    throw new StreamCorruptedException("Unknown callback " + index);
+                }
+                Method method = CLIENT_METHODS[index];
+                Object[] args = new Object[method.getParameterCount()];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = WireProtocol.readValue(in, this);
+                }
+                if (target != null) {
+                    callbacks.execute(() -> deliver(target, method, args));
+                }
+                break;
+            }
+            case WireProtocol.PING: {
+                // Answered by the reader so a ping shows the connection is read, not that callbacks are idle
+                WireProtocol.FrameBuffer pong = new WireProtocol.FrameBuffer(WireProtocol.PONG);
+                pong.data().writeLong(in.readLong());
+                write(pong.toFrame());
+                break;
+            }
+            default:
+                throw new StreamCorruptedException("Unexpected frame kind " + frame[0]);
+        }
+    }
+
+    /**
+     * Invokes a callback on a client object.
+     */
+    private static void deliver(IClient target, Method method, Object[] args) {
+        try {
+            method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            e.getCause().printStackTrace();
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Closes the connection and fails the calls still waiting for a reply.
+     */
+    private void close() {
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Long callId : pendingCalls.keySet()) {
+            CompletableFuture<Object> result = pendingCalls.remove(callId);
+            if (result != null) {
+                // The call may or may not have run, like an RMI call whose reply was lost
+                result.completeExceptionally(new UnmarshalException("Connection to " + hostName + " closed before the reply"));
+            }
+        }
+        callbacks.shutdown();
+    }
+
+    @Override
+    public boolean writeReference(DataOutputStream out, Object value) throws IOException {
+        if (value == proxy) {
+            out.writeByte(WireProtocol.BOARD);
+            return true;
+        }
+        if (value instanceof IClient && Proxy.isProxyClass(value.getClass())
+                && Proxy.getInvocationHandler(value) instanceof ClientHandle) {
+            out.writeByte(WireProtocol.CLIENT_HANDLE);
+            out.writeLong(((ClientHandle) Proxy.getInvocationHandler(value)).handle);
+            return true;
+        }
+        if (value instanceof IClient) {
+            out.writeByte(WireProtocol.CLIENT_OBJECT);
+            out.writeLong(export((IClient) value));
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Object readReference(byte tag, DataInputStream in) throws IOException {
+        switch (tag) {
+            case WireProtocol.BOARD:
+                return proxy;
+            case WireProtocol.CLIENT_HANDLE:
+                return Proxy.newProxyInstance(IClient.class.getClassLoader(),
+                        new Class<?>[] { IClient.class }, new ClientHandle(in.readLong()));
+            default:
+                throw new StreamCorruptedException("Unknown value tag " + tag);
+        }
+    }
+
+    /**
+     * Returns the id of a client object, adding it to the table on first use.
+     * @param client the client object.
+     * @return the object id.
+     */
+    private static long export(IClient client) {
+        synchronized (exportedIds) {
+            Long id = exportedIds.get(client);
+            if (id == null) {
+                id = nextObjectId++;
+                exportedIds.put(client, id);
+                exported.put(id, client);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Stands for another user's client object the server passed to this one, such as the user asking to join.
+     * It can only be passed back to the server.
+     */
+    private static class ClientHandle implements InvocationHandler {
+        final long handle;
+
+        ClientHandle(long handle) {
+            this.handle = handle;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return args[0] != null && Proxy.isProxyClass(args[0].getClass())
+                            && Proxy.getInvocationHandler(args[0]) instanceof ClientHandle
+                            && ((ClientHandle) Proxy.getInvocationHandler(args[0])).handle == handle;
+                case "hashCode":
+                    return Long.hashCode(handle);
+                case "toString":
+                    return "ClientHandle[" + handle + "]";
+                default:
+                    throw new RemoteException("Client handles can only be passed back to the server");
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package client;
+
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+
+import remote.RemoteWhiteboard;
+import remote.RoomDirectory;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * BoardLocator looks up the remote whiteboard a client should connect to,
+ * either the single whiteboard of a standalone server or a room placed on a cluster node.
+ */
+public class BoardLocator {
+
+    private static final String SERVICE_NAME = "Whiteboard";
+
+    /**
+     * Looks up a whiteboard.
+     * @param hostName the server address in the form host:port. In cluster mode this can be any node hosting the room directory.
+     *                 With -Dwhiteboard.transport=binary the port is the binary transport port of a standalone server.
+     * @param room the name of the room, or null to use the whiteboard of a standalone server.
+     * @return the remote whiteboard interface.
+     * @throws MalformedURLException if the URL for the RMI registry is malformed.
+     * @throws RemoteException if there is an error in the remote method call.
+     * @throws NotBoundException if the whiteboard or room directory is not bound in the RMI registry.
+     */
+    public static RemoteWhiteboard lookup(String hostName, String room) throws MalformedURLException, RemoteException, NotBoundException {
+        if (room == null) {
+            if ("binary".equals(System.getProperty("whiteboard.transport"))) {
+                return BinaryWhiteboard.connect(hostName);
+            }
+            return (RemoteWhiteboard) Naming.lookup("rmi://" + hostName + "/" + SERVICE_NAME);
+        }
+        RoomDirectory directory = (RoomDirectory) Naming.lookup("rmi://" + hostName + "/" + RoomDirectory.SERVICE_NAME);
+        return directory.locateRoom(room).openRoom(room);
+    }
+}
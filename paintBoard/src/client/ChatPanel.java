@@ -2,6 +2,7 @@ package client;
 
 import javax.swing.*;
 
+import remote.QuotaExceededException;
 import remote.RemoteWhiteboard;
 
 import java.awt.*;
@@ -76,6 +77,8 @@ public class ChatPanel extends JPanel {
             try {
                 whiteboard.sendMessage(username, message);
                 messageField.setText("");
+            } catch (QuotaExceededException e) {
+                JOptionPane.showMessageDialog(this, e.getMessage(), "Message not sent", JOptionPane.WARNING_MESSAGE);
             } catch (RemoteException e) {
                 e.printStackTrace();
             }
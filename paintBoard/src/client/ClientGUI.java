@@ -1,11 +1,15 @@
 package client;
 
 import javax.swing.*;
+import remote.Layer;
+import remote.Operation;
+import remote.Presence;
 import remote.RemoteWhiteboard;
 import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.rmi.RemoteException;
+import java.util.List;
 import static client.Constants.*;
 
 /**
@@ -22,6 +26,8 @@ public class ClientGUI extends JFrame {
     private UserListPanel userListPanel;
     private ChatPanel chatPanel;
     private String username;
+    // Shown above the panels while the connection to the server is lost
+    private JLabel disconnectedLabel;
 
     /**
      * Constructor to initialize the ClientGUI with the RemoteWhiteboard instance, username, and manager status.
@@ -50,7 +56,7 @@ public class ClientGUI extends JFrame {
         });
 
         userListPanel = new UserListPanel(wbserver, isManager);
-        paintPanel = new PaintPanel(wbserver);
+        paintPanel = new PaintPanel(wbserver, username);
         chatPanel = new ChatPanel(wbserver, username);
 
         JPanel leftPanel = new JPanel(new BorderLayout());
@@ -70,6 +76,12 @@ public class ClientGUI extends JFrame {
         mainPanel.add(centerPanel, BorderLayout.CENTER);
         mainPanel.add(rightPanel, BorderLayout.EAST);
 
+        disconnectedLabel = new JLabel("Connection to the whiteboard server lost, reconnecting...", JLabel.CENTER);
+        disconnectedLabel.setOpaque(true);
+        disconnectedLabel.setBackground(new Color(255, 235, 160));
+        disconnectedLabel.setVisible(false);
+        mainPanel.add(disconnectedLabel, BorderLayout.NORTH);
+
         getContentPane().add(mainPanel, BorderLayout.CENTER);
 
         // Create Menu Bar
@@ -83,6 +95,7 @@ public class ClientGUI extends JFrame {
         JMenuItem openMenuItem = new JMenuItem("Open");
         JMenuItem saveMenuItem = new JMenuItem("Save");
         JMenuItem saveAsMenuItem = new JMenuItem("Save As");
+        JMenuItem exportMenuItem = new JMenuItem("Export From Server");
         JMenuItem closeMenuItem = new JMenuItem("Close");
 
         // Add Action Listeners for Menu Items
@@ -90,6 +103,7 @@ public class ClientGUI extends JFrame {
         openMenuItem.addActionListener(e -> paintPanel.openImage());
         saveMenuItem.addActionListener(e -> paintPanel.saveImage());
         saveAsMenuItem.addActionListener(e -> paintPanel.saveImageAs());
+        exportMenuItem.addActionListener(e -> paintPanel.exportFromServer());
         closeMenuItem.addActionListener(e -> closeWhiteboard());
 
         // Add Menu Items to File Menu
@@ -97,6 +111,7 @@ public class ClientGUI extends JFrame {
         fileMenu.add(openMenuItem);
         fileMenu.add(saveMenuItem);
         fileMenu.add(saveAsMenuItem);
+        fileMenu.add(exportMenuItem);
         fileMenu.addSeparator();
         fileMenu.add(closeMenuItem);
 
@@ -106,6 +121,29 @@ public class ClientGUI extends JFrame {
         // Add File Menu to Menu Bar
         menuBar.add(fileMenu);
 
+        // Create View Menu, open to every user
+        JMenu viewMenu = new JMenu("View");
+        JMenuItem historyMenuItem = new JMenuItem("History");
+        historyMenuItem.addActionListener(e -> new HistoryDialog(this, wbserver, paintPanel.getLastSeq()).setVisible(true));
+        viewMenu.add(historyMenuItem);
+        menuBar.add(viewMenu);
+
+        // Create Layer Menu, every user picks the layer they draw on and the manager can clear it
+        JMenu layerMenu = new JMenu("Layer");
+        ButtonGroup layerGroup = new ButtonGroup();
+        for (Layer layer : Layer.values()) {
+            JRadioButtonMenuItem layerMenuItem = new JRadioButtonMenuItem(layer.getDisplayName(), layer == Layer.DRAWING);
+            layerMenuItem.addActionListener(e -> paintPanel.setLayer(layer));
+            layerGroup.add(layerMenuItem);
+            layerMenu.add(layerMenuItem);
+        }
+        layerMenu.addSeparator();
+        JMenuItem clearLayerMenuItem = new JMenuItem("Clear Layer");
+        clearLayerMenuItem.addActionListener(e -> paintPanel.clearLayer());
+        clearLayerMenuItem.setEnabled(isManager);
+        layerMenu.add(clearLayerMenuItem);
+        menuBar.add(layerMenu);
+
         // Set Menu Bar to Frame
         setJMenuBar(menuBar);
 
@@ -180,10 +218,11 @@ public class ClientGUI extends JFrame {
     }
     
     /**
-     * Refreshes the paint panel.
+     * Brings the paint panel up to the given sequence number.
+     * @param seq the sequence number of the latest operation on the board.
      */
-    public void refreshPaintPanel() {
-        paintPanel.refresh();
+    public void refreshPaintPanel(long seq) {
+        paintPanel.catchUp(seq);
     }
     
     /**
@@ -200,6 +239,34 @@ public class ClientGUI extends JFrame {
         userListPanel.refresh();
     }
     
+    /**
+     * Brings every panel up to date after the connection to the server was restored.
+     * @param missed the operations missed while disconnected, or null if the full board must be fetched.
+     */
+    public void resume(List<Operation> missed) {
+        setDisconnected(false);
+        paintPanel.applyMissed(missed);
+        chatPanel.refresh();
+        userListPanel.refresh();
+    }
+
+    /**
+     * Shows or hides the notice that the connection to the server is lost.
+     * @param disconnected true while the client is reconnecting.
+     */
+    public void setDisconnected(boolean disconnected) {
+        disconnectedLabel.setVisible(disconnected);
+        revalidate();
+    }
+
+    /**
+     * Returns the sequence number of the last server operation shown on the paint panel.
+     * @return the sequence number.
+     */
+    public long getLastSeq() {
+        return paintPanel.getLastSeq();
+    }
+
     /**
      * Handles the user leaving the whiteboard.
      * Notifies the server to remove the user and then closes the application.
@@ -236,4 +303,13 @@ public class ClientGUI extends JFrame {
     public void resetPaintPanel() {
     	paintPanel.reset();
     }
+
+    /**
+     * Updates the pointers and shape previews of the other users on the paint panel.
+     * @param presences the presences.
+     * @param full true if the presences replace the ones shown.
+     */
+    public void updatePresence(List<Presence> presences, boolean full) {
+        paintPanel.showPresence(presences, full);
+    }
 }
@@ -2,7 +2,6 @@ package client;
 
 import java.net.MalformedURLException;
 import remote.IClient;
-import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 
@@ -20,6 +19,7 @@ public class CreateWhiteBoard {
     private static String serverIP;
     private static int serverPort;
     private static String username;
+    private static String room;
 
     /**
      * Main method to start the process of creating a new whiteboard session.
@@ -31,17 +31,17 @@ public class CreateWhiteBoard {
     public static void main(String args[]) throws MalformedURLException, RemoteException, NotBoundException {
         parseArguments(args);
         String hostName = serverIP + ":" + Integer.toString(serverPort);
-        String serviceName = "Whiteboard";
         
         try {
-            RemoteWhiteboard wbserver = (RemoteWhiteboard) Naming.lookup("rmi://" + hostName + "/" + serviceName);
+            ReconnectingWhiteboard connection = new ReconnectingWhiteboard(hostName, room);
+            RemoteWhiteboard wbserver = connection.getProxy();
             
             if (wbserver.getManager() != null) {
                 JOptionPane.showMessageDialog(null, "Whiteboard already exists, please ask to join", "Whiteboard exists", JOptionPane.WARNING_MESSAGE);
                 System.exit(1);
             }
             
-            IClient wbclient = new WhiteboardClient(username, true);
+            IClient wbclient = new WhiteboardClient(username, true, connection);
             
             wbserver.setManager(username);
             wbserver.addUser(username, wbclient);
@@ -60,13 +60,13 @@ public class CreateWhiteBoard {
     }
     
     /**
-     * Parses input arguments and initializes serverIP, serverPort, and username.
+     * Parses input arguments and initializes serverIP, serverPort, username and the optional cluster room.
      * @param args input arguments
      */
     private static void parseArguments(String args[]) {
         if (args.length < 3) {
             SwingUtilities.invokeLater(() -> {
-                JOptionPane.showMessageDialog(null, "Arguments should be <serverIPAddress> <serverPort> <username>", "Invalid arguments", JOptionPane.WARNING_MESSAGE);
+                JOptionPane.showMessageDialog(null, "Arguments should be <serverIPAddress> <serverPort> <username> [<room>]", "Invalid arguments", JOptionPane.WARNING_MESSAGE);
                 System.exit(1);
             });
             return;
@@ -75,6 +75,7 @@ public class CreateWhiteBoard {
         serverIP = args[0];
         serverPort = parsePort(args[1]);
         username = args[2];
+        room = args.length > 3 ? args[3] : null;
     }
     
     /**
@@ -0,0 +1,122 @@
+package client;
+
+import javax.swing.*;
+import remote.BoardPreview;
+import remote.RemoteWhiteboard;
+
+import java.awt.*;
+import java.rmi.RemoteException;
+import java.util.concurrent.ExecutionException;
+
+import static client.Constants.*;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * HistoryDialog lets a user scrub through the history of the whiteboard. Moving the slider asks the server to
+ * render the board as it was after that operation. Only one rendering is fetched at a time; positions passed
+ * while one is on its way are skipped and the latest one is fetched next, so dragging stays responsive.
+ */
+public class HistoryDialog extends JDialog {
+
+    private static final long serialVersionUID = 1L;
+    private final RemoteWhiteboard whiteboard;
+    private final JSlider slider = new JSlider();
+    private final JLabel view = new JLabel();
+    private final JLabel status = new JLabel(" ");
+    // The position last asked for and whether a rendering is being fetched, only touched on the event dispatch thread
+    private int requested;
+    private boolean fetching;
+
+    /**
+     * Constructor for HistoryDialog.
+     * @param owner The frame the dialog belongs to.
+     * @param whiteboard The remote whiteboard interface for communication with the server.
+     * @param lastSeq The sequence number of the last operation the client has seen, where the slider starts.
+     */
+    public HistoryDialog(Frame owner, RemoteWhiteboard whiteboard, long lastSeq) {
+        super(owner, "History", false);
+        this.whiteboard = whiteboard;
+
+        view.setPreferredSize(new Dimension(PAINT_PANEL_WIDTH, PAINT_PANEL_HEIGHT));
+        view.setHorizontalAlignment(SwingConstants.LEFT);
+        view.setVerticalAlignment(SwingConstants.TOP);
+
+        int last = (int) Math.min(Integer.MAX_VALUE, lastSeq);
+        slider.setModel(new DefaultBoundedRangeModel(last, 0, 0, last));
+        slider.setEnabled(false);
+        slider.addChangeListener(e -> showOperation(slider.getValue()));
+
+        JPanel bottomPanel = new JPanel(new BorderLayout());
+        bottomPanel.add(slider, BorderLayout.CENTER);
+        bottomPanel.add(status, BorderLayout.SOUTH);
+
+        getContentPane().add(view, BorderLayout.CENTER);
+        getContentPane().add(bottomPanel, BorderLayout.SOUTH);
+        pack();
+        setLocationRelativeTo(owner);
+        loadRange();
+    }
+
+    /**
+     * Fetches where the history starts, then shows the board at the latest operation.
+     */
+    private void loadRange() {
+        new SwingWorker<Long, Void>() {
+            @Override
+            protected Long doInBackground() throws RemoteException {
+                return whiteboard.getHistoryStart();
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    slider.setMinimum((int) Math.min(slider.getMaximum(), get()));
+                    slider.setEnabled(true);
+                    showOperation(slider.getValue());
+                } catch (InterruptedException | ExecutionException e) {
+                    e.printStackTrace();
+                    status.setText("History unavailable");
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Shows the board after an operation, fetching it unless a rendering is already on its way.
+     * @param seq The sequence number of the operation.
+     */
+    private void showOperation(int seq) {
+        requested = seq;
+        if (fetching) {
+            return;
+        }
+        fetching = true;
+        new SwingWorker<BoardPreview, Void>() {
+            @Override
+            protected BoardPreview doInBackground() throws RemoteException {
+                return whiteboard.renderAt(seq);
+            }
+
+            @Override
+            protected void done() {
+                fetching = false;
+                try {
+                    BoardPreview rendering = get();
+                    if (rendering != null) {
+                        view.setIcon(new ImageIcon(rendering.getImage().getImage()));
+                        status.setText("Operation " + seq + " of " + slider.getMaximum()
+                                + (rendering.getSeq() < seq ? ", last drawn at " + rendering.getSeq() : ""));
+                    } else {
+                        status.setText("Operation " + seq + " is before the start of the history");
+                    }
+                } catch (InterruptedException | ExecutionException e) {
+                    e.printStackTrace();
+                    status.setText("Failed to render operation " + seq);
+                }
+                if (requested != seq && isDisplayable()) {
+                    showOperation(requested);
+                }
+            }
+        }.execute();
+    }
+}
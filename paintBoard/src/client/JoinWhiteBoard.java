@@ -1,14 +1,13 @@
 package client;
 
 import java.net.MalformedURLException;
-import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 
-import remote.IClient;
+import remote.QuotaExceededException;
 import remote.RemoteWhiteboard;
 
 /**
@@ -20,6 +19,7 @@ public class JoinWhiteBoard {
     private static String serverIP;
     private static int serverPort;
     private static String username;
+    private static String room;
 
     /**
      * Main method to start the process of joining an existing whiteboard session.
@@ -31,29 +31,34 @@ public class JoinWhiteBoard {
     public static void main(String args[]) throws MalformedURLException, RemoteException, NotBoundException {
         parseArguments(args);
         String hostName = serverIP + ":" + Integer.toString(serverPort);
-        String serviceName = "Whiteboard";
         
         try {
-            RemoteWhiteboard wbserver = (RemoteWhiteboard) Naming.lookup("rmi://" + hostName + "/" + serviceName);
+            ReconnectingWhiteboard connection = new ReconnectingWhiteboard(hostName, room);
+            RemoteWhiteboard wbserver = connection.getProxy();
             
             if (wbserver.getManager() == null) {
                 JOptionPane.showMessageDialog(null, "No whiteboard exists, please create one", "No whiteboard", JOptionPane.WARNING_MESSAGE);
                 System.exit(1);
             }
             
-            if (wbserver.getUserList().contains(username)) {
+            if (wbserver.hasUser(username)) {
                 JOptionPane.showMessageDialog(null, "Username already exists", "Username exists", JOptionPane.WARNING_MESSAGE);
                 System.exit(1);
             }
             
-            IClient wbclient = new WhiteboardClient(username, false);
+            WhiteboardClient wbclient = new WhiteboardClient(username, false, connection);
             
             // Ask for join permission
-            wbserver.requestPermission(username, wbclient);
+            try {
+                wbserver.requestPermission(username, wbclient);
+            } catch (QuotaExceededException e) {
+                JOptionPane.showMessageDialog(null, e.getMessage(), "Cannot join", JOptionPane.WARNING_MESSAGE);
+                System.exit(1);
+            }
             boolean granted = false;
             while (!granted) {
                 Thread.sleep(500);
-                if (wbserver.getUserList().contains(username)) {
+                if (wbserver.hasUser(username)) {
                     granted = true;
                 } else if (!wbserver.permissionRequestsContains(username)) {
                     // Permission denied
@@ -72,26 +77,20 @@ public class JoinWhiteBoard {
             }));
             
             System.out.println("Creating GUI...");
-            SwingUtilities.invokeLater(() -> {
-                try {
-                    wbclient.createGUI(wbserver);
-                } catch (RemoteException e) {
-                    e.printStackTrace();
-                }
-            });
+            SwingUtilities.invokeLater(() -> wbclient.createGUI(wbserver));
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
     
     /**
-     * Parses input arguments and initializes serverIP, serverPort, and username.
+     * Parses input arguments and initializes serverIP, serverPort, username and the optional cluster room.
      * @param args input arguments
      */
     private static void parseArguments(String args[]) {
         if (args.length < 3) {
             SwingUtilities.invokeLater(() -> {
-                JOptionPane.showMessageDialog(null, "Arguments should be <serverIPAddress> <serverPort> <username>", "Invalid arguments", JOptionPane.WARNING_MESSAGE);
+                JOptionPane.showMessageDialog(null, "Arguments should be <serverIPAddress> <serverPort> <username> [<room>]", "Invalid arguments", JOptionPane.WARNING_MESSAGE);
                 System.exit(1);
             });
             return;
@@ -100,6 +99,7 @@ public class JoinWhiteBoard {
         serverIP = args[0];
         serverPort = parsePort(args[1]);
         username = args[2];
+        room = args.length > 3 ? args[3] : null;
     }
     
     /**
@@ -0,0 +1,122 @@
+package client;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import remote.DeliveryPlan;
+import remote.RemoteWhiteboard;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * LinkMonitor measures the link to the server and reports it every few seconds, keeping the delivery plan the server
+ * picks in return. The round trip time is taken from the reports themselves, which carry almost nothing, and the
+ * throughput from the larger tile fetches of the tile cache, so measuring adds no traffic of its own.
+ */
+public class LinkMonitor {
+
+    private static final long REPORT_SECONDS = 5;
+    // Weight of the newest sample in the averages
+    private static final double WEIGHT = 0.3;
+
+    private final RemoteWhiteboard whiteboard;
+    private final String username;
+    private final TileCache tileCache;
+    private volatile DeliveryPlan plan = DeliveryPlan.LAN;
+    private double rttMillis;
+    private double bytesPerSecond;
+    private long[] transferred;
+    private ScheduledExecutorService reporter;
+
+    /**
+     * Constructs a LinkMonitor.
+     * @param whiteboard The remote whiteboard.
+     * @param username The username of the current user.
+     * @param tileCache The tile cache whose fetches give the throughput.
+     */
+    public LinkMonitor(RemoteWhiteboard whiteboard, String username, TileCache tileCache) {
+        this.whiteboard = whiteboard;
+        this.username = username;
+        this.tileCache = tileCache;
+        this.transferred = tileCache.getTransferred();
+    }
+
+    /**
+     * Measures the round trip time with a call that carries almost nothing and reports it, before the board is
+     * first fetched.
+     * @return The delivery plan picked by the server.
+     */
+    public synchronized DeliveryPlan measure() {
+        try {
+            long start = System.nanoTime();
+            whiteboard.getHistoryStart();
+            sampleRtt(System.nanoTime() - start);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+        report();
+        return plan;
+    }
+
+    /**
+     * Starts reporting the link every few seconds.
+     */
+    public synchronized void start() {
+        if (reporter == null) {
+            reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "link-reporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reporter.scheduleWithFixedDelay(this::report, REPORT_SECONDS, REPORT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stops reporting the link.
+     */
+    public synchronized void stop() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+
+    /**
+     * Returns the delivery plan the server picked at the last report.
+     * @return The plan, the local network one until the first report.
+     */
+    public DeliveryPlan getPlan() {
+        return plan;
+    }
+
+    /**
+     * Reports the link and keeps the plan returned, timing the call as the next round trip sample.
+     */
+    private synchronized void report() {
+        long[] now = tileCache.getTransferred();
+        if (now[1] > transferred[1]) {
+            double sample = (now[0] - transferred[0]) * 1e9 / (now[1] - transferred[1]);
+            bytesPerSecond = bytesPerSecond == 0 ? sample : bytesPerSecond + WEIGHT * (sample - bytesPerSecond);
+        }
+        transferred = now;
+        try {
+            long start = System.nanoTime();
+            plan = whiteboard.reportLink(username, Math.round(rttMillis), Math.round(bytesPerSecond));
+            sampleRtt(System.nanoTime() - start);
+        } catch (RemoteException e) {
+            // Kept on the last plan, the next report tries again
+            System.err.println("Link report failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Adds a round trip time to the average.
+     * @param nanos The time of the call in nanoseconds.
+     */
+    private void sampleRtt(long nanos) {
+        double sample = nanos / 1e6;
+        rttMillis = rttMillis == 0 ? sample : rttMillis + WEIGHT * (sample - rttMillis);
+    }
+}
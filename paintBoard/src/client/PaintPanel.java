@@ -1,18 +1,46 @@
 package client;
 
 import javax.swing.*;
+import javax.swing.filechooser.FileNameExtensionFilter;
+import remote.BoardExporter;
+import remote.BoardPreview;
+import remote.BoardState;
+import remote.Layer;
+import remote.LayerState;
+import remote.Operation;
+import remote.PixelFill;
+import remote.Presence;
+import remote.QuotaExceededException;
 import remote.RemoteWhiteboard;
+import remote.ThrottledException;
 import server.SerializableBufferedImage;
 
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import javax.imageio.ImageIO;
 import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
 
 import static client.Constants.*;
 
@@ -28,24 +56,77 @@ public class PaintPanel extends JPanel implements MouseListener, MouseMotionList
 	 */
 	private static final long serialVersionUID = 1L;
 	private RemoteWhiteboard whiteboard;
+    private String username;
     private String toolSelected;
     private Color selectedColor;
     private int x1, y1, x2, y2;
+    // The layers composited, what the panel shows
     private SerializableBufferedImage canvas;
+    // A copy of each layer and the version it is at, so only the layers that changed are fetched again
+    private final Map<Layer, BufferedImage> layerImages = new EnumMap<>(Layer.class);
+    private final Map<Layer, Long> layerVersions = new EnumMap<>(Layer.class);
+    // The layer this user draws on
+    private Layer layer = Layer.DRAWING;
     private File currentFile;
+    // Sequence number of the last server operation reflected on the canvas
+    private volatile long lastSeq;
+    // While the server is throttling this user or refusing drawings, drags are not sent before retryAt and a notice
+    // is shown until noticeUntil
+    private long retryAt;
+    private long noticeUntil;
+    private String notice;
+    private static final int THROTTLE_NOTICE_MILLIS = 2000;
+    private static final String THROTTLE_NOTICE = "Drawing too fast, the server is slowing you down";
+    private static final long QUOTA_PAUSE_MILLIS = 5000;
+    // While the first paint is loading, the latest sequence number announced by the server is kept here
+    private boolean loading;
+    private long pendingSeq;
+    // Measures the link to the server and keeps the delivery plan the server picked for it, which sets the preview
+    // of the first paint and how far behind the canvas catches up by replaying operations
+    private final LinkMonitor link;
+    // Shapes drawn by this user that have not yet come back in the server's operation stream, by the identifier sent
+    // with them. They are painted over the canvas, so remote shapes the server ordered first end up underneath them.
+    private final LinkedHashMap<Long, Pending> pending = new LinkedHashMap<>();
+    private long nextOpId;
+    // A shape the server has not echoed for this long is assumed lost and no longer shown
+    private static final long PENDING_TIMEOUT_MILLIS = 5000;
+    // Images are uploaded in chunks of this size, a failed chunk is retried a few times with a growing pause
+    private static final int UPLOAD_CHUNK_BYTES = 256 * 1024;
+    private static final int UPLOAD_RETRIES = 5;
+    private static final long UPLOAD_RETRY_MILLIS = 500;
+    // The pointers and shape previews of the other users by username, replaced or merged as the server sends them
+    private final Map<String, Presence> others = new HashMap<>();
+    // This user's latest presence, sent by the timer only if it changed and the previous one has been delivered,
+    // so a fast mouse never queues up calls behind it
+    private Presence presence;
+    private Presence sentPresence;
+    private boolean presenceInFlight;
+    private static final int PRESENCE_SEND_MILLIS = 50;
+    private final Timer presenceTimer = new Timer(PRESENCE_SEND_MILLIS, event -> sendPresence());
+    private final ExecutorService presenceSender = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "presence-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     /**
      * Constructor for PaintPanel.
      * @param whiteboard The remote whiteboard interface for communication with the server.
+     * @param username The username of the current user.
      */
-    public PaintPanel(RemoteWhiteboard whiteboard) {
+    public PaintPanel(RemoteWhiteboard whiteboard, String username) {
     	this.whiteboard = whiteboard;
+    	this.username = username;
+        this.link = new LinkMonitor(whiteboard, username, TileCache.shared());
         reset();
         setBackground(Color.WHITE);
         addMouseListener(this);
         addMouseMotionListener(this);
         canvas = new SerializableBufferedImage(PAINT_PANEL_WIDTH, PAINT_PANEL_HEIGHT, BufferedImage.TYPE_INT_ARGB);
-        refresh();
+        for (Layer each : Layer.values()) {
+            layerImages.put(each, new BufferedImage(PAINT_PANEL_WIDTH, PAINT_PANEL_HEIGHT, BufferedImage.TYPE_INT_ARGB));
+        }
+        loadProgressively();
     }
     
     /**
@@ -65,6 +146,16 @@ public class PaintPanel extends JPanel implements MouseListener, MouseMotionList
     protected void paintComponent(Graphics g) {
         super.paintComponent(g);
         g.drawImage(canvas.getImage(), 0, 0, null);
+        for (Pending local : pending.values()) {
+            local.shape.draw((Graphics2D) g);
+        }
+        drawOthers((Graphics2D) g);
+        if (System.currentTimeMillis() < noticeUntil) {
+            g.setColor(new Color(255, 235, 160));
+            g.fillRect(0, 0, getWidth(), 20);
+            g.setColor(Color.DARK_GRAY);
+            g.drawString(notice, 8, 15);
+        }
         if (toolSelected != null && (RECTANGLE.equals(toolSelected) || OVAL.equals(toolSelected) || LINE.equals(toolSelected) || CIRCLE.equals(toolSelected))) {
             drawCurrentShape(g);
         }
@@ -96,6 +187,121 @@ public class PaintPanel extends JPanel implements MouseListener, MouseMotionList
         }
     }
 
+    /**
+     * Draws the shapes the other users are dragging out and their pointers, labelled with their usernames.
+     * @param g The graphics context.
+     */
+    private void drawOthers(Graphics2D g) {
+        for (Presence other : others.values()) {
+            if (other.getPreview() != null) {
+                other.getPreview().draw(g);
+            }
+            // A stable color per user, dark enough to read on white
+            g.setColor(Color.getHSBColor((other.getUsername().hashCode() & 0xff) / 256f, 0.8f, 0.7f));
+            int x = other.getX();
+            int y = other.getY();
+            g.fillPolygon(new int[] { x, x, x + 4, x + 10 }, new int[] { y, y + 14, y + 10, y + 10 }, 4);
+            g.drawString(other.getUsername(), x + 10, y + 22);
+        }
+    }
+
+    /**
+     * Shows the presences of the other users sent by the server.
+     * @param presences The presences.
+     * @param full Whether the presences are everyone's, replacing those shown, or only the ones that changed.
+     */
+    public void showPresence(List<Presence> presences, boolean full) {
+        if (full) {
+            others.clear();
+        }
+        for (Presence other : presences) {
+            if (other.getUsername().equals(username)) {
+                continue;
+            }
+            if (other.isVisible()) {
+                others.put(other.getUsername(), other);
+            } else {
+                others.remove(other.getUsername());
+            }
+        }
+        repaint();
+    }
+
+    /**
+     * Notes where this user's pointer is and the shape being dragged out, for the timer to send.
+     * @param x The x-coordinate of the pointer.
+     * @param y The y-coordinate of the pointer.
+     * @param preview The shape being dragged out, or null if none.
+     */
+    private void movePresence(int x, int y, RemoteWhiteboard.Shape preview) {
+        presence = new Presence(username, x, y, preview);
+    }
+
+    /**
+     * Sends this user's latest presence if it changed and the previous one has been delivered.
+     * Presence is best effort, a failed send is not retried and the next change is sent instead.
+     */
+    private void sendPresence() {
+        Presence latest = presence;
+        if (latest == null || latest == sentPresence || presenceInFlight) {
+            return;
+        }
+        sentPresence = latest;
+        presenceInFlight = true;
+        presenceSender.execute(() -> {
+            try {
+                whiteboard.updatePresence(latest);
+            } catch (RemoteException e) {
+                // Dropped, the next change is sent instead
+            } finally {
+                SwingUtilities.invokeLater(() -> presenceInFlight = false);
+            }
+        });
+    }
+
+    /**
+     * Starts sending presence and reporting the link when the panel is shown.
+     */
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        presenceTimer.start();
+        link.start();
+    }
+
+    /**
+     * Stops sending presence and reporting the link when the panel is taken down.
+     */
+    @Override
+    public void removeNotify() {
+        presenceTimer.stop();
+        link.stop();
+        super.removeNotify();
+    }
+
+    /**
+     * Returns the shape being dragged out with the selected tool, or null if the tool does not drag out a shape.
+     * @return The shape from the press to the current point.
+     */
+    private RemoteWhiteboard.Shape draggedShape() {
+        int left = Math.min(x1, x2);
+        int top = Math.min(y1, y2);
+        int width = Math.abs(x2 - x1);
+        int height = Math.abs(y2 - y1);
+        switch (toolSelected) {
+            case LINE:
+                return new RemoteWhiteboard.Line(x1, y1, x2, y2, selectedColor);
+            case RECTANGLE:
+                return new RemoteWhiteboard.Rectangle(left, top, width, height, selectedColor);
+            case CIRCLE:
+                return new RemoteWhiteboard.Circle(x1, y1, Math.max(width, height), selectedColor);
+            case OVAL:
+                return new RemoteWhiteboard.Oval(left, top, width, height, selectedColor);
+            default:
+                return null;
+        }
+    }
+
     /**
      * Handles mouse press events for drawing.
      * @param e The mouse event.
@@ -108,16 +314,10 @@ public class PaintPanel extends JPanel implements MouseListener, MouseMotionList
         if (toolSelected.equals(TEXT)) {
             String text = JOptionPane.showInputDialog("Enter text:");
             if (text != null && !text.trim().isEmpty()) {
-                try {
-                    whiteboard.drawText(x1, y1, text, selectedColor);
-                    Graphics2D g2d = canvas.createGraphics();
-                    g2d.setColor(selectedColor);
-                    g2d.drawString(text, x1, y1);
-                    g2d.dispose();
-                    repaint();
-                } catch (RemoteException ex) {
-                    ex.printStackTrace();
-                }
+                int x = x1;
+                int y = y1;
+                Color color = selectedColor;
+                send(new RemoteWhiteboard.Text(x, y, text, color), opId -> whiteboard.drawText(username, opId, layer, x, y, text, color));
             }
         }
     }
@@ -130,32 +330,38 @@ public class PaintPanel extends JPanel implements MouseListener, MouseMotionList
     public void mouseReleased(MouseEvent e) {
         x2 = e.getX();
         y2 = e.getY();
+        movePresence(x2, y2, null);
         if (toolSelected == null) return;
         if (!((toolSelected.equals(LINE)) || (toolSelected.equals(RECTANGLE)) || (toolSelected.equals(CIRCLE)) || (toolSelected.equals(OVAL)))) return;
-        Graphics2D g2d = canvas.createGraphics();
-        g2d.setColor(selectedColor);
-        
-        // Draw on remote canvas
-        try {
-	        switch (toolSelected) {
-		        case LINE:
-		        	whiteboard.drawLine(x1, y1, x2, y2, selectedColor);
-		            break;
-		        case RECTANGLE:
-		        	whiteboard.drawRectangle(Math.min(x1, x2), Math.min(y1, y2), Math.abs(x2 - x1), Math.abs(y2 - y1), selectedColor);
-		            break;
-		        case CIRCLE:
-	                int radius = Math.max(Math.abs(x2 - x1), Math.abs(y2 - y1));
-	                whiteboard.drawCircle(x1, y1, radius, selectedColor);
-		            break;
-		        case OVAL:
-		        	whiteboard.drawOval(Math.min(x1, x2), Math.min(y1, y2), Math.abs(x2 - x1), Math.abs(y2 - y1), selectedColor);
-		            break;
-		    }
-        } catch (RemoteException e1) {
-            e1.printStackTrace();
+        int startX = x1;
+        int startY = y1;
+        int endX = x2;
+        int endY = y2;
+        int left = Math.min(startX, endX);
+        int top = Math.min(startY, endY);
+        int width = Math.abs(endX - startX);
+        int height = Math.abs(endY - startY);
+        Color color = selectedColor;
+        switch (toolSelected) {
+            case LINE:
+                send(new RemoteWhiteboard.Line(startX, startY, endX, endY, color),
+                        opId -> whiteboard.drawLine(username, opId, layer, startX, startY, endX, endY, color));
+                break;
+            case RECTANGLE:
+                send(new RemoteWhiteboard.Rectangle(left, top, width, height, color),
+                        opId -> whiteboard.drawRectangle(username, opId, layer, left, top, width, height, color));
+                break;
+            case CIRCLE:
+                int radius = Math.max(width, height);
+                send(new RemoteWhiteboard.Circle(startX, startY, radius, color),
+                        opId -> whiteboard.drawCircle(username, opId, layer, startX, startY, radius, color));
+                break;
+            case OVAL:
+                send(new RemoteWhiteboard.Oval(left, top, width, height, color),
+                        opId -> whiteboard.drawOval(username, opId, layer, left, top, width, height, color));
+                break;
         }
-        g2d.dispose();
+        // Clear the outline of the shape being dragged
         repaint();
     }
 
@@ -166,53 +372,141 @@ public class PaintPanel extends JPanel implements MouseListener, MouseMotionList
     
     @Override
     public void mouseDragged(MouseEvent e) {
-        if (toolSelected == null) return;
+        if (toolSelected == null) {
+            movePresence(e.getX(), e.getY(), null);
+            return;
+        }
+        if (System.currentTimeMillis() < retryAt) return;
         x2 = e.getX();
         y2 = e.getY();
-        
-        try {
-            Graphics2D g2d = canvas.createGraphics();
-            if (toolSelected.equals(FREE_DRAW)) {
-                whiteboard.freeDraw(x1, y1, e.getX(), e.getY(), selectedColor);
-                g2d.setColor(selectedColor);
-                g2d.drawLine(x1, y1, x2, y2);
-                x1 = e.getX();
-                y1 = e.getY();
-            } else if (toolSelected.equals(SMALL_ERASER) || toolSelected.equals(MEDIUM_ERASER) || toolSelected.equals(LARGE_ERASER)) {
-                int eraserSize;
-                switch (toolSelected) {
-                	case SMALL_ERASER:
-                		eraserSize = SMALL_ERASER_SIZE;
-                		break;
-                	case MEDIUM_ERASER:
-                		eraserSize = MEDIUM_ERASER_SIZE;
-                		break;
-                	case LARGE_ERASER:
-                		eraserSize = LARGE_ERASER_SIZE;
-                		break;
-                	default:
-                		eraserSize = SMALL_ERASER_SIZE;
-                }
-                whiteboard.erase(x2, y2, eraserSize);
-                g2d.setColor(Color.WHITE);
-                g2d.fillRect(x2 - eraserSize / 2, y2 - eraserSize / 2, eraserSize, eraserSize);
+        movePresence(x2, y2, draggedShape());
+
+        int startX = x1;
+        int startY = y1;
+        int endX = x2;
+        int endY = y2;
+        Color color = selectedColor;
+        if (toolSelected.equals(FREE_DRAW)) {
+            send(new RemoteWhiteboard.FreeDraw(startX, startY, endX, endY, color),
+                    opId -> whiteboard.freeDraw(username, opId, layer, startX, startY, endX, endY, color));
+            x1 = endX;
+            y1 = endY;
+        } else if (toolSelected.equals(SMALL_ERASER) || toolSelected.equals(MEDIUM_ERASER) || toolSelected.equals(LARGE_ERASER)) {
+            int eraserSize;
+            switch (toolSelected) {
+            	case SMALL_ERASER:
+            		eraserSize = SMALL_ERASER_SIZE;
+            		break;
+            	case MEDIUM_ERASER:
+            		eraserSize = MEDIUM_ERASER_SIZE;
+            		break;
+            	case LARGE_ERASER:
+            		eraserSize = LARGE_ERASER_SIZE;
+            		break;
+            	default:
+            		eraserSize = SMALL_ERASER_SIZE;
             }
-            g2d.dispose();
+            send(new RemoteWhiteboard.Eraser(endX, endY, eraserSize), opId -> whiteboard.erase(username, opId, layer, endX, endY, eraserSize));
+        } else {
+            // Redraw the outline of the shape being dragged
             repaint();
-        } catch (RemoteException e1) {
-            e1.printStackTrace();
         }
     }
 
+    /**
+     * Shows a shape drawn by this user at once, over the canvas, and sends it to the server. The shape stays
+     * pending until it comes back in the operation stream, so the user never waits for the round trip.
+     * A shape the server refuses is taken off again.
+     * @param shape The shape as it will be drawn.
+     * @param sender Sends the shape to the server with its identifier.
+     */
+    private void send(RemoteWhiteboard.Shape shape, Sender sender) {
+        long opId = ++nextOpId;
+        pending.put(opId, new Pending(shape));
+        Rectangle bounds = shape.getBounds();
+        paintImmediately(bounds);
+        try {
+            sender.send(opId);
+        } catch (ThrottledException e) {
+            pending.remove(opId);
+            repaint(bounds);
+            showThrottled(e);
+        } catch (QuotaExceededException e) {
+            pending.remove(opId);
+            repaint(bounds);
+            showNotice(e.getMessage(), QUOTA_PAUSE_MILLIS);
+        } catch (RemoteException e) {
+            pending.remove(opId);
+            repaint(bounds);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Takes off the pending shapes up to one that came back from the server. The server handles the operations of
+     * each user in the order they were sent, so the earlier ones have come back too or were refused.
+     * Shapes the server never echoed are dropped after a while so they do not linger.
+     * @param opId The identifier of the shape that came back, 0 to only drop the expired ones.
+     */
+    private void acknowledge(long opId) {
+        long expired = System.currentTimeMillis() - PENDING_TIMEOUT_MILLIS;
+        Iterator<Map.Entry<Long, Pending>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Pending> entry = it.next();
+            if (entry.getKey() > opId && entry.getValue().sentAt > expired) {
+                break;
+            }
+            it.remove();
+        }
+    }
+
+    /**
+     * Pauses sending drags and shows a notice after the server refused an operation for being sent too fast.
+     * @param e The exception from the server.
+     */
+    private void showThrottled(ThrottledException e) {
+        showNotice(THROTTLE_NOTICE, e.getRetryAfterMillis());
+    }
+
+    /**
+     * Pauses sending drags and shows a notice after the server refused an operation.
+     * @param text The notice.
+     * @param pauseMillis How long to pause sending, in milliseconds.
+     */
+    private void showNotice(String text, long pauseMillis) {
+        long now = System.currentTimeMillis();
+        notice = text;
+        retryAt = now + pauseMillis;
+        noticeUntil = now + Math.max(THROTTLE_NOTICE_MILLIS, pauseMillis);
+        repaint();
+        Timer timer = new Timer((int) (noticeUntil - now), event -> repaint());
+        timer.setRepeats(false);
+        timer.start();
+    }
+
     // Empty implementations for other mouse events
     @Override
     public void mouseClicked(MouseEvent e) {}
     @Override
     public void mouseEntered(MouseEvent e) {}
+
+    /**
+     * Tells the other users the pointer left the board.
+     * @param e The mouse event.
+     */
     @Override
-    public void mouseExited(MouseEvent e) {}
+    public void mouseExited(MouseEvent e) {
+        presence = Presence.away(username);
+    }
+
+    /**
+     * Tells the other users where the pointer is.
+     * @param e The mouse event.
+     */
     @Override
-    public void mouseMoved(MouseEvent e) {}
+    public void mouseMoved(MouseEvent e) {
+        movePresence(e.getX(), e.getY(), null);
+    }
 
     /**
      * Sets the selected drawing tool.
@@ -231,42 +525,332 @@ public class PaintPanel extends JPanel implements MouseListener, MouseMotionList
     }
 
     /**
-     * Refreshes the paint panel by getting the latest canvas image and shapes from the server.
+     * Sets the layer this user draws on.
+     * @param layer The layer.
+     */
+    public void setLayer(Layer layer) {
+        this.layer = layer;
+    }
+
+    /**
+     * Clears the layer this user draws on, leaving the other layers as they are.
+     */
+    public void clearLayer() {
+        try {
+            whiteboard.clearLayer(username, layer);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Refreshes the paint panel by getting the layers that changed since the copies kept here from the server,
+     * taking the tiles of their images from the tile cache where it has them.
      */
     public void refresh() {
+        refresh(false);
+    }
+
+    /**
+     * Refreshes the paint panel by getting the layers that changed, with their shapes or flattened into raster tiles.
+     * @param rasters True to fetch the layers as raster tiles, which only sends the tiles the changes touched.
+     */
+    private void refresh(boolean rasters) {
         try {
-            // Clear the canvas
-        	Graphics2D g2d = canvas.createGraphics();
-            g2d.setComposite(AlphaComposite.Clear);
-            g2d.fillRect(0, 0, canvas.getWidth(), canvas.getHeight());
-            g2d.setComposite(AlphaComposite.SrcOver);   
-            
-            SerializableBufferedImage serverCanvas = whiteboard.getCanvasImage();
-            g2d.drawImage(serverCanvas.getImage(), 0, 0, null);
-            List<RemoteWhiteboard.Shape> shapes = whiteboard.getShapes();
-            for (RemoteWhiteboard.Shape shape : shapes) {
-                shape.draw(g2d);
+            showState(TileCache.shared().getChangedLayers(whiteboard, new EnumMap<>(layerVersions), rasters));
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Replaces the layers in a board state and composites the canvas again. Layers the state leaves out are kept.
+     * @param state The board state.
+     */
+    private void showState(BoardState state) {
+        for (LayerState layerState : state.getLayers()) {
+            Graphics2D g2d = emptyLayer(layerState.getLayer());
+            if (layerState.getImage() != null) {
+                g2d.drawImage(layerState.getImage().getImage(), 0, 0, null);
+            }
+            BufferedImage image = layerImages.get(layerState.getLayer());
+            for (RemoteWhiteboard.Shape shape : layerState.getShapes()) {
+                if (!PixelFill.draw(shape, image)) {
+                    shape.draw(g2d);
+                }
             }
             g2d.dispose();
-            repaint();
+            layerVersions.put(layerState.getLayer(), layerState.getVersion());
+        }
+        lastSeq = state.getSeq();
+        composite(new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight()));
+    }
+
+    /**
+     * Returns whether a board state is its bottom image with every shape drawn over it, so it can be exported as
+     * that image and the shapes, the same check the server makes.
+     * @param state The board state with every layer.
+     * @return True if no image lies above anything else.
+     */
+    private static boolean hasSingleBackground(BoardState state) {
+        boolean below = false;
+        for (LayerState layerState : state.getLayers()) {
+            if (layerState.getImage() != null && below) {
+                return false;
+            }
+            below |= layerState.getImage() != null || !layerState.getShapes().isEmpty();
+        }
+        return true;
+    }
+
+    /**
+     * Composites a board state into one image, each layer's image and then its shapes, bottom up.
+     * @param state The board state with every layer.
+     * @return The image of the board, transparent where nothing is drawn.
+     */
+    private static BufferedImage flatten(BoardState state) {
+        BufferedImage board = new BufferedImage(PAINT_PANEL_WIDTH, PAINT_PANEL_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2d = board.createGraphics();
+        for (LayerState layerState : state.getLayers()) {
+            BufferedImage layer = new BufferedImage(PAINT_PANEL_WIDTH, PAINT_PANEL_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D layerGraphics = layer.createGraphics();
+            if (layerState.getImage() != null) {
+                layerGraphics.drawImage(layerState.getImage().getImage(), 0, 0, null);
+            }
+            for (RemoteWhiteboard.Shape shape : layerState.getShapes()) {
+                if (!PixelFill.draw(shape, layer)) {
+                    shape.draw(layerGraphics);
+                }
+            }
+            layerGraphics.dispose();
+            g2d.drawImage(layer, 0, 0, null);
+        }
+        g2d.dispose();
+        return board;
+    }
+
+    /**
+     * Empties the copy of a layer.
+     * @param cleared The layer.
+     * @return A graphics context to draw on the layer with, to be disposed by the caller.
+     */
+    private Graphics2D emptyLayer(Layer cleared) {
+        BufferedImage image = layerImages.get(cleared);
+        Graphics2D g2d = image.createGraphics();
+        g2d.setComposite(AlphaComposite.Clear);
+        g2d.fillRect(0, 0, image.getWidth(), image.getHeight());
+        g2d.setComposite(AlphaComposite.SrcOver);
+        return g2d;
+    }
+
+    /**
+     * Composites an area of the canvas from the layers, bottom up, and repaints it.
+     * @param area The area.
+     */
+    private void composite(Rectangle area) {
+        Graphics2D g2d = canvas.createGraphics();
+        g2d.setClip(area);
+        g2d.setComposite(AlphaComposite.Clear);
+        g2d.fill(area);
+        g2d.setComposite(AlphaComposite.SrcOver);
+        for (BufferedImage image : layerImages.values()) {
+            g2d.drawImage(image, 0, 0, null);
+        }
+        g2d.dispose();
+        repaint(area);
+    }
+
+    /**
+     * Paints the board coarse to fine when the panel is created. The link is measured first, then a small preview
+     * from the server's image pyramid, in the codec the delivery plan picked, arrives quickly and is shown scaled up
+     * while the full board state is still being fetched, its images through the tile cache.
+     */
+    private void loadProgressively() {
+        loading = true;
+        new SwingWorker<BoardState, BoardPreview>() {
+            @Override
+            protected BoardState doInBackground() throws RemoteException {
+                link.measure();
+                publish(whiteboard.getPreviewFor(username));
+                return TileCache.shared().getChangedLayers(whiteboard, null);
+            }
+
+            @Override
+            protected void process(List<BoardPreview> previews) {
+                if (loading) {
+                    showPreview(previews.get(previews.size() - 1));
+                }
+            }
+
+            @Override
+            protected void done() {
+                loading = false;
+                try {
+                    showState(get());
+                } catch (InterruptedException | ExecutionException e) {
+                    e.printStackTrace();
+                    refresh();
+                }
+                catchUp(pendingSeq);
+            }
+        }.execute();
+    }
+
+    /**
+     * Shows a preview scaled up to the size of the board.
+     * @param preview The preview.
+     */
+    private void showPreview(BoardPreview preview) {
+        BufferedImage image = preview.getImage().getImage();
+        Graphics2D g2d = canvas.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2d.drawImage(image, 0, 0, image.getWidth() * preview.getScale(), image.getHeight() * preview.getScale(), null);
+        g2d.dispose();
+        repaint();
+    }
+
+    /**
+     * Brings the canvas up to a sequence number announced by the server by fetching and applying only the
+     * operations after the last one applied, so every client draws the shapes in the same order. Further behind than
+     * the delivery plan replays, the layers that changed are fetched as raster tiles instead.
+     * @param seq The sequence number of the latest operation on the board.
+     */
+    public void catchUp(long seq) {
+        if (loading) {
+            pendingSeq = Math.max(pendingSeq, seq);
+            return;
+        }
+        if (seq <= lastSeq) {
+            return;
+        }
+        if (seq - lastSeq > link.getPlan().getMaxReplay()) {
+            refresh(true);
+            return;
+        }
+        try {
+            applyMissed(whiteboard.getOperationsSince(lastSeq));
         } catch (RemoteException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Brings the canvas up to date by replaying only the operations missed since the last refresh onto the layers
+     * they change, falling back to fetching the layers that changed when the server no longer has the operations
+     * or a loaded image cannot be decoded here. Only the area the operations touched is composited again.
+     * @param missed The operations after the last sequence number seen, or null if they are no longer available.
+     */
+    public void applyMissed(List<Operation> missed) {
+        if (missed == null) {
+            refresh();
+            return;
+        }
+        // Every operation fetched is on the server's board, so local echoes of them can go before anything is repainted
+        long acknowledged = 0;
+        for (Operation operation : missed) {
+            if (operation.getType() == Operation.Type.ADD_SHAPE && username.equals(operation.getOrigin())) {
+                acknowledged = Math.max(acknowledged, operation.getOpId());
+            }
+        }
+        acknowledge(acknowledged);
+        Rectangle board = new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight());
+        Rectangle changed = null;
+        for (Operation operation : missed) {
+            Rectangle area = null;
+            switch (operation.getType()) {
+                case ADD_SHAPE: {
+                    BufferedImage image = layerImages.get(operation.getLayer());
+                    if (!PixelFill.draw(operation.getShape(), image)) {
+                        Graphics2D g2d = image.createGraphics();
+                        operation.getShape().draw(g2d);
+                        g2d.dispose();
+                    }
+                    layerVersions.put(operation.getLayer(), operation.getSeq());
+                    area = operation.getShape().getBounds();
+                    break;
+                }
+                case CLEAR:
+                    for (Layer cleared : Layer.values()) {
+                        if (operation.getLayer() == null || operation.getLayer() == cleared) {
+                            emptyLayer(cleared).dispose();
+                            layerVersions.put(cleared, operation.getSeq());
+                        }
+                    }
+                    area = board;
+                    break;
+                case LOAD_IMAGE:
+                    // The operation already carries the image scaled to the board, so it is not fetched again
+                    BufferedImage image = decode(operation.getData());
+                    if (image == null) {
+                        if (changed != null) {
+                            composite(changed);
+                        }
+                        refresh();
+                        return;
+                    }
+                    Graphics2D g2d = emptyLayer(operation.getLayer());
+                    g2d.drawImage(image, 0, 0, null);
+                    g2d.dispose();
+                    layerVersions.put(operation.getLayer(), operation.getSeq());
+                    // Kept as tiles so the next session on a board with this image does not fetch it again
+                    TileCache.shared().storeLater(image);
+                    area = board;
+                    break;
+                default:
+                    // Simplified strokes look the same as their segments, chat and users have their own panels
+                    break;
+            }
+            if (area != null) {
+                if (changed == null) {
+                    changed = new Rectangle(area);
+                } else {
+                    changed.add(area);
+                }
+            }
+            lastSeq = operation.getSeq();
+        }
+        if (changed != null) {
+            composite(changed.intersection(board));
+        }
+    }
+
+    /**
+     * Decodes a loaded image.
+     * @param data The encoded image.
+     * @return The image, or null if it cannot be decoded.
+     */
+    private static BufferedImage decode(byte[] data) {
+        try {
+            return data == null ? null : ImageIO.read(new ByteArrayInputStream(data));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Returns the sequence number of the last server operation shown on the canvas.
+     * @return The sequence number.
+     */
+    public long getLastSeq() {
+        return lastSeq;
+    }
+
     /**
      * Clears the current canvas and creates a new one.
      */
     public void newCanvas() {
         try {
-            whiteboard.clearShapes();
+            whiteboard.clearShapes(username);
         } catch (RemoteException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Opens an image file and loads it onto the canvas.
+     * Opens an image file and loads it onto the canvas. The file is sent to the server as it is, in chunks on a
+     * background thread with a progress monitor, resuming after a failed chunk. The server scales the image to
+     * the board and the canvas shows it when the server broadcasts the change.
      */
     public void openImage() {
         JFileChooser fileChooser = new JFileChooser();
@@ -275,56 +859,237 @@ public class PaintPanel extends JPanel implements MouseListener, MouseMotionList
 
         if (userSelection == JFileChooser.APPROVE_OPTION) {
             File fileToOpen = fileChooser.getSelectedFile();
-            try {
-                canvas = new SerializableBufferedImage(ImageIO.read(fileToOpen));
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                ImageIO.write(canvas.getImage(), "png", baos);
-                byte[] imageBytes = baos.toByteArray();
-                whiteboard.loadImage(imageBytes);
-                currentFile = fileToOpen;
-                repaint();
-            } catch (IOException e) {
-                e.printStackTrace();
-                JOptionPane.showMessageDialog(this, "Failed to open image!", "Error", JOptionPane.ERROR_MESSAGE);
+            ProgressMonitor progress = new ProgressMonitor(this, "Uploading " + fileToOpen.getName(), null, 0, 100);
+            SwingWorker<Void, Void> upload = new SwingWorker<Void, Void>() {
+                @Override
+                protected Void doInBackground() throws IOException, InterruptedException {
+                    uploadImage(fileToOpen, this::setProgress, this::isCancelled);
+                    return null;
+                }
+
+                @Override
+                protected void done() {
+                    progress.close();
+                    if (isCancelled()) {
+                        return;
+                    }
+                    try {
+                        get();
+                        currentFile = fileToOpen;
+                    } catch (InterruptedException | ExecutionException e) {
+                        e.printStackTrace();
+                        JOptionPane.showMessageDialog(PaintPanel.this, "Failed to open image!", "Error", JOptionPane.ERROR_MESSAGE);
+                    }
+                }
+            };
+            upload.addPropertyChangeListener(event -> {
+                if ("progress".equals(event.getPropertyName())) {
+                    progress.setProgress((Integer) event.getNewValue());
+                    if (progress.isCanceled()) {
+                        upload.cancel(true);
+                    }
+                }
+            });
+            upload.execute();
+        }
+    }
+
+    /**
+     * Sends an image file to the server in chunks. After a failed call the chunk is sent again at the same
+     * position; the server ignores a chunk it already has and answers with where to continue.
+     * @param file The image file.
+     * @param progress Receives the percentage sent.
+     * @param cancelled Tells whether the user gave up.
+     * @throws IOException if the file cannot be read or the server cannot be reached after a few attempts.
+     * @throws InterruptedException if interrupted while waiting to retry.
+     */
+    private void uploadImage(File file, IntConsumer progress, BooleanSupplier cancelled)
+            throws IOException, InterruptedException {
+        long size = file.length();
+        String uploadId = whiteboard.beginImageUpload(username, size);
+        byte[] buffer = new byte[UPLOAD_CHUNK_BYTES];
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long offset = 0;
+            int failures = 0;
+            while (offset < size && !cancelled.getAsBoolean()) {
+                int length = (int) Math.min(buffer.length, size - offset);
+                in.seek(offset);
+                in.readFully(buffer, 0, length);
+                try {
+                    offset = whiteboard.uploadImageChunk(uploadId, offset, length == buffer.length ? buffer : Arrays.copyOf(buffer, length));
+                    failures = 0;
+                } catch (RemoteException e) {
+                    if (++failures > UPLOAD_RETRIES) {
+                        throw e;
+                    }
+                    System.err.println("Image chunk failed, retrying: " + e.getMessage());
+                    Thread.sleep(UPLOAD_RETRY_MILLIS * failures);
+                }
+                progress.accept((int) (offset * 100 / size));
             }
         }
+        if (!cancelled.getAsBoolean()) {
+            whiteboard.finishImageUpload(uploadId);
+        }
     }
 
     /**
-     * Saves the current canvas image to a file.
+     * Saves the current canvas image to the file it was last saved to or opened from, in the background.
      */
     public void saveImage() {
         if (currentFile != null) {
-            try {
-                ImageIO.write(canvas.getImage(), "png", currentFile);
-                JOptionPane.showMessageDialog(this, "Image saved successfully!");
-            } catch (IOException e) {
-                e.printStackTrace();
-                JOptionPane.showMessageDialog(this, "Failed to save image!", "Error", JOptionPane.ERROR_MESSAGE);
-            }
+            export(currentFile, false);
         } else {
             saveImageAs();
         }
     }
 
     /**
-     * Saves the current canvas image to a new file specified by the user.
+     * Saves the current canvas image to a new file specified by the user, as PNG, TGA or SVG.
      */
     public void saveImageAs() {
+        File fileToSave = chooseExportFile("Save Image As");
+        if (fileToSave != null) {
+            export(fileToSave, false);
+        }
+    }
+
+    /**
+     * Saves the board as the server has it to a file specified by the user, as PNG, TGA or SVG.
+     * Unlike saving the canvas, this does not depend on this client having caught up with every change.
+     */
+    public void exportFromServer() {
+        File fileToSave = chooseExportFile("Export From Server");
+        if (fileToSave != null) {
+            export(fileToSave, true);
+        }
+    }
+
+    /**
+     * Asks the user for a file to export to, adding the extension of the chosen format if it is missing.
+     * @param title The title of the dialog.
+     * @return The file, or null if the user cancelled.
+     */
+    private File chooseExportFile(String title) {
         JFileChooser fileChooser = new JFileChooser();
-        fileChooser.setDialogTitle("Save Image As");
-        int userSelection = fileChooser.showSaveDialog(this);
+        fileChooser.setDialogTitle(title);
+        fileChooser.setAcceptAllFileFilterUsed(false);
+        for (BoardExporter.Format format : BoardExporter.Format.values()) {
+            fileChooser.addChoosableFileFilter(new FileNameExtensionFilter(format + " (*." + format.getExtension() + ")", format.getExtension()));
+        }
+        if (fileChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return null;
+        }
+        File file = fileChooser.getSelectedFile();
+        String extension = ((FileNameExtensionFilter) fileChooser.getFileFilter()).getExtensions()[0];
+        if (!file.getName().toLowerCase().endsWith("." + extension)) {
+            file = new File(file.getPath() + "." + extension);
+        }
+        return file;
+    }
 
-        if (userSelection == JFileChooser.APPROVE_OPTION) {
-            File fileToSave = fileChooser.getSelectedFile();
-            try {
-                ImageIO.write(canvas.getImage(), "png", new File(fileToSave.getAbsolutePath() + ".png"));
-                currentFile = fileToSave;
-                JOptionPane.showMessageDialog(this, "Image saved successfully!");
-            } catch (IOException e) {
-                e.printStackTrace();
-                JOptionPane.showMessageDialog(this, "Failed to save image!", "Error", JOptionPane.ERROR_MESSAGE);
+    /**
+     * Exports the board to a file on a background thread with a progress monitor that can cancel it.
+     * The format follows the extension of the file, PNG if it is none of the export formats. The export is
+     * written to a temporary file first, so a cancelled or failed export leaves an existing file untouched.
+     * Raster formats are written from a copy of the canvas. SVG needs the shapes, which only the server keeps,
+     * so it is generated from the board state fetched from the server, with the layers flattened into one image
+     * when an image lies over other content.
+     * @param file The file.
+     * @param fromServer Whether the server exports the board rather than this client.
+     */
+    private void export(File file, boolean fromServer) {
+        BoardExporter.Format found = BoardExporter.Format.forFile(file);
+        BoardExporter.Format format = found != null ? found : BoardExporter.Format.PNG;
+        BufferedImage image = canvas.getImage();
+        BufferedImage snapshot = new BufferedImage(image.getColorModel(), image.copyData(null), image.isAlphaPremultiplied(), null);
+        ProgressMonitor progress = new ProgressMonitor(this, "Saving " + file.getName(), null, 0, 100);
+        SwingWorker<Void, Void> export = new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws IOException {
+                SwingWorker<Void, Void> worker = this;
+                BoardExporter.Progress exportProgress = new BoardExporter.Progress() {
+                    @Override
+                    public void update(int percent) {
+                        setProgress(Math.min(100, percent));
+                    }
+
+                    @Override
+                    public boolean isCancelled() {
+                        return worker.isCancelled();
+                    }
+                };
+                Path temp = Files.createTempFile(file.getAbsoluteFile().getParentFile().toPath(), ".export", ".tmp");
+                try {
+                    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+                        if (fromServer) {
+                            out.write(whiteboard.exportBoard(username, format));
+                        } else if (format == BoardExporter.Format.SVG) {
+                            BoardState state = whiteboard.getBoardState();
+                            if (hasSingleBackground(state)) {
+                                BufferedImage background = state.getImage() != null ? state.getImage().getImage()
+                                        : new BufferedImage(PAINT_PANEL_WIDTH, PAINT_PANEL_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+                                BoardExporter.export(background, state.getShapes(), format, out, exportProgress);
+                            } else {
+                                // An image lies over other content, as after compacting, so only a flat image shows it
+                                BoardExporter.export(flatten(state), List.of(), format, out, exportProgress);
+                            }
+                        } else {
+                            BoardExporter.export(snapshot, List.of(), format, out, exportProgress);
+                        }
+                    }
+                    Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } finally {
+                    Files.deleteIfExists(temp);
+                }
+                return null;
             }
+
+            @Override
+            protected void done() {
+                progress.close();
+                if (isCancelled()) {
+                    return;
+                }
+                try {
+                    get();
+                    if (!fromServer) {
+                        currentFile = file;
+                    }
+                    JOptionPane.showMessageDialog(PaintPanel.this, "Image saved successfully!");
+                } catch (InterruptedException | ExecutionException e) {
+                    e.printStackTrace();
+                    JOptionPane.showMessageDialog(PaintPanel.this, "Failed to save image!", "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        };
+        export.addPropertyChangeListener(event -> {
+            if ("progress".equals(event.getPropertyName())) {
+                progress.setProgress((Integer) event.getNewValue());
+                if (progress.isCanceled()) {
+                    export.cancel(true);
+                }
+            }
+        });
+        export.execute();
+    }
+
+    /**
+     * Sends a shape to the server.
+     */
+    private interface Sender {
+        void send(long opId) throws RemoteException;
+    }
+
+    /**
+     * A shape drawn locally and sent to the server, waiting to come back in the operation stream.
+     */
+    private static class Pending {
+        final RemoteWhiteboard.Shape shape;
+        final long sentAt = System.currentTimeMillis();
+
+        Pending(RemoteWhiteboard.Shape shape) {
+            this.shape = shape;
         }
     }
 }
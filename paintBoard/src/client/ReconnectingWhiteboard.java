@@ -0,0 +1,315 @@
+package client;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.Naming;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import remote.Operation;
+import remote.RemoteWhiteboard;
+import remote.SessionExpiredException;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * ReconnectingWhiteboard keeps a client connected to its whiteboard across network blips and server failovers.
+ * The panels talk to a proxy that forwards to the current server. When a call cannot reach the server the proxy
+ * fails it and starts reconnecting on a thread of its own, so the calling thread, usually the event dispatch
+ * thread, is never held up. It retries with exponential backoff against the same server, the standby and a fresh
+ * lookup, then resumes the session with the token issued at admission so only the missed operations are
+ * transferred. Calls made while it reconnects fail at once, and the listener is told when the connection is lost.
+ */
+public class ReconnectingWhiteboard implements InvocationHandler {
+
+    private static final long INITIAL_BACKOFF_MILLIS = 250;
+    private static final long MAX_BACKOFF_MILLIS = 8000;
+    private static final long GIVE_UP_MILLIS = 120000;
+    private static final String SERVICE_NAME = "Whiteboard";
+
+    /**
+     * Receives the state the client needs to resume and the operations it missed.
+     */
+    public interface Listener {
+        /**
+         * Returns the sequence number of the last operation the client has shown.
+         * @return the sequence number.
+         */
+        long lastSeenSeq();
+
+        /**
+         * Called when a call could not reach the server and reconnecting has started.
+         */
+        void disconnected();
+
+        /**
+         * Called after the client has been reconnected or relocated to a server.
+         * @param missed the operations missed while disconnected, or null if the full board must be fetched.
+         */
+        void resumed(List<Operation> missed);
+
+        /**
+         * Called when the session could not be resumed and the client has to join again.
+         * @param reason the reason shown to the user.
+         */
+        void sessionLost(String reason);
+    }
+
+    private final String hostName;
+    private final String room;
+    private final RemoteWhiteboard proxy;
+    private volatile RemoteWhiteboard target;
+    private volatile String sessionToken;
+    private volatile String standbyAddress;
+    private volatile Listener listener;
+    // True while the reconnect thread is looking for a server, calls fail at once until it finds one
+    private volatile boolean reconnecting;
+    private final ExecutorService reconnector = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "whiteboard-reconnect");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Looks up the whiteboard and creates the reconnecting proxy for it.
+     * @param hostName the server address in the form host:port.
+     * @param room the name of the cluster room, or null for a standalone server.
+     * @throws MalformedURLException if the URL for the RMI registry is malformed.
+     * @throws RemoteException if there is an error in the remote method call.
+     * @throws NotBoundException if the whiteboard is not bound in the RMI registry.
+     */
+    public ReconnectingWhiteboard(String hostName, String room) throws MalformedURLException, RemoteException, NotBoundException {
+        this.hostName = hostName;
+        this.room = room;
+        this.target = BoardLocator.lookup(hostName, room);
+        this.proxy = (RemoteWhiteboard) Proxy.newProxyInstance(RemoteWhiteboard.class.getClassLoader(),
+                new Class<?>[] { RemoteWhiteboard.class }, this);
+    }
+
+    /**
+     * Returns the proxy the client should use for every call to the whiteboard.
+     * @return the remote whiteboard proxy.
+     */
+    public RemoteWhiteboard getProxy() {
+        return proxy;
+    }
+
+    /**
+     * Sets the listener notified when the session is resumed.
+     * @param listener the listener.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Stores the session token issued by the server when the user was admitted.
+     * @param sessionToken the session token.
+     */
+    public void setSessionToken(String sessionToken) {
+        this.sessionToken = sessionToken;
+    }
+
+    /**
+     * Remembers the address of the standby of the current server, so it can be tried if the server dies.
+     */
+    public void refreshStandbyAddress() {
+        try {
+            standbyAddress = target.getStandbyAddress();
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Switches to a server that took over the whiteboard and resumes the session there.
+     * @param wbserver the remote whiteboard now hosting the board.
+     */
+    public synchronized void retarget(RemoteWhiteboard wbserver) {
+        if (wbserver.equals(target)) {
+            // Already reconnected there on our own
+            return;
+        }
+        target = wbserver;
+        reconnecting = false;
+        try {
+            resumeOn(wbserver);
+        } catch (SessionExpiredException e) {
+            notifySessionLost(e.getMessage());
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Forwards a call to the current server. If the server cannot be reached the call fails and reconnecting
+     * starts in the background, and calls made until it is done fail at once.
+     */
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (reconnecting) {
+            throw new ConnectException("Reconnecting to the whiteboard server");
+        }
+        RemoteWhiteboard current = target;
+        try {
+            return method.invoke(current, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = unwrap(e.getCause());
+            if (isConnectionFailure(cause)) {
+                startReconnecting(current, cause);
+            }
+            throw cause;
+        }
+    }
+
+    /**
+     * Starts reconnecting on the reconnect thread, unless it already is or another server was taken on since the
+     * failed call was made.
+     * @param failed the server the failed call was made on.
+     * @param cause the failure of the call.
+     */
+    private synchronized void startReconnecting(RemoteWhiteboard failed, Throwable cause) {
+        if (reconnecting || target != failed) {
+            return;
+        }
+        System.err.println("Lost connection to the whiteboard server: " + cause.getMessage());
+        reconnecting = true;
+        Listener current = listener;
+        if (current != null) {
+            current.disconnected();
+        }
+        reconnector.execute(() -> reconnect(failed));
+    }
+
+    /**
+     * Returns the exception a server method threw. RMI wraps remote exceptions thrown by the server, such as
+     * {@link SessionExpiredException} and {@link remote.ThrottledException}, in a ServerException.
+     * @param cause the failure of a call.
+     * @return the exception thrown by the server, or the failure itself.
+     */
+    static Throwable unwrap(Throwable cause) {
+        if (cause instanceof ServerException && cause.getCause() instanceof RemoteException) {
+            return cause.getCause();
+        }
+        return cause;
+    }
+
+    /**
+     * Returns whether a failure means the call never reached the server, so it is safe to retry elsewhere.
+     * @param cause the failure.
+     * @return true for connection failures.
+     */
+    private static boolean isConnectionFailure(Throwable cause) {
+        return cause instanceof ConnectException
+                || cause instanceof ConnectIOException
+                || cause instanceof NoSuchObjectException;
+    }
+
+    /**
+     * Reconnects with exponential backoff until a server accepts the session, the client is relocated to another
+     * server, or the time limit is reached. Runs on the reconnect thread.
+     * @param failed the server the failed call was made on.
+     */
+    private void reconnect(RemoteWhiteboard failed) {
+        long deadline = System.currentTimeMillis() + GIVE_UP_MILLIS;
+        long backoff = INITIAL_BACKOFF_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            for (RemoteWhiteboard candidate : candidates(failed)) {
+                synchronized (this) {
+                    if (!reconnecting) {
+                        // Relocated to another server meanwhile
+                        return;
+                    }
+                    try {
+                        resumeOn(candidate);
+                        target = candidate;
+                        reconnecting = false;
+                    } catch (SessionExpiredException e) {
+                        notifySessionLost(e.getMessage());
+                        return;
+                    } catch (RemoteException e) {
+                        // Try the next candidate
+                        continue;
+                    }
+                }
+                refreshStandbyAddress();
+                System.err.println("Reconnected to the whiteboard server");
+                return;
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        }
+        notifySessionLost("Could not reconnect to the whiteboard server.");
+    }
+
+    /**
+     * Lists the servers to try: the one that failed, its standby, and a fresh lookup of the original address.
+     * @param failed the server the failed call was made on.
+     * @return the candidate servers.
+     */
+    private List<RemoteWhiteboard> candidates(RemoteWhiteboard failed) {
+        List<RemoteWhiteboard> candidates = new ArrayList<>();
+        candidates.add(failed);
+        String standby = standbyAddress;
+        if (standby != null) {
+            try {
+                candidates.add((RemoteWhiteboard) Naming.lookup("rmi://" + standby + "/" + SERVICE_NAME));
+            } catch (RemoteException | NotBoundException | MalformedURLException e) {
+                // Standby not reachable either
+            }
+        }
+        try {
+            candidates.add(BoardLocator.lookup(hostName, room));
+        } catch (RemoteException | NotBoundException | MalformedURLException e) {
+            // Original address not reachable
+        }
+        return candidates;
+    }
+
+    /**
+     * Resumes the session on a server and hands the missed operations to the listener.
+     * @param wbserver the server to resume on.
+     * @throws RemoteException if the server cannot be reached or the session is unknown to it.
+     */
+    private void resumeOn(RemoteWhiteboard wbserver) throws RemoteException {
+        Listener current = listener;
+        if (sessionToken == null || current == null) {
+            // Not admitted yet, there is nothing to resume
+            wbserver.getManager();
+            return;
+        }
+        List<Operation> missed;
+        try {
+            missed = wbserver.resume(sessionToken, current.lastSeenSeq());
+        } catch (ServerException e) {
+            throw (RemoteException) unwrap(e);
+        }
+        current.resumed(missed);
+    }
+
+    /**
+     * Tells the listener the session is gone.
+     * @param reason the reason shown to the user.
+     */
+    private void notifySessionLost(String reason) {
+        Listener current = listener;
+        if (current != null) {
+            current.sessionLost(reason);
+        }
+    }
+}
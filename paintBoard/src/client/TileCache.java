@@ -0,0 +1,367 @@
+package client;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import remote.BoardState;
+import remote.Layer;
+import remote.LayerState;
+import remote.RemoteWhiteboard;
+import remote.TileGrid;
+import server.SerializableBufferedImage;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * TileCache keeps tiles of board images on disk by the hash of their pixels, so they outlive the session and are
+ * shared by every board and every client on the machine. Layers are fetched as grids of tile hashes and only the
+ * tiles missing here are fetched from the server, so rejoining a board or opening one seen before transfers little
+ * more than its shapes. The least recently used tiles are deleted once the cache grows past its size.
+ * The directory is set with -Dwhiteboard.tileCache (default .whiteboard/tiles in the home directory, none to turn
+ * the cache off) and the size in megabytes with -Dwhiteboard.tileCacheMB (default 64).
+ */
+public class TileCache {
+
+    private static final long DEFAULT_MAX_MB = 64;
+    private static final String SUFFIX = ".png";
+    // Fetches smaller than this take about a round trip whatever the throughput, so they are not counted in it
+    private static final long MIN_TRANSFER_BYTES = 32 * 1024;
+    private static TileCache shared;
+
+    private final Path directory;
+    private final long maxBytes;
+    // The size of each tile on disk, least recently used first
+    private final LinkedHashMap<String, Long> sizes = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long transferredBytes;
+    private long transferNanos;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "tile-cache-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Constructs a TileCache over a directory, indexing the tiles already in it.
+     * @param directory The directory, or null to keep nothing.
+     * @param maxBytes The most bytes of tiles to keep.
+     */
+    public TileCache(Path directory, long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.directory = open(directory);
+        if (this.directory != null) {
+            evict();
+        }
+    }
+
+    /**
+     * Creates the directory if needed and indexes the tiles already in it.
+     * @param directory The directory, or null to keep nothing.
+     * @return The directory, or null if it cannot be used.
+     */
+    private Path open(Path directory) {
+        if (directory == null) {
+            return null;
+        }
+        try {
+            Files.createDirectories(directory);
+            index(directory);
+            return directory;
+        } catch (IOException e) {
+            System.err.println("Tile cache unavailable, tiles will not be kept: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the cache shared by the clients of this process, set up from the system properties.
+     * @return The cache.
+     */
+    public static synchronized TileCache shared() {
+        if (shared == null) {
+            String dir = System.getProperty("whiteboard.tileCache",
+                    Paths.get(System.getProperty("user.home"), ".whiteboard", "tiles").toString());
+            long maxMB = Long.getLong("whiteboard.tileCacheMB", DEFAULT_MAX_MB);
+            shared = new TileCache("none".equals(dir) ? null : Paths.get(dir), maxMB * 1024 * 1024);
+        }
+        return shared;
+    }
+
+    /**
+     * Adds the tiles in the directory to the index, oldest first.
+     * @param directory The directory.
+     * @throws IOException if the directory cannot be listed.
+     */
+    private void index(Path directory) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Map<Path, FileTime> modified = new HashMap<>();
+        for (Path file : files) {
+            modified.put(file, Files.getLastModifiedTime(file));
+        }
+        files.sort(Comparator.comparing(modified::get));
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            String hash = name.substring(0, name.length() - SUFFIX.length());
+            if (!TileGrid.isHash(hash)) {
+                continue;
+            }
+            long size = Files.size(file);
+            sizes.put(hash, size);
+            bytes += size;
+        }
+    }
+
+    /**
+     * Fetches the layers of a board that changed since the versions given, taking the tiles of their images from
+     * the cache and only fetching the missing ones. Falls back to fetching the images whole when a tile is gone
+     * from the server because an image was replaced meanwhile.
+     * @param whiteboard The whiteboard.
+     * @param versions The version of each layer the caller has, or null for every layer.
+     * @return The board state, with the images of the layers put back together.
+     * @throws RemoteException if there is an error during a remote method call.
+     */
+    public BoardState getChangedLayers(RemoteWhiteboard whiteboard, Map<Layer, Long> versions) throws RemoteException {
+        return getChangedLayers(whiteboard, versions, false);
+    }
+
+    /**
+     * Fetches the layers of a board that changed since the versions given as above, either with their images as
+     * tiles and their shapes or flattened into tiles of their rasters with no shapes.
+     * @param whiteboard The whiteboard.
+     * @param versions The version of each layer the caller has, or null for every layer.
+     * @param rasters True to fetch the layers flattened into raster tiles.
+     * @return The board state, with the images of the layers put back together.
+     * @throws RemoteException if there is an error during a remote method call.
+     */
+    public BoardState getChangedLayers(RemoteWhiteboard whiteboard, Map<Layer, Long> versions, boolean rasters) throws RemoteException {
+        BoardState state = rasters ? whiteboard.getChangedLayerRasters(versions) : whiteboard.getChangedLayerTiles(versions);
+        Map<String, BufferedImage> tiles = new HashMap<>();
+        Set<String> missing = new LinkedHashSet<>();
+        for (LayerState layer : state.getLayers()) {
+            if (layer.getTiles() != null) {
+                for (String hash : layer.getTiles().getHashes()) {
+                    if (!tiles.containsKey(hash) && !missing.contains(hash)) {
+                        BufferedImage tile = load(hash);
+                        if (tile != null) {
+                            tiles.put(hash, tile);
+                        } else {
+                            missing.add(hash);
+                        }
+                    }
+                }
+            }
+        }
+        if (!missing.isEmpty()) {
+            List<String> hashes = new ArrayList<>(missing);
+            long start = System.nanoTime();
+            List<byte[]> fetched = whiteboard.getTiles(hashes);
+            recordTransfer(fetched, System.nanoTime() - start);
+            for (int i = 0; i < hashes.size(); i++) {
+                BufferedImage tile = fetched.get(i) == null ? null : TileGrid.decode(fetched.get(i));
+                if (tile == null) {
+                    return versions == null ? whiteboard.getBoardState() : whiteboard.getChangedLayers(versions);
+                }
+                tiles.put(hashes.get(i), tile);
+                put(hashes.get(i), fetched.get(i));
+            }
+        }
+        List<LayerState> layers = new ArrayList<>();
+        for (LayerState layer : state.getLayers()) {
+            if (layer.getTiles() != null) {
+                layers.add(new LayerState(layer.getLayer(), layer.getVersion(),
+                        new SerializableBufferedImage(layer.getTiles().assemble(tiles)), layer.getShapes()));
+            } else {
+                layers.add(layer);
+            }
+        }
+        return new BoardState(state.getSeq(), layers);
+    }
+
+    /**
+     * Adds a fetch of tiles to the bytes and time transferred, if it is large enough to tell the throughput.
+     * @param fetched The tiles fetched.
+     * @param nanos The time the fetch took in nanoseconds.
+     */
+    private synchronized void recordTransfer(List<byte[]> fetched, long nanos) {
+        long size = 0;
+        for (byte[] tile : fetched) {
+            size += tile == null ? 0 : tile.length;
+        }
+        if (size >= MIN_TRANSFER_BYTES) {
+            transferredBytes += size;
+            transferNanos += nanos;
+        }
+    }
+
+    /**
+     * Returns the bytes of tiles fetched in the fetches large enough to tell the throughput, and the time they took.
+     * @return The bytes and the nanoseconds.
+     */
+    public synchronized long[] getTransferred() {
+        return new long[] {transferredBytes, transferNanos};
+    }
+
+    /**
+     * Splits an image that arrived whole into tiles and keeps them, in the background.
+     * @param image The image.
+     */
+    public void storeLater(BufferedImage image) {
+        if (directory == null) {
+            return;
+        }
+        writer.execute(() -> {
+            Map<String, byte[]> split = new LinkedHashMap<>();
+            TileGrid.split(image, split);
+            for (Map.Entry<String, byte[]> tile : split.entrySet()) {
+                put(tile.getKey(), tile.getValue());
+            }
+        });
+    }
+
+    /**
+     * Reads and decodes a tile, checking it still has the pixels its hash says. A tile another client on the
+     * machine wrote since the index was built is found too.
+     * @param hash The hash of the tile.
+     * @return The tile, or null if it is not here.
+     */
+    private BufferedImage load(String hash) {
+        byte[] data = get(hash);
+        BufferedImage tile = data == null ? null : TileGrid.decode(data);
+        if (tile != null && TileGrid.hash(tile).equals(hash)) {
+            return tile;
+        }
+        if (data != null) {
+            remove(hash);
+        }
+        return null;
+    }
+
+    /**
+     * Returns an encoded tile, marking it as the most recently used.
+     * @param hash The hash of the tile.
+     * @return The tile as PNG, or null if it is not here or the hash is not one.
+     */
+    public synchronized byte[] get(String hash) {
+        // Hashes come from the server and name files, anything else could reach outside the directory
+        if (directory == null || !TileGrid.isHash(hash)) {
+            misses++;
+            return null;
+        }
+        Path file = directory.resolve(hash + SUFFIX);
+        try {
+            byte[] data = Files.readAllBytes(file);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            if (sizes.put(hash, (long) data.length) == null) {
+                bytes += data.length;
+            }
+            hits++;
+            return data;
+        } catch (NoSuchFileException e) {
+            forget(hash);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Keeps an encoded tile, deleting the least recently used tiles if the cache grows past its size.
+     * A tile under something that is not a hash is not kept.
+     * @param hash The hash of the tile.
+     * @param tile The tile as PNG.
+     */
+    public synchronized void put(String hash, byte[] tile) {
+        if (directory == null || !TileGrid.isHash(hash) || sizes.containsKey(hash)) {
+            return;
+        }
+        try {
+            // Written aside and moved into place so another client never reads half a tile
+            Path temp = Files.createTempFile(directory, hash, ".tmp");
+            Files.write(temp, tile);
+            Files.move(temp, directory.resolve(hash + SUFFIX), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            sizes.put(hash, (long) tile.length);
+            bytes += tile.length;
+            evict();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Deletes a tile.
+     * @param hash The hash of the tile.
+     */
+    private synchronized void remove(String hash) {
+        if (!TileGrid.isHash(hash)) {
+            return;
+        }
+        forget(hash);
+        try {
+            Files.deleteIfExists(directory.resolve(hash + SUFFIX));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Drops a tile from the index.
+     * @param hash The hash of the tile.
+     */
+    private void forget(String hash) {
+        Long size = sizes.remove(hash);
+        if (size != null) {
+            bytes -= size;
+        }
+    }
+
+    /**
+     * Deletes the least recently used tiles until the cache fits its size.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> eldest = sizes.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            try {
+                Files.deleteIfExists(directory.resolve(entry.getKey() + SUFFIX));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            bytes -= entry.getValue();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Returns the number of tiles found here and not found here since the cache was set up.
+     * @return The hits and the misses.
+     */
+    public synchronized long[] getStatistics() {
+        return new long[] {hits, misses};
+    }
+}
@@ -3,12 +3,12 @@ package client;
 import javax.swing.*;
 
 import remote.RemoteWhiteboard;
+import remote.UserListDelta;
 
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.rmi.RemoteException;
-import java.util.List;
 
 /**
  * Author: Dingyuan Wu 1538073
@@ -21,6 +21,9 @@ public class UserListPanel extends JPanel {
 	private static final long serialVersionUID = 1L;
 	private RemoteWhiteboard whiteboard;
     private JList<String> userList;
+    private DefaultListModel<String> listModel;
+    // The version of the server's user list the model reflects, -1 before it is first fetched
+    private long version = -1;
     private JTextField kickOutField;
     private JButton kickOutButton;
     private boolean isManager;
@@ -43,7 +46,8 @@ public class UserListPanel extends JPanel {
         titleLabel.setBackground(Color.yellow);
         add(titleLabel, BorderLayout.NORTH);
 
-        userList = new JList<>();
+        listModel = new DefaultListModel<>();
+        userList = new JList<>(listModel);
         JScrollPane userListScrollPane = new JScrollPane(userList);
         
         JPanel kickOutPanel = new JPanel(new BorderLayout());
@@ -74,7 +78,7 @@ public class UserListPanel extends JPanel {
         String username = kickOutField.getText().trim();
         if (!username.isEmpty()) {
             try {
-            	if (!whiteboard.getUserList().contains(username)) {
+            	if (!whiteboard.hasUser(username)) {
                     SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, "User does not exist", "Kickout Failed", JOptionPane.WARNING_MESSAGE));
                 } else if (username.equals(whiteboard.getManager())) {
                     SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, "Cannot kick out manager", "Kickout Failed", JOptionPane.WARNING_MESSAGE));
@@ -89,16 +93,26 @@ public class UserListPanel extends JPanel {
     }
 
     /**
-     * Refreshes the user list by fetching the latest list of online users from the server.
+     * Refreshes the user list by fetching the users who joined and left since the version the list reflects, and
+     * applying them to the list in place. The whole list is fetched the first time and whenever the server no
+     * longer has the changes.
      */
     public void refresh() {
         try {
-            List<String> users = whiteboard.getUserList();
-            DefaultListModel<String> listModel = new DefaultListModel<>();
-            for (String user : users) {
-                listModel.addElement(user);
+            UserListDelta delta = whiteboard.getUserListSince(version);
+            if (delta.isFull()) {
+                listModel.clear();
+                listModel.addAll(delta.getUsers());
+            } else {
+                for (UserListDelta.Change change : delta.getChanges()) {
+                    if (change.isAdded()) {
+                        listModel.addElement(change.getUsername());
+                    } else {
+                        listModel.removeElement(change.getUsername());
+                    }
+                }
             }
-            userList.setModel(listModel);
+            version = delta.getVersion();
         } catch (RemoteException e) {
             e.printStackTrace();
         }
@@ -3,14 +3,19 @@ package client;
 import java.rmi.RemoteException;
 import javax.swing.*;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
+
 import remote.IClient;
+import remote.Operation;
+import remote.Presence;
+import remote.QuotaExceededException;
 import remote.RemoteWhiteboard;
 
 /**
  * Author: Dingyuan Wu 1538073
  * WhiteboardClient class implements the IClient interface and represents the client-side logic for the whiteboard application.
  */
-public class WhiteboardClient extends UnicastRemoteObject implements IClient {
+public class WhiteboardClient extends UnicastRemoteObject implements IClient, ReconnectingWhiteboard.Listener {
 
     /**
 	 * 
@@ -18,17 +23,21 @@ public class WhiteboardClient extends UnicastRemoteObject implements IClient {
 	private static final long serialVersionUID = 1L;
 	private String username;
     private Boolean isManager;
-    private ClientGUI gui;
+    private volatile ClientGUI gui;
+    private ReconnectingWhiteboard connection;
 
     /**
      * Constructor to initialize the WhiteboardClient with the username and manager status.
      * @param username the username of the client.
      * @param isManager a boolean indicating if the client is a manager.
+     * @param connection the reconnecting connection to the whiteboard server.
      * @throws RemoteException
      */
-    public WhiteboardClient(String username, Boolean isManager) throws RemoteException {
+    public WhiteboardClient(String username, Boolean isManager, ReconnectingWhiteboard connection) throws RemoteException {
         this.username = username;
         this.isManager = isManager;
+        this.connection = connection;
+        connection.setListener(this);
     }
 
     /**
@@ -39,17 +48,19 @@ public class WhiteboardClient extends UnicastRemoteObject implements IClient {
     public void createGUI(RemoteWhiteboard wbserver) {
         gui = new ClientGUI(wbserver, username, isManager);
         gui.showGUI();
+        connection.refreshStandbyAddress();
     }
 
     /**
-     * Refreshes the paint panel in the GUI.
+     * Brings the paint panel in the GUI up to the given sequence number.
+     * @param seq the sequence number of the latest operation on the board.
      * @throws RemoteException
      */
     @Override
-    public void refreshPaintPanel() throws RemoteException {
+    public void refreshPaintPanel(long seq) throws RemoteException {
         SwingUtilities.invokeLater(() -> {
             if (gui != null) {
-                gui.refreshPaintPanel();
+                gui.refreshPaintPanel(seq);
             }
         });
     }
@@ -127,7 +138,13 @@ public class WhiteboardClient extends UnicastRemoteObject implements IClient {
                 try {
                     server.grantPermission(username, client);
                 } catch (RemoteException e) {
-                    e.printStackTrace();
+                    // The server refuses a user it has no room for, and the request is dropped
+                    if (ReconnectingWhiteboard.unwrap(e) instanceof QuotaExceededException) {
+                        JOptionPane.showMessageDialog(null, "User " + username + " cannot join: "
+                                + ReconnectingWhiteboard.unwrap(e).getMessage(), "Permission Request", JOptionPane.WARNING_MESSAGE);
+                    } else {
+                        e.printStackTrace();
+                    }
                 }
             } else {
                 try {
@@ -148,4 +165,98 @@ public class WhiteboardClient extends UnicastRemoteObject implements IClient {
 			gui.resetPaintPanel();
 		}
 	}
+
+    /**
+     * Switches the client to the server now hosting its whiteboard and resumes the session there.
+     * @param wbserver the remote whiteboard now hosting the board.
+     * @throws RemoteException
+     */
+    @Override
+    public void relocate(RemoteWhiteboard wbserver) throws RemoteException {
+        // Resume on another thread, the server that sent this callback may still hold its lock
+        new Thread(() -> connection.retarget(wbserver), "relocate").start();
+    }
+
+    /**
+     * Stores the session token issued when the user was admitted to the whiteboard.
+     * @param token the session token.
+     * @throws RemoteException
+     */
+    @Override
+    public void sessionStarted(String token) throws RemoteException {
+        connection.setSessionToken(token);
+    }
+
+    /**
+     * Answers the heartbeat of the server.
+     * @throws RemoteException
+     */
+    @Override
+    public void ping() throws RemoteException {
+    }
+
+    /**
+     * Updates the pointers and shape previews of the other users on the paint panel in the GUI.
+     * @param presences the presences.
+     * @param full true if the presences replace the ones shown.
+     * @throws RemoteException
+     */
+    @Override
+    public void updatePresence(List<Presence> presences, boolean full) throws RemoteException {
+        SwingUtilities.invokeLater(() -> {
+            if (gui != null) {
+                gui.updatePresence(presences, full);
+            }
+        });
+    }
+
+    /**
+     * Returns the sequence number of the last operation shown on the paint panel.
+     * @return the sequence number.
+     */
+    @Override
+    public long lastSeenSeq() {
+        ClientGUI current = gui;
+        return current != null ? current.getLastSeq() : 0;
+    }
+
+    /**
+     * Tells the user the connection to the server was lost while it reconnects.
+     */
+    @Override
+    public void disconnected() {
+        SwingUtilities.invokeLater(() -> {
+            if (gui != null) {
+                gui.setDisconnected(true);
+            }
+        });
+    }
+
+    /**
+     * Brings the GUI up to date after the session was resumed.
+     * @param missed the operations missed while disconnected, or null if the full board must be fetched.
+     */
+    @Override
+    public void resumed(List<Operation> missed) {
+        SwingUtilities.invokeLater(() -> {
+            if (gui != null) {
+                gui.resume(missed);
+            }
+        });
+    }
+
+    /**
+     * Tells the user the session could not be resumed and closes the application.
+     * @param reason the reason shown to the user.
+     */
+    @Override
+    public void sessionLost(String reason) {
+        SwingUtilities.invokeLater(() -> {
+            JOptionPane.showMessageDialog(null, reason + " Please join the whiteboard again.", "Connection Lost", JOptionPane.WARNING_MESSAGE);
+            if (gui != null) {
+                gui.dispose();
+            }
+            System.exit(1);
+        });
+    }
 }
@@ -0,0 +1,323 @@
+package remote;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.event.IIOWriteProgressListener;
+import javax.imageio.stream.ImageOutputStream;
+
+import remote.RemoteWhiteboard.Shape;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * BoardExporter writes a board to a file format, for the clients saving their canvas and for the server exporting
+ * the board for its manager. PNG is written at a configurable compression level, TGA is written uncompressed for
+ * speed, and SVG is generated from the shapes, with the canvas image embedded underneath when there is one.
+ * Exports report their progress and check for cancellation as they go.
+ */
+public class BoardExporter {
+
+    /**
+     * The formats a board can be exported to.
+     */
+    public enum Format {
+        PNG("png"), TGA("tga"), SVG("svg");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        /**
+         * Returns the file name extension of the format.
+         * @return the extension, without the dot.
+         */
+        public String getExtension() {
+            return extension;
+        }
+
+        /**
+         * Returns the format a file name asks for by its extension.
+         * @param file the file.
+         * @return the format, or null if the extension is not one of the formats.
+         */
+        public static Format forFile(File file) {
+            String name = file.getName().toLowerCase();
+            for (Format format : values()) {
+                if (name.endsWith("." + format.extension)) {
+                    return format;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Receives the progress of an export and tells it whether to stop.
+     */
+    public interface Progress {
+        /**
+         * Reports how much of the export is done.
+         * @param percent the percentage done.
+         */
+        void update(int percent);
+
+        /**
+         * Returns whether the export should stop.
+         * @return true if the export was cancelled.
+         */
+        boolean isCancelled();
+    }
+
+    /** Progress that is not reported and an export that is never cancelled. */
+    public static final Progress NO_PROGRESS = new Progress() {
+        @Override
+        public void update(int percent) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    /** The PNG compression level from 0, none, to 9, smallest, set with -Dwhiteboard.pngCompression. */
+    public static final int PNG_COMPRESSION = Math.max(0, Math.min(9, Integer.getInteger("whiteboard.pngCompression", 6)));
+
+    private BoardExporter() {
+    }
+
+    /**
+     * Exports a board.
+     * @param canvas the canvas image, the shapes are drawn over it.
+     * @param shapes the shapes, empty when they are already drawn on the canvas image.
+     * @param format the format.
+     * @param out the stream to write to, not closed.
+     * @param progress receives the progress.
+     * @throws InterruptedIOException if the export was cancelled.
+     * @throws IOException if the board cannot be written.
+     */
+    public static void export(BufferedImage canvas, List<Shape> shapes, Format format, OutputStream out, Progress progress) throws IOException {
+        switch (format) {
+            case PNG:
+                writePng(flatten(canvas, shapes), PNG_COMPRESSION, out, progress);
+                break;
+            case TGA:
+                writeTga(flatten(canvas, shapes), out, progress);
+                break;
+            case SVG:
+                writeSvg(canvas, shapes, out, progress);
+                break;
+        }
+        progress.update(100);
+    }
+
+    /**
+     * Exports a board to a byte array.
+     * @param canvas the canvas image, the shapes are drawn over it.
+     * @param shapes the shapes, empty when they are already drawn on the canvas image.
+     * @param format the format.
+     * @return the exported board.
+     * @throws IOException if the board cannot be written.
+     */
+    public static byte[] export(BufferedImage canvas, List<Shape> shapes, Format format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        export(canvas, shapes, format, out, NO_PROGRESS);
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns the canvas with the shapes drawn over it, or the canvas itself if there are no shapes.
+     */
+    private static BufferedImage flatten(BufferedImage canvas, List<Shape> shapes) {
+        if (shapes.isEmpty()) {
+            return canvas;
+        }
+        BufferedImage image = new BufferedImage(canvas.getWidth(), canvas.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.drawImage(canvas, 0, 0, null);
+        for (Shape shape : shapes) {
+            if (!PixelFill.draw(shape, image)) {
+                shape.draw(g);
+            }
+        }
+        g.dispose();
+        return image;
+    }
+
+    /**
+     * Writes an image as PNG. The writer reports progress row by row and stops when aborted.
+     */
+    private static void writePng(BufferedImage image, int level, OutputStream out, Progress progress) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("png");
+        if (!writers.hasNext()) {
+            throw new IOException("No PNG writer available");
+        }
+        ImageWriter writer = writers.next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (param.canWriteCompressed()) {
+            // The PNG writer maps quality 1 to no compression and quality 0 to deflate level 9
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(1f - level / 9f);
+        }
+        writer.addIIOWriteProgressListener(new IIOWriteProgressListener() {
+            @Override
+            public void imageProgress(ImageWriter source, float percentageDone) {
+                progress.update((int) percentageDone);
+                if (progress.isCancelled()) {
+                    source.abort();
+                }
+            }
+
+            @Override
+            public void imageStarted(ImageWriter source, int imageIndex) {
+            }
+
+            @Override
+            public void imageComplete(ImageWriter source) {
+            }
+
+            @Override
+            public void thumbnailStarted(ImageWriter source, int imageIndex, int thumbnailIndex) {
+            }
+
+            @Override
+            public void thumbnailProgress(ImageWriter source, float percentageDone) {
+            }
+
+            @Override
+            public void thumbnailComplete(ImageWriter source) {
+            }
+
+            @Override
+            public void writeAborted(ImageWriter source) {
+            }
+        });
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        checkCancelled(progress);
+    }
+
+    /**
+     * Writes an image as uncompressed 32 bit TGA with the rows stored top down, which is little more than
+     * copying the pixels.
+     */
+    private static void writeTga(BufferedImage image, OutputStream out, Progress progress) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        byte[] header = new byte[18];
+        header[2] = 2; // Uncompressed true color
+        header[12] = (byte) width;
+        header[13] = (byte) (width >> 8);
+        header[14] = (byte) height;
+        header[15] = (byte) (height >> 8);
+        header[16] = 32;
+        header[17] = 0x28; // 8 alpha bits, top left origin
+        out.write(header);
+
+        int[] row = new int[width];
+        byte[] bytes = new byte[width * 4];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0, i = 0; x < width; x++) {
+                int argb = row[x];
+                bytes[i++] = (byte) argb;
+                bytes[i++] = (byte) (argb >> 8);
+                bytes[i++] = (byte) (argb >> 16);
+                bytes[i++] = (byte) (argb >> 24);
+            }
+            out.write(bytes);
+            if ((y & 63) == 0) {
+                progress.update(y * 100 / height);
+                checkCancelled(progress);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the shapes as SVG elements in the order they were drawn, over the canvas image if it is not blank.
+     */
+    private static void writeSvg(BufferedImage canvas, List<Shape> shapes, OutputStream out, Progress progress) throws IOException {
+        Writer svg = new OutputStreamWriter(new BufferedOutputStream(out), StandardCharsets.UTF_8);
+        int width = canvas.getWidth();
+        int height = canvas.getHeight();
+        svg.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        svg.write("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" + width + "\" height=\"" + height
+                + "\" viewBox=\"0 0 " + width + " " + height + "\">\n");
+        if (!isBlank(canvas)) {
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            ImageIO.write(canvas, "png", png);
+            svg.write("<image width=\"" + width + "\" height=\"" + height + "\" href=\"data:image/png;base64,"
+                    + Base64.getEncoder().encodeToString(png.toByteArray()) + "\"/>\n");
+        }
+        // Half a pixel over, so one pixel wide strokes fall on the pixels Java2D draws them on
+        svg.write("<g transform=\"translate(0.5,0.5)\" fill=\"none\" stroke-width=\"1\">\n");
+        StringBuilder element = new StringBuilder();
+        for (int i = 0; i < shapes.size(); i++) {
+            element.setLength(0);
+            shapes.get(i).appendSvg(element);
+            svg.write(element.append('\n').toString());
+            if ((i & 255) == 0) {
+                progress.update(i * 100 / shapes.size());
+                checkCancelled(progress);
+            }
+        }
+        svg.write("</g>\n</svg>\n");
+        svg.flush();
+    }
+
+    /**
+     * Returns whether every pixel of an image is fully transparent.
+     */
+    private static boolean isBlank(BufferedImage image) {
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                if ((image.getRGB(x, y) >>> 24) != 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static void checkCancelled(Progress progress) throws InterruptedIOException {
+        if (progress.isCancelled()) {
+            throw new InterruptedIOException("Export cancelled");
+        }
+    }
+
+    /**
+     * Returns the SVG paint of a color, with its opacity if it is not opaque.
+     * @param color the color.
+     * @param property the property painted, fill or stroke.
+     * @return the property set to the color as #rrggbb, followed by its opacity if the color is not opaque.
+     */
+    static String svgColor(Color color, String property) {
+        String paint = String.format("%s=\"#%06x\"", property, color.getRGB() & 0xffffff);
+        return color.getAlpha() == 255 ? paint : paint + String.format(Locale.ROOT, " %s-opacity=\"%.3f\"", property, color.getAlpha() / 255f);
+    }
+}
@@ -0,0 +1,54 @@
+package remote;
+
+import java.io.Serializable;
+
+import server.SerializableBufferedImage;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * BoardPreview is a rendering of a whiteboard, either one level of the server's image pyramid or the board
+ * at a point in its history, tagged with the sequence number of the last operation it includes.
+ */
+public class BoardPreview implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long seq;
+    private final int scale;
+    private final SerializableBufferedImage image;
+
+    /**
+     * Constructs a BoardPreview.
+     * @param seq the sequence number of the last operation included.
+     * @param scale how many board pixels each preview pixel stands for along each axis, 1 for full size.
+     * @param image the rendering.
+     */
+    public BoardPreview(long seq, int scale, SerializableBufferedImage image) {
+        this.seq = seq;
+        this.scale = scale;
+        this.image = image;
+    }
+
+    /**
+     * Returns the sequence number of the last operation included.
+     * @return the sequence number.
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    /**
+     * Returns how many board pixels each preview pixel stands for along each axis.
+     * @return the scale, 1 for full size, 2, 4 or 8 for the smaller levels.
+     */
+    public int getScale() {
+        return scale;
+    }
+
+    /**
+     * Returns the rendering.
+     * @return the image.
+     */
+    public SerializableBufferedImage getImage() {
+        return image;
+    }
+}
@@ -0,0 +1,72 @@
+package remote;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import remote.RemoteWhiteboard.Shape;
+import server.SerializableBufferedImage;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * BoardState is a consistent copy of the layers of a whiteboard, or of the ones a client asked for,
+ * tagged with the sequence number of the last operation it includes.
+ */
+public class BoardState implements Serializable {
+    private static final long serialVersionUID = 2L;
+
+    private final long seq;
+    private final List<LayerState> layers;
+
+    /**
+     * Constructs a BoardState.
+     * @param seq the sequence number of the last operation included.
+     * @param layers the layers included, from the bottom up.
+     */
+    public BoardState(long seq, List<LayerState> layers) {
+        this.seq = seq;
+        this.layers = layers;
+    }
+
+    /**
+     * Returns the sequence number of the last operation included.
+     * @return the sequence number.
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    /**
+     * Returns the layers included, from the bottom up. Layers that were left out are unchanged since the versions
+     * the client asked with.
+     * @return the list of layers.
+     */
+    public List<LayerState> getLayers() {
+        return layers;
+    }
+
+    /**
+     * Returns the image at the bottom of the layers included.
+     * @return the image, or null if none of the layers has one.
+     */
+    public SerializableBufferedImage getImage() {
+        for (LayerState layer : layers) {
+            if (layer.getImage() != null) {
+                return layer.getImage();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the shapes of the layers included, in the order they are drawn.
+     * @return the list of shapes.
+     */
+    public List<Shape> getShapes() {
+        List<Shape> shapes = new ArrayList<>();
+        for (LayerState layer : layers) {
+            shapes.addAll(layer.getShapes());
+        }
+        return shapes;
+    }
+}
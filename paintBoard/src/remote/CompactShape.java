@@ -0,0 +1,72 @@
+package remote;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.ObjectStreamException;
+
+import remote.RemoteWhiteboard.Shape;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * CompactShape stands in for a shape in a Java serialization stream. Shapes replace themselves with it when
+ * serialized, it writes them with {@link ShapeCodec}, and it resolves back to the shape when read, so RMI calls,
+ * replication and snapshots carry a few bytes per shape instead of the default field-by-field form.
+ */
+public final class CompactShape implements Externalizable {
+    private static final long serialVersionUID = 1L;
+
+    private Shape shape;
+
+    /**
+     * Constructs an empty CompactShape, used by serialization.
+     */
+    public CompactShape() {
+    }
+
+    /**
+     * Constructs a CompactShape for a shape about to be serialized.
+     * @param shape the shape.
+     */
+    CompactShape(Shape shape) {
+        this.shape = shape;
+    }
+
+    /**
+     * Returns the shape this stands in for.
+     * @return the shape.
+     */
+    public Shape getShape() {
+        return shape;
+    }
+
+    /**
+     * Writes the shape in its compact form.
+     * @param out the output.
+     * @throws IOException if writing fails.
+     */
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        ShapeCodec.writeShape(out, shape);
+    }
+
+    /**
+     * Reads the shape from its compact form.
+     * @param in the input.
+     * @throws IOException if reading fails.
+     */
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        shape = ShapeCodec.readShape(in);
+    }
+
+    /**
+     * Replaces this with the shape once it has been read.
+     * @return the shape.
+     * @throws ObjectStreamException never.
+     */
+    private Object readResolve() throws ObjectStreamException {
+        return shape;
+    }
+}
@@ -0,0 +1,91 @@
+package remote;
+
+import java.io.Serializable;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * DeliveryPlan is how the server sends the board to one client, picked from the round trip time and throughput the
+ * client measured on its link: how often the client is told the board changed, how many operations it replays
+ * before it fetches the changed layers as raster tiles instead, and the pyramid level and codec of its preview.
+ * A client that has not reported its link yet gets the plan of a local network.
+ */
+public class DeliveryPlan implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The kinds of link a plan is made for.
+     */
+    public enum Link {
+        LAN, BROADBAND, WEAK
+    }
+
+    /** The plan of a local network, also used until a client reports its link. */
+    public static final DeliveryPlan LAN = new DeliveryPlan(Link.LAN, 0, Integer.MAX_VALUE, 3, false);
+    /** The plan of a good remote link. */
+    public static final DeliveryPlan BROADBAND = new DeliveryPlan(Link.BROADBAND, 100, 500, 3, false);
+    /** The plan of a slow or distant link. */
+    public static final DeliveryPlan WEAK = new DeliveryPlan(Link.WEAK, 400, 50, 3, true);
+
+    private final Link link;
+    private final long intervalMillis;
+    private final int maxReplay;
+    private final int previewLevel;
+    private final boolean jpegPreview;
+
+    /**
+     * Constructs a DeliveryPlan.
+     * @param link the kind of link.
+     * @param intervalMillis the shortest time between two change notifications, 0 for the server's frame rate.
+     * @param maxReplay the most operations the client replays, beyond which it fetches raster tiles.
+     * @param previewLevel the pyramid level of the preview, 0 for full size.
+     * @param jpegPreview true if the preview is sent as JPEG rather than PNG.
+     */
+    public DeliveryPlan(Link link, long intervalMillis, int maxReplay, int previewLevel, boolean jpegPreview) {
+        this.link = link;
+        this.intervalMillis = intervalMillis;
+        this.maxReplay = maxReplay;
+        this.previewLevel = previewLevel;
+        this.jpegPreview = jpegPreview;
+    }
+
+    /**
+     * Returns the kind of link the plan is made for.
+     * @return the link.
+     */
+    public Link getLink() {
+        return link;
+    }
+
+    /**
+     * Returns the shortest time between two change notifications sent to the client.
+     * @return the interval in milliseconds, 0 for the server's frame rate.
+     */
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * Returns the most operations the client replays to catch up. Further behind, the operations would cost more
+     * than the tiles of the layers they changed, most of which the client's tile cache already has.
+     * @return the number of operations.
+     */
+    public int getMaxReplay() {
+        return maxReplay;
+    }
+
+    /**
+     * Returns the pyramid level of the preview shown while the board loads.
+     * @return the level, 0 for full size.
+     */
+    public int getPreviewLevel() {
+        return previewLevel;
+    }
+
+    /**
+     * Returns whether the preview is sent as JPEG, smaller than PNG for pictures but lossy.
+     * @return true for JPEG, false for PNG.
+     */
+    public boolean isJpegPreview() {
+        return jpegPreview;
+    }
+}
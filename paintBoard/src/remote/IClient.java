@@ -2,6 +2,7 @@ package remote;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 /**
  * Author: Dingyuan Wu 1538073
@@ -10,10 +11,12 @@ import java.rmi.RemoteException;
 public interface IClient extends Remote {
 
     /**
-     * Refreshes the paint panel in the client's GUI.
+     * Tells the client the board has changed so it can bring its paint panel up to date. The client fetches
+     * only the operations after the last sequence number it has applied, in sequence order.
+     * @param seq the sequence number of the latest operation on the board.
      * @throws RemoteException if there is an error during the remote method call.
      */
-    void refreshPaintPanel() throws RemoteException;
+    void refreshPaintPanel(long seq) throws RemoteException;
 
     /**
      * Refreshes the chat panel in the client's GUI.
@@ -59,4 +62,32 @@ public interface IClient extends Remote {
      * Reset tool selected, tool color and file for paint panel.
      */
     void resetPaintPanel() throws RemoteException;
+
+    /**
+     * Notifies the client that its whiteboard room has moved to another cluster node.
+     * @param wbserver the remote whiteboard now hosting the room.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    void relocate(RemoteWhiteboard wbserver) throws RemoteException;
+
+    /**
+     * Gives the client the session token issued when it was admitted, used to resume after a disconnection.
+     * @param token the session token.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    void sessionStarted(String token) throws RemoteException;
+
+    /**
+     * Does nothing. Called by the server to check the client is still alive when it has had no other callback lately.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    void ping() throws RemoteException;
+
+    /**
+     * Updates the pointers and shape previews of the other users shown on the paint panel.
+     * @param presences the presences, including this user's own, which is ignored.
+     * @param full true if the presences are all there are and replace the ones shown, false if they are changes.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    void updatePresence(List<Presence> presences, boolean full) throws RemoteException;
 }
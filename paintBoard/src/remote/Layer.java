@@ -0,0 +1,25 @@
+package remote;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * Layer names the layers of a whiteboard, from the bottom up. Each layer has its own shapes and is drawn over the
+ * ones before it, so one layer can be cleared or replaced without touching the others. Loaded images go on the
+ * background, shapes go on the layer the user has selected.
+ */
+public enum Layer {
+    BACKGROUND("Background"), DRAWING("Drawing"), ANNOTATIONS("Annotations");
+
+    private final String displayName;
+
+    Layer(String displayName) {
+        this.displayName = displayName;
+    }
+
+    /**
+     * Returns the name of the layer shown to users.
+     * @return the display name.
+     */
+    public String getDisplayName() {
+        return displayName;
+    }
+}
@@ -0,0 +1,92 @@
+package remote;
+
+import java.io.Serializable;
+import java.util.List;
+
+import remote.RemoteWhiteboard.Shape;
+import server.SerializableBufferedImage;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * LayerState is a copy of one layer of a whiteboard: its image, if one was loaded onto it, and the shapes drawn over
+ * the image, tagged with the sequence number of the last operation that changed how the layer looks. Clients keep
+ * that sequence number with their copy of the layer and only fetch the layer again once it has moved on.
+ * The image may be left out and described by the grid of its tiles instead, for a client to fetch the tiles it
+ * does not have.
+ */
+public class LayerState implements Serializable {
+    private static final long serialVersionUID = 2L;
+
+    private final Layer layer;
+    private final long version;
+    private final SerializableBufferedImage image;
+    private final List<Shape> shapes;
+    private final TileGrid tiles;
+
+    /**
+     * Constructs a LayerState.
+     * @param layer the layer.
+     * @param version the sequence number of the last operation that changed the layer.
+     * @param image the image loaded onto the layer, or null if there is none.
+     * @param shapes the shapes drawn over the image.
+     */
+    public LayerState(Layer layer, long version, SerializableBufferedImage image, List<Shape> shapes) {
+        this(layer, version, image, shapes, null);
+    }
+
+    /**
+     * Constructs a LayerState whose image is described by its tiles.
+     * @param layer the layer.
+     * @param version the sequence number of the last operation that changed the layer.
+     * @param image the image loaded onto the layer, or null if there is none or it is described by its tiles.
+     * @param shapes the shapes drawn over the image.
+     * @param tiles the tiles of the image left out, or null if the image is included or there is none.
+     */
+    public LayerState(Layer layer, long version, SerializableBufferedImage image, List<Shape> shapes, TileGrid tiles) {
+        this.layer = layer;
+        this.version = version;
+        this.image = image;
+        this.shapes = shapes;
+        this.tiles = tiles;
+    }
+
+    /**
+     * Returns the layer.
+     * @return the layer.
+     */
+    public Layer getLayer() {
+        return layer;
+    }
+
+    /**
+     * Returns the sequence number of the last operation that changed the layer.
+     * @return the version.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the image loaded onto the layer.
+     * @return the image, or null if there is none.
+     */
+    public SerializableBufferedImage getImage() {
+        return image;
+    }
+
+    /**
+     * Returns the shapes drawn over the image.
+     * @return the list of shapes.
+     */
+    public List<Shape> getShapes() {
+        return shapes;
+    }
+
+    /**
+     * Returns the tiles of the image loaded onto the layer, when the image itself was left out.
+     * @return the grid of tiles, or null if the image is included or there is none.
+     */
+    public TileGrid getTiles() {
+        return tiles;
+    }
+}
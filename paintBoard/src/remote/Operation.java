@@ -0,0 +1,307 @@
+package remote;
+
+import java.awt.image.BufferedImage;
+import java.io.Serializable;
+
+import remote.RemoteWhiteboard.Shape;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * Operation represents one change applied to a whiteboard. Every change is recorded in order with a
+ * sequence number so it can be replicated to a standby server and replayed by clients that missed it.
+ */
+public class Operation implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The kinds of change an operation can describe.
+     */
+    public enum Type {
+        ADD_SHAPE, REPLACE_SHAPES, CLEAR, LOAD_IMAGE, CHAT, ADD_USER, REMOVE_USER, SET_MANAGER
+    }
+
+    private final Type type;
+    private final Shape shape;
+    private final long[] replaced;
+    private final String text;
+    private final byte[] data;
+    private final IClient client;
+    private final String token;
+    private long seq;
+    private long timestamp;
+    // The user who sent an add shape operation and the identifier their client gave it, to match it to its local echo
+    private String origin;
+    private long opId;
+    // The layer a shape is added to or a clear empties, null when a clear empties every layer
+    private Layer layer;
+    // The image of a load image operation, already decoded by the server that created it
+    private transient BufferedImage decodedImage;
+
+    private Operation(Type type, Shape shape, long[] replaced, String text, byte[] data, IClient client, String token) {
+        this.type = type;
+        this.shape = shape;
+        this.replaced = replaced;
+        this.text = text;
+        this.data = data;
+        this.client = client;
+        this.token = token;
+    }
+
+    /**
+     * Creates an operation adding a shape.
+     * @param shape the shape to add.
+     * @return the operation.
+     */
+    public static Operation addShape(Shape shape) {
+        Operation operation = new Operation(Type.ADD_SHAPE, shape, null, null, null, null, null);
+        operation.layer = Layer.DRAWING;
+        return operation;
+    }
+
+    /**
+     * Creates an operation adding a shape drawn by a user, tagged with the identifier the user's client gave it.
+     * @param shape the shape to add.
+     * @param origin the username of the user who drew the shape.
+     * @param opId the identifier the client gave the operation, 0 if it has none.
+     * @param layer the layer the shape is added to.
+     * @return the operation.
+     */
+    public static Operation addShape(Shape shape, String origin, long opId, Layer layer) {
+        Operation operation = addShape(shape);
+        operation.origin = origin;
+        operation.opId = opId;
+        operation.layer = layer;
+        return operation;
+    }
+
+    /**
+     * Creates an operation replacing several shapes with one, placed where the first of them was.
+     * @param replaced the sequence numbers of the shapes to remove.
+     * @param shape the shape to insert.
+     * @return the operation.
+     */
+    public static Operation replaceShapes(long[] replaced, Shape shape) {
+        return new Operation(Type.REPLACE_SHAPES, shape, replaced, null, null, null, null);
+    }
+
+    /**
+     * Creates an operation clearing every layer.
+     * @return the operation.
+     */
+    public static Operation clear() {
+        return new Operation(Type.CLEAR, null, null, null, null, null, null);
+    }
+
+    /**
+     * Creates an operation clearing one layer.
+     * @param layer the layer to clear.
+     * @return the operation.
+     */
+    public static Operation clear(Layer layer) {
+        Operation operation = clear();
+        operation.layer = layer;
+        return operation;
+    }
+
+    /**
+     * Creates an operation replacing the background layer with an image.
+     * @param imageBytes the encoded image.
+     * @return the operation.
+     */
+    public static Operation loadImage(byte[] imageBytes) {
+        return new Operation(Type.LOAD_IMAGE, null, null, null, imageBytes, null, null);
+    }
+
+    /**
+     * Creates an operation replacing the background layer with an image that has already been decoded,
+     * so applying it locally does not decode it again.
+     * @param imageBytes the encoded image, sent to standbys and clients.
+     * @param image the decoded image.
+     * @return the operation.
+     */
+    public static Operation loadImage(byte[] imageBytes, BufferedImage image) {
+        Operation operation = loadImage(imageBytes);
+        operation.decodedImage = image;
+        return operation;
+    }
+
+    /**
+     * Creates an operation appending a chat message.
+     * @param message the formatted message.
+     * @return the operation.
+     */
+    public static Operation chat(String message) {
+        return new Operation(Type.CHAT, null, null, message, null, null, null);
+    }
+
+    /**
+     * Creates an operation adding a user.
+     * @param username the username of the user.
+     * @param client the remote client interface of the user.
+     * @param token the session token issued to the user.
+     * @return the operation.
+     */
+    public static Operation addUser(String username, IClient client, String token) {
+        return new Operation(Type.ADD_USER, null, null, username, null, client, token);
+    }
+
+    /**
+     * Creates an operation removing a user.
+     * @param username the username of the user.
+     * @return the operation.
+     */
+    public static Operation removeUser(String username) {
+        return new Operation(Type.REMOVE_USER, null, null, username, null, null, null);
+    }
+
+    /**
+     * Creates an operation setting the manager.
+     * @param managerName the username of the manager, or null when the whiteboard is closed.
+     * @return the operation.
+     */
+    public static Operation setManager(String managerName) {
+        return new Operation(Type.SET_MANAGER, null, null, managerName, null, null, null);
+    }
+
+    /**
+     * Returns the kind of change.
+     * @return the operation type.
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the shape added or inserted by the operation.
+     * @return the shape, or null.
+     */
+    public Shape getShape() {
+        return shape;
+    }
+
+    /**
+     * Returns the sequence numbers of the shapes removed by a replace operation.
+     * @return the sequence numbers, or null.
+     */
+    public long[] getReplaced() {
+        return replaced;
+    }
+
+    /**
+     * Returns the text of the operation: the chat message, or the username for user and manager operations.
+     * @return the text.
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Returns the encoded image of a load image operation.
+     * @return the image bytes, or null.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Returns the user who sent an add shape operation.
+     * @return the username, or null if the operation did not come from a user.
+     */
+    public String getOrigin() {
+        return origin;
+    }
+
+    /**
+     * Returns the identifier the client of the user who sent an add shape operation gave it.
+     * @return the identifier, or 0 if it has none.
+     */
+    public long getOpId() {
+        return opId;
+    }
+
+    /**
+     * Returns the layer the operation changes.
+     * @return the layer a shape is added to or an image loaded onto, the layer cleared, or null if a clear
+     *         clears every layer.
+     */
+    public Layer getLayer() {
+        if (type == Type.LOAD_IMAGE) {
+            return Layer.BACKGROUND;
+        }
+        // Shapes from servers that predate layers have none and go on the drawing layer
+        return layer == null && type == Type.ADD_SHAPE ? Layer.DRAWING : layer;
+    }
+
+    /**
+     * Returns the decoded image of a load image operation created on this server.
+     * @return the image, or null if the operation came from elsewhere and its data must be decoded.
+     */
+    public BufferedImage getDecodedImage() {
+        return decodedImage;
+    }
+
+    /**
+     * Returns the remote client interface of an add user operation.
+     * @return the client, or null.
+     */
+    public IClient getClient() {
+        return client;
+    }
+
+    /**
+     * Returns the session token issued by an add user operation.
+     * @return the token, or null.
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Returns the sequence number of the operation.
+     * @return the sequence number.
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    /**
+     * Returns the time the operation was recorded on the primary server.
+     * @return the time in milliseconds.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns the operation as it may be sent to clients. An add user operation carries the remote client interface
+     * and session token of the user, which only the standby may have: with them any participant could resume the
+     * user's session or call the user's client, so clients get a copy without them.
+     * @return the operation, or a copy without the client and token.
+     */
+    public Operation withoutCredentials() {
+        if (client == null && token == null) {
+            return this;
+        }
+        Operation copy = new Operation(type, shape, replaced, text, data, null, null);
+        copy.seq = seq;
+        copy.timestamp = timestamp;
+        copy.origin = origin;
+        copy.opId = opId;
+        copy.layer = layer;
+        return copy;
+    }
+
+    /**
+     * Assigns the sequence number and timestamp when the operation is recorded.
+     * A shape carried by the operation takes the same sequence number.
+     * @param seq the sequence number.
+     * @param timestamp the time in milliseconds.
+     */
+    public void stamp(long seq, long timestamp) {
+        this.seq = seq;
+        this.timestamp = timestamp;
+        if (shape != null) {
+            shape.setSeq(seq);
+        }
+    }
+}
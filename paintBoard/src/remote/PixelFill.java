@@ -0,0 +1,132 @@
+package remote;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import remote.RemoteWhiteboard.Shape;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * PixelFill draws the shapes Java2D draws as filled rectangles of whole pixels, eraser squares, rectangle outlines
+ * and horizontal or vertical lines, by writing their rows of pixels straight into an image, without going through
+ * the Java2D pipeline for each of the many small fills an eraser drag or a replay makes. It only does so where the
+ * result is the same as drawing the shape: in an opaque color, which replaces the pixels it covers, on an image
+ * with int pixels and through a graphics context without a transform, clip or special composite.
+ * The rows are written through the raster of the image, which keeps the image eligible for acceleration. On an
+ * image only shapes a few rows high are written, freehand segments, horizontal lines and small erasers, as taller
+ * ones are filled faster by Java2D; on off-heap pixels, which Java2D can only reach through a copy, all are.
+ */
+public final class PixelFill {
+
+    // Java2D fills tall rectangles faster than they are written row by row, so those are left to it
+    private static final int MAX_ROWS = 20;
+    // Pixels of one color ready to be copied, kept by each thread and refilled when the color changes
+    private static final ThreadLocal<int[]> FILLED = ThreadLocal.withInitial(() -> new int[0]);
+
+    private PixelFill() {
+    }
+
+    /**
+     * Draws a shape on an image by writing its pixels, if it can be drawn that way and none of its rectangles is
+     * taller than Java2D fills faster.
+     * @param shape the shape.
+     * @param image the image.
+     * @return true if the shape was drawn, false if the caller has to draw it with Java2D.
+     */
+    public static boolean draw(Shape shape, BufferedImage image) {
+        int[] rects = opaqueRects(shape);
+        if (rects == null || !(image.getRaster().getDataBuffer() instanceof DataBufferInt)) {
+            return false;
+        }
+        int type = image.getType();
+        if (type != BufferedImage.TYPE_INT_ARGB && type != BufferedImage.TYPE_INT_ARGB_PRE && type != BufferedImage.TYPE_INT_RGB) {
+            return false;
+        }
+        // Java2D stores an opaque color as its ARGB value in all three types, alpha bits included
+        for (int i = 3; i < rects.length; i += 4) {
+            if (rects[i] > MAX_ROWS) {
+                return false;
+            }
+        }
+        int pixel = shape.color.getRGB();
+        WritableRaster raster = image.getRaster();
+        for (int i = 0; i < rects.length; i += 4) {
+            int x0 = Math.max(rects[i], 0);
+            int y0 = Math.max(rects[i + 1], 0);
+            int x1 = (int) Math.min((long) rects[i] + rects[i + 2], image.getWidth());
+            int y1 = (int) Math.min((long) rects[i + 1] + rects[i + 3], image.getHeight());
+            if (x0 >= x1 || y0 >= y1) {
+                continue;
+            }
+            int[] row = filled(pixel, x1 - x0);
+            for (int y = y0; y < y1; y++) {
+                raster.setDataElements(x0, y, x1 - x0, 1, row);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Draws a shape on ARGB pixels kept row by row in a buffer, the layout of a TYPE_INT_ARGB image, if it can be
+     * drawn by writing them.
+     * @param shape the shape.
+     * @param pixels the pixels.
+     * @param width the width of the pixel rows.
+     * @param height the number of rows.
+     * @return true if the shape was drawn, false if the caller has to draw it with Java2D.
+     */
+    public static boolean draw(Shape shape, IntBuffer pixels, int width, int height) {
+        int[] rects = opaqueRects(shape);
+        if (rects == null) {
+            return false;
+        }
+        int pixel = shape.color.getRGB();
+        IntBuffer view = pixels.duplicate();
+        for (int i = 0; i < rects.length; i += 4) {
+            int x0 = Math.max(rects[i], 0);
+            int y0 = Math.max(rects[i + 1], 0);
+            int x1 = (int) Math.min((long) rects[i] + rects[i + 2], width);
+            int y1 = (int) Math.min((long) rects[i + 1] + rects[i + 3], height);
+            if (x0 >= x1 || y0 >= y1) {
+                continue;
+            }
+            if (x1 - x0 == 1) {
+                for (int y = y0; y < y1; y++) {
+                    view.put(y * width + x0, pixel);
+                }
+            } else {
+                int[] row = filled(pixel, x1 - x0);
+                for (int y = y0; y < y1; y++) {
+                    view.position(y * width + x0);
+                    view.put(row, 0, x1 - x0);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns at least the given number of pixels of one color, from the array of the calling thread.
+     */
+    private static int[] filled(int pixel, int length) {
+        int[] pixels = FILLED.get();
+        if (pixels.length < length) {
+            pixels = new int[Math.max(length, pixels.length * 2)];
+            Arrays.fill(pixels, pixel);
+            FILLED.set(pixels);
+        } else if (pixels[0] != pixel) {
+            Arrays.fill(pixels, pixel);
+        }
+        return pixels;
+    }
+
+    /**
+     * Returns the pixel rectangles of a shape in an opaque color.
+     */
+    private static int[] opaqueRects(Shape shape) {
+        return shape.color.getAlpha() == 255 ? shape.getPixelRects() : null;
+    }
+}
@@ -0,0 +1,89 @@
+package remote;
+
+import java.io.Serializable;
+
+import remote.RemoteWhiteboard.Shape;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * Presence is where a user's pointer is on the whiteboard and the shape they are dragging out, if any.
+ * Presence is sent on a lossy channel outside the operation log: only the latest one of each user matters,
+ * and it is never added to the board.
+ */
+public class Presence implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String username;
+    private final int x;
+    private final int y;
+    private final Shape preview;
+    private final boolean visible;
+
+    /**
+     * Constructs a Presence of a pointer over the board.
+     * @param username the username of the user.
+     * @param x the x-coordinate of the pointer.
+     * @param y the y-coordinate of the pointer.
+     * @param preview the shape being dragged out, or null if none.
+     */
+    public Presence(String username, int x, int y, Shape preview) {
+        this(username, x, y, preview, true);
+    }
+
+    private Presence(String username, int x, int y, Shape preview, boolean visible) {
+        this.username = username;
+        this.x = x;
+        this.y = y;
+        this.preview = preview;
+        this.visible = visible;
+    }
+
+    /**
+     * Creates the presence of a user whose pointer left the board, or who left the whiteboard.
+     * @param username the username of the user.
+     * @return the presence.
+     */
+    public static Presence away(String username) {
+        return new Presence(username, 0, 0, null, false);
+    }
+
+    /**
+     * Returns the username of the user.
+     * @return the username.
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Returns the x-coordinate of the pointer.
+     * @return the x-coordinate.
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * Returns the y-coordinate of the pointer.
+     * @return the y-coordinate.
+     */
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * Returns the shape being dragged out.
+     * @return the shape, or null if none.
+     */
+    public Shape getPreview() {
+        return preview;
+    }
+
+    /**
+     * Returns whether the pointer is over the board.
+     * @return false if the pointer left the board or the user left the whiteboard.
+     */
+    public boolean isVisible() {
+        return visible;
+    }
+}
@@ -0,0 +1,33 @@
+package remote;
+
+import java.rmi.RemoteException;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * QuotaExceededException is thrown when the server refuses a join or an operation because it would take the board
+ * or the server past one of its capacity limits: the users a board admits, or the heap the server may use. The
+ * message says which limit was reached and is meant to be shown to the user as it is.
+ */
+public class QuotaExceededException extends RemoteException {
+    private static final long serialVersionUID = 1L;
+
+    private final String quota;
+
+    /**
+     * Constructs a QuotaExceededException.
+     * @param quota the name of the limit reached, users or heap.
+     * @param message the detail message, for the user.
+     */
+    public QuotaExceededException(String quota, String message) {
+        super(message);
+        this.quota = quota;
+    }
+
+    /**
+     * Returns the name of the limit reached.
+     * @return users or heap.
+     */
+    public String getQuota() {
+        return quota;
+    }
+}
@@ -5,6 +5,7 @@ import java.awt.Graphics2D;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.util.List;
+import java.util.Map;
 
 import server.SerializableBufferedImage;
 
@@ -18,89 +19,150 @@ public interface RemoteWhiteboard extends Remote {
 
     /**
      * Draws a line on the whiteboard.
+     * @param username the username of the user, used to schedule the operations of each user fairly.
+     * @param opId the identifier the client gave the operation, echoed in the operation log so the client can match it to its local echo, 0 if it keeps none.
+     * @param layer the layer to draw on.
      * @param x1 the x-coordinate of the start point.
      * @param y1 the y-coordinate of the start point.
      * @param x2 the x-coordinate of the end point.
      * @param y2 the y-coordinate of the end point.
      * @param color the color of the line.
-     * @throws RemoteException if there is an error during the remote method call.
+     * @throws RemoteException if there is an error during the remote method call, or a ThrottledException if the user is sending operations too fast, or a QuotaExceededException if the server is short of memory.
      */
-    void drawLine(int x1, int y1, int x2, int y2, Color color) throws RemoteException;
+    void drawLine(String username, long opId, Layer layer, int x1, int y1, int x2, int y2, Color color) throws RemoteException;
 
     /**
      * Draws a rectangle on the whiteboard.
+     * @param username the username of the user, used to schedule the operations of each user fairly.
+     * @param opId the identifier the client gave the operation, echoed in the operation log so the client can match it to its local echo, 0 if it keeps none.
+     * @param layer the layer to draw on.
      * @param x the x-coordinate of the top-left corner.
      * @param y the y-coordinate of the top-left corner.
      * @param width the width of the rectangle.
      * @param height the height of the rectangle.
      * @param color the color of the rectangle.
-     * @throws RemoteException if there is an error during the remote method call.
+     * @throws RemoteException if there is an error during the remote method call, or a ThrottledException if the user is sending operations too fast, or a QuotaExceededException if the server is short of memory.
      */
-    void drawRectangle(int x, int y, int width, int height, Color color) throws RemoteException;
+    void drawRectangle(String username, long opId, Layer layer, int x, int y, int width, int height, Color color) throws RemoteException;
 
     /**
      * Draws a circle on the whiteboard.
+     * @param username the username of the user, used to schedule the operations of each user fairly.
+     * @param opId the identifier the client gave the operation, echoed in the operation log so the client can match it to its local echo, 0 if it keeps none.
+     * @param layer the layer to draw on.
      * @param x the x-coordinate of the center.
      * @param y the y-coordinate of the center.
      * @param radius the radius of the circle.
      * @param color the color of the circle.
-     * @throws RemoteException if there is an error during the remote method call.
+     * @throws RemoteException if there is an error during the remote method call, or a ThrottledException if the user is sending operations too fast, or a QuotaExceededException if the server is short of memory.
      */
-    void drawCircle(int x, int y, int radius, Color color) throws RemoteException;
+    void drawCircle(String username, long opId, Layer layer, int x, int y, int radius, Color color) throws RemoteException;
 
     /**
      * Draws an oval on the whiteboard.
+     * @param username the username of the user, used to schedule the operations of each user fairly.
+     * @param opId the identifier the client gave the operation, echoed in the operation log so the client can match it to its local echo, 0 if it keeps none.
+     * @param layer the layer to draw on.
      * @param x the x-coordinate of the top-left corner.
      * @param y the y-coordinate of the top-left corner.
      * @param width the width of the oval.
      * @param height the height of the oval.
      * @param color the color of the oval.
-     * @throws RemoteException if there is an error during the remote method call.
+     * @throws RemoteException if there is an error during the remote method call, or a ThrottledException if the user is sending operations too fast, or a QuotaExceededException if the server is short of memory.
      */
-    void drawOval(int x, int y, int width, int height, Color color) throws RemoteException;
+    void drawOval(String username, long opId, Layer layer, int x, int y, int width, int height, Color color) throws RemoteException;
 
     /**
      * Free draws on the whiteboard.
+     * @param username the username of the user drawing, used to group consecutive segments into strokes.
+     * @param opId the identifier the client gave the operation, echoed in the operation log so the client can match it to its local echo, 0 if it keeps none.
+     * @param layer the layer to draw on.
      * @param x1 the x-coordinate of the start point.
      * @param y1 the y-coordinate of the start point.
      * @param x2 the x-coordinate of the end point.
      * @param y2 the y-coordinate of the end point.
      * @param color the color of the drawing.
-     * @throws RemoteException if there is an error during the remote method call.
+     * @throws RemoteException if there is an error during the remote method call, or a ThrottledException if the user is sending operations too fast, or a QuotaExceededException if the server is short of memory.
      */
-    void freeDraw(int x1, int y1, int x2, int y2, Color color) throws RemoteException;
+    void freeDraw(String username, long opId, Layer layer, int x1, int y1, int x2, int y2, Color color) throws RemoteException;
 
     /**
      * Erases part of the whiteboard.
+     * @param username the username of the user, used to schedule the operations of each user fairly.
+     * @param opId the identifier the client gave the operation, echoed in the operation log so the client can match it to its local echo, 0 if it keeps none.
+     * @param layer the layer to draw on.
      * @param x the x-coordinate of the center of the eraser.
      * @param y the y-coordinate of the center of the eraser.
      * @param size the size of the eraser.
-     * @throws RemoteException if there is an error during the remote method call.
+     * @throws RemoteException if there is an error during the remote method call, or a ThrottledException if the user is sending operations too fast, or a QuotaExceededException if the server is short of memory.
      */
-    void erase(int x, int y, int size) throws RemoteException;
+    void erase(String username, long opId, Layer layer, int x, int y, int size) throws RemoteException;
 
     /**
      * Draws text on the whiteboard.
+     * @param username the username of the user, used to schedule the operations of each user fairly.
+     * @param opId the identifier the client gave the operation, echoed in the operation log so the client can match it to its local echo, 0 if it keeps none.
+     * @param layer the layer to draw on.
      * @param x the x-coordinate of the start point.
      * @param y the y-coordinate of the start point.
      * @param text the text to draw.
      * @param color the color of the text.
-     * @throws RemoteException if there is an error during the remote method call.
+     * @throws RemoteException if there is an error during the remote method call, or a ThrottledException if the user is sending operations too fast, or a QuotaExceededException if the server is short of memory.
      */
-    void drawText(int x, int y, String text, Color color) throws RemoteException;
+    void drawText(String username, long opId, Layer layer, int x, int y, String text, Color color) throws RemoteException;
 
     /**
-     * Clears all shapes from the whiteboard.
-     * @throws RemoteException if there is an error during the remote method call.
+     * Clears every layer of the whiteboard.
+     * @param username the username of the user, used to schedule the operations of each user fairly.
+     * @throws RemoteException if there is an error during the remote method call, or a ThrottledException if the user is sending operations too fast.
+     */
+    void clearShapes(String username) throws RemoteException;
+
+    /**
+     * Clears one layer of the whiteboard, leaving the others as they are.
+     * @param username the username of the user, used to schedule the operations of each user fairly.
+     * @param layer the layer to clear.
+     * @throws RemoteException if there is an error during the remote method call, or a ThrottledException if the user is sending operations too fast.
      */
-    void clearShapes() throws RemoteException;
+    void clearLayer(String username, Layer layer) throws RemoteException;
 
     /**
-     * Loads an image onto the whiteboard.
+     * Loads an image onto the whiteboard in one call. The server decodes the image and scales it to fit the board
+     * in the background, the background layer is replaced when that is done.
+     * @param username the username of the user.
      * @param imageBytes the byte array of the image.
-     * @throws RemoteException if there is an error during the remote method call.
+     * @throws RemoteException if there is an error during the remote method call, or a QuotaExceededException if the server is short of memory.
      */
-    void loadImage(byte[] imageBytes) throws RemoteException;
+    void loadImage(String username, byte[] imageBytes) throws RemoteException;
+
+    /**
+     * Starts loading an image onto the whiteboard in chunks, so no single call carries the whole image and an
+     * interrupted upload can resume. Starting another upload abandons the user's previous one.
+     * @param username the username of the user.
+     * @param size the size of the encoded image in bytes.
+     * @return the identifier of the upload.
+     * @throws RemoteException if there is an error during the remote method call or the image is too large, or a QuotaExceededException if the server is short of memory.
+     */
+    String beginImageUpload(String username, long size) throws RemoteException;
+
+    /**
+     * Sends a chunk of an image upload. A chunk not starting where the bytes received so far end is ignored,
+     * so after a failed call the client sends again from the returned position, and an empty chunk just asks for it.
+     * @param uploadId the identifier of the upload.
+     * @param offset the position of the chunk in the image.
+     * @param chunk the bytes of the chunk.
+     * @return the number of bytes received so far, where the next chunk should start.
+     * @throws RemoteException if there is an error during the remote method call or the upload is unknown or expired.
+     */
+    long uploadImageChunk(String uploadId, long offset, byte[] chunk) throws RemoteException;
+
+    /**
+     * Completes an image upload. The server decodes the image and scales it to fit the board in the background,
+     * the background layer is replaced when that is done.
+     * @param uploadId the identifier of the upload.
+     * @throws RemoteException if there is an error during the remote method call or not all bytes were received.
+     */
+    void finishImageUpload(String uploadId) throws RemoteException;
 
     // User management
 
@@ -127,15 +189,31 @@ public interface RemoteWhiteboard extends Remote {
     List<String> getUserList() throws RemoteException;
 
     /**
-     * Gets the list of shapes currently on the whiteboard.
+     * Gets the users who joined and left the whiteboard since a version of the user list.
+     * @param version the version of the user list the caller has, or -1 if it has none.
+     * @return the changes since the version, or the whole list if they are no longer retained.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    UserListDelta getUserListSince(long version) throws RemoteException;
+
+    /**
+     * Checks whether a user is on the whiteboard, without fetching the user list.
+     * @param username the username of the user.
+     * @return true if the user is on the whiteboard, false otherwise.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    boolean hasUser(String username) throws RemoteException;
+
+    /**
+     * Gets the list of shapes currently on the whiteboard, of every layer in the order they are drawn.
      * @return the list of shapes.
      * @throws RemoteException if there is an error during the remote method call.
      */
     List<Shape> getShapes() throws RemoteException;
 
     /**
-     * Gets the current canvas image of the whiteboard.
-     * @return the SerializableBufferedImage of the canvas.
+     * Gets the image loaded onto the background layer of the whiteboard.
+     * @return the SerializableBufferedImage of the background, blank if no image was loaded.
      * @throws RemoteException if there is an error during the remote method call.
      */
     SerializableBufferedImage getCanvasImage() throws RemoteException;
@@ -182,7 +260,7 @@ public interface RemoteWhiteboard extends Remote {
      * Sends a message to the chat.
      * @param username the username of the sender.
      * @param message the message to send.
-     * @throws RemoteException if there is an error during the remote method call.
+     * @throws RemoteException if there is an error during the remote method call, or a QuotaExceededException if the server is short of memory.
      */
     void sendMessage(String username, String message) throws RemoteException;
 
@@ -199,7 +277,7 @@ public interface RemoteWhiteboard extends Remote {
      * Requests permission for a user to join the whiteboard.
      * @param username the username of the user.
      * @param client the remote client interface of the user.
-     * @throws RemoteException if there is an error during the remote method call.
+     * @throws RemoteException if there is an error during the remote method call, or a QuotaExceededException if the board is full or the server is short of memory.
      */
     void requestPermission(String username, IClient client) throws RemoteException;
 
@@ -207,7 +285,7 @@ public interface RemoteWhiteboard extends Remote {
      * Grants permission for a user to join the whiteboard.
      * @param username the username of the user.
      * @param client the remote client interface of the user.
-     * @throws RemoteException if there is an error during the remote method call.
+     * @throws RemoteException if there is an error during the remote method call, or a QuotaExceededException if the board is full or the server is short of memory.
      */
     void grantPermission(String username, IClient client) throws RemoteException;
 
@@ -239,25 +317,233 @@ public interface RemoteWhiteboard extends Remote {
      */
     boolean permissionRequestsContains(String username) throws RemoteException;
 
+    // Stroke simplification and statistics methods
+
+    /**
+     * Sets the tolerance used to simplify free draw strokes on this whiteboard. Only the manager may change it.
+     * @param username the username of the user changing the tolerance.
+     * @param tolerance the maximum distance in pixels a dropped point may be from the simplified stroke, 0 disables simplification.
+     * @throws RemoteException if there is an error during the remote method call, the user is not the manager or the tolerance is not a finite number 0 or more.
+     */
+    void setStrokeTolerance(String username, double tolerance) throws RemoteException;
+
+    /**
+     * Gets the tolerance used to simplify free draw strokes on this whiteboard.
+     * @return the tolerance in pixels.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    double getStrokeTolerance() throws RemoteException;
+
+    /**
+     * Gets a snapshot of the server metrics.
+     * @return a map from metric name to value.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    Map<String, Long> getMetrics() throws RemoteException;
+
+    // Operation log methods
+
+    /**
+     * Gets every layer of the whiteboard together with the sequence number they reflect.
+     * @return the board state.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    BoardState getBoardState() throws RemoteException;
+
+    /**
+     * Gets the layers of the whiteboard that changed since the versions the caller has, so a client with cached
+     * layers only fetches the ones that moved on.
+     * @param versions the version of each layer the caller has, layers missing from the map are always returned.
+     * @return the board state holding only the layers that changed.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    BoardState getChangedLayers(Map<Layer, Long> versions) throws RemoteException;
+
+    /**
+     * Gets the layers of the whiteboard that changed since the versions the caller has, with the image of each layer
+     * described by the hashes of its tiles instead of included, so the caller only fetches the tiles it does not have.
+     * @param versions the version of each layer the caller has, layers missing from the map are always returned.
+     * @return the board state holding only the layers that changed.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    BoardState getChangedLayerTiles(Map<Layer, Long> versions) throws RemoteException;
+
+    /**
+     * Gets tiles of the images of the layers.
+     * @param hashes the hashes of the tiles.
+     * @return the tiles encoded as PNG in the same order, null for a tile no layer has any more because its image was replaced.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    List<byte[]> getTiles(List<String> hashes) throws RemoteException;
+
+    /**
+     * Gets the layers of the whiteboard that changed since the versions the caller has, each flattened into a raster
+     * of its image and shapes described by the hashes of its tiles, with no shapes. A client far behind fetches only
+     * the tiles the operations it missed changed, rather than every shape of the layers.
+     * @param versions the version of each layer the caller has, layers missing from the map are always returned.
+     * @return the board state holding only the layers that changed.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    BoardState getChangedLayerRasters(Map<Layer, Long> versions) throws RemoteException;
+
+    /**
+     * Reports the link a client measured to the server, which picks how to send the board to it from then on.
+     * @param username the username of the client.
+     * @param rttMillis the round trip time of a call in milliseconds.
+     * @param bytesPerSecond the throughput of the larger fetches, or 0 if the client has not measured it yet.
+     * @return the delivery plan picked for the client.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    DeliveryPlan reportLink(String username, long rttMillis, long bytesPerSecond) throws RemoteException;
+
+    /**
+     * Gets the operations applied to the whiteboard after the given sequence number.
+     * @param seq the last sequence number the caller has seen.
+     * @return the operations in order, or null if they are no longer retained and the caller must fetch the full board state.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    List<Operation> getOperationsSince(long seq) throws RemoteException;
+
+    /**
+     * Gets a scaled down rendering of the whole board, for an overview or a quick first paint.
+     * @param maxWidth the largest width wanted in pixels.
+     * @param maxHeight the largest height wanted in pixels.
+     * @return the largest pyramid level that fits, or the smallest level if none does.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    BoardPreview getPreview(int maxWidth, int maxHeight) throws RemoteException;
+
+    /**
+     * Gets a scaled down rendering of the whole board for a quick first paint, at the pyramid level and in the codec
+     * of the delivery plan of the client.
+     * @param username the username of the client.
+     * @return the pyramid level of the plan.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    BoardPreview getPreviewFor(String username) throws RemoteException;
+
+    /**
+     * Renders the whole board as it was after an operation, for reviewing how it evolved.
+     * @param seq the sequence number of the operation.
+     * @return the board at full size, tagged with the last drawing operation at or before seq,
+     *         or null if seq is before the start of the history.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    BoardPreview renderAt(long seq) throws RemoteException;
+
+    /**
+     * Gets the sequence number the history of the board starts at. It is 0 unless the board was moved or
+     * replicated here from another server, whose history stays behind.
+     * @return the sequence number.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    long getHistoryStart() throws RemoteException;
+
+    /**
+     * Exports the whole board from the server's state, which is complete even when a client is still catching up.
+     * @param username the username of the user, who must be the manager.
+     * @param format the format.
+     * @return the exported board.
+     * @throws RemoteException if there is an error during the remote method call, the user is not the manager or the export fails.
+     */
+    byte[] exportBoard(String username, BoardExporter.Format format) throws RemoteException;
+
+    /**
+     * Shares where a user's pointer is and the shape they are dragging out. Presence is lossy and never added to
+     * the board: only the latest one of each user is kept and it reaches the other users at the next presence tick.
+     * @param presence the presence.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    void updatePresence(Presence presence) throws RemoteException;
+
+    // Session methods
+
+    /**
+     * Resumes the session of a client after a disconnection or failover.
+     * @param token the session token issued when the user was admitted.
+     * @param sinceSeq the last sequence number the client has seen.
+     * @return the operations missed since then, or null if the client must fetch the full board state.
+     * @throws SessionExpiredException if the session is unknown and the user has to join again.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    List<Operation> resume(String token, long sinceSeq) throws RemoteException;
+
+    /**
+     * Gets the address of the standby replicating this whiteboard.
+     * @return the address in the form host:port, or null if no standby is attached.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    String getStandbyAddress() throws RemoteException;
+
     // Shape inner classes
 
     /**
      * Abstract Shape class representing a drawable shape on the whiteboard.
      */
     abstract class Shape implements java.io.Serializable {
+        // Pinned to the values of the original default form, which legacy serialization still uses
+        private static final long serialVersionUID = 4333410560664481058L;
         Color color;
+        long seq;
 
         Shape(Color color) {
             this.color = color;
         }
 
         public abstract void draw(Graphics2D g);
+
+        /**
+         * Returns the area of the canvas the shape covers when drawn, used to redraw only what changed.
+         * @return the bounding box in canvas pixels.
+         */
+        public abstract java.awt.Rectangle getBounds();
+
+        /**
+         * Appends the shape as an SVG element, for exporting the board as a drawing.
+         * @param svg the builder to append to.
+         */
+        public abstract void appendSvg(StringBuilder svg);
+
+        /**
+         * Returns the rectangles of whole pixels Java2D fills when it draws the shape, for shapes drawn as such,
+         * so they can be written straight into the pixels of an image.
+         * @return the x, y, width and height of each rectangle, or null if the shape is not drawn as rectangles.
+         */
+        public int[] getPixelRects() {
+            return null;
+        }
+
+        /**
+         * Serializes the shape through its compact form unless legacy serialization is configured.
+         * @return the object written to the stream in place of this shape.
+         * @throws java.io.ObjectStreamException never.
+         */
+        protected Object writeReplace() throws java.io.ObjectStreamException {
+            return ShapeCodec.COMPACT_SERIALIZATION ? new CompactShape(this) : this;
+        }
+
+        /**
+         * Returns the sequence number of the operation that added this shape to the whiteboard.
+         * @return the sequence number, or 0 if the shape has not been added yet.
+         */
+        public long getSeq() {
+            return seq;
+        }
+
+        /**
+         * Sets the sequence number of the operation that added this shape to the whiteboard.
+         * @param seq the sequence number.
+         */
+        public void setSeq(long seq) {
+            this.seq = seq;
+        }
     }
 
     /**
      * Line class representing a line shape.
      */
     class Line extends Shape {
+        private static final long serialVersionUID = 8714777227768167134L;
         int x1, y1, x2, y2;
 
         public Line(int x1, int y1, int x2, int y2, Color color) {
@@ -273,12 +559,29 @@ public interface RemoteWhiteboard extends Remote {
             g.setColor(color);
             g.drawLine(x1, y1, x2, y2);
         }
+
+        @Override
+        public int[] getPixelRects() {
+            return x1 == x2 || y1 == y2 ? new int[] {Math.min(x1, x2), Math.min(y1, y2), Math.abs(x2 - x1) + 1, Math.abs(y2 - y1) + 1} : null;
+        }
+
+        @Override
+        public java.awt.Rectangle getBounds() {
+            return new java.awt.Rectangle(Math.min(x1, x2), Math.min(y1, y2), Math.abs(x2 - x1) + 1, Math.abs(y2 - y1) + 1);
+        }
+
+        @Override
+        public void appendSvg(StringBuilder svg) {
+            svg.append("<line x1=\"").append(x1).append("\" y1=\"").append(y1).append("\" x2=\"").append(x2).append("\" y2=\"").append(y2)
+                    .append("\" ").append(BoardExporter.svgColor(color, "stroke")).append("/>");
+        }
     }
 
     /**
      * Rectangle class representing a rectangle shape.
      */
     class Rectangle extends Shape {
+        private static final long serialVersionUID = -8027467159496398977L;
         int x, y, width, height;
 
         public Rectangle(int x, int y, int width, int height, Color color) {
@@ -294,12 +597,36 @@ public interface RemoteWhiteboard extends Remote {
             g.setColor(color);
             g.drawRect(x, y, width, height);
         }
+
+        @Override
+        public int[] getPixelRects() {
+            // The outline drawRect fills: nothing for a negative size, a single rectangle for a zero one
+            if (width < 0 || height < 0) {
+                return new int[0];
+            }
+            if (width == 0 || height == 0) {
+                return new int[] {x, y, width + 1, height + 1};
+            }
+            return new int[] {x, y, width, 1, x + width, y, 1, height, x + 1, y + height, width, 1, x, y + 1, 1, height};
+        }
+
+        @Override
+        public java.awt.Rectangle getBounds() {
+            return new java.awt.Rectangle(x, y, width + 1, height + 1);
+        }
+
+        @Override
+        public void appendSvg(StringBuilder svg) {
+            svg.append("<rect x=\"").append(x).append("\" y=\"").append(y).append("\" width=\"").append(width).append("\" height=\"").append(height)
+                    .append("\" ").append(BoardExporter.svgColor(color, "stroke")).append("/>");
+        }
     }
 
     /**
      * Circle class representing a circle shape.
      */
     class Circle extends Shape {
+        private static final long serialVersionUID = -1548268989259084387L;
         int x, y, radius;
 
         public Circle(int x, int y, int radius, Color color) {
@@ -314,13 +641,25 @@ public interface RemoteWhiteboard extends Remote {
             g.setColor(color);
             g.drawOval(x - radius, y - radius, radius * 2, radius * 2);
         }
+
+        @Override
+        public java.awt.Rectangle getBounds() {
+            return new java.awt.Rectangle(x - radius, y - radius, radius * 2 + 1, radius * 2 + 1);
+        }
+
+        @Override
+        public void appendSvg(StringBuilder svg) {
+            svg.append("<circle cx=\"").append(x).append("\" cy=\"").append(y).append("\" r=\"").append(radius)
+                    .append("\" ").append(BoardExporter.svgColor(color, "stroke")).append("/>");
+        }
     }
 
     /**
      * Oval class representing an oval shape.
      */
     class Oval extends Shape {
-        private int x, y, width, height;
+        private static final long serialVersionUID = 5152232513369235109L;
+        int x, y, width, height;
 
         public Oval(int x, int y, int width, int height, Color color) {
             super(color);
@@ -335,12 +674,24 @@ public interface RemoteWhiteboard extends Remote {
             g.setColor(color);
             g.drawOval(x, y, width, height);
         }
+
+        @Override
+        public java.awt.Rectangle getBounds() {
+            return new java.awt.Rectangle(x, y, width + 1, height + 1);
+        }
+
+        @Override
+        public void appendSvg(StringBuilder svg) {
+            svg.append("<ellipse cx=\"").append(x + width / 2.0).append("\" cy=\"").append(y + height / 2.0).append("\" rx=\"").append(width / 2.0)
+                    .append("\" ry=\"").append(height / 2.0).append("\" ").append(BoardExporter.svgColor(color, "stroke")).append("/>");
+        }
     }
 
     /**
      * FreeDraw class representing a free drawing shape.
      */
     class FreeDraw extends Shape {
+        private static final long serialVersionUID = -8014931775041263400L;
         int x1, y1, x2, y2;
 
         public FreeDraw(int x1, int y1, int x2, int y2, Color color) {
@@ -356,12 +707,67 @@ public interface RemoteWhiteboard extends Remote {
             g.setColor(color);
             g.drawLine(x1, y1, x2, y2);
         }
+
+        @Override
+        public int[] getPixelRects() {
+            return x1 == x2 || y1 == y2 ? new int[] {Math.min(x1, x2), Math.min(y1, y2), Math.abs(x2 - x1) + 1, Math.abs(y2 - y1) + 1} : null;
+        }
+
+        @Override
+        public java.awt.Rectangle getBounds() {
+            return new java.awt.Rectangle(Math.min(x1, x2), Math.min(y1, y2), Math.abs(x2 - x1) + 1, Math.abs(y2 - y1) + 1);
+        }
+
+        @Override
+        public void appendSvg(StringBuilder svg) {
+            svg.append("<line x1=\"").append(x1).append("\" y1=\"").append(y1).append("\" x2=\"").append(x2).append("\" y2=\"").append(y2)
+                    .append("\" stroke-linecap=\"square\" ").append(BoardExporter.svgColor(color, "stroke")).append("/>");
+        }
+    }
+
+    /**
+     * Polyline class representing a simplified free drawing stroke.
+     */
+    class Polyline extends Shape {
+        private static final long serialVersionUID = -2618501611153387282L;
+        int[] xs, ys;
+
+        public Polyline(int[] xs, int[] ys, Color color) {
+            super(color);
+            this.xs = xs;
+            this.ys = ys;
+        }
+
+        @Override
+        public void draw(Graphics2D g) {
+            g.setColor(color);
+            g.drawPolyline(xs, ys, xs.length);
+        }
+
+        @Override
+        public java.awt.Rectangle getBounds() {
+            java.awt.Rectangle bounds = new java.awt.Rectangle();
+            for (int i = 0; i < xs.length; i++) {
+                bounds.add(new java.awt.Rectangle(xs[i], ys[i], 1, 1));
+            }
+            return bounds;
+        }
+
+        @Override
+        public void appendSvg(StringBuilder svg) {
+            svg.append("<polyline points=\"");
+            for (int i = 0; i < xs.length; i++) {
+                svg.append(i == 0 ? "" : " ").append(xs[i]).append(',').append(ys[i]);
+            }
+            svg.append("\" ").append(BoardExporter.svgColor(color, "stroke")).append("/>");
+        }
     }
 
     /**
      * Eraser class representing an eraser shape.
      */
     class Eraser extends Shape {
+        private static final long serialVersionUID = 1602916868609127319L;
         int x, y, size;
 
         public Eraser(int x, int y, int size) {
@@ -376,26 +782,114 @@ public interface RemoteWhiteboard extends Remote {
             g.setColor(color);
             g.fillRect(x - size / 2, y - size / 2, size, size);
         }
+
+        @Override
+        public int[] getPixelRects() {
+            return new int[] {x - size / 2, y - size / 2, size, size};
+        }
+
+        @Override
+        public java.awt.Rectangle getBounds() {
+            return new java.awt.Rectangle(x - size / 2, y - size / 2, size, size);
+        }
+
+        @Override
+        public void appendSvg(StringBuilder svg) {
+            // Filled squares cover whole pixels, so undo the half pixel offset of the strokes
+            svg.append("<rect x=\"").append(x - size / 2 - 0.5).append("\" y=\"").append(y - size / 2 - 0.5).append("\" width=\"").append(size)
+                    .append("\" height=\"").append(size).append("\" stroke=\"none\" ").append(BoardExporter.svgColor(color, "fill")).append("/>");
+        }
     }
 
     /**
      * Text class representing a text shape.
      */
     class Text extends Shape {
+        private static final long serialVersionUID = 4931433658424271807L;
         int x, y;
         String text;
+        // The font is carried with the text so every client and the server lay it out alike. Texts from peers
+        // that predate it have no font name and use the default font.
+        String fontName;
+        int fontStyle;
+        int fontSize;
+        private transient java.awt.Font font;
+        private transient java.awt.Rectangle bounds;
+        private static final Graphics2D METRICS = new java.awt.image.BufferedImage(1, 1, java.awt.image.BufferedImage.TYPE_INT_ARGB).createGraphics();
+        /** The font texts are drawn with unless another one is given, the default font of an image. */
+        public static final java.awt.Font DEFAULT_FONT = METRICS.getFont();
 
         public Text(int x, int y, String text, Color color) {
+            this(x, y, text, DEFAULT_FONT, color);
+        }
+
+        public Text(int x, int y, String text, java.awt.Font font, Color color) {
             super(color);
             this.x = x;
             this.y = y;
             this.text = text;
+            this.fontName = font.getName();
+            this.fontStyle = font.getStyle();
+            this.fontSize = font.getSize();
+            this.font = font;
+        }
+
+        /**
+         * Returns the font the text is drawn with.
+         * @return the font.
+         */
+        public java.awt.Font getFont() {
+            java.awt.Font resolved = font;
+            if (resolved == null) {
+                resolved = DEFAULT_FONT;
+                if (fontName != null && (!fontName.equals(resolved.getName()) || fontStyle != resolved.getStyle() || fontSize != resolved.getSize())) {
+                    resolved = new java.awt.Font(fontName, fontStyle, fontSize);
+                }
+                font = resolved;
+            }
+            return resolved;
         }
 
         @Override
         public void draw(Graphics2D g) {
             g.setColor(color);
+            g.setFont(getFont());
             g.drawString(text, x, y);
         }
+
+        @Override
+        public java.awt.Rectangle getBounds() {
+            // Measured once, the text and font never change and the bounds are asked for on every redraw
+            java.awt.Rectangle measured = bounds;
+            if (measured == null) {
+                java.awt.FontMetrics metrics = METRICS.getFontMetrics(getFont());
+                measured = new java.awt.Rectangle(x, y - metrics.getAscent(), metrics.stringWidth(text) + 1, metrics.getHeight());
+                bounds = measured;
+            }
+            return new java.awt.Rectangle(measured);
+        }
+
+        @Override
+        public void appendSvg(StringBuilder svg) {
+            java.awt.Font font = getFont();
+            svg.append("<text x=\"").append(x - 0.5).append("\" y=\"").append(y - 0.5).append("\" stroke=\"none\" font-family=\"").append(font.getFamily())
+                    .append(", sans-serif\" font-size=\"").append(font.getSize()).append("\" ").append(svgStyle(font)).append(BoardExporter.svgColor(color, "fill")).append('>');
+            for (char c : text.toCharArray()) {
+                switch (c) {
+                    case '<': svg.append("&lt;"); break;
+                    case '>': svg.append("&gt;"); break;
+                    case '&': svg.append("&amp;"); break;
+                    default: svg.append(c);
+                }
+            }
+            svg.append("</text>");
+        }
+
+        /**
+         * Returns the SVG attributes for a bold or italic font.
+         */
+        private static String svgStyle(java.awt.Font font) {
+            return (font.isBold() ? "font-weight=\"bold\" " : "") + (font.isItalic() ? "font-style=\"italic\" " : "");
+        }
     }
 }
@@ -0,0 +1,38 @@
+package remote;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+import server.RoomSnapshot;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * Replica interface defines the remote methods used to replicate a whiteboard from a primary server to a hot standby.
+ */
+public interface Replica extends Remote {
+
+    /**
+     * Attaches a standby to this primary. The primary installs its current state on the standby
+     * and then streams every following operation to it.
+     * @param address the address of the standby in the form host:port.
+     * @param standby the remote replica interface of the standby.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    void attachStandby(String address, Replica standby) throws RemoteException;
+
+    /**
+     * Replaces the state of this standby with the state of the primary.
+     * @param snapshot the state of the primary, including the sequence number it reflects.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    void install(RoomSnapshot snapshot) throws RemoteException;
+
+    /**
+     * Applies operations shipped by the primary. An empty list acts as a heartbeat.
+     * @param operations the operations in sequence order.
+     * @return the sequence number of the last operation applied by the standby.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    long replicate(List<Operation> operations) throws RemoteException;
+}
@@ -0,0 +1,48 @@
+package remote;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * RoomDirectory interface defines the remote methods of the directory shared by the nodes of a whiteboard cluster.
+ * The directory tracks the live nodes and places each room on a node by consistent hashing of the room name.
+ */
+public interface RoomDirectory extends Remote {
+
+    /**
+     * The name the directory is bound under in the RMI registry.
+     */
+    String SERVICE_NAME = "RoomDirectory";
+
+    /**
+     * Registers a node with the cluster and rebalances the rooms across the new set of nodes.
+     * @param address the address of the node in the form host:port.
+     * @param node the remote node interface.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    void registerNode(String address, RoomNode node) throws RemoteException;
+
+    /**
+     * Removes a node from the cluster and rebalances its rooms onto the remaining nodes.
+     * @param address the address of the node in the form host:port.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    void unregisterNode(String address) throws RemoteException;
+
+    /**
+     * Locates the node that owns a room.
+     * @param room the name of the room.
+     * @return the remote node interface of the owning node.
+     * @throws RemoteException if there is an error during the remote method call, or no node is registered.
+     */
+    RoomNode locateRoom(String room) throws RemoteException;
+
+    /**
+     * Gets the addresses of the nodes currently in the cluster.
+     * @return the list of node addresses.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    List<String> getNodes() throws RemoteException;
+}
@@ -0,0 +1,50 @@
+package remote;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.Map;
+
+import server.RoomSnapshot;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * RoomNode interface defines the remote methods of a server process hosting whiteboard rooms in a cluster.
+ */
+public interface RoomNode extends Remote {
+
+    /**
+     * The name a node is bound under in its own RMI registry.
+     */
+    String SERVICE_NAME = "RoomNode";
+
+    /**
+     * Opens a room, creating its whiteboard if it does not exist yet.
+     * If the room is owned by another node the request is forwarded to that node.
+     * @param room the name of the room.
+     * @return the remote whiteboard of the room.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    RemoteWhiteboard openRoom(String room) throws RemoteException;
+
+    /**
+     * Takes over a room handed off by another node.
+     * @param room the name of the room.
+     * @param snapshot the state of the room.
+     * @return the remote whiteboard now hosting the room.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    RemoteWhiteboard adoptRoom(String room, RoomSnapshot snapshot) throws RemoteException;
+
+    /**
+     * Updates the cluster membership and hands off the rooms this node no longer owns.
+     * @param members the live nodes by address.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    void rebalance(Map<String, RoomNode> members) throws RemoteException;
+
+    /**
+     * Does nothing. Called by the directory to check the node is still alive.
+     * @throws RemoteException if there is an error during the remote method call.
+     */
+    void ping() throws RemoteException;
+}
@@ -0,0 +1,20 @@
+package remote;
+
+import java.rmi.RemoteException;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * SessionExpiredException is thrown when a client tries to resume a session the server no longer knows,
+ * for example after it was kicked out or the whiteboard was restarted. The client has to join again.
+ */
+public class SessionExpiredException extends RemoteException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructs a SessionExpiredException with a message for the user.
+     * @param message the detail message.
+     */
+    public SessionExpiredException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,263 @@
+package remote;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+
+import remote.RemoteWhiteboard.Circle;
+import remote.RemoteWhiteboard.Eraser;
+import remote.RemoteWhiteboard.FreeDraw;
+import remote.RemoteWhiteboard.Line;
+import remote.RemoteWhiteboard.Oval;
+import remote.RemoteWhiteboard.Polyline;
+import remote.RemoteWhiteboard.Rectangle;
+import remote.RemoteWhiteboard.Shape;
+import remote.RemoteWhiteboard.Text;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * ShapeCodec writes shapes in a compact binary form: a type tag, the sequence number, the color as one 32-bit ARGB
+ * value and the coordinates as zigzag varints, so the small numbers of a 700x600 board take one or two bytes.
+ * Polyline points after the first are written as deltas. Texts in the default font leave it out, so peers that only
+ * know that font still read them. It is used by Java serialization through
+ * {@link CompactShape} and by the binary transport.
+ */
+public final class ShapeCodec {
+
+    /** False when -Dwhiteboard.legacyShapeSerialization=true, to talk to peers that predate the compact form. */
+    static final boolean COMPACT_SERIALIZATION = !Boolean.getBoolean("whiteboard.legacyShapeSerialization");
+
+    // Shape types
+    private static final byte LINE = 1;
+    private static final byte RECTANGLE = 2;
+    private static final byte CIRCLE = 3;
+    private static final byte OVAL = 4;
+    private static final byte FREE_DRAW = 5;
+    private static final byte POLYLINE = 6;
+    private static final byte ERASER = 7;
+    private static final byte TEXT = 8;
+    // A text in a font other than the default one, followed by the font name, style and size
+    private static final byte FONT_TEXT = 9;
+
+    // Upper bound for lengths read from a stream, so a corrupt stream cannot trigger a huge allocation
+    private static final int MAX_LENGTH = 16 * 1024 * 1024;
+
+    private ShapeCodec() {
+    }
+
+    /**
+     * Writes a shape.
+     * @param out the output.
+     * @param shape the shape.
+     * @throws IOException if writing fails or the shape type is unknown.
+     */
+    public static void writeShape(DataOutput out, Shape shape) throws IOException {
+        if (shape instanceof Line) {
+            Line line = (Line) shape;
+            writeHeader(out, LINE, shape);
+            writeVarInts(out, line.x1, line.y1, line.x2, line.y2);
+        } else if (shape instanceof Rectangle) {
+            Rectangle rectangle = (Rectangle) shape;
+            writeHeader(out, RECTANGLE, shape);
+            writeVarInts(out, rectangle.x, rectangle.y, rectangle.width, rectangle.height);
+        } else if (shape instanceof Circle) {
+            Circle circle = (Circle) shape;
+            writeHeader(out, CIRCLE, shape);
+            writeVarInts(out, circle.x, circle.y, circle.radius);
+        } else if (shape instanceof Oval) {
+            Oval oval = (Oval) shape;
+            writeHeader(out, OVAL, shape);
+            writeVarInts(out, oval.x, oval.y, oval.width, oval.height);
+        } else if (shape instanceof FreeDraw) {
+            FreeDraw freeDraw = (FreeDraw) shape;
+            writeHeader(out, FREE_DRAW, shape);
+            writeVarInts(out, freeDraw.x1, freeDraw.y1, freeDraw.x2, freeDraw.y2);
+        } else if (shape instanceof Polyline) {
+            Polyline polyline = (Polyline) shape;
+            writeHeader(out, POLYLINE, shape);
+            int size = polyline.xs.length;
+            writeVarInt(out, size);
+            int x = 0;
+            int y = 0;
+            for (int i = 0; i < size; i++) {
+                writeVarInt(out, polyline.xs[i] - x);
+                writeVarInt(out, polyline.ys[i] - y);
+                x = polyline.xs[i];
+                y = polyline.ys[i];
+            }
+        } else if (shape instanceof Eraser) {
+            Eraser eraser = (Eraser) shape;
+            writeHeader(out, ERASER, shape);
+            writeVarInts(out, eraser.x, eraser.y, eraser.size);
+        } else if (shape instanceof Text) {
+            Text text = (Text) shape;
+            Font font = text.getFont();
+            boolean defaultFont = font.equals(Text.DEFAULT_FONT);
+            writeHeader(out, defaultFont ? TEXT : FONT_TEXT, shape);
+            writeVarInts(out, text.x, text.y);
+            byte[] bytes = text.text.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(out, bytes.length);
+            out.write(bytes);
+            if (!defaultFont) {
+                out.writeUTF(font.getName());
+                writeVarInts(out, font.getStyle(), font.getSize());
+            }
+        } else {
+            throw new IOException("Unknown shape type " + shape.getClass().getName());
+        }
+    }
+
+    /**
+     * Reads a shape written by {@link #writeShape}.
+     * @param in the input.
+     * @return the shape.
+     * @throws IOException if reading fails or the input is malformed.
+     */
+    public static Shape readShape(DataInput in) throws IOException {
+        byte type = in.readByte();
+        long seq = readVarLong(in);
+        Color color = new Color(in.readInt(), true);
+        Shape shape;
+        switch (type) {
+            case LINE:
+                shape = new Line(readVarInt(in), readVarInt(in), readVarInt(in), readVarInt(in), color);
+                break;
+            case RECTANGLE:
+                shape = new Rectangle(readVarInt(in), readVarInt(in), readVarInt(in), readVarInt(in), color);
+                break;
+            case CIRCLE:
+                shape = new Circle(readVarInt(in), readVarInt(in), readVarInt(in), color);
+                break;
+            case OVAL:
+                shape = new Oval(readVarInt(in), readVarInt(in), readVarInt(in), readVarInt(in), color);
+                break;
+            case FREE_DRAW:
+                shape = new FreeDraw(readVarInt(in), readVarInt(in), readVarInt(in), readVarInt(in), color);
+                break;
+            case POLYLINE: {
+                int size = readLength(in);
+                int[] xs = new int[size];
+                int[] ys = new int[size];
+                int x = 0;
+                int y = 0;
+                for (int i = 0; i < size; i++) {
+                    x += readVarInt(in);
+                    y += readVarInt(in);
+                    xs[i] = x;
+                    ys[i] = y;
+                }
+                shape = new Polyline(xs, ys, color);
+                break;
+            }
+            case ERASER:
+                shape = new Eraser(readVarInt(in), readVarInt(in), readVarInt(in));
+                break;
+            case TEXT:
+            case FONT_TEXT: {
+                int x = readVarInt(in);
+                int y = readVarInt(in);
+                byte[] bytes = new byte[readLength(in)];
+                in.readFully(bytes);
+                Font font = type == TEXT ? Text.DEFAULT_FONT : new Font(in.readUTF(), readVarInt(in), readVarInt(in));
+                shape = new Text(x, y, new String(bytes, StandardCharsets.UTF_8), font, color);
+                break;
+            }
+            default:
+                throw new StreamCorruptedException("Unknown shape type " + type);
+        }
+        shape.seq = seq;
+        return shape;
+    }
+
+    /**
+     * Writes the type tag, sequence number and ARGB color of a shape.
+     */
+    private static void writeHeader(DataOutput out, byte type, Shape shape) throws IOException {
+        out.writeByte(type);
+        writeVarLong(out, shape.seq);
+        out.writeInt(shape.color.getRGB());
+    }
+
+    private static void writeVarInts(DataOutput out, int... values) throws IOException {
+        for (int value : values) {
+            writeVarInt(out, value);
+        }
+    }
+
+    /**
+     * Writes a signed int as a zigzag varint: 7 bits per byte, small magnitudes of either sign take one byte.
+     * @param out the output.
+     * @param value the value.
+     * @throws IOException if writing fails.
+     */
+    public static void writeVarInt(DataOutput out, int value) throws IOException {
+        int zigzag = (value << 1) ^ (value >> 31);
+        while ((zigzag & ~0x7F) != 0) {
+            out.writeByte((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        out.writeByte(zigzag);
+    }
+
+    /**
+     * Reads a zigzag varint written by {@link #writeVarInt}.
+     * @param in the input.
+     * @return the value.
+     * @throws IOException if reading fails or the varint is too long.
+     */
+    public static int readVarInt(DataInput in) throws IOException {
+        int zigzag = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.readByte();
+            zigzag |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new StreamCorruptedException("Malformed varint");
+    }
+
+    /**
+     * Writes a non-negative long as a varint.
+     * @param out the output.
+     * @param value the value.
+     * @throws IOException if writing fails.
+     */
+    public static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Reads a varint written by {@link #writeVarLong}.
+     * @param in the input.
+     * @return the value.
+     * @throws IOException if reading fails or the varint is too long.
+     */
+    public static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Malformed varint");
+    }
+
+    private static int readLength(DataInput in) throws IOException {
+        int length = readVarInt(in);
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new StreamCorruptedException("Invalid length " + length);
+        }
+        return length;
+    }
+}
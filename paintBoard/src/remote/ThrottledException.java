@@ -0,0 +1,33 @@
+package remote;
+
+import java.rmi.RemoteException;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * ThrottledException is thrown when the server refuses an operation because the user is sending operations
+ * faster than their rate limit allows or the server queue is full. The operation was not applied and can be
+ * sent again after the suggested delay.
+ */
+public class ThrottledException extends RemoteException {
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfterMillis;
+
+    /**
+     * Constructs a ThrottledException.
+     * @param message the detail message.
+     * @param retryAfterMillis how long the client should wait before sending again, in milliseconds.
+     */
+    public ThrottledException(String message, long retryAfterMillis) {
+        super(message);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Returns how long the client should wait before sending again.
+     * @return the delay in milliseconds.
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
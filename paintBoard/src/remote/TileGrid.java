@@ -0,0 +1,230 @@
+package remote;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * TileGrid describes an image as a grid of square tiles, each identified by a hash of its pixels. Tiles with the same
+ * pixels have the same hash wherever they come from, so a blank tile or a tile of a board opened before is only ever
+ * transferred once: a client is sent the grid first and asks for the tiles it does not have yet.
+ * Tiles are sent as PNG. The hash covers the pixels and not the PNG, so a tile encoded anywhere can stand in for it.
+ */
+public class TileGrid implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /** The width and height of a tile, tiles on the right and bottom edges may be smaller. */
+    public static final int TILE_SIZE = 128;
+    // The number of bytes of the SHA-256 digest kept in a hash
+    private static final int HASH_BYTES = 16;
+
+    private final int width;
+    private final int height;
+    private final String[] hashes;
+
+    /**
+     * Constructs a TileGrid.
+     * @param width the width of the image.
+     * @param height the height of the image.
+     * @param hashes the hashes of the tiles, row by row.
+     */
+    public TileGrid(int width, int height, String[] hashes) {
+        this.width = width;
+        this.height = height;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Splits an image into tiles.
+     * @param image the image.
+     * @param tiles receives each distinct tile encoded as PNG, by hash.
+     * @return the grid of the image.
+     */
+    public static TileGrid split(BufferedImage image, Map<String, byte[]> tiles) {
+        int columns = (image.getWidth() + TILE_SIZE - 1) / TILE_SIZE;
+        int rows = (image.getHeight() + TILE_SIZE - 1) / TILE_SIZE;
+        String[] hashes = new String[columns * rows];
+        for (int i = 0; i < hashes.length; i++) {
+            Rectangle bounds = bounds(image.getWidth(), image.getHeight(), columns, i);
+            BufferedImage tile = image.getSubimage(bounds.x, bounds.y, bounds.width, bounds.height);
+            hashes[i] = hash(tile);
+            if (!tiles.containsKey(hashes[i])) {
+                tiles.put(hashes[i], encode(tile));
+            }
+        }
+        return new TileGrid(image.getWidth(), image.getHeight(), hashes);
+    }
+
+    /**
+     * Splits pixels that are not held in an image into tiles, reading them one tile at a time.
+     * @param width the width of the pixels.
+     * @param height the height of the pixels.
+     * @param source reads the ARGB pixels of a tile.
+     * @param tiles receives each distinct tile encoded as PNG, by hash.
+     * @return the grid of the pixels.
+     */
+    public static TileGrid split(int width, int height, PixelSource source, Map<String, byte[]> tiles) {
+        int columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        String[] hashes = new String[columns * rows];
+        int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+        for (int i = 0; i < hashes.length; i++) {
+            Rectangle bounds = bounds(width, height, columns, i);
+            source.read(bounds, pixels);
+            hashes[i] = hash(pixels, bounds.width, bounds.height);
+            if (!tiles.containsKey(hashes[i])) {
+                BufferedImage tile = new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_INT_ARGB);
+                tile.getRaster().setDataElements(0, 0, bounds.width, bounds.height, pixels);
+                tiles.put(hashes[i], encode(tile));
+            }
+        }
+        return new TileGrid(width, height, hashes);
+    }
+
+    /**
+     * Returns the hash of the pixels of a tile.
+     * @param tile the tile.
+     * @return the hash as hexadecimal digits.
+     */
+    public static String hash(BufferedImage tile) {
+        return hash(tile.getRGB(0, 0, tile.getWidth(), tile.getHeight(), null, 0, tile.getWidth()), tile.getWidth(), tile.getHeight());
+    }
+
+    /**
+     * Returns the hash of the pixels of a tile, the same as the hash of an image of them.
+     * @param pixels the ARGB pixels row by row, width ints per row, the array may be longer.
+     * @param width the width of the tile.
+     * @param height the height of the tile.
+     * @return the hash as hexadecimal digits.
+     */
+    public static String hash(int[] pixels, int width, int height) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + width * height * 4);
+        buffer.putInt(width).putInt(height);
+        buffer.asIntBuffer().put(pixels, 0, width * height);
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(buffer.array());
+            StringBuilder hex = new StringBuilder(HASH_BYTES * 2);
+            for (int i = 0; i < HASH_BYTES; i++) {
+                hex.append(Character.forDigit(digest[i] >> 4 & 0xF, 16)).append(Character.forDigit(digest[i] & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Returns whether a string is a hash as {@link #hash} makes them: a fixed number of lowercase hexadecimal digits.
+     * @param hash the string.
+     * @return true if it has the form of a hash.
+     */
+    public static boolean isHash(String hash) {
+        if (hash == null || hash.length() != HASH_BYTES * 2) {
+            return false;
+        }
+        for (int i = 0; i < hash.length(); i++) {
+            char c = hash.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encodes a tile as PNG.
+     * @param tile the tile.
+     * @return the encoded tile.
+     */
+    public static byte[] encode(BufferedImage tile) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(tile, "png", out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a tile.
+     * @param data the encoded tile.
+     * @return the tile, or null if it cannot be decoded.
+     */
+    public static BufferedImage decode(byte[] data) {
+        try {
+            return ImageIO.read(new ByteArrayInputStream(data));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Puts the image back together from its tiles.
+     * @param tiles the decoded tiles by hash, which must hold every tile of the grid.
+     * @return the image.
+     */
+    public BufferedImage assemble(Map<String, BufferedImage> tiles) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        // Copies the pixels as they are, blending translucent ones over nothing could round them
+        g.setComposite(AlphaComposite.Src);
+        for (int i = 0; i < hashes.length; i++) {
+            Rectangle bounds = bounds(width, height, getColumns(), i);
+            g.drawImage(tiles.get(hashes[i]), bounds.x, bounds.y, null);
+        }
+        g.dispose();
+        return image;
+    }
+
+    /**
+     * Returns the hashes of the tiles.
+     * @return the hashes, row by row.
+     */
+    public String[] getHashes() {
+        return hashes.clone();
+    }
+
+    /**
+     * Returns the number of tiles in a row.
+     * @return the number of columns.
+     */
+    public int getColumns() {
+        return (width + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    /**
+     * Reads the pixels of a tile from where they are kept.
+     */
+    public interface PixelSource {
+        /**
+         * Copies the ARGB pixels of an area row by row, area width ints per row.
+         * @param area the area of the tile.
+         * @param pixels receives the pixels.
+         */
+        void read(Rectangle area, int[] pixels);
+    }
+
+    /**
+     * Returns the area of an image a tile covers.
+     */
+    private static Rectangle bounds(int width, int height, int columns, int index) {
+        int x = index % columns * TILE_SIZE;
+        int y = index / columns * TILE_SIZE;
+        return new Rectangle(x, y, Math.min(TILE_SIZE, width - x), Math.min(TILE_SIZE, height - y));
+    }
+}
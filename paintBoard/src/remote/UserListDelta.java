@@ -0,0 +1,99 @@
+package remote;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * UserListDelta brings a client's copy of the user list up to a version of the server's, either as the users who
+ * joined and left since the version the client has, in order, or as the whole list when the server no longer has
+ * the changes that far back. Versions are the sequence numbers of the operations that added or removed the users,
+ * so they carry over when the whiteboard fails over to its standby.
+ */
+public class UserListDelta implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * A user joining or leaving the whiteboard.
+     */
+    public static class Change implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String username;
+        private final boolean added;
+
+        /**
+         * Constructs a Change.
+         * @param username the username of the user.
+         * @param added true if the user joined, false if they left.
+         */
+        public Change(String username, boolean added) {
+            this.username = username;
+            this.added = added;
+        }
+
+        /**
+         * Returns the username of the user.
+         * @return the username.
+         */
+        public String getUsername() {
+            return username;
+        }
+
+        /**
+         * Returns whether the user joined rather than left.
+         * @return true if the user joined.
+         */
+        public boolean isAdded() {
+            return added;
+        }
+    }
+
+    private final long version;
+    private final List<String> users;
+    private final List<Change> changes;
+
+    /**
+     * Constructs a UserListDelta.
+     * @param version the version of the user list the delta brings the client to.
+     * @param users the whole user list, or null if the changes are enough.
+     * @param changes the changes since the client's version in order, empty if the whole list is sent.
+     */
+    public UserListDelta(long version, List<String> users, List<Change> changes) {
+        this.version = version;
+        this.users = users;
+        this.changes = changes;
+    }
+
+    /**
+     * Returns the version of the user list the delta brings the client to.
+     * @return the version.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns whether the delta carries the whole user list, replacing the client's copy.
+     * @return true if the whole list is sent.
+     */
+    public boolean isFull() {
+        return users != null;
+    }
+
+    /**
+     * Returns the whole user list.
+     * @return the users in the order they joined, or null if only the changes are sent.
+     */
+    public List<String> getUsers() {
+        return users;
+    }
+
+    /**
+     * Returns the users who joined and left since the client's version.
+     * @return the changes in order.
+     */
+    public List<Change> getChanges() {
+        return changes;
+    }
+}
@@ -0,0 +1,322 @@
+package remote;
+
+import java.awt.Color;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import remote.RemoteWhiteboard.Shape;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * WireProtocol defines the length-prefixed binary protocol used by the socket transport, an alternative to RMI.
+ * Every frame is a 4 byte length followed by a kind byte and the frame body. Calls name the method by its index
+ * in a method table both sides build from the same interface, and values are written with a one byte tag.
+ * Shapes use the encoding of {@link ShapeCodec}, strings and primitives have compact encodings, and other
+ * serializable values fall back to Java serialization, limited to the classes of the whiteboard and the JDK.
+ */
+public final class WireProtocol {
+
+    // Frame kinds
+    /** Sent once by a client to identify itself, so callbacks survive reconnects. Body: client id. */
+    public static final byte HELLO = 1;
+    /** A call on the whiteboard. Body: call id, method index, arguments. */
+    public static final byte REQUEST = 2;
+    /** The result of a call. Body: call id, value. */
+    public static final byte RESPONSE = 3;
+    /** A call that threw. Body: call id, the exception as a value. */
+    public static final byte FAILURE = 4;
+    /** A one-way call on a client object. Body: object id, method index, arguments. */
+    public static final byte CALLBACK = 5;
+    /** Sent by the server to check that a client still reads its connection. Body: nonce. */
+    public static final byte PING = 6;
+    /** The answer of a client to a ping. Body: the nonce of the ping. */
+    public static final byte PONG = 7;
+
+    // Value tags
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte STRING = 6;
+    private static final byte BYTES = 7;
+    private static final byte COLOR = 8;
+    private static final byte LIST = 9;
+    private static final byte MAP = 10;
+    private static final byte SHAPE = 11;
+    private static final byte SERIALIZED = 12;
+    /** A client object living at the client end of the connection. Followed by its object id. */
+    public static final byte CLIENT_OBJECT = 13;
+    /** A client object the server handed out earlier. Followed by its handle id. */
+    public static final byte CLIENT_HANDLE = 14;
+    /** The whiteboard served over the connection the value travels on. */
+    public static final byte BOARD = 15;
+
+    /** Frames larger than this are rejected, loaded images are the largest values sent. */
+    public static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+
+    // Serialized values may only name the classes the whiteboard sends, so a peer cannot make the other end
+    // instantiate arbitrary classes on the class path
+    private static final ObjectInputFilter SERIAL_FILTER = ObjectInputFilter.Config.createFilter(
+            "maxdepth=32;maxbytes=" + MAX_FRAME_BYTES + ";remote.**;server.SerializableBufferedImage;"
+            + "java.lang.*;java.util.*;java.awt.*;java.io.*;java.rmi.**;sun.rmi.**;!*");
+
+    /**
+     * Translates the remote objects the protocol cannot copy by value, such as client callbacks and the board itself.
+     */
+    public interface References {
+        /**
+         * Writes a reference to a remote object.
+         * @param out the output to write the tag and identifier to.
+         * @param value the remote object.
+         * @return true if the value was written, false to fall back to Java serialization.
+         * @throws IOException if writing fails.
+         */
+        boolean writeReference(DataOutputStream out, Object value) throws IOException;
+
+        /**
+         * Reads a reference to a remote object written by the other end.
+         * @param tag the tag of the reference.
+         * @param in the input to read the identifier from.
+         * @return the local object standing for the remote one.
+         * @throws IOException if reading fails or the reference is unknown.
+         */
+        Object readReference(byte tag, DataInputStream in) throws IOException;
+    }
+
+    private WireProtocol() {
+    }
+
+    /**
+     * Builds the method table of a remote interface. Both ends build it from the same interface,
+     * so a method is identified on the wire by its index.
+     * @param type the remote interface.
+     * @return the methods sorted by signature.
+     */
+    public static Method[] methodTable(Class<?> type) {
+        Method[] methods = type.getMethods();
+        Arrays.sort(methods, Comparator.comparing(Method::toGenericString));
+        return methods;
+    }
+
+    /**
+     * Returns the index of a method in a method table.
+     * @param table the method table.
+     * @param method the method.
+     * @return the index, or -1 if the method is not in the table.
+     */
+    public static int indexOf(Method[] table, Method method) {
+        for (int i = 0; i < table.length; i++) {
+            if (table[i].equals(method)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes a value with its tag.
+     * @param out the output.
+     * @param value the value, may be null.
+     * @param references the translator for remote objects.
+     * @throws IOException if writing fails or the value cannot be encoded.
+     */
+    public static void writeValue(DataOutputStream out, Object value, References references) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            out.writeByte(BYTES);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if (value instanceof Color) {
+            out.writeByte(COLOR);
+            out.writeInt(((Color) value).getRGB());
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            out.writeByte(LIST);
+            out.writeInt(list.size());
+            for (Object element : list) {
+                writeValue(out, element, references);
+            }
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.writeByte(MAP);
+            out.writeInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeValue(out, entry.getKey(), references);
+                writeValue(out, entry.getValue(), references);
+            }
+        } else if (value instanceof Shape) {
+            out.writeByte(SHAPE);
+            ShapeCodec.writeShape(out, (Shape) value);
+        } else if (!references.writeReference(out, value)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream objects = new ObjectOutputStream(bytes)) {
+                objects.writeObject(value);
+            }
+            out.writeByte(SERIALIZED);
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+        }
+    }
+
+    /**
+     * Reads a value written by {@link #writeValue}.
+     * @param in the input.
+     * @param references the translator for remote objects.
+     * @return the value.
+     * @throws IOException if reading fails or the input is malformed.
+     */
+    public static Object readValue(DataInputStream in, References references) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case INT:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case DOUBLE:
+                return in.readDouble();
+            case STRING:
+                return readString(in);
+            case BYTES: {
+                byte[] bytes = new byte[readLength(in)];
+                in.readFully(bytes);
+                return bytes;
+            }
+            case COLOR:
+                return new Color(in.readInt(), true);
+            case LIST: {
+                int size = readLength(in);
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in, references));
+                }
+                return list;
+            }
+            case MAP: {
+                int size = readLength(in);
+                Map<Object, Object> map = new LinkedHashMap<>();
+                for (int i = 0; i < size; i++) {
+                    map.put(readValue(in, references), readValue(in, references));
+                }
+                return map;
+            }
+            case SHAPE:
+                return ShapeCodec.readShape(in);
+            case SERIALIZED: {
+                byte[] bytes = new byte[readLength(in)];
+                in.readFully(bytes);
+                try (ObjectInputStream objects = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    objects.setObjectInputFilter(SERIAL_FILTER);
+                    return objects.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Unknown class in serialized value", e);
+                }
+            }
+            default:
+                return references.readReference(tag, in);
+        }
+    }
+
+    /**
+     * Writes a string as its UTF-8 length and bytes, without the 64 KB limit of writeUTF.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a length and checks it against the frame limit, so a corrupt frame cannot trigger a huge allocation.
+     */
+    private static int readLength(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new StreamCorruptedException("Invalid length " + length);
+        }
+        return length;
+    }
+
+    /**
+     * A growable buffer that assembles one frame, reserving room for the length prefix.
+     */
+    public static class FrameBuffer extends ByteArrayOutputStream {
+        private final DataOutputStream data = new DataOutputStream(this);
+
+        /**
+         * Starts a frame of the given kind.
+         * @param kind the frame kind.
+         */
+        public FrameBuffer(byte kind) {
+            super(256);
+            count = 4;
+            write(kind);
+        }
+
+        /**
+         * Returns a data output appending to the frame.
+         * @return the data output.
+         */
+        public DataOutputStream data() {
+            return data;
+        }
+
+        /**
+         * Fills in the length prefix and returns the frame ready to be written to a channel.
+         * @return the frame.
+         */
+        public ByteBuffer toFrame() {
+            int length = count - 4;
+            buf[0] = (byte) (length >>> 24);
+            buf[1] = (byte) (length >>> 16);
+            buf[2] = (byte) (length >>> 8);
+            buf[3] = (byte) length;
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
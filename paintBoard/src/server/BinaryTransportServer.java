@@ -0,0 +1,556 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.server.RemoteObject;
+import java.rmi.server.RemoteServer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import remote.IClient;
+import remote.RemoteWhiteboard;
+import remote.WireProtocol;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * BinaryTransportServer serves a whiteboard over the length-prefixed binary protocol of {@link WireProtocol},
+ * next to its RMI binding. One selector thread accepts connections, reads frames and writes queued replies;
+ * calls are executed on a worker pool so a slow board lock never stalls the selector.
+ * Client callbacks are one-way frames sent over the connection of the client that registered them. A client
+ * that stops reading is closed once its unsent frames pass a limit, and pings wait for the client to answer,
+ * so a half-open connection fails its callbacks instead of queueing them forever.
+ */
+public class BinaryTransportServer implements Runnable {
+
+    private static final Method[] BOARD_METHODS = WireProtocol.methodTable(RemoteWhiteboard.class);
+    private static final Method[] CLIENT_METHODS = WireProtocol.methodTable(IClient.class);
+
+    // Live servers by port, so callback handles deserialized in this process can find their connection
+    private static final Map<Integer, BinaryTransportServer> SERVERS = new ConcurrentHashMap<>();
+
+    // Unsent bytes a connection may hold behind the frame being written before it is closed
+    private static final long MAX_PENDING_BYTES = 16L * 1024 * 1024;
+    // How long a ping waits for the client to answer
+    private static final long PING_TIMEOUT_MILLIS = 5000;
+
+    private final RemoteWhiteboard board;
+    private final ServerMetrics metrics;
+    private final int port;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final Thread selectorThread;
+
+    // The current connection of every client, by the id it sent in its HELLO frame
+    private final Map<String, Connection> clients = new ConcurrentHashMap<>();
+    // Callback proxies handed out to clients, by handle id and by client object
+    private final Map<Long, IClient> handles = new ConcurrentHashMap<>();
+    private final Map<String, Long> handleIds = new ConcurrentHashMap<>();
+    private final AtomicLong nextHandle = new AtomicLong(1);
+    private final AtomicLong nextPing = new AtomicLong(1);
+    private final Map<Connection, Boolean> connections = new ConcurrentHashMap<>();
+
+    /**
+     * Opens the listening socket and starts the selector thread.
+     * @param board the whiteboard to serve.
+     * @param metrics the metrics the transport reports to.
+     * @param host the address to listen on.
+     * @param port the port to listen on.
+     * @throws IOException if the socket cannot be opened.
+     */
+    public BinaryTransportServer(RemoteWhiteboard board, ServerMetrics metrics, String host, int port) throws IOException {
+        this.board = board;
+        this.metrics = metrics;
+        this.port = port;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(host, port));
+        serverChannel.configureBlocking(false);
+        selector = Selector.open();
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        workers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "binary-transport-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        metrics.gauge("transport.binary.connections", () -> connections.size());
+        SERVERS.put(port, this);
+
+        selectorThread = new Thread(this, "binary-transport-" + port);
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * Runs the selector loop until the server is closed.
+     */
+    @Override
+    public void run() {
+        while (serverChannel.isOpen()) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (IOException e) {
+                        connection.close();
+                    }
+                }
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops accepting connections and closes every open one.
+     */
+    public void close() {
+        SERVERS.remove(port, this);
+        try {
+            serverChannel.close();
+            selector.wakeup();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Connection connection : connections.keySet()) {
+            connection.close();
+        }
+        workers.shutdown();
+    }
+
+    /**
+     * Accepts a pending connection and registers it for reading.
+     * @throws IOException if the connection cannot be configured.
+     */
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        connections.put(connection, Boolean.TRUE);
+        metrics.increment("transport.binary.accepted");
+    }
+
+    /**
+     * Handles a complete frame received from a connection.
+     * @param connection the connection the frame arrived on.
+     * @param frame the frame body, starting with its kind.
+     * @throws IOException if the frame is malformed.
+     */
+    private void handleFrame(Connection connection, byte[] frame) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame, 1, frame.length - 1));
+        switch (frame[0]) {
+            case WireProtocol.HELLO:
+                connection.clientId = in.readUTF();
+                clients.put(connection.clientId, connection);
+                break;
+            case WireProtocol.REQUEST:
+                workers.execute(() -> execute(connection, in));
+                break;
+            case WireProtocol.PONG: {
+                CompletableFuture<Void> ping = connection.pings.remove(in.readLong());
+                if (ping != null) {
+                    ping.complete(null);
+                }
+                break;
+            }
+            default:
+                throw new StreamCorruptedException("Unexpected frame kind " + frame[0]);
+        }
+    }
+
+    /**
+     * Executes a call on the whiteboard and sends back its result or exception.
+     * @param connection the connection the call arrived on.
+     * @param in the request body after the frame kind.
+     */
+    private void execute(Connection connection, DataInputStream in) {
+        long callId = -1;
+        Object result;
+        boolean failed = false;
+        try {
+            callId = in.readLong();
+            int index = in.readUnsignedShort();
+            if (index >= BOARD_METHODS.length) {
+                throw new StreamCorruptedException("Unknown method " + index);
+            }
+            Method method = BOARD_METHODS[index];
+            Object[] args = new Object[method.getParameterCount()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = WireProtocol.readValue(in, connection);
+            }
+            metrics.increment("transport.binary.calls");
+            result = method.invoke(board, args);
+        } catch (InvocationTargetException e) {
+            result = e.getCause();
+            failed = true;
+        } catch (IOException | IllegalAccessException | IllegalArgumentException e) {
+            result = new RemoteException("Malformed call", e);
+            failed = true;
+        }
+        if (callId < 0) {
+            connection.close();
+            return;
+        }
+
+        WireProtocol.FrameBuffer frame = new WireProtocol.FrameBuffer(failed ? WireProtocol.FAILURE : WireProtocol.RESPONSE);
+        try {
+            frame.data().writeLong(callId);
+            WireProtocol.writeValue(frame.data(), result, connection);
+        } catch (IOException e) {
+            frame = new WireProtocol.FrameBuffer(WireProtocol.FAILURE);
+            try {
+                frame.data().writeLong(callId);
+                WireProtocol.writeValue(frame.data(), new RemoteException("Result could not be encoded", e), connection);
+            } catch (IOException unexpected) {
+                unexpected.printStackTrace();
+            }
+        }
+        try {
+            connection.send(frame.toFrame());
+        } catch (IOException e) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Sends a one-way callback to a client object.
+     * @param clientId the id of the client that owns the object.
+     * @param objectId the id of the object within the client.
+     * @param method the callback method.
+     * @param args the callback arguments.
+     * @throws RemoteException if the client is not connected or the callback cannot be sent.
+     */
+    private void sendCallback(String clientId, long objectId, Method method, Object[] args) throws RemoteException {
+        Connection connection = clients.get(clientId);
+        if (connection == null || !connection.channel.isOpen()) {
+            throw new ConnectException("Client " + clientId + " is not connected");
+        }
+        if (method.getName().equals("ping")) {
+            ping(connection);
+            return;
+        }
+        WireProtocol.FrameBuffer frame = new WireProtocol.FrameBuffer(WireProtocol.CALLBACK);
+        try {
+            DataOutputStream out = frame.data();
+            out.writeLong(objectId);
+            out.writeShort(WireProtocol.indexOf(CLIENT_METHODS, method));
+            for (int i = 0; args != null && i < args.length; i++) {
+                WireProtocol.writeValue(out, args[i], connection);
+            }
+            connection.send(frame.toFrame());
+            metrics.increment("transport.binary.callbacks");
+        } catch (IOException e) {
+            connection.close();
+            throw new ConnectException("Callback to client " + clientId + " failed", e);
+        }
+    }
+
+    /**
+     * Pings a client and waits for its answer, closing the connection if none arrives in time.
+     * @param connection the connection of the client.
+     * @throws RemoteException if the client does not answer.
+     */
+    private void ping(Connection connection) throws RemoteException {
+        long nonce = nextPing.getAndIncrement();
+        CompletableFuture<Void> answer = new CompletableFuture<>();
+        connection.pings.put(nonce, answer);
+        try {
+            WireProtocol.FrameBuffer frame = new WireProtocol.FrameBuffer(WireProtocol.PING);
+            frame.data().writeLong(nonce);
+            connection.send(frame.toFrame());
+            answer.get(PING_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (IOException | ExecutionException | TimeoutException e) {
+            metrics.increment("transport.binary.pingFailures");
+            connection.close();
+            throw new ConnectException("Client " + connection.clientId + " did not answer a ping", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectException("Interrupted while pinging client " + connection.clientId, e);
+        } finally {
+            connection.pings.remove(nonce);
+        }
+    }
+
+    /**
+     * Returns the callback proxy for an object of a client, creating and registering it on first use.
+     * @param clientId the id of the client.
+     * @param objectId the id of the object within the client.
+     * @return the callback proxy.
+     */
+    private IClient callback(String clientId, long objectId) {
+        String key = clientId + "/" + objectId;
+        long handle = handleIds.computeIfAbsent(key, k -> {
+            long id = nextHandle.getAndIncrement();
+            handles.put(id, (IClient) Proxy.newProxyInstance(IClient.class.getClassLoader(),
+                    new Class<?>[] { IClient.class }, new CallbackHandler(port, clientId, objectId, id)));
+            return id;
+        });
+        return handles.get(handle);
+    }
+
+    /**
+     * Forwards calls on a client object to the client over its current connection. Handlers are serializable
+     * so the proxies can be replicated with the board; a copy in a process without the transport fails to connect.
+     */
+    private static class CallbackHandler implements InvocationHandler, Serializable {
+        private static final long serialVersionUID = 1L;
+        final int port;
+        final String clientId;
+        final long objectId;
+        final long handle;
+
+        CallbackHandler(int port, String clientId, long objectId, long handle) {
+            this.port = port;
+            this.clientId = clientId;
+            this.objectId = objectId;
+            this.handle = handle;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return args[0] != null && Proxy.isProxyClass(args[0].getClass())
+                            && equals(Proxy.getInvocationHandler(args[0]));
+                case "hashCode":
+                    return hashCode();
+                case "toString":
+                    return "BinaryClient[" + clientId + "/" + objectId + "]";
+                default:
+                    break;
+            }
+            BinaryTransportServer server = SERVERS.get(port);
+            if (server == null) {
+                throw new ConnectException("Client " + clientId + " is connected to another server");
+            }
+            server.sendCallback(clientId, objectId, method, args);
+            return null;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof CallbackHandler && ((CallbackHandler) other).clientId.equals(clientId)
+                    && ((CallbackHandler) other).objectId == objectId;
+        }
+
+        @Override
+        public int hashCode() {
+            return clientId.hashCode() * 31 + Long.hashCode(objectId);
+        }
+    }
+
+    /**
+     * One client connection. Reads are done by the selector thread; writes are attempted directly by the sending
+     * thread and only queued for the selector when the socket buffer is full. A connection whose queue would grow
+     * past {@link #MAX_PENDING_BYTES} is closed, since its client has stopped reading.
+     */
+    private class Connection implements WireProtocol.References {
+        final SocketChannel channel;
+        SelectionKey key;
+        volatile String clientId;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+        private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+        private long pendingBytes;
+        // Pings waiting for their answer, by nonce
+        final Map<Long, CompletableFuture<Void>> pings = new ConcurrentHashMap<>();
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Reads what is available and handles every complete frame.
+         * @throws IOException if the connection is closed or a frame is malformed.
+         */
+        void read() throws IOException {
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                throw new ClosedChannelException();
+            }
+            metrics.add("transport.binary.bytesIn", read);
+            readBuffer.flip();
+            while (readBuffer.remaining() >= 4) {
+                int length = readBuffer.getInt(readBuffer.position());
+                if (length <= 0 || length > WireProtocol.MAX_FRAME_BYTES) {
+                    throw new StreamCorruptedException("Invalid frame length " + length);
+                }
+                if (readBuffer.remaining() < 4 + length) {
+                    if (readBuffer.capacity() < 4 + length) {
+                        // Grow to fit the frame
+                        ByteBuffer larger = ByteBuffer.allocate(4 + length);
+                        larger.put(readBuffer);
+                        readBuffer = larger;
+                        return;
+                    }
+                    break;
+                }
+                readBuffer.getInt();
+                byte[] frame = new byte[length];
+                readBuffer.get(frame);
+                handleFrame(this, frame);
+            }
+            readBuffer.compact();
+        }
+
+        /**
+         * Writes a frame, queueing what the socket does not take right away.
+         * @param frame the frame.
+         * @throws IOException if the connection is closed, or was closed because too much is queued.
+         */
+        void send(ByteBuffer frame) throws IOException {
+            int size = frame.remaining();
+            long overflow = 0;
+            synchronized (this) {
+                if (!channel.isOpen()) {
+                    throw new ClosedChannelException();
+                }
+                if (pendingWrites.isEmpty()) {
+                    channel.write(frame);
+                }
+                if (frame.hasRemaining()) {
+                    if (pendingBytes > 0 && pendingBytes + frame.remaining() > MAX_PENDING_BYTES) {
+                        overflow = pendingBytes;
+                    } else {
+                        pendingWrites.add(frame);
+                        pendingBytes += frame.remaining();
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        selector.wakeup();
+                    }
+                }
+            }
+            if (overflow > 0) {
+                metrics.increment("transport.binary.overflows");
+                close();
+                throw new IOException("Client " + clientId + " stopped reading with " + overflow + " bytes queued");
+            }
+            metrics.add("transport.binary.bytesOut", size);
+        }
+
+        /**
+         * Writes queued frames until the socket buffer is full again.
+         * @throws IOException if the connection is closed.
+         */
+        synchronized void flush() throws IOException {
+            while (!pendingWrites.isEmpty()) {
+                ByteBuffer frame = pendingWrites.peek();
+                pendingBytes -= channel.write(frame);
+                if (frame.hasRemaining()) {
+                    return;
+                }
+                pendingWrites.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        /**
+         * Closes the connection and fails its pings. Callback proxies of the client stay registered so they work again
+         * after it reconnects.
+         */
+        void close() {
+            connections.remove(this);
+            if (clientId != null) {
+                clients.remove(clientId, this);
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            for (CompletableFuture<Void> ping : pings.values()) {
+                ping.completeExceptionally(new ClosedChannelException());
+            }
+        }
+
+        @Override
+        public boolean writeReference(DataOutputStream out, Object value) throws IOException {
+            if (value == board) {
+                out.writeByte(WireProtocol.BOARD);
+                return true;
+            }
+            if (value instanceof IClient && Proxy.isProxyClass(value.getClass())
+                    && Proxy.getInvocationHandler(value) instanceof CallbackHandler) {
+                out.writeByte(WireProtocol.CLIENT_HANDLE);
+                out.writeLong(((CallbackHandler) Proxy.getInvocationHandler(value)).handle);
+                return true;
+            }
+            if (value instanceof RemoteServer) {
+                // Exported objects such as other servers travel as their RMI stubs
+                WireProtocol.writeValue(out, RemoteObject.toStub((Remote) value), this);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public Object readReference(byte tag, DataInputStream in) throws IOException {
+            switch (tag) {
+                case WireProtocol.CLIENT_OBJECT:
+                    if (clientId == null) {
+                        throw new StreamCorruptedException("Client object sent before HELLO");
+                    }
+                    return callback(clientId, in.readLong());
+                case WireProtocol.CLIENT_HANDLE: {
+                    IClient client = handles.get(in.readLong());
+                    if (client == null) {
+                        throw new StreamCorruptedException("Unknown client handle");
+                    }
+                    return client;
+                }
+                case WireProtocol.BOARD:
+                    return board;
+                default:
+                    throw new StreamCorruptedException("Unknown value tag " + tag);
+            }
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package server;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import remote.Operation;
+import remote.PixelFill;
+import remote.RemoteWhiteboard.Shape;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * BoardHistory keeps every drawing operation of a whiteboard, indexed by sequence number, so the board can be shown
+ * as it was at any point. Every so many operations, and whenever the board was cleared or an image loaded, it takes
+ * a keyframe: a compressed copy of the board as drawn so far. Rendering the board at a sequence number starts from
+ * the nearest keyframe at or before it and replays the operations after it, so it never replays more than the
+ * keyframe interval however long the session is.
+ * The history starts again from the board composited from its layers whenever a clear or an image changes a layer,
+ * and whenever a shape is added under a layer that has something on it, since drawing it over the board would show
+ * it over that layer. Every other shape is drawn over the board in the order it was added.
+ * Strokes are replayed as they were drawn, before any simplification, the same way the preview pyramid shows them.
+ * record and reset must be called while holding the lock of the board that owns the history, renderAt may be
+ * called from any thread.
+ */
+public class BoardHistory {
+
+    private final int width;
+    private final int height;
+    private final int keyframeInterval;
+    private final ServerMetrics metrics;
+    // Compresses keyframes off the board lock
+    private final ExecutorService encoder = Executors.newSingleThreadExecutor(ServerThreads.factory("history-encoder"));
+
+    // The board as drawn up to the last recorded operation
+    private final BufferedImage board;
+    private final Graphics2D graphics;
+
+    // Guarded by this: the shape operations in sequence order and the keyframes in sequence order
+    private final List<Operation> operations = new ArrayList<>();
+    private final List<Keyframe> keyframes = new ArrayList<>();
+    private int sinceKeyframe;
+
+    /**
+     * Constructs a BoardHistory of an empty board.
+     * @param width the width of the board.
+     * @param height the height of the board.
+     * @param keyframeInterval the number of operations between keyframes.
+     * @param metrics the metrics history statistics are reported to.
+     */
+    public BoardHistory(int width, int height, int keyframeInterval, ServerMetrics metrics) {
+        this.width = width;
+        this.height = height;
+        this.keyframeInterval = Math.max(1, keyframeInterval);
+        this.metrics = metrics;
+        board = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        graphics = board.createGraphics();
+        metrics.gauge("history.operations", this::operationCount);
+        metrics.gauge("history.keyframeBytes", this::keyframeBytes);
+        reset(0, null, List.of());
+    }
+
+    /**
+     * Forgets the history and starts again from a board, after a snapshot of it was installed.
+     * @param seq the sequence number the board reflects.
+     * @param background the canvas image, or null for a blank canvas.
+     * @param shapes the shapes drawn over the canvas image.
+     */
+    public void reset(long seq, BufferedImage background, List<Shape> shapes) {
+        synchronized (this) {
+            operations.clear();
+            keyframes.clear();
+        }
+        repaint(background, shapes);
+        keyframe(seq);
+    }
+
+    /**
+     * Records an operation applied to the board. Operations that do not change the drawing are ignored.
+     * @param operation the operation, stamped with its sequence number.
+     * @param board the board after the operation composited from its layers, for a clear or load image operation
+     *        and for a shape added under a layer that has something on it, null otherwise.
+     */
+    public void record(Operation operation, BufferedImage board) {
+        switch (operation.getType()) {
+            case ADD_SHAPE:
+                synchronized (this) {
+                    operations.add(operation);
+                }
+                if (board != null) {
+                    // Replaying the shape over the board would put it over the layers above, so it starts a keyframe
+                    repaint(board, List.of());
+                    keyframe(operation.getSeq());
+                    metrics.increment("history.underKeyframes");
+                    break;
+                }
+                if (!PixelFill.draw(operation.getShape(), this.board)) {
+                    operation.getShape().draw(graphics);
+                }
+                if (++sinceKeyframe >= keyframeInterval) {
+                    keyframe(operation.getSeq());
+                }
+                break;
+            case CLEAR:
+            case LOAD_IMAGE:
+                repaint(board, List.of());
+                keyframe(operation.getSeq());
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Renders the board as it was after an operation.
+     * @param seq the sequence number of the operation.
+     * @return the board, on white, and the sequence number of the last drawing operation at or before seq,
+     *         or null if seq is before the start of the history.
+     */
+    public Rendering renderAt(long seq) {
+        long start = System.nanoTime();
+        Keyframe keyframe;
+        List<Operation> replay;
+        synchronized (this) {
+            int index = lastAtOrBefore(keyframes, seq);
+            if (index < 0) {
+                return null;
+            }
+            keyframe = keyframes.get(index);
+            int from = firstAfter(keyframe.seq);
+            int to = firstAfter(seq);
+            replay = new ArrayList<>(operations.subList(from, Math.max(from, to)));
+        }
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        keyframe.restore(pixels);
+        Graphics2D g = image.createGraphics();
+        for (Operation operation : replay) {
+            if (!PixelFill.draw(operation.getShape(), image)) {
+                operation.getShape().draw(g);
+            }
+        }
+        g.dispose();
+
+        metrics.increment("history.renders");
+        metrics.add("history.replayed", replay.size());
+        metrics.add("history.renderMillis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return new Rendering(replay.isEmpty() ? keyframe.seq : replay.get(replay.size() - 1).getSeq(), image);
+    }
+
+    /**
+     * Returns the sequence number the history starts at.
+     * @return the sequence number of the first keyframe.
+     */
+    public synchronized long getStartSeq() {
+        return keyframes.get(0).seq;
+    }
+
+    /**
+     * Stops the keyframe encoder.
+     */
+    public void shutdown() {
+        encoder.shutdown();
+    }
+
+    /**
+     * Draws the board from scratch.
+     */
+    private void repaint(BufferedImage background, List<Shape> shapes) {
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, width, height);
+        if (background != null) {
+            graphics.drawImage(background, 0, 0, null);
+        }
+        for (Shape shape : shapes) {
+            if (!PixelFill.draw(shape, board)) {
+                shape.draw(graphics);
+            }
+        }
+    }
+
+    /**
+     * Takes a keyframe of the board. The pixels are copied here and compressed on the encoder.
+     */
+    private void keyframe(long seq) {
+        int[] pixels = ((DataBufferInt) board.getRaster().getDataBuffer()).getData().clone();
+        Keyframe keyframe = new Keyframe(seq, CompletableFuture.supplyAsync(() -> compress(pixels), encoder));
+        synchronized (this) {
+            keyframes.add(keyframe);
+        }
+        sinceKeyframe = 0;
+        metrics.increment("history.keyframes");
+    }
+
+    private static byte[] compress(int[] pixels) {
+        ByteBuffer bytes = ByteBuffer.allocate(pixels.length * 4);
+        bytes.asIntBuffer().put(pixels);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(bytes.array());
+            deflater.finish();
+            byte[] buffer = new byte[64 * 1024];
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private synchronized int operationCount() {
+        return operations.size();
+    }
+
+    private synchronized long keyframeBytes() {
+        long total = 0;
+        for (Keyframe keyframe : keyframes) {
+            byte[] compressed = keyframe.compressed.getNow(null);
+            total += compressed == null ? 0 : compressed.length;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the index of the last keyframe at or before a sequence number, or -1 if there is none.
+     */
+    private static int lastAtOrBefore(List<Keyframe> keyframes, long seq) {
+        int low = 0;
+        int high = keyframes.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (keyframes.get(mid).seq <= seq) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Returns the index of the first recorded operation after a sequence number. Must hold the lock of this.
+     */
+    private int firstAfter(long seq) {
+        int low = 0;
+        int high = operations.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (operations.get(mid).getSeq() <= seq) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * A compressed copy of the board after an operation.
+     */
+    private static class Keyframe {
+        final long seq;
+        final CompletableFuture<byte[]> compressed;
+
+        Keyframe(long seq, CompletableFuture<byte[]> compressed) {
+            this.seq = seq;
+            this.compressed = compressed;
+        }
+
+        /**
+         * Decompresses the keyframe into the pixels of an image of the board's size.
+         */
+        void restore(int[] pixels) {
+            byte[] bytes = new byte[pixels.length * 4];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed.join());
+                inflater.inflate(bytes);
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("Corrupt keyframe", e);
+            } finally {
+                inflater.end();
+            }
+            ByteBuffer.wrap(bytes).asIntBuffer().get(pixels);
+        }
+    }
+
+    /**
+     * The board rendered at a point in its history.
+     */
+    public static class Rendering {
+        /** The sequence number of the last operation shown. */
+        public final long seq;
+        /** The board on white. */
+        public final BufferedImage image;
+
+        Rendering(long seq, BufferedImage image) {
+            this.seq = seq;
+            this.image = image;
+        }
+    }
+}
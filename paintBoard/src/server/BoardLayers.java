@@ -0,0 +1,458 @@
+package server;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import remote.Layer;
+import remote.LayerState;
+import remote.RemoteWhiteboard.Shape;
+import remote.ShapeCodec;
+import remote.TileGrid;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * BoardLayers holds the layers of a whiteboard. Each layer keeps its own image, shapes and version, the sequence
+ * number of the last operation that changed how it looks, so clearing a layer or loading a background leaves the
+ * other layers and their versions alone and clients only fetch the layers that moved on.
+ * Each layer also keeps a cached raster, drawn on demand: shapes added since the last use are drawn onto it, and it
+ * is only drawn from scratch after the layer was cleared or given a new image. Shapes replaced by one that looks the
+ * same are left on the raster as they were drawn. The board is composited from the rasters whenever a flat image of
+ * it is needed. The rasters are kept on or off the heap
+ * as the storage given says.
+ * The image of a layer is split into tiles the first time a client asks for it by tiles, and the encoded tiles are
+ * kept with the layer until it is given another image. A client on a weak link that fell far behind asks for whole
+ * layers flattened into tiles of their rasters instead, which are kept until the layer changes again.
+ * The encoded size of the shapes is kept up to date so the board can be held to its quota. Compacting bakes the
+ * shapes of every layer into its image, which looks the same and so keeps the versions clients have.
+ * All methods must be called while holding the lock of the board that owns the layers.
+ */
+public class BoardLayers {
+
+    private final int width;
+    private final int height;
+    private final LayerRaster.Storage storage;
+    private final ServerMetrics metrics;
+    private final Map<Layer, LayerData> layers = new EnumMap<>(Layer.class);
+    // Counts the bytes of the shapes encoded into it, to size them
+    private final CountingStream counter = new CountingStream();
+    private final DataOutputStream sizer = new DataOutputStream(counter);
+
+    /**
+     * Constructs the empty layers of a board.
+     * @param width the width of the board.
+     * @param height the height of the board.
+     * @param storage where the pixels of the rasters are kept.
+     * @param metrics the metrics raster statistics are reported to.
+     */
+    public BoardLayers(int width, int height, LayerRaster.Storage storage, ServerMetrics metrics) {
+        this.width = width;
+        this.height = height;
+        this.storage = storage;
+        this.metrics = metrics;
+        metrics.gauge("layers.offHeapBytes", OffHeapRaster::allocatedBytes);
+        for (Layer layer : Layer.values()) {
+            layers.put(layer, new LayerData());
+        }
+    }
+
+    /**
+     * Adds a shape on top of a layer.
+     * @param layer the layer.
+     * @param shape the shape.
+     * @param seq the sequence number of the operation adding it.
+     */
+    public void add(Layer layer, Shape shape, long seq) {
+        LayerData data = layers.get(layer);
+        data.shapes.add(shape);
+        data.version = seq;
+        data.shapeBytes += sizeOf(shape);
+    }
+
+    /**
+     * Removes the shapes with the given sequence numbers and inserts a shape where the first of them was, in the
+     * layer that holds them. The layer looks the same afterwards, so its version does not change and its raster
+     * keeps the removed shapes as they were drawn rather than being drawn again from every shape.
+     * @param replaced the sequence numbers of the shapes to remove.
+     * @param shape the shape to insert.
+     */
+    public void replace(long[] replaced, Shape shape) {
+        Set<Long> seqs = new HashSet<>();
+        for (long seq : replaced) {
+            seqs.add(seq);
+        }
+        for (LayerData data : layers.values()) {
+            int index = -1;
+            for (int i = 0; i < data.shapes.size(); i++) {
+                if (seqs.contains(data.shapes.get(i).getSeq())) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index >= 0) {
+                int removedDrawn = 0;
+                boolean allDrawn = true;
+                for (int i = data.shapes.size() - 1; i >= index; i--) {
+                    Shape existing = data.shapes.get(i);
+                    if (seqs.contains(existing.getSeq())) {
+                        data.shapeBytes -= sizeOf(existing);
+                        data.shapes.remove(i);
+                        if (i < data.rastered) {
+                            removedDrawn++;
+                        } else {
+                            allDrawn = false;
+                        }
+                    }
+                }
+                data.shapes.add(index, shape);
+                data.shapeBytes += sizeOf(shape);
+                if (data.rasterValid && removedDrawn > 0) {
+                    if (!allDrawn) {
+                        // Part of the stroke was never drawn, the shape replacing it is drawn over the part that was
+                        data.raster.draw(List.of(shape));
+                    }
+                    data.rastered += 1 - removedDrawn;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Clears a layer, or every layer.
+     * @param layer the layer, or null for every layer.
+     * @param seq the sequence number of the clear operation.
+     */
+    public void clear(Layer layer, long seq) {
+        for (Map.Entry<Layer, LayerData> entry : layers.entrySet()) {
+            if (layer == null || layer == entry.getKey()) {
+                entry.getValue().reset(null, seq);
+            }
+        }
+    }
+
+    /**
+     * Bakes the shapes of every layer into its image, so they no longer take up memory as shapes. The layers look
+     * the same, so their versions do not change, and their rasters are already up to date.
+     * @return the bytes of shapes released.
+     */
+    public long compact() {
+        long released = getShapeBytes();
+        for (LayerData data : layers.values()) {
+            if (!data.shapes.isEmpty()) {
+                data.compact();
+            }
+        }
+        return released;
+    }
+
+    /**
+     * Returns the encoded size of the shapes on the layers.
+     * @return the size in bytes.
+     */
+    public long getShapeBytes() {
+        long bytes = 0;
+        for (LayerData data : layers.values()) {
+            bytes += data.shapeBytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns whether the board is its bottom image with every shape drawn over it, so it can be described by that
+     * image and the shape list. It is not once an image lies over shapes or another image, as after compacting.
+     * @return true if no image lies above anything else.
+     */
+    public boolean hasSingleBackground() {
+        boolean below = false;
+        for (LayerData data : layers.values()) {
+            if (data.image != null && below) {
+                return false;
+            }
+            below |= data.image != null || !data.shapes.isEmpty();
+        }
+        return true;
+    }
+
+    /**
+     * Replaces a layer with an image, removing its shapes.
+     * @param layer the layer.
+     * @param image the image.
+     * @param seq the sequence number of the operation loading it.
+     */
+    public void setImage(Layer layer, BufferedImage image, long seq) {
+        layers.get(layer).reset(new SerializableBufferedImage(image), seq);
+    }
+
+    /**
+     * Returns whether nothing is drawn on the layers above a layer, so a shape added to it can be drawn over
+     * a flat image of the board.
+     * @param layer the layer.
+     * @return true if the layers above are empty.
+     */
+    public boolean isTop(Layer layer) {
+        for (Layer above : Layer.values()) {
+            LayerData data = layers.get(above);
+            if (above.compareTo(layer) > 0 && (data.image != null || !data.shapes.isEmpty())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the image at the bottom of the board.
+     * @return the image, or null if no layer has one.
+     */
+    public SerializableBufferedImage getImage() {
+        for (LayerData data : layers.values()) {
+            if (data.image != null) {
+                return data.image;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the shapes of every layer in the order they are drawn.
+     * @return a copy of the shapes.
+     */
+    public List<Shape> getShapes() {
+        List<Shape> shapes = new ArrayList<>();
+        for (LayerData data : layers.values()) {
+            shapes.addAll(data.shapes);
+        }
+        return shapes;
+    }
+
+    /**
+     * Returns copies of the layers that changed since the versions a client has.
+     * @param versions the version of each layer the client has, or null to return every layer.
+     * @param tiled true to describe the images of the layers by their tiles instead of including them.
+     * @return the layers that changed, from the bottom up.
+     */
+    public List<LayerState> getStates(Map<Layer, Long> versions, boolean tiled) {
+        List<LayerState> states = new ArrayList<>();
+        for (Map.Entry<Layer, LayerData> entry : layers.entrySet()) {
+            LayerData data = entry.getValue();
+            Long known = versions == null ? null : versions.get(entry.getKey());
+            if (known == null || known != data.version) {
+                List<Shape> shapes = new ArrayList<>(data.shapes);
+                if (tiled && data.image != null) {
+                    states.add(new LayerState(entry.getKey(), data.version, null, shapes, data.tiles()));
+                } else {
+                    states.add(new LayerState(entry.getKey(), data.version, data.image, shapes));
+                }
+            }
+        }
+        return states;
+    }
+
+    /**
+     * Returns copies of the layers that changed since the versions given, each flattened into the tiles of its
+     * raster with no shapes.
+     * @param versions the version of each layer the caller has, or null for every layer.
+     * @return the layers that changed.
+     */
+    public List<LayerState> getRasterStates(Map<Layer, Long> versions) {
+        List<LayerState> states = new ArrayList<>();
+        for (Map.Entry<Layer, LayerData> entry : layers.entrySet()) {
+            LayerData data = entry.getValue();
+            Long known = versions == null ? null : versions.get(entry.getKey());
+            if (known == null || known != data.version) {
+                states.add(new LayerState(entry.getKey(), data.version, null, new ArrayList<>(), data.rasterTiles()));
+            }
+        }
+        return states;
+    }
+
+    /**
+     * Returns an encoded tile of the image of a layer.
+     * @param hash the hash of the tile.
+     * @return the tile as PNG, or null if no layer has it, which happens when an image was replaced or a layer
+     *         changed after the client was sent its tiles.
+     */
+    public byte[] getTile(String hash) {
+        for (LayerData data : layers.values()) {
+            byte[] tile = data.tileBytes.get(hash);
+            if (tile == null) {
+                tile = data.rasterTileBytes.get(hash);
+            }
+            if (tile != null) {
+                return tile;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replaces the layers with copies, after a snapshot of the board was installed.
+     * @param states the layers.
+     */
+    public void restore(List<LayerState> states) {
+        for (LayerState state : states) {
+            LayerData data = layers.get(state.getLayer());
+            data.reset(state.getImage(), state.getVersion());
+            data.shapes.addAll(state.getShapes());
+            for (Shape shape : state.getShapes()) {
+                data.shapeBytes += sizeOf(shape);
+            }
+        }
+    }
+
+    /**
+     * Returns the encoded size of a shape.
+     */
+    private int sizeOf(Shape shape) {
+        counter.count = 0;
+        try {
+            ShapeCodec.writeShape(sizer, shape);
+        } catch (IOException e) {
+            // Never thrown by the counting stream
+            throw new UncheckedIOException(e);
+        }
+        return counter.count;
+    }
+
+    /**
+     * Composites the board from the rasters of the layers, drawing the shapes added since their last use.
+     * @return a new image of the board, transparent where nothing is drawn.
+     */
+    public BufferedImage composite() {
+        BufferedImage board = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = board.createGraphics();
+        for (LayerData data : layers.values()) {
+            data.raster().drawOnto(g);
+        }
+        g.dispose();
+        return board;
+    }
+
+    /**
+     * An output stream that only counts the bytes written to it.
+     */
+    private static class CountingStream extends OutputStream {
+        int count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    /**
+     * The contents of one layer and its cached raster.
+     */
+    private class LayerData {
+        SerializableBufferedImage image;
+        final List<Shape> shapes = new ArrayList<>();
+        // The encoded size of the shapes
+        long shapeBytes;
+        // The encoded tiles of the image by hash, filled in with the grid
+        final Map<String, byte[]> tileBytes = new HashMap<>();
+        TileGrid tiles;
+        // The encoded tiles of the raster by hash and their grid, for the version they were split at
+        final Map<String, byte[]> rasterTileBytes = new HashMap<>();
+        TileGrid rasterTiles;
+        long rasterTilesVersion;
+        long version;
+        LayerRaster raster;
+        // The number of shapes already drawn on the raster, which only counts while the raster is valid
+        int rastered;
+        boolean rasterValid;
+
+        /**
+         * Empties the layer, leaving an image on it if one is given.
+         */
+        void reset(SerializableBufferedImage image, long seq) {
+            if (this.image != image) {
+                tiles = null;
+                tileBytes.clear();
+            }
+            this.image = image;
+            shapes.clear();
+            shapeBytes = 0;
+            version = seq;
+            rasterValid = false;
+        }
+
+        /**
+         * Returns the grid of tiles of the image, splitting the image the first time.
+         */
+        TileGrid tiles() {
+            if (tiles == null) {
+                tiles = TileGrid.split(image.getImage(), tileBytes);
+                metrics.add("tiles.split", tileBytes.size());
+            }
+            return tiles;
+        }
+
+        /**
+         * Replaces the image with the raster and drops the shapes. The raster keeps its pixels, which are the same.
+         */
+        void compact() {
+            BufferedImage flat = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = flat.createGraphics();
+            g.setComposite(AlphaComposite.Src);
+            raster().drawOnto(g);
+            g.dispose();
+            image = new SerializableBufferedImage(flat);
+            tiles = null;
+            tileBytes.clear();
+            shapes.clear();
+            shapeBytes = 0;
+            rastered = 0;
+        }
+
+        /**
+         * Returns the grid of tiles of the raster, splitting the raster again if the layer changed since.
+         */
+        TileGrid rasterTiles() {
+            if (rasterTiles == null || rasterTilesVersion != version) {
+                rasterTileBytes.clear();
+                rasterTiles = raster().split(rasterTileBytes);
+                rasterTilesVersion = version;
+                metrics.add("tiles.rasterSplit", rasterTileBytes.size());
+            }
+            return rasterTiles;
+        }
+
+        /**
+         * Returns the raster of the layer, bringing it up to date.
+         */
+        LayerRaster raster() {
+            if (raster == null) {
+                raster = LayerRaster.create(width, height, storage);
+            }
+            if (!rasterValid) {
+                raster.clear();
+                if (image != null) {
+                    raster.drawImage(image.getImage());
+                }
+                rastered = 0;
+                rasterValid = true;
+                metrics.increment("layers.rasterized");
+            }
+            raster.draw(shapes.subList(rastered, shapes.size()));
+            metrics.add("layers.shapesRastered", shapes.size() - rastered);
+            rastered = shapes.size();
+            return raster;
+        }
+    }
+}
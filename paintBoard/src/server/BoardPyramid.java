@@ -0,0 +1,169 @@
+package server;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.List;
+
+import remote.PixelFill;
+import remote.RemoteWhiteboard.Shape;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * BoardPyramid keeps a rendering of the whole board, the canvas image with the shapes drawn over it on white, at
+ * full size and at 1/2, 1/4 and 1/8 of it. Shapes are drawn onto the full size level as they are added and the
+ * area they cover is remembered. The smaller levels are brought up to date only when one is asked for, and only
+ * over that area, each pixel averaging four pixels of the level above.
+ * All methods must be called while holding the lock of the board that owns the pyramid.
+ */
+public class BoardPyramid {
+
+    /** The number of levels, the full size image included. */
+    public static final int LEVELS = 4;
+
+    private final ServerMetrics metrics;
+    private final BufferedImage[] levels = new BufferedImage[LEVELS];
+    private final int[][] pixels = new int[LEVELS][];
+    private Graphics2D full;
+    // Area of the full size level drawn on since the smaller levels were last updated, null if none
+    private Rectangle dirty;
+
+    /**
+     * Constructs a BoardPyramid of an empty board.
+     * @param width the width of the board.
+     * @param height the height of the board.
+     * @param metrics the metrics update statistics are reported to.
+     */
+    public BoardPyramid(int width, int height, ServerMetrics metrics) {
+        this.metrics = metrics;
+        for (int level = 0; level < LEVELS; level++) {
+            levels[level] = new BufferedImage(Math.max(1, width >> level), Math.max(1, height >> level), BufferedImage.TYPE_INT_RGB);
+            pixels[level] = ((DataBufferInt) levels[level].getRaster().getDataBuffer()).getData();
+        }
+        reset(null, List.of());
+    }
+
+    /**
+     * Renders the board again from scratch, after it was cleared or an image was loaded.
+     * @param background the canvas image, or null for a blank canvas.
+     * @param shapes the shapes drawn over the canvas image.
+     */
+    public void reset(BufferedImage background, List<Shape> shapes) {
+        if (full != null) {
+            full.dispose();
+        }
+        full = levels[0].createGraphics();
+        full.setColor(Color.WHITE);
+        full.fillRect(0, 0, levels[0].getWidth(), levels[0].getHeight());
+        if (background != null) {
+            full.drawImage(background, 0, 0, null);
+        }
+        for (Shape shape : shapes) {
+            if (!PixelFill.draw(shape, levels[0])) {
+                shape.draw(full);
+            }
+        }
+        dirty = new Rectangle(0, 0, levels[0].getWidth(), levels[0].getHeight());
+    }
+
+    /**
+     * Draws a shape added to the board.
+     * @param shape the shape.
+     */
+    public void draw(Shape shape) {
+        if (!PixelFill.draw(shape, levels[0])) {
+            shape.draw(full);
+        }
+        Rectangle bounds = shape.getBounds().intersection(new Rectangle(0, 0, levels[0].getWidth(), levels[0].getHeight()));
+        if (bounds.isEmpty()) {
+            return;
+        }
+        if (dirty == null) {
+            dirty = bounds;
+        } else {
+            dirty.add(bounds);
+        }
+    }
+
+    /**
+     * Returns the level that best fits a size: the largest one no bigger than it, or the smallest if none is.
+     * @param maxWidth the largest width wanted.
+     * @param maxHeight the largest height wanted.
+     * @return the level, 0 for full size.
+     */
+    public int levelFor(int maxWidth, int maxHeight) {
+        for (int level = 0; level < LEVELS; level++) {
+            if (levels[level].getWidth() <= maxWidth && levels[level].getHeight() <= maxHeight) {
+                return level;
+            }
+        }
+        return LEVELS - 1;
+    }
+
+    /**
+     * Returns a copy of a level, brought up to date first.
+     * @param level the level, 0 for full size.
+     * @return the image of the level, safe to use after the board lock is released.
+     */
+    public BufferedImage copyLevel(int level) {
+        update();
+        BufferedImage source = levels[level];
+        BufferedImage copy = new BufferedImage(source.getWidth(), source.getHeight(), BufferedImage.TYPE_INT_RGB);
+        System.arraycopy(pixels[level], 0, ((DataBufferInt) copy.getRaster().getDataBuffer()).getData(), 0, pixels[level].length);
+        return copy;
+    }
+
+    /**
+     * Brings the smaller levels up to date over the area drawn on since the last update.
+     */
+    private void update() {
+        if (dirty == null) {
+            return;
+        }
+        // Widen to whole blocks of the smallest level, so each level's area maps exactly onto the next one's
+        int block = 1 << (LEVELS - 1);
+        int x0 = dirty.x / block * block;
+        int y0 = dirty.y / block * block;
+        int x1 = dirty.x + dirty.width;
+        int y1 = dirty.y + dirty.height;
+        for (int level = 1; level < LEVELS; level++) {
+            x0 >>= 1;
+            y0 >>= 1;
+            x1 = (x1 + 1) >> 1;
+            y1 = (y1 + 1) >> 1;
+            downsample(level, x0, y0, Math.min(x1, levels[level].getWidth()), Math.min(y1, levels[level].getHeight()));
+        }
+        dirty = null;
+    }
+
+    /**
+     * Recomputes an area of a level from the level above, each pixel the average of the four above it.
+     */
+    private void downsample(int level, int x0, int y0, int x1, int y1) {
+        int[] source = pixels[level - 1];
+        int[] target = pixels[level];
+        int sourceWidth = levels[level - 1].getWidth();
+        int sourceHeight = levels[level - 1].getHeight();
+        int targetWidth = levels[level].getWidth();
+        for (int y = y0; y < y1; y++) {
+            int row = 2 * y * sourceWidth;
+            // An odd last row or column of the level above is averaged with itself
+            int nextRow = 2 * y + 1 < sourceHeight ? row + sourceWidth : row;
+            for (int x = x0; x < x1; x++) {
+                int left = 2 * x;
+                int right = left + 1 < sourceWidth ? left + 1 : left;
+                target[y * targetWidth + x] = average(source[row + left], source[row + right], source[nextRow + left], source[nextRow + right]);
+            }
+        }
+        metrics.add("pyramid.pixelsUpdated", (long) (x1 - x0) * (y1 - y0));
+    }
+
+    private static int average(int a, int b, int c, int d) {
+        int red = (((a >> 16) & 0xff) + ((b >> 16) & 0xff) + ((c >> 16) & 0xff) + ((d >> 16) & 0xff) + 2) >> 2;
+        int green = (((a >> 8) & 0xff) + ((b >> 8) & 0xff) + ((c >> 8) & 0xff) + ((d >> 8) & 0xff) + 2) >> 2;
+        int blue = ((a & 0xff) + (b & 0xff) + (c & 0xff) + (d & 0xff) + 2) >> 2;
+        return (red << 16) | (green << 8) | blue;
+    }
+}
@@ -0,0 +1,125 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+
+import remote.QuotaExceededException;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * BoardQuotas holds the capacity limits of a board and of the server it runs on, so one runaway board cannot take
+ * the heap of every board in the process. A board admits at most -Dwhiteboard.maxUsers users (default 32). Its
+ * shapes are baked into the images of their layers once they take more than -Dwhiteboard.maxShapeMB encoded
+ * (default 16), and its oldest chat messages are dropped once the history takes more than -Dwhiteboard.maxChatKB
+ * (default 256). The heap budget, -Dwhiteboard.heapBudgetPercent of the maximum heap (default 85), is shared by
+ * every board in the process: while the heap live after the last collection is over it, boards compact and refuse
+ * joins and new shapes. The rate of operations per user is limited separately, by -Dwhiteboard.userRateLimit.
+ */
+public class BoardQuotas {
+
+    private static final int DEFAULT_MAX_USERS = 32;
+    private static final long DEFAULT_MAX_SHAPE_MB = 16;
+    private static final long DEFAULT_MAX_CHAT_KB = 256;
+    private static final int DEFAULT_HEAP_BUDGET_PERCENT = 85;
+
+    private static final long HEAP_BUDGET_BYTES = Runtime.getRuntime().maxMemory() / 100
+            * Math.max(1, Math.min(100, Integer.getInteger("whiteboard.heapBudgetPercent", DEFAULT_HEAP_BUDGET_PERCENT)));
+
+    private final int maxUsers;
+    private final long maxShapeBytes;
+    private final long maxChatBytes;
+    private final ServerMetrics metrics;
+
+    /**
+     * Constructs the quotas of a board from the system properties.
+     * @param metrics the metrics refusals are reported to.
+     */
+    public BoardQuotas(ServerMetrics metrics) {
+        this(Integer.getInteger("whiteboard.maxUsers", DEFAULT_MAX_USERS),
+                Long.getLong("whiteboard.maxShapeMB", DEFAULT_MAX_SHAPE_MB) * 1024 * 1024,
+                Long.getLong("whiteboard.maxChatKB", DEFAULT_MAX_CHAT_KB) * 1024, metrics);
+    }
+
+    /**
+     * Constructs the quotas of a board.
+     * @param maxUsers the most users the board admits.
+     * @param maxShapeBytes the most bytes of encoded shapes before the board is compacted.
+     * @param maxChatBytes the most bytes of chat messages kept.
+     * @param metrics the metrics refusals are reported to.
+     */
+    public BoardQuotas(int maxUsers, long maxShapeBytes, long maxChatBytes, ServerMetrics metrics) {
+        this.maxUsers = maxUsers;
+        this.maxShapeBytes = maxShapeBytes;
+        this.maxChatBytes = maxChatBytes;
+        this.metrics = metrics;
+        metrics.gauge("quota.liveHeapMB", () -> liveHeapBytes() / (1024 * 1024));
+        metrics.gauge("quota.heapBudgetMB", () -> HEAP_BUDGET_BYTES / (1024 * 1024));
+    }
+
+    /**
+     * Refuses a join if the board is full or the server is short of heap.
+     * @param users the number of users on the board.
+     * @throws QuotaExceededException if the user cannot be admitted.
+     */
+    public void checkJoin(int users) throws QuotaExceededException {
+        if (users >= maxUsers) {
+            metrics.increment("quota.refused.users");
+            throw new QuotaExceededException("users", "The whiteboard is full, it admits at most " + maxUsers + " users");
+        }
+        checkHeap();
+    }
+
+    /**
+     * Refuses an operation that would add to the board while the server is short of heap.
+     * @throws QuotaExceededException if the server is over its heap budget.
+     */
+    public void checkHeap() throws QuotaExceededException {
+        if (isHeapExceeded()) {
+            metrics.increment("quota.refused.heap");
+            throw new QuotaExceededException("heap", "The server is out of memory for new drawings and users, try again later");
+        }
+    }
+
+    /**
+     * Returns whether the shapes of a board take more than its quota.
+     * @param shapeBytes the encoded size of the shapes.
+     * @return true if the board should be compacted.
+     */
+    public boolean isShapeQuotaExceeded(long shapeBytes) {
+        return shapeBytes > maxShapeBytes;
+    }
+
+    /**
+     * Returns the most bytes of chat messages a board keeps.
+     * @return the size in bytes.
+     */
+    public long getMaxChatBytes() {
+        return maxChatBytes;
+    }
+
+    /**
+     * Returns whether the heap live after the last collection is over the budget of the server.
+     * @return true if the server is short of heap.
+     */
+    public static boolean isHeapExceeded() {
+        return liveHeapBytes() > HEAP_BUDGET_BYTES;
+    }
+
+    /**
+     * Returns the heap in use after the last collection of each heap pool, garbage left since then not counted.
+     * A pool that cannot tell its usage after collection counts as it is.
+     * @return the size in bytes.
+     */
+    public static long liveHeapBytes() {
+        long live = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                MemoryUsage usage = pool.isCollectionUsageThresholdSupported() ? pool.getCollectionUsage() : null;
+                live += usage != null ? usage.getUsed() : pool.getUsage().getUsed();
+            }
+        }
+        return live;
+    }
+}
@@ -0,0 +1,233 @@
+package server;
+
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import remote.IClient;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * BroadcastScheduler coalesces the drawing updates sent to clients. Marking a client dirty schedules at most one
+ * refresh per tick of its frame interval, however many shapes arrive in between, so the cost of fan-out follows the
+ * frame rate rather than the rate of input events. Each client's interval starts at the configured frame rate and
+ * stretches to twice its average callback latency, so a slow client is refreshed less often without holding back the
+ * others. The delivery plan of a client on a weak link sets a longer shortest interval still. Clients whose circuit
+ * breaker is open in the {@link ClientMonitor} are skipped, and every outcome is reported to it; a refresh that
+ * closes a breaker is passed on to the {@link RecoveryListener}. Only clients added to the scheduler are refreshed,
+ * so a late update for a client that left does not bring it back. The scheduler only keeps time; refreshes are sent
+ * from the delivery executor, never while the board lock is held.
+ */
+public class BroadcastScheduler {
+
+    /**
+     * Brings a client up to date after its breaker closes.
+     */
+    public interface RecoveryListener {
+        /**
+         * Called on the delivery executor when a refresh reached a client whose breaker was open, so it may have
+         * missed other broadcasts.
+         * @param username the username of the client.
+         * @param client the client.
+         */
+        void recovered(String username, IClient client);
+    }
+
+    // Weight of the newest sample in the callback latency average
+    private static final double LATENCY_WEIGHT = 0.2;
+    // A client is never refreshed less often than this while it has pending updates
+    private static final long MAX_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final ScheduledExecutorService executor;
+    private final Executor deliveryExecutor;
+    private final ServerMetrics metrics;
+    private final ClientMonitor monitor;
+    private final RecoveryListener recoveryListener;
+    private final long baseIntervalNanos;
+    private final Map<String, ClientFlusher> flushers = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a BroadcastScheduler.
+     * @param executor the executor timing the refreshes.
+     * @param deliveryExecutor the executor refreshes are sent from.
+     * @param metrics the metrics delivery statistics are reported to.
+     * @param monitor the monitor deciding which clients are reachable.
+     * @param recoveryListener the listener bringing clients up to date when their breaker closes.
+     * @param maxFrameRate the highest number of refreshes per second sent to one client.
+     */
+    public BroadcastScheduler(ScheduledExecutorService executor, Executor deliveryExecutor, ServerMetrics metrics,
+            ClientMonitor monitor, RecoveryListener recoveryListener, int maxFrameRate) {
+        this.executor = executor;
+        this.deliveryExecutor = deliveryExecutor;
+        this.metrics = metrics;
+        this.monitor = monitor;
+        this.recoveryListener = recoveryListener;
+        this.baseIntervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, maxFrameRate);
+        metrics.gauge("broadcast.paint.slowestIntervalMillis", () -> {
+            long slowest = 0;
+            for (ClientFlusher flusher : flushers.values()) {
+                slowest = Math.max(slowest, flusher.getInterval());
+            }
+            return TimeUnit.NANOSECONDS.toMillis(slowest);
+        });
+    }
+
+    /**
+     * Starts refreshing a client that joined the whiteboard. A client that is already known keeps its state.
+     * @param username the username of the client.
+     */
+    public void add(String username) {
+        flushers.computeIfAbsent(username, ClientFlusher::new);
+    }
+
+    /**
+     * Records that a client's paint panel is out of date and schedules a refresh if none is pending. Clients that
+     * were not added, or have been removed, are ignored.
+     * @param username the username of the client.
+     * @param client the client to refresh.
+     * @param seq the sequence number of the latest operation on the board.
+     */
+    public void markDirty(String username, IClient client, long seq) {
+        ClientFlusher flusher = flushers.get(username);
+        if (flusher == null) {
+            metrics.increment("broadcast.paint.unknown");
+            return;
+        }
+        metrics.increment("broadcast.paint.requested");
+        flusher.markDirty(client, seq);
+    }
+
+    /**
+     * Sets the shortest interval between two refreshes of a client, on top of the frame rate and its latency.
+     * Ignored for a client that is not being refreshed.
+     * @param username the username of the client.
+     * @param minIntervalNanos the interval in nanoseconds, 0 for none.
+     */
+    public void setMinInterval(String username, long minIntervalNanos) {
+        flushers.computeIfPresent(username, (name, flusher) -> {
+            flusher.setMinInterval(minIntervalNanos);
+            return flusher;
+        });
+    }
+
+    /**
+     * Stops refreshing a client that left the whiteboard.
+     * @param username the username of the client.
+     */
+    public void remove(String username) {
+        ClientFlusher flusher = flushers.remove(username);
+        if (flusher != null) {
+            flusher.cancel();
+        }
+    }
+
+    /**
+     * The refresh state of one client.
+     */
+    private class ClientFlusher {
+        private final String username;
+        private IClient client;
+        private long seq;
+        private boolean dirty;
+        private boolean scheduled;
+        private boolean cancelled;
+        private long lastDelivery = System.nanoTime() - MAX_INTERVAL_NANOS;
+        private double latencyNanos;
+        private long minInterval;
+        private volatile long interval = baseIntervalNanos;
+
+        ClientFlusher(String username) {
+            this.username = username;
+        }
+
+        synchronized void markDirty(IClient client, long seq) {
+            this.client = client;
+            this.seq = Math.max(this.seq, seq);
+            dirty = true;
+            if (!scheduled && !cancelled) {
+                scheduled = true;
+                scheduleNext();
+            }
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+        }
+
+        synchronized void setMinInterval(long minInterval) {
+            this.minInterval = minInterval;
+            updateInterval();
+        }
+
+        /**
+         * Recomputes the interval from the latency and the shortest interval set. Must hold the lock.
+         */
+        private void updateInterval() {
+            interval = Math.min(MAX_INTERVAL_NANOS, Math.max(Math.max(baseIntervalNanos, minInterval), (long) (2 * latencyNanos)));
+        }
+
+        long getInterval() {
+            return interval;
+        }
+
+        /**
+         * Schedules the next refresh one interval after the previous one. Must hold the lock.
+         */
+        private void scheduleNext() {
+            long delay = Math.max(0, lastDelivery + interval - System.nanoTime());
+            executor.schedule(() -> deliveryExecutor.execute(this::deliver), delay, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Sends one refresh covering every update marked since the previous one.
+         */
+        private void deliver() {
+            IClient target;
+            long targetSeq;
+            synchronized (this) {
+                if (cancelled || !monitor.allow(username)) {
+                    // A client with an open breaker is brought up to date when it answers again
+                    scheduled = false;
+                    dirty = false;
+                    return;
+                }
+                dirty = false;
+                target = client;
+                targetSeq = seq;
+                lastDelivery = System.nanoTime();
+            }
+
+            long start = System.nanoTime();
+            boolean delivered = true;
+            boolean recovered = false;
+            try {
+                target.refreshPaintPanel(targetSeq);
+                metrics.increment("broadcast.paint.delivered");
+                recovered = monitor.success(username);
+            } catch (RemoteException e) {
+                delivered = false;
+                metrics.increment("broadcast.paint.failed");
+                monitor.failure(username);
+                System.err.println("Paint refresh to " + username + " failed: " + e.getMessage());
+            }
+            long latency = delivered ? System.nanoTime() - start : MAX_INTERVAL_NANOS;
+            if (recovered) {
+                // The breaker opened while this refresh was under way, other broadcasts were skipped meanwhile
+                recoveryListener.recovered(username, target);
+            }
+
+            synchronized (this) {
+                latencyNanos = latencyNanos == 0 ? latency : latencyNanos + LATENCY_WEIGHT * (latency - latencyNanos);
+                updateInterval();
+                if (dirty && !cancelled) {
+                    scheduleNext();
+                } else {
+                    scheduled = false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * ClientMonitor tracks whether the clients of a whiteboard are still alive. Every callback that reaches a client
+ * renews its lease, and a client with no successful callback for the heartbeat interval is pinged. After a few
+ * failures in a row its circuit breaker opens and broadcasts skip it, so a dead client costs nothing but the
+ * heartbeat, which then acts as the probe that closes the breaker again. A client whose lease runs out is evicted.
+ */
+public class ClientMonitor {
+
+    // Consecutive failures that open the breaker of a client
+    private static final int FAILURE_THRESHOLD = 3;
+
+    private final long heartbeatMillis;
+    private final long leaseMillis;
+    private final ServerMetrics metrics;
+    private final Map<String, Health> clients = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a ClientMonitor.
+     * @param heartbeatMillis how long a client may go without a successful callback before it is pinged.
+     * @param leaseMillis how long a client may go without a successful callback before it is evicted.
+     * @param metrics the metrics breaker and eviction statistics are reported to.
+     */
+    public ClientMonitor(long heartbeatMillis, long leaseMillis, ServerMetrics metrics) {
+        this.heartbeatMillis = heartbeatMillis;
+        this.leaseMillis = leaseMillis;
+        this.metrics = metrics;
+        metrics.gauge("clients.breakersOpen", () -> clients.values().stream().filter(Health::isOpen).count());
+    }
+
+    /**
+     * Returns whether a callback may be sent to a client. Counts the callbacks skipped because its breaker is open.
+     * @param username the username of the client.
+     * @return false if the breaker of the client is open.
+     */
+    public boolean allow(String username) {
+        Health health = clients.get(username);
+        if (health != null && health.isOpen()) {
+            metrics.increment("clients.callbacksSkipped");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records a callback that reached a client, renewing its lease and closing its breaker.
+     * @param username the username of the client.
+     * @return true if the breaker was open, so the client missed broadcasts and must be brought up to date.
+     */
+    public boolean success(String username) {
+        return health(username).success();
+    }
+
+    /**
+     * Records a callback that failed to reach a client.
+     * @param username the username of the client.
+     */
+    public void failure(String username) {
+        if (health(username).failure()) {
+            metrics.increment("clients.breakerOpened");
+        }
+    }
+
+    /**
+     * Stops tracking a client that left the whiteboard.
+     * @param username the username of the client.
+     */
+    public void remove(String username) {
+        clients.remove(username);
+    }
+
+    /**
+     * Claims a heartbeat for a client that has had no successful callback for the heartbeat interval.
+     * At most one heartbeat per client is in flight, so a hung client does not tie up more threads.
+     * @param username the username of the client.
+     * @param now the current time in milliseconds.
+     * @return true if the caller should ping the client and report the outcome.
+     */
+    public boolean claimHeartbeat(String username, long now) {
+        return health(username).claimHeartbeat(now - heartbeatMillis);
+    }
+
+    /**
+     * Returns the clients whose lease ran out, and how long ago they were last heard from.
+     * @param now the current time in milliseconds.
+     * @return the usernames of the expired clients mapped to the milliseconds since their last successful callback.
+     */
+    public Map<String, Long> expired(long now) {
+        Map<String, Long> expired = new HashMap<>();
+        for (Map.Entry<String, Health> entry : clients.entrySet()) {
+            long silence = now - entry.getValue().getLastSuccess();
+            if (silence > leaseMillis) {
+                expired.put(entry.getKey(), silence);
+            }
+        }
+        return expired;
+    }
+
+    private Health health(String username) {
+        return clients.computeIfAbsent(username, k -> new Health());
+    }
+
+    /**
+     * The lease and breaker state of one client.
+     */
+    private static class Health {
+        private long lastSuccess = System.currentTimeMillis();
+        private int failures;
+        private boolean heartbeatInFlight;
+
+        synchronized boolean isOpen() {
+            return failures >= FAILURE_THRESHOLD;
+        }
+
+        synchronized long getLastSuccess() {
+            return lastSuccess;
+        }
+
+        synchronized boolean success() {
+            boolean wasOpen = isOpen();
+            lastSuccess = System.currentTimeMillis();
+            failures = 0;
+            heartbeatInFlight = false;
+            return wasOpen;
+        }
+
+        /**
+         * Returns true if this failure opened the breaker.
+         */
+        synchronized boolean failure() {
+            heartbeatInFlight = false;
+            return ++failures == FAILURE_THRESHOLD;
+        }
+
+        synchronized boolean claimHeartbeat(long silentSince) {
+            if (heartbeatInFlight || lastSuccess > silentSince) {
+                return false;
+            }
+            heartbeatInFlight = true;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package server;
+
+import java.io.Serializable;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * ClientSession is the server-side record of an admitted user. Its token lets the user's client
+ * resume after a disconnection without asking the manager for permission again.
+ */
+public class ClientSession implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String token;
+    private final String username;
+    private volatile long lastSeen;
+
+    /**
+     * Constructs a ClientSession.
+     * @param token the session token.
+     * @param username the username of the user.
+     */
+    public ClientSession(String token, String username) {
+        this.token = token;
+        this.username = username;
+        this.lastSeen = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the session token.
+     * @return the token.
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Returns the username of the user.
+     * @return the username.
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Returns the last time the client was heard from.
+     * @return the time in milliseconds.
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * Records that the client was just heard from.
+     */
+    public void touch() {
+        lastSeen = System.currentTimeMillis();
+    }
+}
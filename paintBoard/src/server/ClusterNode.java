@@ -0,0 +1,213 @@
+package server;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import remote.Operation;
+import remote.RemoteWhiteboard;
+import remote.Replica;
+import remote.RoomDirectory;
+import remote.RoomNode;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * Implementation of the RoomNode interface.
+ * A ClusterNode hosts one WhiteboardServer per room it owns and hands rooms off to their new owner
+ * when the cluster membership changes.
+ */
+public class ClusterNode extends UnicastRemoteObject implements RoomNode {
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 1L;
+
+    private final String address;
+    private final Registry registry;
+    private final RoomDirectory directory;
+    private final Map<String, WhiteboardServer> rooms = new HashMap<>();
+    private Map<String, RoomNode> members = new HashMap<>();
+    private ConsistentHashRing ring;
+
+    /**
+     * Constructor for the ClusterNode.
+     * @param address The address of this node in the form host:port
+     * @param registry The local registry rooms are bound in
+     * @param directory The directory of the cluster
+     * @throws RemoteException
+     */
+    public ClusterNode(String address, Registry registry, RoomDirectory directory) throws RemoteException {
+        this.address = address;
+        this.registry = registry;
+        this.directory = directory;
+        this.members.put(address, this);
+        this.ring = new ConsistentHashRing(members.keySet());
+    }
+
+    /**
+     * Returns the name a room is bound under in the registry.
+     * @param room The name of the room
+     * @return The binding name
+     */
+    public static String roomBinding(String room) {
+        return "Whiteboard/" + room;
+    }
+
+    /**
+     * Opens a room on this node, or forwards the request to the owning node.
+     * @param room The name of the room
+     * @return The whiteboard of the room
+     * @throws RemoteException
+     */
+    @Override
+    public RemoteWhiteboard openRoom(String room) throws RemoteException {
+        RoomNode owner;
+        synchronized (this) {
+            String ownerAddress = ring.locate(room);
+            owner = members.get(ownerAddress);
+            if (address.equals(ownerAddress) || owner == null) {
+                WhiteboardServer board = rooms.get(room);
+                if (board == null) {
+                    board = new WhiteboardServer();
+                    rooms.put(room, board);
+                    registry.rebind(roomBinding(room), board);
+                    System.out.println("Room opened: " + room);
+                }
+                return board;
+            }
+        }
+        // Forward outside the lock so two nodes with briefly different views cannot deadlock
+        return owner.openRoom(room);
+    }
+
+    /**
+     * Takes over a room handed off by another node.
+     * @param room The name of the room
+     * @param snapshot The state of the room
+     * @return The whiteboard now hosting the room
+     * @throws RemoteException
+     */
+    @Override
+    public synchronized RemoteWhiteboard adoptRoom(String room, RoomSnapshot snapshot) throws RemoteException {
+        WhiteboardServer board = rooms.get(room);
+        if (board == null) {
+            board = new WhiteboardServer();
+            rooms.put(room, board);
+            registry.rebind(roomBinding(room), board);
+        }
+        board.importSnapshot(snapshot);
+        System.out.println("Room adopted: " + room);
+        return board;
+    }
+
+    /**
+     * Updates the membership and hands off the rooms that now hash to another node.
+     * @param members The live nodes by address
+     * @throws RemoteException
+     */
+    @Override
+    public void rebalance(Map<String, RoomNode> members) throws RemoteException {
+        Map<String, WhiteboardServer> moving = new HashMap<>();
+        Map<String, RoomNode> targets = new HashMap<>();
+        synchronized (this) {
+            this.members = new HashMap<>(members);
+            this.ring = new ConsistentHashRing(members.keySet());
+            if (members.isEmpty()) {
+                return;
+            }
+            for (String room : new ArrayList<>(rooms.keySet())) {
+                String owner = ring.locate(room);
+                if (!address.equals(owner)) {
+                    moving.put(room, rooms.remove(room));
+                    targets.put(room, members.get(owner));
+                }
+            }
+        }
+        for (Map.Entry<String, WhiteboardServer> entry : moving.entrySet()) {
+            handOff(entry.getKey(), entry.getValue(), targets.get(entry.getKey()));
+        }
+    }
+
+    /**
+     * Does nothing, the directory calls it to check this node is alive.
+     * @throws RemoteException
+     */
+    @Override
+    public void ping() throws RemoteException {
+    }
+
+    /**
+     * Leaves the cluster, handing every room off to the remaining nodes.
+     */
+    public void leave() {
+        try {
+            directory.unregisterNode(address);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+        List<WhiteboardServer> remaining;
+        synchronized (this) {
+            remaining = new ArrayList<>(rooms.values());
+            rooms.clear();
+        }
+        for (WhiteboardServer board : remaining) {
+            board.shutdownThreadPool();
+        }
+    }
+
+    /**
+     * Moves one room to its new owner and redirects its clients there. The board keeps taking writes while the
+     * new owner adopts the snapshot, then is fenced and the operations committed since the snapshot are shipped
+     * after it, so nothing written during the handoff is lost.
+     * @param room The name of the room
+     * @param board The local whiteboard of the room
+     * @param target The new owner
+     */
+    private void handOff(String room, WhiteboardServer board, RoomNode target) {
+        RoomSnapshot snapshot = board.exportSnapshot();
+        RemoteWhiteboard moved;
+        try {
+            moved = target.adoptRoom(room, snapshot);
+        } catch (RemoteException e) {
+            System.err.println("Failed to hand off room " + room + ": " + e.getMessage());
+            synchronized (this) {
+                rooms.put(room, board);
+            }
+            return;
+        }
+        try {
+            List<Operation> missed = board.fence(snapshot.seq);
+            if (missed == null) {
+                // Too much was written meanwhile, the fenced board no longer changes so its snapshot is final
+                moved = target.adoptRoom(room, board.exportSnapshot());
+            } else if (!missed.isEmpty()) {
+                ((Replica) moved).replicate(missed);
+            }
+            board.relocateClients(moved);
+            System.out.println("Room handed off: " + room + ", " + (missed == null ? "snapshot" : missed.size() + " operations") + " shipped after the fence");
+        } catch (RemoteException e) {
+            System.err.println("Failed to hand off room " + room + ": " + e.getMessage());
+            board.unfence();
+            synchronized (this) {
+                rooms.put(room, board);
+            }
+            return;
+        }
+        try {
+            registry.unbind(roomBinding(room));
+        } catch (RemoteException | NotBoundException e) {
+            e.printStackTrace();
+        }
+        board.shutdownThreadPool();
+        try {
+            UnicastRemoteObject.unexportObject(board, true);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+}
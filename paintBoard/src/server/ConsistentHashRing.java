@@ -0,0 +1,81 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * ConsistentHashRing maps keys to nodes so that adding or removing a node only moves
+ * the keys that hashed next to it. Each node is placed on the ring many times to even out the load.
+ */
+public class ConsistentHashRing {
+
+    private static final int VIRTUAL_NODES = 128;
+
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    /**
+     * Constructs a ring containing the given nodes.
+     * @param nodes the node names.
+     */
+    public ConsistentHashRing(Collection<String> nodes) {
+        for (String node : nodes) {
+            add(node);
+        }
+    }
+
+    /**
+     * Adds a node to the ring.
+     * @param node the node name.
+     */
+    public void add(String node) {
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            ring.put(hash(node + "#" + i), node);
+        }
+    }
+
+    /**
+     * Removes a node from the ring.
+     * @param node the node name.
+     */
+    public void remove(String node) {
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            ring.remove(hash(node + "#" + i), node);
+        }
+    }
+
+    /**
+     * Returns the node that owns a key.
+     * @param key the key.
+     * @return the owning node, or null if the ring is empty.
+     */
+    public String locate(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * Hashes a string to a position on the ring using the first eight bytes of its MD5 digest.
+     * @param value the string to hash.
+     * @return the ring position.
+     */
+    private static long hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+            long result = 0;
+            for (int i = 0; i < 8; i++) {
+                result = (result << 8) | (digest[i] & 0xff);
+            }
+            return result;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import remote.DeliveryPlan;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * DeliveryPlanner picks a delivery plan for each client from the link it reports, so a client on a slow or distant
+ * link is told of changes less often, catches up through raster tiles sooner and gets a smaller preview, while
+ * clients on a local network keep being sent everything as it happens. A client is only moved to a better plan once
+ * its link is clearly better than the bound it crossed, so a link hovering around a bound does not flip its plan at
+ * every report. The plans in use, the reports and the changes of plan are reported to the metrics.
+ */
+public class DeliveryPlanner {
+
+    // Bounds of a local network and of a good remote link
+    private static final long LAN_RTT_MILLIS = 20;
+    private static final long LAN_BYTES_PER_SECOND = 2L * 1024 * 1024;
+    private static final long BROADBAND_RTT_MILLIS = 150;
+    private static final long BROADBAND_BYTES_PER_SECOND = 128L * 1024;
+    // How much better than a bound a link has to be to move a client to a better plan
+    private static final double HYSTERESIS = 0.8;
+
+    private final ServerMetrics metrics;
+    private final BroadcastScheduler broadcastScheduler;
+    private final Map<String, DeliveryPlan> plans = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a DeliveryPlanner.
+     * @param metrics the metrics the plans are reported to.
+     * @param broadcastScheduler the scheduler whose notification intervals follow the plans.
+     */
+    public DeliveryPlanner(ServerMetrics metrics, BroadcastScheduler broadcastScheduler) {
+        this.metrics = metrics;
+        this.broadcastScheduler = broadcastScheduler;
+        for (DeliveryPlan.Link link : DeliveryPlan.Link.values()) {
+            metrics.gauge("delivery.clients." + link.name().toLowerCase(),
+                    () -> plans.values().stream().filter(plan -> plan.getLink() == link).count());
+        }
+    }
+
+    /**
+     * Picks the plan of a client from the link it measured.
+     * @param username the username of the client.
+     * @param rttMillis the round trip time of a call in milliseconds.
+     * @param bytesPerSecond the throughput of the larger fetches, or 0 if not measured yet.
+     * @return the plan.
+     */
+    public DeliveryPlan report(String username, long rttMillis, long bytesPerSecond) {
+        metrics.increment("delivery.reports");
+        DeliveryPlan previous = plans.getOrDefault(username, DeliveryPlan.LAN);
+        DeliveryPlan plan = choose(previous.getLink(), rttMillis, bytesPerSecond);
+        plans.put(username, plan);
+        if (plan != previous) {
+            metrics.increment("delivery.planChanges");
+            System.out.println("Delivery plan of " + username + " is now " + plan.getLink() + ", round trip " + rttMillis
+                    + " ms, throughput " + (bytesPerSecond > 0 ? bytesPerSecond / 1024 + " KB/s" : "not measured"));
+        }
+        broadcastScheduler.setMinInterval(username, TimeUnit.MILLISECONDS.toNanos(plan.getIntervalMillis()));
+        return plan;
+    }
+
+    /**
+     * Returns the plan of a client.
+     * @param username the username of the client.
+     * @return the plan, the local network one if the client has not reported its link.
+     */
+    public DeliveryPlan get(String username) {
+        return username == null ? DeliveryPlan.LAN : plans.getOrDefault(username, DeliveryPlan.LAN);
+    }
+
+    /**
+     * Forgets the plan of a client that left the whiteboard.
+     * @param username the username of the client.
+     */
+    public void remove(String username) {
+        plans.remove(username);
+    }
+
+    /**
+     * Returns the plan a link fits, holding a client on its current plan until the link is clearly better.
+     */
+    private static DeliveryPlan choose(DeliveryPlan.Link current, long rttMillis, long bytesPerSecond) {
+        if (fits(rttMillis, bytesPerSecond, LAN_RTT_MILLIS, LAN_BYTES_PER_SECOND, current == DeliveryPlan.Link.LAN)) {
+            return DeliveryPlan.LAN;
+        }
+        if (fits(rttMillis, bytesPerSecond, BROADBAND_RTT_MILLIS, BROADBAND_BYTES_PER_SECOND, current != DeliveryPlan.Link.WEAK)) {
+            return DeliveryPlan.BROADBAND;
+        }
+        return DeliveryPlan.WEAK;
+    }
+
+    /**
+     * Returns whether a link is within the bounds of a plan, an unmeasured throughput counting as within them.
+     * @param held true if the client already has the plan or a better one, false if it has to be clearly within the bounds.
+     */
+    private static boolean fits(long rttMillis, long bytesPerSecond, long maxRtt, long minThroughput, boolean held) {
+        double margin = held ? 1 : HYSTERESIS;
+        return rttMillis <= maxRtt * margin && (bytesPerSecond <= 0 || bytesPerSecond * margin >= minThroughput);
+    }
+}
@@ -0,0 +1,347 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import remote.ThrottledException;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * FairScheduler runs the operations of a whiteboard on a fixed set of worker threads, with a queue per user
+ * served round-robin so one heavy user cannot starve the others. A user's operations run one at a time and in
+ * the order they were submitted. Each user also has a token bucket rate limit. When a user is over their rate
+ * or their queue is full the operation is refused with a {@link ThrottledException} instead of being run on
+ * the caller's thread. A user's queue is dropped once it is empty and their bucket has filled up again, as a new
+ * one would start out, so users who left and made-up usernames do not hold on to one. The state is guarded by
+ * a ReentrantLock rather than a monitor, so idle workers park without pinning their carrier when they are
+ * virtual threads.
+ */
+public class FairScheduler {
+
+    private final ServerMetrics metrics;
+    private final int maxQueuedPerUser;
+    private final int maxQueued;
+    private final double ratePerNano;
+    private final double burst;
+    private final Thread[] workers;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signalled when a user becomes ready, on shutdown and when the last operation finishes
+    private final Condition changed = lock.newCondition();
+
+    // Guarded by lock
+    private final Map<String, UserQueue> queues = new HashMap<>();
+    private final ArrayDeque<UserQueue> ready = new ArrayDeque<>();
+    private int queued;
+    private int running;
+    private boolean shutdown;
+    private boolean paused;
+    private long sweptAt = System.nanoTime();
+
+    // How often the queues of idle users are looked for and dropped
+    private static final long SWEEP_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    // How long a client is told to wait before sending again while the scheduler is paused
+    private static final long PAUSED_RETRY_MILLIS = 500;
+
+    /**
+     * Constructs a FairScheduler and starts its workers.
+     * @param threadFactory the factory creating the worker threads.
+     * @param workerCount the number of worker threads.
+     * @param maxQueuedPerUser the most operations one user may have waiting.
+     * @param maxQueued the most operations all users together may have waiting.
+     * @param ratePerSecond the sustained number of operations per second allowed per user, 0 for no limit.
+     * @param burst the number of operations a user may send at once after being idle.
+     * @param metrics the metrics scheduling statistics are reported to.
+     */
+    public FairScheduler(ThreadFactory threadFactory, int workerCount, int maxQueuedPerUser, int maxQueued, double ratePerSecond, int burst, ServerMetrics metrics) {
+        this.metrics = metrics;
+        this.maxQueuedPerUser = maxQueuedPerUser;
+        this.maxQueued = maxQueued;
+        this.ratePerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = Math.max(1, burst);
+        metrics.gauge("scheduler.queued", () -> {
+            lock.lock();
+            try {
+                return queued;
+            } finally {
+                lock.unlock();
+            }
+        });
+        metrics.gauge("scheduler.users", () -> {
+            lock.lock();
+            try {
+                return queues.size();
+            } finally {
+                lock.unlock();
+            }
+        });
+
+        workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = threadFactory.newThread(this::work);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Queues an operation of a user.
+     * @param username the user the operation belongs to.
+     * @param task the operation.
+     * @throws ThrottledException if the user is over their rate limit or the queues are full.
+     */
+    public void submit(String username, Runnable task) throws ThrottledException {
+        lock.lock();
+        try {
+            if (shutdown) {
+                // Same as the executor this replaces: work arriving after shutdown is dropped
+                metrics.increment("scheduler.discarded");
+                return;
+            }
+            if (paused) {
+                metrics.increment("scheduler.throttled.paused");
+                throw new ThrottledException("The whiteboard is moving to another server, operation from " + username + " refused", PAUSED_RETRY_MILLIS);
+            }
+            long now = System.nanoTime();
+            if (now - sweptAt > SWEEP_NANOS) {
+                sweep(now);
+            }
+            UserQueue queue = queues.computeIfAbsent(String.valueOf(username), UserQueue::new);
+            queue.refill(now);
+            if (ratePerNano > 0 && queue.tokens < 1) {
+                metrics.increment("scheduler.throttled.rate");
+                long waitNanos = (long) ((1 - queue.tokens) / ratePerNano);
+                throw new ThrottledException("Too many operations from " + username + ", slow down", Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+            }
+            if (queue.tasks.size() >= maxQueuedPerUser || queued >= maxQueued) {
+                metrics.increment("scheduler.throttled.queue");
+                throw new ThrottledException("Server is busy, operation from " + username + " refused", 100);
+            }
+            queue.tokens -= 1;
+            queue.tasks.add(task);
+            queued++;
+            metrics.increment("scheduler.submitted");
+            if (!queue.running && queue.tasks.size() == 1) {
+                ready.add(queue);
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the queue of a user who left the whiteboard, unless they still have operations waiting or running.
+     * @param username the user.
+     */
+    public void forget(String username) {
+        lock.lock();
+        try {
+            UserQueue queue = queues.get(String.valueOf(username));
+            if (queue != null && queue.tasks.isEmpty() && !queue.running) {
+                queues.remove(queue.username);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the queues of the users who are idle. Must be called while holding the lock.
+     */
+    private void sweep(long now) {
+        sweptAt = now;
+        int before = queues.size();
+        queues.values().removeIf(queue -> queue.isIdle(now));
+        metrics.add("scheduler.usersDropped", before - queues.size());
+    }
+
+    /**
+     * Refuses new operations until {@link #resume} is called, while the operations already queued still run, so
+     * {@link #awaitTermination} then waits for the last of them.
+     */
+    public void pause() {
+        lock.lock();
+        try {
+            paused = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Accepts operations again after {@link #pause}.
+     */
+    public void resume() {
+        lock.lock();
+        try {
+            paused = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting operations. Operations already queued still run.
+     */
+    public void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns whether {@link #shutdown} has been called.
+     * @return true after shutdown.
+     */
+    public boolean isShutdown() {
+        lock.lock();
+        try {
+            return shutdown;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting operations, drops the queued ones and interrupts the workers.
+     */
+    public void shutdownNow() {
+        lock.lock();
+        try {
+            shutdown = true;
+            for (UserQueue queue : queues.values()) {
+                queue.tasks.clear();
+            }
+            ready.clear();
+            queued = 0;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Waits for the queued operations to finish after shutdown or a pause.
+     * @param timeout the longest time to wait.
+     * @param unit the unit of the timeout.
+     * @return true if all operations finished, false if the timeout elapsed first.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (queued > 0 || running > 0) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = changed.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Worker loop: takes the user at the head of the ready ring, runs one of their operations and
+     * puts them at the back of the ring if they have more.
+     */
+    private void work() {
+        while (true) {
+            UserQueue queue;
+            Runnable task;
+            lock.lock();
+            try {
+                while (ready.isEmpty()) {
+                    if (shutdown) {
+                        return;
+                    }
+                    try {
+                        changed.await();
+                    } catch (InterruptedException e) {
+                        if (shutdown) {
+                            return;
+                        }
+                    }
+                }
+                queue = ready.poll();
+                task = queue.tasks.poll();
+                queue.running = true;
+                queued--;
+                running++;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+
+            lock.lock();
+            try {
+                queue.running = false;
+                running--;
+                if (!queue.tasks.isEmpty()) {
+                    ready.add(queue);
+                    changed.signalAll();
+                } else if (queue.isIdle(System.nanoTime())) {
+                    queues.remove(queue.username);
+                    metrics.increment("scheduler.usersDropped");
+                }
+                if (queued == 0 && running == 0) {
+                    changed.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * The waiting operations and rate limit state of one user.
+     */
+    private class UserQueue {
+        final String username;
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        double tokens = burst;
+        long refilledAt = System.nanoTime();
+        boolean running;
+
+        UserQueue(String username) {
+            this.username = username;
+        }
+
+        void refill(long now) {
+            tokens = Math.min(burst, tokens + (now - refilledAt) * ratePerNano);
+            refilledAt = now;
+        }
+
+        /**
+         * Returns whether the queue has nothing waiting or running and a full bucket, so dropping it and making
+         * a new one later changes nothing.
+         */
+        boolean isIdle(long now) {
+            if (!tasks.isEmpty() || running) {
+                return false;
+            }
+            refill(now);
+            return tokens >= burst;
+        }
+    }
+}
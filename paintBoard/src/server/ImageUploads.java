@@ -0,0 +1,308 @@
+package server;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import remote.WireProtocol;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * ImageUploads receives the images users load onto a whiteboard. An image arrives in chunks, so no single call
+ * is large, and a chunk that is sent again after a failure is recognised, so an interrupted upload resumes where
+ * it stopped. The bytes of an upload are held in a buffer that grows as chunks arrive, and unfinished uploads
+ * together may hold at most {@link #MAX_HELD_BYTES}, so announcing large uploads costs no memory and many
+ * users uploading at once cannot exhaust the heap. A complete image is decoded on a background thread, at a reduced resolution when it is much larger
+ * than the board, scaled to fit the board and encoded again at that size. Only then is it handed to the board,
+ * which swaps it in under its lock.
+ */
+public class ImageUploads {
+
+    /**
+     * Receives the images that are ready to replace the canvas.
+     */
+    public interface Listener {
+        /**
+         * Called on the decoder thread when an image is ready.
+         * @param username the user who loaded the image.
+         * @param encoded the image at board size, encoded as PNG.
+         * @param image the decoded image at board size.
+         */
+        void imageReady(String username, byte[] encoded, BufferedImage image);
+    }
+
+    /** Uploads larger than this are refused. */
+    public static final int MAX_UPLOAD_BYTES = WireProtocol.MAX_FRAME_BYTES;
+    /** Chunks that would make the unfinished uploads of a board hold more than this are refused. */
+    public static final long MAX_HELD_BYTES = 2L * MAX_UPLOAD_BYTES;
+    // The first buffer of an upload, it doubles from there up to the announced size
+    private static final int INITIAL_BUFFER_BYTES = 64 * 1024;
+    // Uploads not added to for this long are dropped
+    private static final long IDLE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final int width;
+    private final int height;
+    private final ServerMetrics metrics;
+    private final Listener listener;
+    private final ExecutorService decoder = Executors.newSingleThreadExecutor(ServerThreads.factory("image-decoder"));
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final SecureRandom ids = new SecureRandom();
+    // Bytes of the buffers of unfinished uploads
+    private final AtomicLong held = new AtomicLong();
+
+    /**
+     * Constructs an ImageUploads.
+     * @param width the width of the board.
+     * @param height the height of the board.
+     * @param metrics the metrics upload statistics are reported to.
+     * @param listener the listener receiving the decoded images.
+     */
+    public ImageUploads(int width, int height, ServerMetrics metrics, Listener listener) {
+        this.width = width;
+        this.height = height;
+        this.metrics = metrics;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts an upload. A user has at most one upload at a time, starting another abandons the previous one.
+     * @param username the user loading the image.
+     * @param size the size of the encoded image in bytes.
+     * @return the identifier of the upload.
+     * @throws RemoteException if the image is too large.
+     */
+    public String begin(String username, long size) throws RemoteException {
+        if (size <= 0 || size > MAX_UPLOAD_BYTES) {
+            throw new RemoteException("Image size must be between 1 and " + MAX_UPLOAD_BYTES + " bytes");
+        }
+        uploads.values().removeIf(upload -> upload.username.equals(username) && release(upload));
+        byte[] bytes = new byte[16];
+        ids.nextBytes(bytes);
+        String id = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        uploads.put(id, new Upload(username, (int) size));
+        metrics.increment("uploads.started");
+        return id;
+    }
+
+    /**
+     * Adds a chunk to an upload. The chunk is only taken if it starts where the data received so far ends,
+     * anything else is a chunk sent again after a failure and is ignored.
+     * @param id the identifier of the upload.
+     * @param offset the position of the chunk in the image.
+     * @param chunk the bytes.
+     * @return the number of bytes received so far, where the next chunk should start.
+     * @throws RemoteException if the upload is unknown, the chunk goes past the announced size or the board already
+     * holds too many unfinished uploads.
+     */
+    public long append(String id, long offset, byte[] chunk) throws RemoteException {
+        Upload upload = get(id);
+        synchronized (upload) {
+            if (upload.released) {
+                throw new RemoteException("Unknown or expired image upload");
+            }
+            if (offset != upload.received || chunk.length == 0) {
+                return upload.received;
+            }
+            if (chunk.length > upload.size - upload.received) {
+                throw new RemoteException("Chunk goes past the announced image size");
+            }
+            if (upload.received + chunk.length > upload.bytes.length) {
+                grow(upload, upload.received + chunk.length);
+            }
+            System.arraycopy(chunk, 0, upload.bytes, upload.received, chunk.length);
+            upload.received += chunk.length;
+            upload.touched = System.currentTimeMillis();
+            metrics.add("uploads.bytes", chunk.length);
+            return upload.received;
+        }
+    }
+
+    /**
+     * Completes an upload and decodes the image in the background.
+     * @param id the identifier of the upload.
+     * @throws RemoteException if the upload is unknown or not all bytes have been received.
+     */
+    public void finish(String id) throws RemoteException {
+        Upload upload = get(id);
+        synchronized (upload) {
+            if (upload.received != upload.size) {
+                throw new RemoteException("Upload incomplete, " + upload.received + " of " + upload.size + " bytes received");
+            }
+        }
+        if (uploads.remove(id, upload)) {
+            release(upload);
+            submit(upload.username, upload.bytes);
+        }
+    }
+
+    /**
+     * Replaces the buffer of an upload with a larger one, at least doubling it up to the announced size.
+     * @param upload the upload, locked by the caller.
+     * @param needed the number of bytes the buffer has to hold.
+     * @throws RemoteException if the unfinished uploads of the board would hold too much.
+     */
+    private void grow(Upload upload, int needed) throws RemoteException {
+        long doubled = Math.max(INITIAL_BUFFER_BYTES, 2L * upload.bytes.length);
+        int capacity = (int) Math.min(upload.size, Math.max(needed, doubled));
+        int added = capacity - upload.bytes.length;
+        if (held.addAndGet(added) > MAX_HELD_BYTES) {
+            held.addAndGet(-added);
+            metrics.increment("uploads.refused");
+            throw new RemoteException("Too many image uploads in progress, try again later");
+        }
+        upload.bytes = Arrays.copyOf(upload.bytes, capacity);
+    }
+
+    /**
+     * Gives back the buffer of an upload that is being removed. Later chunks for it are refused.
+     * @param upload the upload.
+     * @return true, so it can be used in removeIf.
+     */
+    private boolean release(Upload upload) {
+        synchronized (upload) {
+            if (!upload.released) {
+                held.addAndGet(-upload.bytes.length);
+                upload.released = true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes an image sent in one piece in the background.
+     * @param username the user loading the image.
+     * @param encoded the encoded image.
+     */
+    public void submit(String username, byte[] encoded) {
+        decoder.execute(() -> {
+            long start = System.nanoTime();
+            try {
+                BufferedImage image = decode(encoded);
+                if (image == null) {
+                    metrics.increment("uploads.failed");
+                    System.err.println("Unsupported image format, image not loaded");
+                    return;
+                }
+                ByteArrayOutputStream png = new ByteArrayOutputStream();
+                ImageIO.write(image, "png", png);
+                metrics.increment("uploads.completed");
+                metrics.add("uploads.decodeMillis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                listener.imageReady(username, png.toByteArray(), image);
+            } catch (IOException | RuntimeException e) {
+                metrics.increment("uploads.failed");
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Drops the uploads nobody has added to for a while.
+     */
+    public void expireIdle() {
+        long cutoff = System.currentTimeMillis() - IDLE_MILLIS;
+        uploads.values().removeIf(upload -> upload.touched < cutoff && release(upload));
+    }
+
+    /**
+     * Stops the decoder, letting an image being decoded finish.
+     */
+    public void shutdown() {
+        decoder.shutdown();
+    }
+
+    private Upload get(String id) throws RemoteException {
+        Upload upload = id == null ? null : uploads.get(id);
+        if (upload == null) {
+            throw new RemoteException("Unknown or expired image upload");
+        }
+        return upload;
+    }
+
+    /**
+     * Decodes an image to fit the board. An image several times larger than the board is decoded skipping rows
+     * and columns, so the full size image is never held in memory, and then scaled down in halving steps.
+     * @param encoded the encoded image.
+     * @return the image no larger than the board, or null if the format is not supported.
+     * @throws IOException if the image cannot be decoded.
+     */
+    BufferedImage decode(byte[] encoded) throws IOException {
+        BufferedImage image;
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(encoded))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                double scale = fitScale(reader.getWidth(0), reader.getHeight(0));
+                ImageReadParam param = reader.getDefaultReadParam();
+                // Keep twice the final resolution so the scaling below still has pixels to average
+                int step = Math.max(1, (int) (1 / scale / 2));
+                param.setSourceSubsampling(step, step, 0, 0);
+                image = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+
+        double scale = fitScale(image.getWidth(), image.getHeight());
+        int targetWidth = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int targetHeight = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        do {
+            // Bilinear scaling only looks at neighbouring pixels, so never shrink by more than half at once
+            int stepWidth = Math.max(targetWidth, image.getWidth() / 2);
+            int stepHeight = Math.max(targetHeight, image.getHeight() / 2);
+            BufferedImage scaled = new BufferedImage(stepWidth, stepHeight, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = scaled.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, stepWidth, stepHeight, null);
+            g.dispose();
+            image = scaled;
+        } while (image.getWidth() > targetWidth || image.getHeight() > targetHeight);
+        return image;
+    }
+
+    /**
+     * Returns the factor that shrinks an image to fit the board, 1 for an image that already fits.
+     */
+    private double fitScale(int imageWidth, int imageHeight) {
+        return Math.min(1, Math.min((double) width / imageWidth, (double) height / imageHeight));
+    }
+
+    /**
+     * The bytes of an image received so far. The buffer starts empty and is grown by the chunks.
+     */
+    private static class Upload {
+        final String username;
+        final int size;
+        byte[] bytes = new byte[0];
+        int received;
+        boolean released;
+        volatile long touched = System.currentTimeMillis();
+
+        Upload(String username, int size) {
+            this.username = username;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package server;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.Map;
+
+import remote.PixelFill;
+import remote.RemoteWhiteboard.Shape;
+import remote.TileGrid;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * LayerRaster is the pixel storage of one layer of a board: ARGB pixels, transparent where nothing is drawn.
+ * It is kept on the heap as a BufferedImage by default. With -Dwhiteboard.rasterStorage=direct or mapped it is
+ * kept off the heap, in a direct or memory mapped buffer, so the boards of a busy server do not add to the heap
+ * the garbage collector has to manage.
+ */
+public interface LayerRaster {
+
+    /**
+     * Where the pixels of layer rasters are kept.
+     */
+    enum Storage {
+        HEAP, DIRECT, MAPPED;
+
+        /**
+         * Returns the storage set with -Dwhiteboard.rasterStorage, heap if it is unset or unknown.
+         * @return the storage.
+         */
+        public static Storage fromProperty() {
+            String name = System.getProperty("whiteboard.rasterStorage", "heap");
+            for (Storage storage : values()) {
+                if (storage.name().equalsIgnoreCase(name)) {
+                    return storage;
+                }
+            }
+            System.err.println("Unknown raster storage " + name + ", using heap");
+            return HEAP;
+        }
+    }
+
+    /**
+     * Creates a transparent raster.
+     * @param width the width of the raster.
+     * @param height the height of the raster.
+     * @param storage where the pixels are kept.
+     * @return the raster.
+     */
+    static LayerRaster create(int width, int height, Storage storage) {
+        return storage == Storage.HEAP ? new HeapRaster(width, height) : new OffHeapRaster(width, height, storage == Storage.MAPPED);
+    }
+
+    /**
+     * Makes every pixel transparent.
+     */
+    void clear();
+
+    /**
+     * Draws shapes on the raster, in order.
+     * @param shapes the shapes.
+     */
+    void draw(List<Shape> shapes);
+
+    /**
+     * Draws an image at the top left corner of the raster.
+     * @param image the image.
+     */
+    void drawImage(BufferedImage image);
+
+    /**
+     * Draws the raster over an image of the same size, blending it the way drawImage does.
+     * @param g a graphics context of the image.
+     */
+    void drawOnto(Graphics2D g);
+
+    /**
+     * Splits the raster into tiles, reading its pixels where they are kept.
+     * @param tiles receives each distinct tile encoded as PNG, by hash.
+     * @return the grid of the raster.
+     */
+    TileGrid split(Map<String, byte[]> tiles);
+
+    /**
+     * A raster kept on the heap in a BufferedImage.
+     */
+    class HeapRaster implements LayerRaster {
+        private final BufferedImage image;
+
+        HeapRaster(int width, int height) {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        }
+
+        @Override
+        public void clear() {
+            Graphics2D g = image.createGraphics();
+            g.setComposite(AlphaComposite.Clear);
+            g.fillRect(0, 0, image.getWidth(), image.getHeight());
+            g.dispose();
+        }
+
+        @Override
+        public void draw(List<Shape> shapes) {
+            Graphics2D g = image.createGraphics();
+            for (Shape shape : shapes) {
+                if (!PixelFill.draw(shape, image)) {
+                    shape.draw(g);
+                }
+            }
+            g.dispose();
+        }
+
+        @Override
+        public void drawImage(BufferedImage source) {
+            Graphics2D g = image.createGraphics();
+            g.drawImage(source, 0, 0, null);
+            g.dispose();
+        }
+
+        @Override
+        public void drawOnto(Graphics2D g) {
+            g.drawImage(image, 0, 0, null);
+        }
+
+        @Override
+        public TileGrid split(Map<String, byte[]> tiles) {
+            return TileGrid.split(image, tiles);
+        }
+    }
+}
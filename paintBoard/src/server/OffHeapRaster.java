@@ -0,0 +1,197 @@
+package server;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import remote.PixelFill;
+import remote.RemoteWhiteboard.Shape;
+import remote.TileGrid;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * OffHeapRaster keeps the ARGB pixels of a layer outside the heap, in a direct buffer or a buffer mapped from
+ * a temporary file, one int per pixel row by row, in the same layout as a TYPE_INT_ARGB BufferedImage.
+ * Java2D cannot draw into such a buffer directly, so drawing goes through a scratch image: the pixels under a shape
+ * are copied into it, the shape is drawn there clipped to them and they are copied back. The scratch image is as
+ * large as the board, because Java2D steps clipped lines from where they sit on the image and a smaller image
+ * shifted under the shape can move a pixel. It belongs to the thread, so the heap holds one board per drawing
+ * thread however many boards there are. Every copy is a bulk copy of row spans.
+ * Pixels are read through rows, a read-only view of the buffer that copies nothing. Tiles are hashed and encoded
+ * from it one tile at a time, so splitting a raster never copies the whole of it onto the heap; only compositing
+ * does, as Java2D can only draw from an image.
+ * The storage counted as allocated is given back once a raster is collected, as its buffer is freed with it.
+ */
+public class OffHeapRaster implements LayerRaster {
+
+    // Pixels around the bounds of a shape that are copied too, for glyphs and strokes reaching past them
+    private static final int MARGIN = 4;
+    private static final AtomicLong ALLOCATED = new AtomicLong();
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final ThreadLocal<BufferedImage> SCRATCH = new ThreadLocal<>();
+
+    private final int width;
+    private final int height;
+    private final IntBuffer pixels;
+
+    /**
+     * Constructs a transparent OffHeapRaster.
+     * @param width the width of the raster.
+     * @param height the height of the raster.
+     * @param mapped true to map the pixels from a temporary file, false for a direct buffer.
+     */
+    public OffHeapRaster(int width, int height, boolean mapped) {
+        this.width = width;
+        this.height = height;
+        long bytes = (long) width * height * 4;
+        ByteBuffer buffer = mapped ? map(bytes) : ByteBuffer.allocateDirect((int) bytes);
+        pixels = buffer.order(ByteOrder.nativeOrder()).asIntBuffer();
+        ALLOCATED.addAndGet(bytes);
+        CLEANER.register(this, () -> ALLOCATED.addAndGet(-bytes));
+    }
+
+    /**
+     * Maps a temporary file that is deleted at once, the mapping stays valid until the buffer is collected.
+     */
+    private static ByteBuffer map(long bytes) {
+        try {
+            Path file = Files.createTempFile("whiteboard-raster", ".bin");
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot map a raster file", e);
+        }
+    }
+
+    /**
+     * Returns the bytes of off-heap raster storage held by the rasters in this process that are not yet collected.
+     * @return the number of bytes.
+     */
+    public static long allocatedBytes() {
+        return ALLOCATED.get();
+    }
+
+    /**
+     * Returns rows of the raster without copying them.
+     * @param y the first row.
+     * @param rows the number of rows.
+     * @return a read-only view of the pixels of the rows, width ints per row.
+     */
+    public IntBuffer rows(int y, int rows) {
+        IntBuffer view = pixels.asReadOnlyBuffer();
+        view.position(y * width);
+        view.limit((y + rows) * width);
+        return view.slice();
+    }
+
+    @Override
+    public void clear() {
+        int[] zeros = new int[width];
+        IntBuffer view = pixels.duplicate();
+        view.clear();
+        for (int y = 0; y < height; y++) {
+            view.put(zeros);
+        }
+    }
+
+    @Override
+    public void draw(List<Shape> shapes) {
+        for (Shape shape : shapes) {
+            // Erasers, rectangles and straight lines are written into the buffer without the scratch image
+            if (PixelFill.draw(shape, pixels, width, height)) {
+                continue;
+            }
+            Rectangle bounds = shape.getBounds();
+            bounds.grow(MARGIN, MARGIN);
+            paint(bounds, shape::draw);
+        }
+    }
+
+    @Override
+    public void drawImage(BufferedImage image) {
+        paint(new Rectangle(0, 0, image.getWidth(), image.getHeight()), g -> g.drawImage(image, 0, 0, null));
+    }
+
+    @Override
+    public void drawOnto(Graphics2D g) {
+        BufferedImage image = scratch();
+        rows(0, height).get(pixelsOf(image));
+        g.drawImage(image, 0, 0, null);
+    }
+
+    @Override
+    public TileGrid split(Map<String, byte[]> tiles) {
+        return TileGrid.split(width, height, (area, tile) -> {
+            IntBuffer view = rows(area.y, area.height);
+            for (int y = 0; y < area.height; y++) {
+                view.position(y * width + area.x);
+                view.get(tile, y * area.width, area.width);
+            }
+        }, tiles);
+    }
+
+    /**
+     * Paints over an area of the raster, copying it to the same place on the scratch image and back.
+     */
+    private void paint(Rectangle area, Painter painter) {
+        Rectangle clipped = area.intersection(new Rectangle(0, 0, width, height));
+        if (clipped.isEmpty()) {
+            return;
+        }
+        BufferedImage image = scratch();
+        int[] scratch = pixelsOf(image);
+        IntBuffer view = pixels.duplicate();
+        for (int y = clipped.y; y < clipped.y + clipped.height; y++) {
+            view.position(y * width + clipped.x);
+            view.get(scratch, y * width + clipped.x, clipped.width);
+        }
+        Graphics2D g = image.createGraphics();
+        g.setClip(clipped);
+        painter.paint(g);
+        g.dispose();
+        for (int y = clipped.y; y < clipped.y + clipped.height; y++) {
+            view.position(y * width + clipped.x);
+            view.put(scratch, y * width + clipped.x, clipped.width);
+        }
+    }
+
+    /**
+     * Returns the scratch image of the calling thread, the size of the raster so pixels keep their place.
+     */
+    private BufferedImage scratch() {
+        BufferedImage image = SCRATCH.get();
+        if (image == null || image.getWidth() != width || image.getHeight() != height) {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            SCRATCH.set(image);
+        }
+        // Not cleared, every pixel drawn or read is copied in from the raster first
+        return image;
+    }
+
+    private static int[] pixelsOf(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Draws on the scratch image.
+     */
+    private interface Painter {
+        void paint(Graphics2D g);
+    }
+}
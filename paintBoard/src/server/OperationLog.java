@@ -0,0 +1,96 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import remote.Operation;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * OperationLog assigns sequence numbers to the operations of a whiteboard and retains the most recent ones
+ * so clients and standbys that fell behind can catch up with a delta instead of a full snapshot.
+ * All methods must be called while holding the lock of the board that owns the log.
+ */
+public class OperationLog {
+
+    private final int capacity;
+    private final ArrayDeque<Operation> recent = new ArrayDeque<>();
+    // Volatile so the board's gauges and broadcasts can read it without the lock
+    private volatile long lastSeq;
+
+    /**
+     * Constructs an OperationLog.
+     * @param capacity the number of recent operations to retain.
+     */
+    public OperationLog(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Stamps an operation with the next sequence number and retains it.
+     * @param operation the operation to record.
+     * @return the sequence number assigned.
+     */
+    public long append(Operation operation) {
+        operation.stamp(++lastSeq, System.currentTimeMillis());
+        recent.addLast(operation);
+        if (recent.size() > capacity) {
+            recent.removeFirst();
+        }
+        return lastSeq;
+    }
+
+    /**
+     * Returns the operations recorded after the given sequence number.
+     * @param seq the last sequence number the caller has seen.
+     * @return the operations in order, or null if some of them are no longer retained
+     *         or the caller claims to have seen operations this log has not recorded.
+     */
+    public List<Operation> since(long seq) {
+        if (seq > lastSeq) {
+            return null;
+        }
+        long oldest = recent.isEmpty() ? lastSeq + 1 : recent.peekFirst().getSeq();
+        if (seq + 1 < oldest) {
+            return null;
+        }
+        List<Operation> result = new ArrayList<>((int) (lastSeq - seq));
+        for (Operation operation : recent) {
+            if (operation.getSeq() > seq) {
+                result.add(operation);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the sequence number of the last recorded operation.
+     * @return the sequence number, 0 if nothing has been recorded.
+     */
+    public long lastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * Records an operation that was stamped by another server, such as a primary replicating to this standby.
+     * @param operation the stamped operation.
+     */
+    public void appendReplicated(Operation operation) {
+        lastSeq = operation.getSeq();
+        recent.addLast(operation);
+        if (recent.size() > capacity) {
+            recent.removeFirst();
+        }
+    }
+
+    /**
+     * Drops the retained operations and continues numbering after the given sequence number,
+     * used when a snapshot taken at that sequence number is installed.
+     * @param seq the sequence number of the installed snapshot.
+     */
+    public void reset(long seq) {
+        recent.clear();
+        lastSeq = seq;
+    }
+}
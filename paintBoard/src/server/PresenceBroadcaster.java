@@ -0,0 +1,113 @@
+package server;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import remote.IClient;
+import remote.Presence;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * PresenceBroadcaster relays pointer positions and shape previews between the clients of a whiteboard. Updates
+ * only overwrite the latest presence of their user, however often they arrive. Once per tick the presences that
+ * changed are sent to every client in one callback, so a tick costs one callback per client no matter how fast
+ * anyone moves the mouse. The channel is lossy: a client whose previous callback is still in flight is skipped,
+ * and gets all current presences in its next callback instead of the changes, so it still ends up up to date.
+ */
+public class PresenceBroadcaster {
+
+    private final Executor executor;
+    private final ClientMonitor clientMonitor;
+    private final ServerMetrics metrics;
+    private final Map<String, Presence> latest = new ConcurrentHashMap<>();
+    private final Map<String, Presence> changed = new ConcurrentHashMap<>();
+    // Clients sent presences before, clients with a callback in flight, and clients that missed changes
+    private final Set<String> known = ConcurrentHashMap.newKeySet();
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    private final Set<String> behind = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Constructs a PresenceBroadcaster.
+     * @param executor the executor the callbacks are sent from.
+     * @param clientMonitor the client monitor whose open breakers are respected.
+     * @param metrics the metrics presence statistics are reported to.
+     */
+    public PresenceBroadcaster(Executor executor, ClientMonitor clientMonitor, ServerMetrics metrics) {
+        this.executor = executor;
+        this.clientMonitor = clientMonitor;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Records the latest presence of a user, replacing the previous one.
+     * @param presence the presence.
+     */
+    public void update(Presence presence) {
+        metrics.increment("presence.updates");
+        if (presence.isVisible()) {
+            latest.put(presence.getUsername(), presence);
+        } else {
+            latest.remove(presence.getUsername());
+        }
+        changed.put(presence.getUsername(), presence);
+    }
+
+    /**
+     * Forgets a user who left the whiteboard and tells the others.
+     * @param username the username of the user.
+     */
+    public void remove(String username) {
+        update(Presence.away(username));
+        known.remove(username);
+        inFlight.remove(username);
+        behind.remove(username);
+    }
+
+    /**
+     * Sends the presences that changed since the last tick to every client.
+     * @param clients the clients of the whiteboard by username.
+     */
+    public void tick(Map<String, IClient> clients) {
+        List<Presence> changes = new ArrayList<>();
+        for (String username : changed.keySet()) {
+            changes.add(changed.remove(username));
+        }
+        List<Presence> everyone = null;
+        for (Map.Entry<String, IClient> entry : clients.entrySet()) {
+            String username = entry.getKey();
+            // A client that just joined or missed changes gets every presence
+            boolean full = !known.contains(username) || behind.contains(username);
+            if (!full && changes.isEmpty()) {
+                continue;
+            }
+            if (!clientMonitor.allow(username) || !inFlight.add(username)) {
+                // Dropped rather than queued, the client catches up with a full update later
+                behind.add(username);
+                metrics.increment("presence.dropped");
+                continue;
+            }
+            known.add(username);
+            behind.remove(username);
+            if (full && everyone == null) {
+                everyone = new ArrayList<>(latest.values());
+            }
+            List<Presence> presences = full ? everyone : changes;
+            IClient client = entry.getValue();
+            executor.execute(() -> {
+                try {
+                    client.updatePresence(presences, full);
+                    metrics.increment("presence.callbacks");
+                } catch (RemoteException e) {
+                    behind.add(username);
+                } finally {
+                    inFlight.remove(username);
+                }
+            });
+        }
+    }
+}
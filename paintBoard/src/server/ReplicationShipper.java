@@ -0,0 +1,152 @@
+package server;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import remote.Operation;
+import remote.Replica;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * ReplicationShipper streams the operations of a primary whiteboard to its standby in order, batching
+ * whatever has queued up since the last call. When there is nothing to ship it sends an empty batch
+ * as a heartbeat so the standby can tell an idle primary from a dead one.
+ */
+public class ReplicationShipper implements Runnable {
+
+    private static final int MAX_BATCH = 256;
+    private static final long HEARTBEAT_MILLIS = 1000;
+    private static final int MAX_FAILURES = 5;
+
+    private final String address;
+    private final Replica standby;
+    private final ServerMetrics metrics;
+    private final LinkedBlockingQueue<Operation> queue = new LinkedBlockingQueue<>();
+    private volatile long ackedSeq;
+    private volatile long oldestUnackedTime;
+    private volatile boolean running = true;
+    // Set once the snapshot is installed on the standby and shipping has started
+    private volatile boolean streaming;
+
+    /**
+     * Constructs a ReplicationShipper.
+     * @param address the address of the standby.
+     * @param standby the remote replica interface of the standby.
+     * @param installedSeq the sequence number of the snapshot already installed on the standby.
+     * @param metrics the metrics the replication lag is reported to.
+     */
+    public ReplicationShipper(String address, Replica standby, long installedSeq, ServerMetrics metrics) {
+        this.address = address;
+        this.standby = standby;
+        this.ackedSeq = installedSeq;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Queues an operation for shipping. Operations queue up from construction, while the snapshot they follow is
+     * still being installed on the standby.
+     * @param operation the stamped operation.
+     */
+    public void ship(Operation operation) {
+        if (running) {
+            queue.offer(operation);
+        }
+    }
+
+    /**
+     * Returns the address of the standby.
+     * @return the address in the form host:port.
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * Returns whether the shipper is still connected to the standby.
+     * @return true while shipping.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Returns whether the standby has the snapshot installed and is being streamed to, so it can take over.
+     * @return true while shipping to an installed standby.
+     */
+    public boolean isStreaming() {
+        return streaming && running;
+    }
+
+    /**
+     * Returns the sequence number of the last operation acknowledged by the standby.
+     * @return the sequence number.
+     */
+    public long getAckedSeq() {
+        return ackedSeq;
+    }
+
+    /**
+     * Returns how long the oldest operation not yet acknowledged by the standby has been waiting.
+     * @return the lag in milliseconds, 0 if the standby is up to date.
+     */
+    public long getLagMillis() {
+        Operation head = queue.peek();
+        long oldest = oldestUnackedTime != 0 ? oldestUnackedTime : (head != null ? head.getTimestamp() : 0);
+        return oldest == 0 ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+    }
+
+    /**
+     * Stops shipping.
+     */
+    public void stop() {
+        running = false;
+        queue.clear();
+    }
+
+    /**
+     * Ships batches until stopped or until the standby stops responding.
+     */
+    @Override
+    public void run() {
+        int failures = 0;
+        List<Operation> batch = new ArrayList<>();
+        streaming = true;
+        while (running) {
+            try {
+                if (batch.isEmpty()) {
+                    Operation first = queue.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                    if (first != null) {
+                        batch.add(first);
+                        queue.drainTo(batch, MAX_BATCH - 1);
+                        oldestUnackedTime = first.getTimestamp();
+                    }
+                }
+                ackedSeq = Math.max(ackedSeq, standby.replicate(batch));
+                metrics.add("replication.operationsShipped", batch.size());
+                batch.clear();
+                oldestUnackedTime = 0;
+                failures = 0;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+            } catch (RemoteException e) {
+                metrics.increment("replication.errors");
+                if (++failures >= MAX_FAILURES) {
+                    System.err.println("Standby " + address + " unreachable, replication stopped: " + e.getMessage());
+                    stop();
+                } else {
+                    // Keep the failed batch and retry it so the standby never sees a gap
+                    try {
+                        Thread.sleep(HEARTBEAT_MILLIS);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        running = false;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package server;
+
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import remote.RoomDirectory;
+import remote.RoomNode;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * Implementation of the RoomDirectory interface.
+ * The directory keeps the consistent hash ring of the cluster and tells every node to rebalance when the membership changes.
+ * It pings the nodes regularly and drops a node that misses several pings in a row, or fails to take a rebalance as
+ * often, as if it had left, so the rooms of a node that crashed are placed on the nodes still alive. Those rooms
+ * start again empty there, their state went with the node.
+ */
+public class RoomDirectoryServer extends UnicastRemoteObject implements RoomDirectory {
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 1L;
+
+    private final Map<String, RoomNode> nodes = new LinkedHashMap<>();
+    private ConsistentHashRing ring = new ConsistentHashRing(new ArrayList<>());
+    // Consecutive failed calls per node, guarded by this
+    private final Map<String, Integer> failures = new HashMap<>();
+
+    private static final long PING_MILLIS = 2000;
+    private static final int MAX_FAILURES = 3;
+    private final ScheduledExecutorService pinger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "directory-pinger");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Constructor for the RoomDirectoryServer.
+     * @throws RemoteException
+     */
+    public RoomDirectoryServer() throws RemoteException {
+        pinger.scheduleWithFixedDelay(this::checkNodes, PING_MILLIS, PING_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers a node and rebalances the rooms across the cluster.
+     * @param address The address of the node
+     * @param node The node
+     * @throws RemoteException
+     */
+    @Override
+    public synchronized void registerNode(String address, RoomNode node) throws RemoteException {
+        nodes.put(address, node);
+        failures.remove(address);
+        ring.add(address);
+        System.out.println("Node joined: " + address + ", cluster size: " + nodes.size());
+        rebalance(null);
+    }
+
+    /**
+     * Unregisters a node and rebalances its rooms onto the remaining nodes.
+     * @param address The address of the node
+     * @throws RemoteException
+     */
+    @Override
+    public synchronized void unregisterNode(String address) throws RemoteException {
+        RoomNode leaving = nodes.remove(address);
+        failures.remove(address);
+        if (leaving != null) {
+            ring.remove(address);
+            System.out.println("Node left: " + address + ", cluster size: " + nodes.size());
+            rebalance(leaving);
+        }
+    }
+
+    /**
+     * Returns the node owning a room.
+     * @param room The name of the room
+     * @return The owning node
+     * @throws RemoteException if no node is registered
+     */
+    @Override
+    public synchronized RoomNode locateRoom(String room) throws RemoteException {
+        String address = ring.locate(room);
+        if (address == null) {
+            throw new RemoteException("No whiteboard node is available");
+        }
+        return nodes.get(address);
+    }
+
+    /**
+     * Returns the addresses of the nodes in the cluster.
+     * @return The node addresses
+     * @throws RemoteException
+     */
+    @Override
+    public synchronized List<String> getNodes() throws RemoteException {
+        return new ArrayList<>(nodes.keySet());
+    }
+
+    /**
+     * Pings every node outside the lock, so a slow node does not hold up lookups, and drops the nodes that
+     * failed too many times in a row.
+     */
+    private void checkNodes() {
+        Map<String, RoomNode> members;
+        synchronized (this) {
+            members = new LinkedHashMap<>(nodes);
+        }
+        for (Map.Entry<String, RoomNode> entry : members.entrySet()) {
+            boolean alive;
+            try {
+                entry.getValue().ping();
+                alive = true;
+            } catch (RemoteException e) {
+                alive = false;
+            }
+            synchronized (this) {
+                // The node may have left or joined again meanwhile
+                if (nodes.get(entry.getKey()) == entry.getValue()) {
+                    recordCall(entry.getKey(), alive);
+                }
+            }
+        }
+    }
+
+    /**
+     * Records the outcome of a call to a node, dropping it from the cluster and rebalancing once it failed too
+     * many times in a row. Must be called while holding the lock of this.
+     * @param address The address of the node
+     * @param alive Whether the call succeeded
+     */
+    private void recordCall(String address, boolean alive) {
+        if (alive) {
+            failures.remove(address);
+            return;
+        }
+        int failed = failures.merge(address, 1, Integer::sum);
+        if (failed >= MAX_FAILURES && nodes.remove(address) != null) {
+            failures.remove(address);
+            ring.remove(address);
+            System.out.println("Node unreachable, dropped: " + address + ", cluster size: " + nodes.size());
+            // The dead node is not told, its rooms are opened afresh by their new owners
+            rebalance(null);
+        }
+    }
+
+    /**
+     * Sends the new membership to every node, including a leaving node so it can hand off its rooms.
+     * A member that cannot be reached counts as a failed call and is dropped after too many.
+     * @param leaving The node that is leaving, or null
+     */
+    private void rebalance(RoomNode leaving) {
+        Map<String, RoomNode> members = new LinkedHashMap<>(nodes);
+        List<String> failed = new ArrayList<>();
+        for (Map.Entry<String, RoomNode> entry : members.entrySet()) {
+            try {
+                entry.getValue().rebalance(members);
+            } catch (RemoteException e) {
+                System.err.println("Failed to rebalance node " + entry.getKey() + ": " + e.getMessage());
+                failed.add(entry.getKey());
+            }
+        }
+        if (leaving != null) {
+            try {
+                leaving.rebalance(members);
+            } catch (RemoteException e) {
+                System.err.println("Failed to hand off the rooms of a leaving node: " + e.getMessage());
+            }
+        }
+        // Recorded after every node has this membership, so a rebalance dropping a node is the last one they get
+        for (String address : failed) {
+            if (nodes.get(address) == members.get(address)) {
+                recordCall(address, false);
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package server;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+
+import remote.IClient;
+import remote.LayerState;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * RoomSnapshot holds the complete state of a whiteboard so that a room can be handed off to another cluster node
+ * or installed on a standby server.
+ * Client stubs are carried along so the new owner can notify the connected users directly.
+ */
+public class RoomSnapshot implements Serializable {
+    private static final long serialVersionUID = 2L;
+
+    final List<LayerState> layers;
+    final List<String> messages;
+    final String manager;
+    final List<String> userList;
+    final Map<String, IClient> userClients;
+    final List<String> permissionRequests;
+    final List<ClientSession> sessions;
+    final double strokeTolerance;
+    final long seq;
+
+    RoomSnapshot(List<LayerState> layers, List<String> messages, String manager,
+            List<String> userList, Map<String, IClient> userClients, List<String> permissionRequests, List<ClientSession> sessions, double strokeTolerance, long seq) {
+        this.layers = layers;
+        this.messages = messages;
+        this.manager = manager;
+        this.userList = userList;
+        this.userClients = userClients;
+        this.permissionRequests = permissionRequests;
+        this.sessions = sessions;
+        this.strokeTolerance = strokeTolerance;
+        this.seq = seq;
+    }
+}
@@ -21,6 +21,8 @@ public class SerializableBufferedImage implements Serializable {
     
     // The transient keyword prevents the image from being serialized directly
     private transient BufferedImage image;
+    // The format the image is written in, null for PNG in images serialized before it was kept
+    private final String format;
 
     /**
      * Constructs a SerializableBufferedImage with specified width, height, and image type.
@@ -29,7 +31,7 @@ public class SerializableBufferedImage implements Serializable {
      * @param imageType the type of the image (e.g., BufferedImage.TYPE_INT_ARGB).
      */
     public SerializableBufferedImage(int width, int height, int imageType) {
-        this.image = new BufferedImage(width, height, imageType);
+        this(new BufferedImage(width, height, imageType));
     }
 
     /**
@@ -37,7 +39,17 @@ public class SerializableBufferedImage implements Serializable {
      * @param image the BufferedImage to wrap.
      */
     public SerializableBufferedImage(BufferedImage image) {
+        this(image, "png");
+    }
+
+    /**
+     * Constructs a SerializableBufferedImage from an existing BufferedImage, written in the given format.
+     * @param image the BufferedImage to wrap, without alpha if the format is jpg.
+     * @param format the ImageIO format name, png or jpg.
+     */
+    public SerializableBufferedImage(BufferedImage image, String format) {
         this.image = image;
+        this.format = format;
     }
 
     /**
@@ -55,7 +67,7 @@ public class SerializableBufferedImage implements Serializable {
      */
     private void writeObject(ObjectOutputStream out) throws IOException {
         out.defaultWriteObject(); // Serialize non-transient fields
-        ImageIO.write(image, "png", out); // Serialize the image as a PNG
+        ImageIO.write(image, format == null ? "png" : format, out); // Serialize the image as a PNG or, if asked, a JPEG
     }
 
     /**
@@ -66,7 +78,7 @@ public class SerializableBufferedImage implements Serializable {
      */
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject(); // Deserialize non-transient fields
-        image = ImageIO.read(in); // Deserialize the image from the input stream
+        image = ImageIO.read(in); // Deserialize the image from the input stream, ImageIO recognizes the format
     }
 
     /**
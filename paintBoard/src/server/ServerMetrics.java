@@ -0,0 +1,65 @@
+package server;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * ServerMetrics collects named counters and gauges for a whiteboard server.
+ * Counters are cheap to update from any thread; gauges are sampled only when a snapshot is taken.
+ */
+public class ServerMetrics {
+
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    /**
+     * Increments a counter by one.
+     * @param name the name of the counter.
+     */
+    public void increment(String name) {
+        add(name, 1);
+    }
+
+    /**
+     * Adds a value to a counter, creating the counter if needed.
+     * @param name the name of the counter.
+     * @param delta the value to add.
+     */
+    public void add(String name, long delta) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+    }
+
+    /**
+     * Returns the current value of a counter.
+     * @param name the name of the counter.
+     * @return the counter value, or 0 if the counter has never been updated.
+     */
+    public long get(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /**
+     * Registers a gauge that is sampled whenever a snapshot is taken.
+     * @param name the name of the gauge.
+     * @param supplier the supplier of the gauge value.
+     */
+    public void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /**
+     * Returns a sorted snapshot of all counters and gauges.
+     * @return a map from metric name to value.
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> result = new TreeMap<>();
+        counters.forEach((name, counter) -> result.put(name, counter.sum()));
+        gauges.forEach((name, gauge) -> result.put(name, gauge.getAsLong()));
+        return result;
+    }
+}
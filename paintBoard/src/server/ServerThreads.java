@@ -0,0 +1,81 @@
+package server;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * ServerThreads creates the threads that run drawing tasks and client callbacks. With
+ * -Dwhiteboard.virtualThreads=true and a Java 21 or later runtime they are virtual threads, so a client with a
+ * slow callback only parks a cheap virtual thread instead of holding a pool thread. The server is built for
+ * Java 17, so virtual threads are looked up by reflection and platform threads are used when they are missing
+ * or cannot be started.
+ */
+public final class ServerThreads {
+
+    private static final boolean VIRTUAL = Boolean.getBoolean("whiteboard.virtualThreads") && checkVirtualThreads();
+
+    private ServerThreads() {
+    }
+
+    /**
+     * Returns whether the server runs its tasks on virtual threads.
+     * @return true if virtual threads were requested and are supported by the runtime.
+     */
+    public static boolean isVirtual() {
+        return VIRTUAL;
+    }
+
+    /**
+     * Returns a factory for the threads of one pool.
+     * @param name the prefix of the thread names.
+     * @return a factory creating virtual threads in virtual mode, numbered platform threads otherwise.
+     */
+    public static ThreadFactory factory(String name) {
+        if (VIRTUAL) {
+            try {
+                return virtualFactory(name);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // Worked at startup, so this is not expected; platform threads still run the pool correctly
+                System.err.println("Virtual thread factory failed, using platform threads for " + name + ": " + e);
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> new Thread(runnable, name + "-" + count.incrementAndGet());
+    }
+
+    /**
+     * Creates a factory for numbered virtual threads through the Thread.Builder API.
+     * @param name the prefix of the thread names.
+     * @return the factory.
+     * @throws ReflectiveOperationException if the runtime does not offer the API, or refuses it because it is
+     * a preview feature of Java 19 and 20.
+     */
+    private static ThreadFactory virtualFactory(String name) throws ReflectiveOperationException {
+        Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+        builder = builderType.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+        return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+    }
+
+    /**
+     * Checks that the runtime can create and start virtual threads. Finding Thread.ofVirtual is not enough:
+     * Java 19 and 20 have it as a preview feature that throws unless previews are enabled.
+     * @return true if it can.
+     */
+    private static boolean checkVirtualThreads() {
+        try {
+            Thread thread = virtualFactory("whiteboard-check").newThread(() -> {
+            });
+            thread.start();
+            thread.join();
+            return true;
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            System.err.println("Virtual threads need Java 21 or later, using platform threads: " + e);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package server;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import remote.Layer;
+import remote.RemoteWhiteboard.FreeDraw;
+import remote.RemoteWhiteboard.Polyline;
+import remote.RemoteWhiteboard.Shape;
+
+import static client.Constants.*;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * StrokeSimplifier merges the consecutive free draw segments of a user into a single polyline
+ * once the stroke is finished, using the Ramer-Douglas-Peucker algorithm to drop points that lie
+ * within the configured tolerance of the simplified path.
+ * The bytes and replay time saved are measured on one stroke in SAMPLE_INTERVAL only, since serializing and
+ * replaying a stroke costs more than simplifying it and is done on the board's writer under its lock.
+ * All methods must be called while holding the lock of the board the strokes belong to.
+ */
+public class StrokeSimplifier {
+
+    /**
+     * Receives the polyline that should replace the segments of a finished stroke.
+     */
+    public interface Listener {
+        /**
+         * Called when a stroke has been simplified.
+         * @param segmentSeqs the sequence numbers of the segments to remove.
+         * @param polyline the polyline to insert where the first segment was.
+         */
+        void strokeSimplified(long[] segmentSeqs, Polyline polyline);
+    }
+
+    // One stroke in this many is serialized and replayed to measure the savings
+    private static final int SAMPLE_INTERVAL = 64;
+
+    private final ServerMetrics metrics;
+    private final Listener listener;
+    private final Map<String, OpenStroke> openStrokes = new HashMap<>();
+    private final BufferedImage scratch = new BufferedImage(PAINT_PANEL_WIDTH, PAINT_PANEL_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+    private double tolerance;
+    private long flushed;
+
+    /**
+     * Constructs a StrokeSimplifier.
+     * @param tolerance the maximum distance in pixels a dropped point may be from the simplified path, 0 disables simplification.
+     * @param metrics the metrics the reduction statistics are reported to.
+     * @param listener the listener applying the simplified strokes to the board.
+     */
+    public StrokeSimplifier(double tolerance, ServerMetrics metrics, Listener listener) {
+        setTolerance(tolerance);
+        this.metrics = metrics;
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the simplification tolerance. Strokes already in progress use the new value when they are flushed, or
+     * are flushed at once with the old value when simplification is turned off, as they would not be otherwise.
+     * @param tolerance the tolerance in pixels, 0 disables simplification.
+     * @throws IllegalArgumentException if the tolerance is negative, infinite or not a number.
+     */
+    public void setTolerance(double tolerance) {
+        if (!isValidTolerance(tolerance)) {
+            // A NaN tolerance would never be exceeded and turn every stroke into a straight line
+            throw new IllegalArgumentException("Invalid stroke tolerance: " + tolerance);
+        }
+        if (tolerance == 0) {
+            flushAll();
+        }
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Returns whether a tolerance can be used: a finite number of pixels, 0 or more.
+     * @param tolerance the tolerance in pixels.
+     * @return true if the tolerance is valid.
+     */
+    public static boolean isValidTolerance(double tolerance) {
+        return tolerance >= 0 && !Double.isInfinite(tolerance);
+    }
+
+    /**
+     * Returns the simplification tolerance.
+     * @return the tolerance in pixels.
+     */
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * Records a free draw segment that has just been added to the board.
+     * A segment continues the user's open stroke if it is on the same layer, has the same color and starts where the
+     * previous segment ended, otherwise the open stroke is flushed and a new one is started. A stroke never spans
+     * layers, since the polyline replacing it goes on the layer of its first segment.
+     * @param username the user who drew the segment.
+     * @param layer the layer the segment was added to.
+     * @param segment the segment that was added, already carrying its sequence number.
+     * @param x1 the x-coordinate of the start point.
+     * @param y1 the y-coordinate of the start point.
+     * @param x2 the x-coordinate of the end point.
+     * @param y2 the y-coordinate of the end point.
+     * @param color the color of the segment.
+     */
+    public void append(String username, Layer layer, FreeDraw segment, int x1, int y1, int x2, int y2, Color color) {
+        if (tolerance <= 0 || username == null) {
+            return;
+        }
+        OpenStroke stroke = openStrokes.get(username);
+        if (stroke != null && !stroke.continuesWith(layer, x1, y1, color)) {
+            flush(openStrokes.remove(username));
+            stroke = null;
+        }
+        if (stroke == null) {
+            stroke = new OpenStroke(layer, color, x1, y1);
+            openStrokes.put(username, stroke);
+        }
+        stroke.add(segment, x2, y2);
+    }
+
+    /**
+     * Flushes every open stroke. Called before any other kind of shape is appended so that
+     * the simplified polylines keep their place relative to erasers and other shapes.
+     */
+    public void flushAll() {
+        List<OpenStroke> strokes = new ArrayList<>(openStrokes.values());
+        openStrokes.clear();
+        for (OpenStroke stroke : strokes) {
+            flush(stroke);
+        }
+    }
+
+    /**
+     * Flushes the strokes that have not been extended since the given time.
+     * @param idleBefore strokes last updated before this time in milliseconds are flushed.
+     */
+    public void flushIdle(long idleBefore) {
+        List<OpenStroke> idle = new ArrayList<>();
+        Iterator<OpenStroke> it = openStrokes.values().iterator();
+        while (it.hasNext()) {
+            OpenStroke stroke = it.next();
+            if (stroke.lastUpdate < idleBefore) {
+                idle.add(stroke);
+                it.remove();
+            }
+        }
+        for (OpenStroke stroke : idle) {
+            flush(stroke);
+        }
+    }
+
+    /**
+     * Forgets all open strokes without simplifying them, used when the shapes are cleared.
+     */
+    public void reset() {
+        openStrokes.clear();
+    }
+
+    /**
+     * Returns a one line summary of the reductions achieved so far, bytes and replay time over the sampled strokes.
+     * @return the summary.
+     */
+    public String report() {
+        long pointsIn = metrics.get("stroke.pointsIn");
+        long pointsOut = metrics.get("stroke.pointsOut");
+        long bytesIn = metrics.get("stroke.bytesIn");
+        long bytesOut = metrics.get("stroke.bytesOut");
+        long replayIn = metrics.get("stroke.replayNanosIn");
+        long replayOut = metrics.get("stroke.replayNanosOut");
+        return String.format("Strokes simplified: %d, points %d -> %d (%.1f%%), sampled %d: bytes %d -> %d (%.1f%%), replay %.2f ms -> %.2f ms (%.1f%%)",
+                metrics.get("stroke.simplified"),
+                pointsIn, pointsOut, reduction(pointsIn, pointsOut), metrics.get("stroke.sampled"),
+                bytesIn, bytesOut, reduction(bytesIn, bytesOut),
+                replayIn / 1e6, replayOut / 1e6, reduction(replayIn, replayOut));
+    }
+
+    /**
+     * Simplifies a stroke and hands the polyline replacing its segments to the listener.
+     * @param stroke the stroke to flush.
+     */
+    private void flush(OpenStroke stroke) {
+        if (stroke.segments.size() < 2) {
+            return;
+        }
+
+        int[] keep = simplify(stroke.xs, stroke.ys, stroke.size, tolerance);
+        int[] xs = new int[keep.length];
+        int[] ys = new int[keep.length];
+        for (int i = 0; i < keep.length; i++) {
+            xs[i] = stroke.xs[keep[i]];
+            ys[i] = stroke.ys[keep[i]];
+        }
+        Polyline polyline = new Polyline(xs, ys, stroke.color);
+
+        if (flushed++ % SAMPLE_INTERVAL == 0) {
+            metrics.increment("stroke.sampled");
+            metrics.add("stroke.bytesIn", serializedSize(stroke.segments));
+            metrics.add("stroke.bytesOut", serializedSize(polyline));
+            metrics.add("stroke.replayNanosIn", replayNanos(stroke.segments));
+            metrics.add("stroke.replayNanosOut", replayNanos(List.of(polyline)));
+        }
+
+        long[] segmentSeqs = new long[stroke.segments.size()];
+        for (int i = 0; i < segmentSeqs.length; i++) {
+            segmentSeqs[i] = stroke.segments.get(i).getSeq();
+        }
+        listener.strokeSimplified(segmentSeqs, polyline);
+
+        metrics.increment("stroke.simplified");
+        metrics.add("stroke.pointsIn", stroke.size);
+        metrics.add("stroke.pointsOut", keep.length);
+    }
+
+    /**
+     * Runs the Ramer-Douglas-Peucker algorithm over a point sequence.
+     * @param xs the x-coordinates.
+     * @param ys the y-coordinates.
+     * @param size the number of points.
+     * @param tolerance the maximum allowed distance of a dropped point from the simplified path.
+     * @return the indices of the points to keep, in order.
+     */
+    static int[] simplify(int[] xs, int[] ys, int size, double tolerance) {
+        if (size <= 2) {
+            int[] all = new int[size];
+            for (int i = 0; i < size; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+        boolean[] keep = new boolean[size];
+        keep[0] = true;
+        keep[size - 1] = true;
+        double toleranceSquared = tolerance * tolerance;
+
+        // Explicit stack of [first, last] ranges instead of recursion, long strokes can have thousands of points
+        int[] stack = new int[size * 2];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = size - 1;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+            double maxDistance = -1;
+            int farthest = -1;
+            for (int i = first + 1; i < last; i++) {
+                double distance = segmentDistanceSquared(xs[i], ys[i], xs[first], ys[first], xs[last], ys[last]);
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    farthest = i;
+                }
+            }
+            if (farthest >= 0 && maxDistance > toleranceSquared) {
+                keep[farthest] = true;
+                stack[top++] = first;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = last;
+            }
+        }
+
+        int count = 0;
+        for (boolean k : keep) {
+            if (k) count++;
+        }
+        int[] result = new int[count];
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            if (keep[i]) result[j++] = i;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the squared distance from a point to a line segment.
+     */
+    private static double segmentDistanceSquared(int px, int py, int ax, int ay, int bx, int by) {
+        double dx = bx - ax;
+        double dy = by - ay;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0 : ((px - ax) * dx + (py - ay) * dy) / lengthSquared;
+        t = Math.max(0, Math.min(1, t));
+        double ex = ax + t * dx - px;
+        double ey = ay + t * dy - py;
+        return ex * ex + ey * ey;
+    }
+
+    /**
+     * Measures how long it takes to replay the given shapes onto a board sized image.
+     */
+    private long replayNanos(List<? extends Shape> replay) {
+        Graphics2D g2d = scratch.createGraphics();
+        long start = System.nanoTime();
+        for (Shape shape : replay) {
+            shape.draw(g2d);
+        }
+        long elapsed = System.nanoTime() - start;
+        g2d.dispose();
+        return elapsed;
+    }
+
+    /**
+     * Returns the number of bytes the object takes in a Java serialization stream.
+     */
+    private static long serializedSize(Object object) {
+        CountingOutputStream counter = new CountingOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(counter)) {
+            out.writeObject(object);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return counter.count;
+    }
+
+    /**
+     * Returns the relative reduction from one value to another as a percentage.
+     */
+    private static double reduction(long before, long after) {
+        return before == 0 ? 0 : 100.0 * (before - after) / before;
+    }
+
+    /**
+     * The free draw segments of one user that have not been simplified yet.
+     */
+    private static class OpenStroke {
+        final Layer layer;
+        final Color color;
+        final List<FreeDraw> segments = new ArrayList<>();
+        int[] xs = new int[16];
+        int[] ys = new int[16];
+        int size;
+        long lastUpdate;
+
+        OpenStroke(Layer layer, Color color, int x, int y) {
+            this.layer = layer;
+            this.color = color;
+            xs[0] = x;
+            ys[0] = y;
+            size = 1;
+        }
+
+        boolean continuesWith(Layer segmentLayer, int x, int y, Color segmentColor) {
+            return layer == segmentLayer && color.equals(segmentColor) && xs[size - 1] == x && ys[size - 1] == y;
+        }
+
+        void add(FreeDraw segment, int x, int y) {
+            if (size == xs.length) {
+                xs = Arrays.copyOf(xs, size * 2);
+                ys = Arrays.copyOf(ys, size * 2);
+            }
+            xs[size] = x;
+            ys[size] = y;
+            size++;
+            segments.add(segment);
+            lastUpdate = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * An output stream that only counts the bytes written to it.
+     */
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
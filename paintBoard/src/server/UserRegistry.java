@@ -0,0 +1,146 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import remote.UserListDelta;
+
+/**
+ * Author: Dingyuan Wu 1538073
+ * UserRegistry holds the users on a whiteboard as an immutable state that is replaced on every join and leave, so
+ * the user list can be read, checked for a user in constant time and sent to clients without taking the board lock
+ * and without being changed while it is serialized. Each state is versioned by the sequence number of the operation
+ * that made it and retains the most recent changes, so a client brings its copy up to date with the users who joined
+ * and left rather than the whole list.
+ * add, remove and reset must be called while holding the lock of the board that owns the registry, the other
+ * methods may be called from any thread.
+ */
+public class UserRegistry {
+
+    // Number of recent changes retained for clients catching up
+    private static final int CHANGES_CAPACITY = 64;
+
+    /**
+     * The users on the whiteboard at one version, with the changes that led to it.
+     */
+    private static class State {
+        final long version;
+        final Set<String> users;
+        final List<String> list;
+        // The version before the oldest retained change, a client at an older version gets the whole list
+        final long baseVersion;
+        final List<Long> changeVersions;
+        final List<UserListDelta.Change> changes;
+
+        State(long version, Set<String> users, long baseVersion, List<Long> changeVersions, List<UserListDelta.Change> changes) {
+            this.version = version;
+            this.users = Collections.unmodifiableSet(users);
+            this.list = List.copyOf(users);
+            this.baseVersion = baseVersion;
+            this.changeVersions = changeVersions;
+            this.changes = changes;
+        }
+    }
+
+    private volatile State state = new State(0, new LinkedHashSet<>(), 0, List.of(), List.of());
+
+    /**
+     * Adds a user who joined the whiteboard.
+     * @param username the username of the user.
+     * @param seq the sequence number of the operation that added the user.
+     */
+    public void add(String username, long seq) {
+        if (!state.users.contains(username)) {
+            Set<String> users = new LinkedHashSet<>(state.users);
+            users.add(username);
+            publish(users, seq, new UserListDelta.Change(username, true));
+        }
+    }
+
+    /**
+     * Removes a user who left the whiteboard.
+     * @param username the username of the user.
+     * @param seq the sequence number of the operation that removed the user.
+     */
+    public void remove(String username, long seq) {
+        if (state.users.contains(username)) {
+            Set<String> users = new LinkedHashSet<>(state.users);
+            users.remove(username);
+            publish(users, seq, new UserListDelta.Change(username, false));
+        }
+    }
+
+    /**
+     * Replaces the users, forgetting the changes, used when a snapshot of the whiteboard is installed.
+     * @param users the users in the order they joined.
+     * @param seq the sequence number of the installed snapshot.
+     */
+    public void reset(List<String> users, long seq) {
+        state = new State(seq, new LinkedHashSet<>(users), seq, List.of(), List.of());
+    }
+
+    /**
+     * Returns whether a user is on the whiteboard.
+     * @param username the username.
+     * @return true if the user is on the whiteboard.
+     */
+    public boolean contains(String username) {
+        return state.users.contains(username);
+    }
+
+    /**
+     * Returns the users on the whiteboard.
+     * @return an immutable list of the users in the order they joined.
+     */
+    public List<String> getUsers() {
+        return state.list;
+    }
+
+    /**
+     * Returns the number of users on the whiteboard.
+     * @return the number of users.
+     */
+    public int size() {
+        return state.users.size();
+    }
+
+    /**
+     * Returns the changes that bring a copy of the user list at a version up to date.
+     * @param version the version the caller has, or -1 if it has none.
+     * @return the changes since the version, or the whole list if they are no longer retained or the caller
+     *         claims a version this registry has not reached.
+     */
+    public UserListDelta since(long version) {
+        State current = state;
+        if (version < current.baseVersion || version > current.version) {
+            return new UserListDelta(current.version, current.list, List.of());
+        }
+        List<UserListDelta.Change> changes = new ArrayList<>();
+        for (int i = 0; i < current.changes.size(); i++) {
+            if (current.changeVersions.get(i) > version) {
+                changes.add(current.changes.get(i));
+            }
+        }
+        return new UserListDelta(current.version, null, changes);
+    }
+
+    /**
+     * Publishes the users as the next state, retaining the change that led to it.
+     */
+    private void publish(Set<String> users, long seq, UserListDelta.Change change) {
+        State previous = state;
+        List<Long> changeVersions = new ArrayList<>(previous.changeVersions);
+        List<UserListDelta.Change> changes = new ArrayList<>(previous.changes);
+        changeVersions.add(seq);
+        changes.add(change);
+        long baseVersion = previous.baseVersion;
+        if (changes.size() > CHANGES_CAPACITY) {
+            baseVersion = changeVersions.remove(0);
+            changes.remove(0);
+        }
+        state = new State(seq, users, baseVersion, List.copyOf(changeVersions), List.copyOf(changes));
+    }
+}
@@ -2,27 +2,48 @@ package server;
 
 import java.rmi.AccessException;
 
+import java.net.MalformedURLException;
 import java.rmi.AlreadyBoundException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
 import java.io.ByteArrayInputStream;
 
 import javax.imageio.ImageIO;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 
+import remote.BoardExporter;
+import remote.BoardPreview;
+import remote.BoardState;
+import remote.DeliveryPlan;
 import remote.IClient;
+import remote.Layer;
+import remote.Operation;
+import remote.Presence;
+import remote.QuotaExceededException;
 import remote.RemoteWhiteboard;
+import remote.Replica;
+import remote.SessionExpiredException;
+import remote.UserListDelta;
+import remote.RoomDirectory;
+import remote.RoomNode;
 import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
@@ -34,53 +55,354 @@ import static client.Constants.*;
  * Implementation of the RemoteWhiteboard interface.
  * This class represents the server-side logic for the whiteboard application.
  */
-public class WhiteboardServer extends UnicastRemoteObject implements RemoteWhiteboard {
+public class WhiteboardServer extends UnicastRemoteObject implements RemoteWhiteboard, Replica {
 	/**
 	 * 
 	 */
 	private static final long serialVersionUID = 1L;
 	private static String serverIP;
     private static int serverPort;
+    private static boolean clusterMode;
+    private static String directoryAddress;
+    private static String primaryAddress;
 
-    private List<String> userList;
-    private List<Shape> shapes;
-    private SerializableBufferedImage canvasImage;
+    // The users on the board, readable and checkable for a user without the lock
+    private UserRegistry userRegistry;
+    // The background image and shapes, each layer with its own version and cached raster
+    private BoardLayers layers;
     private List<String> messages;
     private String manager;
-    private List<String> permissionRequests;
-    private ConcurrentHashMap<String, IClient> userClients;
+    // Read without the board lock, so they are never replaced, only cleared and refilled
+    private final Set<String> permissionRequests;
+    private final ConcurrentHashMap<String, IClient> userClients;
+    private final ConcurrentHashMap<String, ClientSession> sessions;
+    private final SecureRandom tokenGenerator = new SecureRandom();
+
+    // Guards the board state. A ReentrantLock rather than synchronized, so virtual threads waiting for it do not pin their carrier
+    private final ReentrantLock boardLock = new ReentrantLock();
     
-    // Thread pool for handling user operations
-    private ExecutorService threadPool;
+    // Single writer applying drawing operations, taking users in turn and each user's operations in order, rate limited per user
+    private FairScheduler threadPool;
+    private static final double DEFAULT_USER_RATE_LIMIT = 200;
+
+    // Scheduler for periodic board maintenance such as flushing idle strokes
+    private ScheduledExecutorService maintenance;
+
+    private ServerMetrics metrics;
+    private StrokeSimplifier strokeSimplifier;
+
+    // Free draw strokes not extended for this long are considered finished and simplified
+    private static final long STROKE_IDLE_MILLIS = 300;
+
+    // Renderings of the board at full size and smaller, for previews. A shape added under a layer that is not
+    // empty cannot just be drawn over them, so the pyramid is rendered again from the layers when next used.
+    private BoardPyramid pyramid;
+    private boolean pyramidStale;
+
+    // Every drawing operation with periodic keyframes, for rendering the board as it was at any point
+    private BoardHistory history;
+    private static final int DEFAULT_HISTORY_KEYFRAME_INTERVAL = 500;
+
+    // Receives loaded images in chunks and decodes them to board size off the board lock
+    private ImageUploads imageUploads;
+
+    // Every change to the board is recorded here before it is applied
+    private OperationLog operationLog;
+    private static final int OPERATION_LOG_CAPACITY = 10000;
+
+    // While the board is handed off to another node, new writes are refused; once fenced, it commits nothing more
+    private volatile boolean moving;
+    private boolean fenced;
+    private static final long FENCE_DRAIN_SECONDS = 10;
+
+    // Ships the operation log to the standby while this server is a primary with a standby attached
+    private volatile ReplicationShipper replicationShipper;
+
+    // Set while this server is a standby following a primary
+    private volatile RemoteWhiteboard primary;
+    private volatile long lastPrimaryContact;
+    private String standbyAddress;
+    private static final long FAILOVER_TIMEOUT_MILLIS = 3000;
+
+    // Sends callbacks to clients outside the board lock, one thread per callback in virtual thread mode
+    private ExecutorService notifier;
+    private static final int NOTIFIER_THREADS = 16;
+
+    // Detects dead clients: callbacks renew a lease, silent clients are pinged, failing ones are skipped and then evicted
+    private ClientMonitor clientMonitor;
+    private static final long HEARTBEAT_MILLIS = 5000;
+    private static final long CLIENT_LEASE_MILLIS = 15000;
+
+    // Coalesces drawing refreshes so each client gets at most one per frame
+    private ScheduledExecutorService broadcastExecutor;
+    private BroadcastScheduler broadcastScheduler;
+    private static final int DEFAULT_MAX_FRAME_RATE = 60;
+
+    // Picks how often and in what form each client is sent the board, from the link the client reports
+    private DeliveryPlanner deliveryPlanner;
+
+    // Limits on users, shapes, chat and heap, and the encoded size of the chat messages kept
+    private BoardQuotas quotas;
+    private long chatBytes;
+    private static final long HEAP_CHECK_MILLIS = 1000;
+
+    // Relays pointers and shape previews between clients once per tick, outside the operation log
+    private PresenceBroadcaster presenceBroadcaster;
+    private static final int DEFAULT_PRESENCE_RATE = 20;
+
+    // Serves the board over the binary socket protocol when a binary port is configured
+    private BinaryTransportServer binaryTransport;
 
     /**
      * Constructor for the WhiteboardServer.
      * @throws RemoteException
      */
     protected WhiteboardServer() throws RemoteException {
-        userList = new ArrayList<>();
-        shapes = new ArrayList<>();
-        canvasImage = new SerializableBufferedImage(PAINT_PANEL_WIDTH, PAINT_PANEL_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        userRegistry = new UserRegistry();
         messages = new ArrayList<>();
-        permissionRequests = new ArrayList<>();
+        permissionRequests = ConcurrentHashMap.newKeySet();
         userClients = new ConcurrentHashMap<>();
+        sessions = new ConcurrentHashMap<>();
         
-        // Initialize thread pool with core pool size 5, max pool size 20, and queue size 100
-        threadPool = new ThreadPoolExecutor(
-            5, // core pool size
-            20, // maximum pool size
-            60L, // keep alive time
-            TimeUnit.SECONDS,
-            new LinkedBlockingQueue<>(100), // queue capacity
-            Executors.defaultThreadFactory(),
-            new ThreadPoolExecutor.CallerRunsPolicy() // rejection policy
-        );
+        metrics = new ServerMetrics();
+
+        // Initialize the single writer serving a queue per user round-robin, at most 100 queued operations per user.
+        // Every drawing task takes the board lock, so more workers would only wait for each other and could
+        // commit the operations of different users in a different order than the scheduler handed them out.
+        double userRateLimit = Double.parseDouble(System.getProperty("whiteboard.userRateLimit", String.valueOf(DEFAULT_USER_RATE_LIMIT)));
+        threadPool = new FairScheduler(ServerThreads.factory("whiteboard-writer"), 1, 100, 2000, userRateLimit, (int) Math.max(1, userRateLimit), metrics);
         
-        System.out.println("Thread pool initialized with core size: 5, max size: 20, queue capacity: 100");
+        System.out.println("Board writer initialized on a " + (ServerThreads.isVirtual() ? "virtual" : "platform")
+                + " thread, per user queue capacity: 100, per user rate limit: " + userRateLimit + "/s");
+
+        // Virtual threads are cheap enough to give every callback its own, platform threads are pooled
+        notifier = ServerThreads.isVirtual()
+                ? Executors.newCachedThreadPool(ServerThreads.factory("whiteboard-notifier"))
+                : Executors.newFixedThreadPool(NOTIFIER_THREADS, ServerThreads.factory("whiteboard-notifier"));
+
+        operationLog = new OperationLog(OPERATION_LOG_CAPACITY);
+        quotas = new BoardQuotas(metrics);
+        layers = new BoardLayers(PAINT_PANEL_WIDTH, PAINT_PANEL_HEIGHT, LayerRaster.Storage.fromProperty(), metrics);
+        pyramid = new BoardPyramid(PAINT_PANEL_WIDTH, PAINT_PANEL_HEIGHT, metrics);
+        history = new BoardHistory(PAINT_PANEL_WIDTH, PAINT_PANEL_HEIGHT,
+                Integer.getInteger("whiteboard.historyKeyframeInterval", DEFAULT_HISTORY_KEYFRAME_INTERVAL), metrics);
+        imageUploads = new ImageUploads(PAINT_PANEL_WIDTH, PAINT_PANEL_HEIGHT, metrics, this::swapImage);
+        strokeSimplifier = new StrokeSimplifier(Double.parseDouble(System.getProperty("whiteboard.strokeTolerance", "0")), metrics,
+                (segmentSeqs, polyline) -> commit(Operation.replaceShapes(segmentSeqs, polyline)));
+        metrics.gauge("operations.lastSeq", () -> operationLog.lastSeq());
+        metrics.gauge("quota.shapeKB", () -> layers.getShapeBytes() / 1024);
+        metrics.gauge("replication.lagOperations", () -> {
+            ReplicationShipper shipper = replicationShipper;
+            return shipper == null ? 0 : operationLog.lastSeq() - shipper.getAckedSeq();
+        });
+        metrics.gauge("replication.lagMillis", () -> {
+            ReplicationShipper shipper = replicationShipper;
+            return shipper == null ? 0 : shipper.getLagMillis();
+        });
+
+        clientMonitor = new ClientMonitor(HEARTBEAT_MILLIS, Long.getLong("whiteboard.clientLeaseMillis", CLIENT_LEASE_MILLIS), metrics);
+        broadcastExecutor = Executors.newSingleThreadScheduledExecutor();
+        broadcastScheduler = new BroadcastScheduler(broadcastExecutor, notifier, metrics, clientMonitor, this::recovered,
+                Integer.getInteger("whiteboard.maxFrameRate", DEFAULT_MAX_FRAME_RATE));
+        deliveryPlanner = new DeliveryPlanner(metrics, broadcastScheduler);
+        presenceBroadcaster = new PresenceBroadcaster(notifier, clientMonitor, metrics);
+        long presenceTickMillis = 1000 / Math.max(1, Integer.getInteger("whiteboard.presenceRate", DEFAULT_PRESENCE_RATE));
+        broadcastExecutor.scheduleAtFixedRate(this::tickPresence, presenceTickMillis, presenceTickMillis, TimeUnit.MILLISECONDS);
+
+        maintenance = Executors.newSingleThreadScheduledExecutor();
+        maintenance.scheduleWithFixedDelay(this::flushIdleStrokes, STROKE_IDLE_MILLIS, STROKE_IDLE_MILLIS / 3, TimeUnit.MILLISECONDS);
+        maintenance.scheduleWithFixedDelay(this::checkPrimary, FAILOVER_TIMEOUT_MILLIS, FAILOVER_TIMEOUT_MILLIS / 3, TimeUnit.MILLISECONDS);
+        maintenance.scheduleWithFixedDelay(this::checkClients, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS / 5, TimeUnit.MILLISECONDS);
+        maintenance.scheduleWithFixedDelay(imageUploads::expireIdle, 1, 1, TimeUnit.MINUTES);
+        maintenance.scheduleWithFixedDelay(this::checkHeap, HEAP_CHECK_MILLIS, HEAP_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Simplifies the free draw strokes that have not been extended recently.
+     */
+    private void flushIdleStrokes() {
+        boardLock.lock();
+        try {
+            strokeSimplifier.flushIdle(System.currentTimeMillis() - STROKE_IDLE_MILLIS);
+        } finally {
+            boardLock.unlock();
+        }
+    }
+
+    /**
+     * Records an operation, applies it to the board and ships it to the standby if one is attached.
+     * Must be called while holding the board lock so the sequence order matches the order of application.
+     * @param operation The operation to commit
+     */
+    private void commit(Operation operation) {
+        if (fenced) {
+            // Only an image decoded while the board was handed off gets here, its client loads it again there
+            metrics.increment("cluster.writesAfterHandoff");
+            return;
+        }
+        operationLog.append(operation);
+        apply(operation);
+        ReplicationShipper shipper = replicationShipper;
+        if (shipper != null && shipper.isRunning()) {
+            shipper.ship(operation);
+        }
+    }
+
+    /**
+     * Refuses a write while the board is being handed off to another node or the server is short of heap.
+     * @throws RemoteException if the board is moving, or a QuotaExceededException if the server is short of heap
+     */
+    private void checkWritable() throws RemoteException {
+        checkNotMoving();
+        quotas.checkHeap();
+    }
+
+    /**
+     * Refuses a write while the board is being handed off to another node. The client is relocated to the new
+     * owner shortly and can try again there. Writes committed at once check it while holding the board lock, so
+     * they either land before the fence or are refused; queued writes are refused by the paused scheduler.
+     * @throws RemoteException if the board is moving
+     */
+    private void checkNotMoving() throws RemoteException {
+        if (moving) {
+            metrics.increment("cluster.writesRefused");
+            throw new RemoteException("The whiteboard is moving to another server, try again");
+        }
+    }
+
+    /**
+     * Applies an operation to the board state without notifying any client.
+     * Used both for local changes and for operations replicated from a primary.
+     * @param operation The operation to apply
+     */
+    private void apply(Operation operation) {
+        switch (operation.getType()) {
+            case ADD_SHAPE:
+                layers.add(operation.getLayer(), operation.getShape(), operation.getSeq());
+                if (layers.isTop(operation.getLayer())) {
+                    pyramid.draw(operation.getShape());
+                    history.record(operation, null);
+                } else {
+                    pyramidStale = true;
+                    history.record(operation, layers.composite());
+                }
+                if (quotas.isShapeQuotaExceeded(layers.getShapeBytes())) {
+                    compact(operation.getSeq());
+                }
+                break;
+            case REPLACE_SHAPES:
+                layers.replace(operation.getReplaced(), operation.getShape());
+                break;
+            case CLEAR: {
+                layers.clear(operation.getLayer(), operation.getSeq());
+                BufferedImage board = layers.composite();
+                pyramid.reset(board, List.of());
+                pyramidStale = false;
+                history.record(operation, board);
+                break;
+            }
+            case LOAD_IMAGE:
+                try {
+                    BufferedImage image = operation.getDecodedImage();
+                    if (image == null) {
+                        image = ImageIO.read(new ByteArrayInputStream(operation.getData()));
+                    }
+                    if (image == null) {
+                        System.err.println("Unsupported image format, image not loaded");
+                        break;
+                    }
+                    layers.setImage(operation.getLayer(), image, operation.getSeq());
+                    BufferedImage board = layers.composite();
+                    pyramid.reset(board, List.of());
+                    pyramidStale = false;
+                    history.record(operation, board);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                break;
+            case CHAT:
+                messages.add(operation.getText());
+                chatBytes += 2L * operation.getText().length();
+                trimChat(quotas.getMaxChatBytes());
+                break;
+            case ADD_USER:
+                userRegistry.add(operation.getText(), operation.getSeq());
+                userClients.put(operation.getText(), operation.getClient());
+                broadcastScheduler.add(operation.getText());
+                sessions.put(operation.getToken(), new ClientSession(operation.getToken(), operation.getText()));
+                break;
+            case REMOVE_USER:
+                userRegistry.remove(operation.getText(), operation.getSeq());
+                userClients.remove(operation.getText());
+                broadcastScheduler.remove(operation.getText());
+                deliveryPlanner.remove(operation.getText());
+                clientMonitor.remove(operation.getText());
+                presenceBroadcaster.remove(operation.getText());
+                threadPool.forget(operation.getText());
+                sessions.values().removeIf(session -> session.getUsername().equals(operation.getText()));
+                break;
+            case SET_MANAGER:
+                manager = operation.getText();
+                break;
+        }
+    }
+
+    /**
+     * Bakes the shapes of every layer into its image. The board looks the same, so clients keep their copies.
+     * Strokes still open are forgotten rather than simplified, their segments are in the images already. The
+     * history, which keeps every operation, starts again from the compacted board, so it cannot be scrubbed back
+     * past a compaction.
+     * Must be called while holding the board lock.
+     * @param seq The sequence number the board reflects
+     */
+    private void compact(long seq) {
+        strokeSimplifier.reset();
+        metrics.add("quota.compactedBytes", layers.compact());
+        history.reset(seq, layers.composite(), List.of());
+        metrics.increment("quota.compactions");
+    }
+
+    /**
+     * Drops the oldest chat messages until the ones kept fit in a size, keeping at least the newest.
+     * Must be called while holding the board lock.
+     * @param maxBytes The most bytes of messages to keep
+     */
+    private void trimChat(long maxBytes) {
+        int dropped = 0;
+        while (chatBytes > maxBytes && messages.size() - dropped > 1) {
+            chatBytes -= 2L * messages.get(dropped).length();
+            dropped++;
+        }
+        if (dropped > 0) {
+            messages.subList(0, dropped).clear();
+            metrics.add("quota.chatTrimmed", dropped);
+        }
+    }
+
+    /**
+     * Degrades the board before the server runs out of memory: while the heap is over its budget, the shapes are
+     * compacted and half of the chat history is dropped. Joins and new shapes are refused until it is under again.
+     */
+    private void checkHeap() {
+        if (!BoardQuotas.isHeapExceeded()) {
+            return;
+        }
+        boardLock.lock();
+        try {
+            if (layers.getShapeBytes() > 0) {
+                compact(operationLog.lastSeq());
+            }
+            trimChat(chatBytes / 2);
+        } finally {
+            boardLock.unlock();
+        }
     }
 
     /**
      * Draws a line on the whiteboard and broadcasts the update.
+     * @param username The username of the user
+     * @param opId The identifier the client gave the operation
+     * @param layer The layer to draw on
      * @param x1 The x-coordinate of the start point
      * @param y1 The y-coordinate of the start point
      * @param x2 The x-coordinate of the end point
@@ -89,21 +411,29 @@ public class WhiteboardServer extends UnicastRemoteObject implements RemoteWhite
      * @throws RemoteException
      */
     @Override
-    public void drawLine(int x1, int y1, int x2, int y2, Color color) throws RemoteException {
-        threadPool.submit(() -> {
-            synchronized (this) {
-                shapes.add(new Line(x1, y1, x2, y2, color));
+    public void drawLine(String username, long opId, Layer layer, int x1, int y1, int x2, int y2, Color color) throws RemoteException {
+        checkWritable();
+        threadPool.submit(username, () -> {
+            boardLock.lock();
+            try {
+                strokeSimplifier.flushAll();
+                commit(Operation.addShape(new Line(x1, y1, x2, y2, color), username, opId, layer));
                 try {
                     broadcastDrawing();
                 } catch (RemoteException e) {
                     e.printStackTrace();
                 }
+            } finally {
+                boardLock.unlock();
             }
         });
     }
 
     /**
      * Draws a rectangle on the whiteboard and broadcasts the update.
+     * @param username The username of the user
+     * @param opId The identifier the client gave the operation
+     * @param layer The layer to draw on
      * @param x The x-coordinate of the top-left corner
      * @param y The y-coordinate of the top-left corner
      * @param width The width of the rectangle
@@ -112,21 +442,29 @@ public class WhiteboardServer extends UnicastRemoteObject implements RemoteWhite
      * @throws RemoteException
      */
     @Override
-    public void drawRectangle(int x, int y, int width, int height, Color color) throws RemoteException {
-        threadPool.submit(() -> {
-            synchronized (this) {
-                shapes.add(new Rectangle(x, y, width, height, color));
+    public void drawRectangle(String username, long opId, Layer layer, int x, int y, int width, int height, Color color) throws RemoteException {
+        checkWritable();
+        threadPool.submit(username, () -> {
+            boardLock.lock();
+            try {
+                strokeSimplifier.flushAll();
+                commit(Operation.addShape(new Rectangle(x, y, width, height, color), username, opId, layer));
                 try {
                     broadcastDrawing();
                 } catch (RemoteException e) {
                     e.printStackTrace();
                 }
+            } finally {
+                boardLock.unlock();
             }
         });
     }
 
     /**
      * Draws a circle on the whiteboard and broadcasts the update.
+     * @param username The username of the user
+     * @param opId The identifier the client gave the operation
+     * @param layer The layer to draw on
      * @param x The x-coordinate of the center
      * @param y The y-coordinate of the center
      * @param radius The radius of the circle
@@ -134,21 +472,29 @@ public class WhiteboardServer extends UnicastRemoteObject implements RemoteWhite
      * @throws RemoteException
      */
     @Override
-    public void drawCircle(int x, int y, int radius, Color color) throws RemoteException {
-        threadPool.submit(() -> {
-            synchronized (this) {
-                shapes.add(new Circle(x, y, radius, color));
+    public void drawCircle(String username, long opId, Layer layer, int x, int y, int radius, Color color) throws RemoteException {
+        checkWritable();
+        threadPool.submit(username, () -> {
+            boardLock.lock();
+            try {
+                strokeSimplifier.flushAll();
+                commit(Operation.addShape(new Circle(x, y, radius, color), username, opId, layer));
                 try {
                     broadcastDrawing();
                 } catch (RemoteException e) {
                     e.printStackTrace();
                 }
+            } finally {
+                boardLock.unlock();
             }
         });
     }
 
     /**
      * Draws an oval on the whiteboard and broadcasts the update.
+     * @param username The username of the user
+     * @param opId The identifier the client gave the operation
+     * @param layer The layer to draw on
      * @param x The x-coordinate of the bounding rectangle's top-left corner
      * @param y The y-coordinate of the bounding rectangle's top-left corner
      * @param width The width of the bounding rectangle
@@ -157,21 +503,29 @@ public class WhiteboardServer extends UnicastRemoteObject implements RemoteWhite
      * @throws RemoteException
      */
     @Override
-    public void drawOval(int x, int y, int width, int height, Color color) throws RemoteException {
-        threadPool.submit(() -> {
-            synchronized (this) {
-                shapes.add(new Oval(x, y, width, height, color));
+    public void drawOval(String username, long opId, Layer layer, int x, int y, int width, int height, Color color) throws RemoteException {
+        checkWritable();
+        threadPool.submit(username, () -> {
+            boardLock.lock();
+            try {
+                strokeSimplifier.flushAll();
+                commit(Operation.addShape(new Oval(x, y, width, height, color), username, opId, layer));
                 try {
                     broadcastDrawing();
                 } catch (RemoteException e) {
                     e.printStackTrace();
                 }
+            } finally {
+                boardLock.unlock();
             }
         });
     }
 
     /**
      * Freehand drawing on the whiteboard and broadcasts the update.
+     * @param username The username of the user drawing
+     * @param opId The identifier the client gave the operation
+     * @param layer The layer to draw on
      * @param x1 The x-coordinate of the start point
      * @param y1 The y-coordinate of the start point
      * @param x2 The x-coordinate of the end point
@@ -180,42 +534,59 @@ public class WhiteboardServer extends UnicastRemoteObject implements RemoteWhite
      * @throws RemoteException
      */
     @Override
-    public void freeDraw(int x1, int y1, int x2, int y2, Color color) throws RemoteException {
-        threadPool.submit(() -> {
-            synchronized (this) {
-                shapes.add(new FreeDraw(x1, y1, x2, y2, color));
+    public void freeDraw(String username, long opId, Layer layer, int x1, int y1, int x2, int y2, Color color) throws RemoteException {
+        checkWritable();
+        threadPool.submit(username, () -> {
+            boardLock.lock();
+            try {
+                FreeDraw segment = new FreeDraw(x1, y1, x2, y2, color);
+                commit(Operation.addShape(segment, username, opId, layer));
+                strokeSimplifier.append(username, layer, segment, x1, y1, x2, y2, color);
                 try {
                     broadcastDrawing();
                 } catch (RemoteException e) {
                     e.printStackTrace();
                 }
+            } finally {
+                boardLock.unlock();
             }
         });
     }
 
     /**
      * Erases part of the whiteboard and broadcasts the update.
+     * @param username The username of the user
+     * @param opId The identifier the client gave the operation
+     * @param layer The layer to draw on
      * @param x The x-coordinate of the erase point
      * @param y The y-coordinate of the erase point
      * @param size The size of the eraser
      * @throws RemoteException
      */
     @Override
-    public void erase(int x, int y, int size) throws RemoteException {
-        threadPool.submit(() -> {
-            synchronized (this) {
-                shapes.add(new Eraser(x, y, size));
+    public void erase(String username, long opId, Layer layer, int x, int y, int size) throws RemoteException {
+        checkWritable();
+        threadPool.submit(username, () -> {
+            boardLock.lock();
+            try {
+                strokeSimplifier.flushAll();
+                commit(Operation.addShape(new Eraser(x, y, size), username, opId, layer));
                 try {
                     broadcastDrawing();
                 } catch (RemoteException e) {
                     e.printStackTrace();
                 }
+            } finally {
+                boardLock.unlock();
             }
         });
     }
 
     /**
      * Draws text on the whiteboard and broadcasts the update.
+     * @param username The username of the user
+     * @param opId The identifier the client gave the operation
+     * @param layer The layer to draw on
      * @param x The x-coordinate of the text's start point
      * @param y The y-coordinate of the text's start point
      * @param text The text to be drawn
@@ -223,76 +594,162 @@ public class WhiteboardServer extends UnicastRemoteObject implements RemoteWhite
      * @throws RemoteException
      */
     @Override
-    public void drawText(int x, int y, String text, Color color) throws RemoteException {
-        threadPool.submit(() -> {
-            synchronized (this) {
-                shapes.add(new Text(x, y, text, color));
+    public void drawText(String username, long opId, Layer layer, int x, int y, String text, Color color) throws RemoteException {
+        checkWritable();
+        threadPool.submit(username, () -> {
+            boardLock.lock();
+            try {
+                strokeSimplifier.flushAll();
+                commit(Operation.addShape(new Text(x, y, text, color), username, opId, layer));
                 try {
                     broadcastDrawing();
                 } catch (RemoteException e) {
                     e.printStackTrace();
                 }
+            } finally {
+                boardLock.unlock();
             }
         });
     }
 
     /**
-     * Clears all shapes from the whiteboard and broadcasts the update.
+     * Clears every layer of the whiteboard and broadcasts the update.
+     * @param username The username of the user
      * @throws RemoteException
      */
     @Override
-    public void clearShapes() throws RemoteException {
-        threadPool.submit(() -> {
-            synchronized (this) {
-                shapes.clear();
-                for (IClient client : userClients.values()) {
-                    try {
-                        client.resetPaintPanel();
-                    } catch (RemoteException e) {
-                        e.printStackTrace();
-                    }
+    public void clearShapes(String username) throws RemoteException {
+        checkNotMoving();
+        threadPool.submit(username, () -> {
+            boardLock.lock();
+            try {
+                strokeSimplifier.reset();
+                commit(Operation.clear());
+                for (Map.Entry<String, IClient> entry : userClients.entrySet()) {
+                    notifyClient(entry.getKey(), entry.getValue(), IClient::resetPaintPanel);
                 }
                 
-                canvasImage = new SerializableBufferedImage(700, 600, BufferedImage.TYPE_INT_ARGB);
                 try {
                     broadcastDrawing();
                 } catch (RemoteException e) {
                     e.printStackTrace();
                 }
+            } finally {
+                boardLock.unlock();
             }
         });
     }
 
     /**
-     * Loads an image onto the whiteboard and broadcasts the update.
-     * @param imageBytes The byte array of the image
+     * Clears one layer of the whiteboard and broadcasts the update. The other layers keep their versions,
+     * so clients keep their copies of them.
+     * @param username The username of the user
+     * @param layer The layer to clear
      * @throws RemoteException
      */
     @Override
-    public void loadImage(byte[] imageBytes) throws RemoteException {
-        threadPool.submit(() -> {
-            synchronized (this) {
+    public void clearLayer(String username, Layer layer) throws RemoteException {
+        checkNotMoving();
+        threadPool.submit(username, () -> {
+            boardLock.lock();
+            try {
+                // Strokes still being extended on other layers are simplified now rather than forgotten
+                strokeSimplifier.flushAll();
+                commit(Operation.clear(layer));
                 try {
-                    this.canvasImage = new SerializableBufferedImage(ImageIO.read(new ByteArrayInputStream(imageBytes)));
-                    shapes.clear();
                     broadcastDrawing();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                } catch (Exception e) {
+                } catch (RemoteException e) {
                     e.printStackTrace();
                 }
+            } finally {
+                boardLock.unlock();
             }
         });
     }
 
     /**
-     * Returns the list of shapes on the whiteboard.
+     * Loads an image onto the whiteboard. The image is decoded and scaled to the board in the background,
+     * and the update is broadcast once it replaces the canvas.
+     * @param username The username of the user
+     * @param imageBytes The byte array of the image
+     * @throws RemoteException
+     */
+    @Override
+    public void loadImage(String username, byte[] imageBytes) throws RemoteException {
+        checkWritable();
+        imageUploads.submit(username, imageBytes);
+    }
+
+    /**
+     * Starts a chunked image upload.
+     * @param username The username of the user
+     * @param size The size of the encoded image in bytes
+     * @return The identifier of the upload
+     * @throws RemoteException
+     */
+    @Override
+    public String beginImageUpload(String username, long size) throws RemoteException {
+        checkWritable();
+        return imageUploads.begin(username, size);
+    }
+
+    /**
+     * Adds a chunk to an image upload.
+     * @param uploadId The identifier of the upload
+     * @param offset The position of the chunk in the image
+     * @param chunk The bytes of the chunk
+     * @return The number of bytes received so far
+     * @throws RemoteException
+     */
+    @Override
+    public long uploadImageChunk(String uploadId, long offset, byte[] chunk) throws RemoteException {
+        return imageUploads.append(uploadId, offset, chunk);
+    }
+
+    /**
+     * Completes an image upload. The image is decoded and scaled to the board in the background,
+     * and the update is broadcast once it replaces the canvas.
+     * @param uploadId The identifier of the upload
+     * @throws RemoteException
+     */
+    @Override
+    public void finishImageUpload(String uploadId) throws RemoteException {
+        imageUploads.finish(uploadId);
+    }
+
+    /**
+     * Replaces the canvas with a decoded image and broadcasts the update. Called on the decoder thread, it takes
+     * the board lock only for the swap itself rather than queueing behind the user's drawing operations.
+     * @param username The username of the user who loaded the image
+     * @param encoded The image at board size, encoded as PNG
+     * @param image The decoded image at board size
+     */
+    private void swapImage(String username, byte[] encoded, BufferedImage image) {
+        boardLock.lock();
+        try {
+            strokeSimplifier.reset();
+            commit(Operation.loadImage(encoded, image));
+            broadcastDrawing();
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        } finally {
+            boardLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the list of shapes on the whiteboard, of every layer in the order they are drawn.
      * @return The list of shapes
      * @throws RemoteException
      */
     @Override
-    public synchronized List<Shape> getShapes() throws RemoteException {
-        return new ArrayList<>(shapes);
+    public List<Shape> getShapes() throws RemoteException {
+        boardLock.lock();
+        try {
+            return layers.getShapes();
+        } finally {
+            boardLock.unlock();
+        }
     }
 
     /**
@@ -301,8 +758,14 @@ public class WhiteboardServer extends UnicastRemoteObject implements RemoteWhite
      * @throws RemoteException
      */
     @Override
-    public synchronized SerializableBufferedImage getCanvasImage() throws RemoteException {
-        return canvasImage;
+    public SerializableBufferedImage getCanvasImage() throws RemoteException {
+        boardLock.lock();
+        try {
+            SerializableBufferedImage image = layers.getImage();
+            return image != null ? image : new SerializableBufferedImage(PAINT_PANEL_WIDTH, PAINT_PANEL_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        } finally {
+            boardLock.unlock();
+        }
     }
 
     /**
@@ -312,10 +775,17 @@ public class WhiteboardServer extends UnicastRemoteObject implements RemoteWhite
      * @throws RemoteException
      */
     @Override
-    public synchronized void addUser(String username, IClient client) throws RemoteException {
-        userList.add(username);
-        userClients.put(username, client);
-        broadcastUserList();
+    public void addUser(String username, IClient client) throws RemoteException {
+        boardLock.lock();
+        try {
+            checkNotMoving();
+            String token = newSessionToken();
+            commit(Operation.addUser(username, client, token));
+            notifyClient(username, client, joined -> joined.sessionStarted(token));
+            broadcastUserList();
+        } finally {
+            boardLock.unlock();
+        }
     }
 
     /**
@@ -324,20 +794,48 @@ public class WhiteboardServer extends UnicastRemoteObject implements RemoteWhite
      * @throws RemoteException
      */
     @Override
-    public synchronized void removeUser(String username) throws RemoteException {
-        userList.remove(username);
-        userClients.remove(username);
-        broadcastUserList();
+    public void removeUser(String username) throws RemoteException {
+        boardLock.lock();
+        try {
+            checkNotMoving();
+            commit(Operation.removeUser(username));
+            broadcastUserList();
+        } finally {
+            boardLock.unlock();
+        }
     }
 
     /**
-     * Returns the list of users on the whiteboard.
+     * Returns the list of users on the whiteboard. The list is an immutable snapshot, so it is read without the lock.
      * @return The list of users
      * @throws RemoteException
      */
     @Override
-    public synchronized List<String> getUserList() throws RemoteException {
-        return userList;
+    public List<String> getUserList() throws RemoteException {
+        return userRegistry.getUsers();
+    }
+
+    /**
+     * Returns the users who joined and left since a version of the user list, or the whole list if the changes
+     * are no longer retained.
+     * @param version The version of the user list the caller has, or -1 if it has none
+     * @return The changes since the version
+     * @throws RemoteException
+     */
+    @Override
+    public UserListDelta getUserListSince(long version) throws RemoteException {
+        return userRegistry.since(version);
+    }
+
+    /**
+     * Returns whether a user is on the whiteboard.
+     * @param username The username of the user
+     * @return True if the user is on the whiteboard, false otherwise
+     * @throws RemoteException
+     */
+    @Override
+    public boolean hasUser(String username) throws RemoteException {
+        return userRegistry.contains(username);
     }
 
     /**
@@ -347,9 +845,16 @@ public class WhiteboardServer extends UnicastRemoteObject implements RemoteWhite
      * @throws RemoteException
      */
     @Override
-    public synchronized void sendMessage(String username, String message) throws RemoteException {
-        messages.add(username + ": " + message);
-        broadcastChat();
+    public void sendMessage(String username, String message) throws RemoteException {
+        quotas.checkHeap();
+        boardLock.lock();
+        try {
+            checkNotMoving();
+            commit(Operation.chat(username + ": " + message));
+            broadcastChat();
+        } finally {
+            boardLock.unlock();
+        }
     }
 
     /**
@@ -358,8 +863,13 @@ public class WhiteboardServer extends UnicastRemoteObject implements RemoteWhite
      * @throws RemoteException
      */
     @Override
-    public synchronized List<String> getMessages() throws RemoteException {
-        return new ArrayList<>(messages);
+    public List<String> getMessages() throws RemoteException {
+        boardLock.lock();
+        try {
+            return new ArrayList<>(messages);
+        } finally {
+            boardLock.unlock();
+        }
     }
 
     /**
@@ -369,11 +879,22 @@ public class WhiteboardServer extends UnicastRemoteObject implements RemoteWhite
      * @throws RemoteException
      */
     @Override
-    public synchronized void requestPermission(String username, IClient client) throws RemoteException {
-        if (!permissionRequests.contains(username)) {
-            permissionRequests.add(username);
-            IClient managerClient = userClients.get(manager);
-            managerClient.notifyManager(this, username, client);
+    public void requestPermission(String username, IClient client) throws RemoteException {
+        boardLock.lock();
+        try {
+            checkNotMoving();
+            if (!permissionRequests.contains(username)) {
+                IClient managerClient = manager == null ? null : userClients.get(manager);
+                if (managerClient == null) {
+                    throw new RemoteException("The whiteboard has no manager to admit you");
+                }
+                quotas.checkJoin(userRegistry.size());
+                permissionRequests.add(username);
+                // The manager answers on another call, which may arrive before this callback returns
+                notifyClient(manager, managerClient, notified -> notified.notifyManager(this, username, client));
+            }
+        } finally {
+            boardLock.unlock();
         }
     }
 
@@ -394,10 +915,23 @@ public class WhiteboardServer extends UnicastRemoteObject implements RemoteWhite
      * @throws RemoteException
      */
     @Override
-    public synchronized void grantPermission(String username, IClient client) throws RemoteException {
-        if (permissionRequests.contains(username)) {
-            addUser(username, client);
-            permissionRequests.remove(username);
+    public void grantPermission(String username, IClient client) throws RemoteException {
+        boardLock.lock();
+        try {
+            checkNotMoving();
+            if (permissionRequests.contains(username)) {
+                try {
+                    quotas.checkJoin(userRegistry.size());
+                } catch (QuotaExceededException e) {
+                    // The user sees the request end as if denied, the manager is told why
+                    permissionRequests.remove(username);
+                    throw e;
+                }
+                addUser(username, client);
+                permissionRequests.remove(username);
+            }
+        } finally {
+            boardLock.unlock();
         }
     }
 
@@ -407,8 +941,13 @@ public class WhiteboardServer extends UnicastRemoteObject implements RemoteWhite
      * @throws RemoteException
      */
     @Override
-    public synchronized void denyPermission(String username) throws RemoteException {
-        permissionRequests.remove(username);
+    public void denyPermission(String username) throws RemoteException {
+        boardLock.lock();
+        try {
+            permissionRequests.remove(username);
+        } finally {
+            boardLock.unlock();
+        }
     }
 
     /**
@@ -417,15 +956,16 @@ public class WhiteboardServer extends UnicastRemoteObject implements RemoteWhite
      * @throws RemoteException
      */
     @Override
-    public synchronized void kickOutUser(String username) throws RemoteException {
-        if (userList.contains(username)) {
-            try {
-                IClient client = userClients.get(username);
-                client.kickOutByManager();
+    public void kickOutUser(String username) throws RemoteException {
+        boardLock.lock();
+        try {
+            if (userRegistry.contains(username)) {
+                // The user is removed whether or not the callback reaches it, so a dead client can be kicked out
+                notifyClient(username, userClients.get(username), IClient::kickOutByManager);
                 removeUser(username);
-            } catch (RemoteException e) {
-                e.printStackTrace();
             }
+        } finally {
+            boardLock.unlock();
         }
     }
 
@@ -436,7 +976,13 @@ public class WhiteboardServer extends UnicastRemoteObject implements RemoteWhite
      */
     @Override
     public void setManager(String managerName) throws RemoteException {
-        this.manager = managerName;
+        boardLock.lock();
+        try {
+            checkNotMoving();
+            commit(Operation.setManager(managerName));
+        } finally {
+            boardLock.unlock();
+        }
     }
 
     /**
@@ -450,74 +996,798 @@ public class WhiteboardServer extends UnicastRemoteObject implements RemoteWhite
     }
 
     /**
-     * Broadcasts the current drawing state to all clients.
+     * Sets the tolerance used to simplify free draw strokes on this whiteboard. Only the manager may change it.
+     * @param username The username of the user changing the tolerance
+     * @param tolerance The tolerance in pixels, 0 disables simplification
      * @throws RemoteException
      */
     @Override
-    public void broadcastDrawing() throws RemoteException {
-        for (IClient client : userClients.values()) {
+    public void setStrokeTolerance(String username, double tolerance) throws RemoteException {
+        if (!StrokeSimplifier.isValidTolerance(tolerance)) {
+            throw new RemoteException("The stroke tolerance must be a finite number of pixels, 0 or more");
+        }
+        boardLock.lock();
+        try {
+            if (username == null || !username.equals(manager)) {
+                throw new RemoteException("Only the manager can change the stroke tolerance");
+            }
+            strokeSimplifier.setTolerance(tolerance);
+        } finally {
+            boardLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the tolerance used to simplify free draw strokes on this whiteboard.
+     * @return The tolerance in pixels
+     * @throws RemoteException
+     */
+    @Override
+    public double getStrokeTolerance() throws RemoteException {
+        boardLock.lock();
+        try {
+            return strokeSimplifier.getTolerance();
+        } finally {
+            boardLock.unlock();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the server metrics.
+     * @return The metrics by name
+     * @throws RemoteException
+     */
+    @Override
+    public Map<String, Long> getMetrics() throws RemoteException {
+        return metrics.snapshot();
+    }
+
+    /**
+     * Returns every layer together with the sequence number they reflect.
+     * @return The board state
+     * @throws RemoteException
+     */
+    @Override
+    public BoardState getBoardState() throws RemoteException {
+        return getChangedLayers(null);
+    }
+
+    /**
+     * Returns the layers that changed since the versions a client has, together with the sequence number they reflect.
+     * @param versions The version of each layer the client has, or null for every layer
+     * @return The board state
+     * @throws RemoteException
+     */
+    @Override
+    public BoardState getChangedLayers(Map<Layer, Long> versions) throws RemoteException {
+        return getChangedLayers(versions, false);
+    }
+
+    /**
+     * Returns the layers that changed since the versions a client has, with their images described by tiles.
+     * @param versions The version of each layer the client has, or null for every layer
+     * @return The board state
+     * @throws RemoteException
+     */
+    @Override
+    public BoardState getChangedLayerTiles(Map<Layer, Long> versions) throws RemoteException {
+        return getChangedLayers(versions, true);
+    }
+
+    /**
+     * Returns the layers that changed since the versions a client has, together with the sequence number they reflect.
+     * @param versions The version of each layer the client has, or null for every layer
+     * @param tiled Whether to describe the images of the layers by their tiles
+     * @return The board state
+     */
+    private BoardState getChangedLayers(Map<Layer, Long> versions, boolean tiled) {
+        boardLock.lock();
+        try {
+            BoardState state = new BoardState(operationLog.lastSeq(), layers.getStates(versions, tiled));
+            metrics.add("layers.fetched", state.getLayers().size());
+            return state;
+        } finally {
+            boardLock.unlock();
+        }
+    }
+
+    /**
+     * Returns tiles of the images of the layers by their hashes.
+     * @param hashes The hashes of the tiles
+     * @return The tiles as PNG in the same order, null for tiles no layer has any more
+     * @throws RemoteException
+     */
+    @Override
+    public List<byte[]> getTiles(List<String> hashes) throws RemoteException {
+        List<byte[]> tiles = new ArrayList<>(hashes.size());
+        boardLock.lock();
+        try {
+            for (String hash : hashes) {
+                tiles.add(layers.getTile(hash));
+            }
+        } finally {
+            boardLock.unlock();
+        }
+        metrics.add("tiles.sent", hashes.size());
+        return tiles;
+    }
+
+    /**
+     * Returns the layers that changed since the versions a client has, each flattened into the tiles of its raster.
+     * @param versions The version of each layer the client has, or null for every layer
+     * @return The board state
+     * @throws RemoteException
+     */
+    @Override
+    public BoardState getChangedLayerRasters(Map<Layer, Long> versions) throws RemoteException {
+        boardLock.lock();
+        try {
+            BoardState state = new BoardState(operationLog.lastSeq(), layers.getRasterStates(versions));
+            metrics.add("delivery.rasterLayers", state.getLayers().size());
+            return state;
+        } finally {
+            boardLock.unlock();
+        }
+    }
+
+    /**
+     * Picks how the board is sent to a client from the link it measured.
+     * @param username The username of the client
+     * @param rttMillis The round trip time of a call in milliseconds
+     * @param bytesPerSecond The throughput of the larger fetches, or 0 if not measured yet
+     * @return The delivery plan of the client
+     * @throws RemoteException
+     */
+    @Override
+    public DeliveryPlan reportLink(String username, long rttMillis, long bytesPerSecond) throws RemoteException {
+        if (username == null || !userClients.containsKey(username)) {
+            return DeliveryPlan.LAN;
+        }
+        return deliveryPlanner.report(username, rttMillis, bytesPerSecond);
+    }
+
+    /**
+     * Returns the operations applied after the given sequence number.
+     * @param seq The last sequence number the caller has seen
+     * @return The operations, or null if the caller must fetch the full board state
+     * @throws RemoteException
+     */
+    @Override
+    public List<Operation> getOperationsSince(long seq) throws RemoteException {
+        boardLock.lock();
+        try {
+            return withoutCredentials(operationLog.since(seq));
+        } finally {
+            boardLock.unlock();
+        }
+    }
+
+    /**
+     * Returns a scaled down rendering of the board from the image pyramid.
+     * @param maxWidth The largest width wanted
+     * @param maxHeight The largest height wanted
+     * @return The largest level that fits, or the smallest level
+     * @throws RemoteException
+     */
+    @Override
+    public BoardPreview getPreview(int maxWidth, int maxHeight) throws RemoteException {
+        boardLock.lock();
+        try {
+            if (pyramidStale) {
+                pyramid.reset(layers.composite(), List.of());
+                pyramidStale = false;
+            }
+            int level = pyramid.levelFor(maxWidth, maxHeight);
+            metrics.increment("pyramid.previews");
+            return new BoardPreview(operationLog.lastSeq(), 1 << level, new SerializableBufferedImage(pyramid.copyLevel(level)));
+        } finally {
+            boardLock.unlock();
+        }
+    }
+
+    /**
+     * Returns a scaled down rendering of the board from the image pyramid, at the level and in the codec of the
+     * delivery plan of a client.
+     * @param username The username of the client
+     * @return The level of the plan
+     * @throws RemoteException
+     */
+    @Override
+    public BoardPreview getPreviewFor(String username) throws RemoteException {
+        DeliveryPlan plan = deliveryPlanner.get(username);
+        boardLock.lock();
+        try {
+            if (pyramidStale) {
+                pyramid.reset(layers.composite(), List.of());
+                pyramidStale = false;
+            }
+            int level = plan.getPreviewLevel();
+            metrics.increment("pyramid.previews");
+            metrics.increment(plan.isJpegPreview() ? "delivery.previews.jpeg" : "delivery.previews.png");
+            return new BoardPreview(operationLog.lastSeq(), 1 << level,
+                    new SerializableBufferedImage(pyramid.copyLevel(level), plan.isJpegPreview() ? "jpg" : "png"));
+        } finally {
+            boardLock.unlock();
+        }
+    }
+
+    /**
+     * Renders the board as it was after an operation, from the nearest keyframe before it and at most one keyframe
+     * interval of replayed operations. The board lock is not needed, the history guards itself.
+     * @param seq The sequence number of the operation
+     * @return The board at full size, or null if seq is before the start of the history
+     * @throws RemoteException
+     */
+    @Override
+    public BoardPreview renderAt(long seq) throws RemoteException {
+        BoardHistory.Rendering rendering = history.renderAt(seq);
+        return rendering == null ? null : new BoardPreview(rendering.seq, 1, new SerializableBufferedImage(rendering.image));
+    }
+
+    /**
+     * Returns the sequence number the history of the board starts at.
+     * @return The sequence number
+     * @throws RemoteException
+     */
+    @Override
+    public long getHistoryStart() throws RemoteException {
+        return history.getStartSeq();
+    }
+
+    /**
+     * Exports the board for its manager. Only the board composited from the cached layer rasters, or for SVG the
+     * background image and the shape list, are taken under the board lock. A board whose shapes were compacted into
+     * the images of its layers is exported to SVG as the composited image. The export itself runs on the calling
+     * thread so it holds up neither the board writer nor other users.
+     * @param username The username of the user, who must be the manager
+     * @param format The format
+     * @return The exported board
+     * @throws RemoteException
+     */
+    @Override
+    public byte[] exportBoard(String username, BoardExporter.Format format) throws RemoteException {
+        BufferedImage canvas;
+        List<Shape> snapshot;
+        boardLock.lock();
+        try {
+            if (username == null || !username.equals(manager)) {
+                throw new RemoteException("Only the manager can export the board");
+            }
+            if (format == BoardExporter.Format.SVG && layers.hasSingleBackground()) {
+                // The background image is replaced rather than drawn on, so the reference stays valid after the lock is released
+                SerializableBufferedImage image = layers.getImage();
+                canvas = image != null ? image.getImage() : new BufferedImage(PAINT_PANEL_WIDTH, PAINT_PANEL_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+                snapshot = layers.getShapes();
+            } else {
+                canvas = layers.composite();
+                snapshot = List.of();
+            }
+        } finally {
+            boardLock.unlock();
+        }
+        long start = System.nanoTime();
+        try {
+            byte[] exported = BoardExporter.export(canvas, snapshot, format);
+            metrics.increment("exports.completed");
+            metrics.add("exports.millis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return exported;
+        } catch (IOException e) {
+            throw new RemoteException("Export failed", e);
+        }
+    }
+
+    /**
+     * Records the latest presence of a user. Presence skips the board writer and the operation log,
+     * so it is never throttled and never holds up drawing.
+     * @param presence The presence
+     * @throws RemoteException
+     */
+    @Override
+    public void updatePresence(Presence presence) throws RemoteException {
+        if (presence != null && userClients.containsKey(presence.getUsername())) {
+            presenceBroadcaster.update(presence);
+        }
+    }
+
+    /**
+     * Sends the presences that changed since the last tick to every client. A standby leaves its clients alone.
+     */
+    private void tickPresence() {
+        if (primary == null) {
+            presenceBroadcaster.tick(userClients);
+        }
+    }
+
+    /**
+     * Strips the client interfaces and session tokens from operations sent to clients, which are only replicated
+     * to the standby.
+     * @param operations The operations, or null
+     * @return The operations as clients may see them, or null
+     */
+    private static List<Operation> withoutCredentials(List<Operation> operations) {
+        if (operations == null) {
+            return null;
+        }
+        List<Operation> stripped = new ArrayList<>(operations.size());
+        for (Operation operation : operations) {
+            stripped.add(operation.withoutCredentials());
+        }
+        return stripped;
+    }
+
+    /**
+     * Resumes the session of a client after a disconnection or failover.
+     * @param token The session token issued when the user was admitted
+     * @param sinceSeq The last sequence number the client has seen
+     * @return The operations missed since then, or null if the client must fetch the full board state
+     * @throws SessionExpiredException if the session is unknown
+     */
+    @Override
+    public List<Operation> resume(String token, long sinceSeq) throws RemoteException {
+        boardLock.lock();
+        try {
+            if (primary != null) {
+                // Still a standby, the client should retry once this server has taken over
+                throw new RemoteException("Whiteboard server is a standby");
+            }
+            ClientSession session = token == null ? null : sessions.get(token);
+            if (session == null) {
+                throw new SessionExpiredException("Your session on the whiteboard has expired.");
+            }
+            session.touch();
+            List<Operation> missed = withoutCredentials(operationLog.since(sinceSeq));
+            metrics.increment(missed == null ? "sessions.resumedWithSnapshot" : "sessions.resumedWithDelta");
+            return missed;
+        } finally {
+            boardLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the address of the standby replicating this whiteboard.
+     * @return The address, or null if no standby is attached
+     * @throws RemoteException
+     */
+    @Override
+    public String getStandbyAddress() throws RemoteException {
+        ReplicationShipper shipper = replicationShipper;
+        return shipper != null && shipper.isStreaming() ? shipper.getAddress() : null;
+    }
+
+    /**
+     * Generates an unguessable session token.
+     * @return The token
+     */
+    private String newSessionToken() {
+        byte[] bytes = new byte[16];
+        tokenGenerator.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    /**
+     * Attaches a standby, installs the current state on it and starts streaming operations to it.
+     * The snapshot is taken and the operations after it start queuing under the board lock, while the snapshot is
+     * installed outside it, so a slow standby does not hold up the board.
+     * @param address The address of the standby
+     * @param standby The standby
+     * @throws RemoteException
+     */
+    @Override
+    public void attachStandby(String address, Replica standby) throws RemoteException {
+        RoomSnapshot snapshot;
+        ReplicationShipper shipper;
+        boardLock.lock();
+        try {
+            if (replicationShipper != null) {
+                replicationShipper.stop();
+            }
+            // No operation falls between the snapshot and the stream: both are taken under the board lock
+            snapshot = exportSnapshot();
+            shipper = new ReplicationShipper(address, standby, snapshot.seq, metrics);
+            replicationShipper = shipper;
+        } finally {
+            boardLock.unlock();
+        }
+        try {
+            standby.install(snapshot);
+        } catch (RemoteException e) {
+            shipper.stop();
+            boardLock.lock();
             try {
-                client.refreshPaintPanel();
-            } catch (RemoteException e) {
-                e.printStackTrace();
+                if (replicationShipper == shipper) {
+                    replicationShipper = null;
+                }
+            } finally {
+                boardLock.unlock();
             }
+            throw e;
+        }
+        Thread thread = new Thread(shipper, "replication-" + address);
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("Standby attached: " + address);
+    }
+
+    /**
+     * Replaces the state of this standby with the state of its primary.
+     * @param snapshot The state of the primary
+     * @throws RemoteException
+     */
+    @Override
+    public void install(RoomSnapshot snapshot) throws RemoteException {
+        boardLock.lock();
+        try {
+            importSnapshot(snapshot);
+            lastPrimaryContact = System.currentTimeMillis();
+            System.out.println("Snapshot installed from primary at sequence " + snapshot.seq);
+        } finally {
+            boardLock.unlock();
+        }
+    }
+
+    /**
+     * Applies operations replicated from the primary, skipping any already applied.
+     * @param operations The operations in sequence order
+     * @return The sequence number of the last applied operation
+     * @throws RemoteException
+     */
+    @Override
+    public long replicate(List<Operation> operations) throws RemoteException {
+        boardLock.lock();
+        try {
+            lastPrimaryContact = System.currentTimeMillis();
+            for (Operation operation : operations) {
+                if (operation.getSeq() <= operationLog.lastSeq()) {
+                    continue;
+                }
+                operationLog.appendReplicated(operation);
+                apply(operation);
+                metrics.increment("replication.operationsApplied");
+            }
+            return operationLog.lastSeq();
+        } finally {
+            boardLock.unlock();
+        }
+    }
+
+    /**
+     * Starts following a primary as its hot standby.
+     * @param primary The primary whiteboard
+     * @param address The address of this standby
+     * @throws RemoteException
+     */
+    void followPrimary(RemoteWhiteboard primary, String address) throws RemoteException {
+        this.standbyAddress = address;
+        this.lastPrimaryContact = System.currentTimeMillis();
+        this.primary = primary;
+        ((Replica) primary).attachStandby(address, this);
+    }
+
+    /**
+     * Checks on the primary when it has been silent for too long. A primary that still answers is asked to
+     * resynchronise this standby, one that does not is taken over.
+     */
+    private void checkPrimary() {
+        RemoteWhiteboard current = primary;
+        if (current == null || System.currentTimeMillis() - lastPrimaryContact < FAILOVER_TIMEOUT_MILLIS) {
+            return;
+        }
+        try {
+            current.getManager();
+        } catch (RemoteException e) {
+            promote();
+            return;
+        }
+        try {
+            ((Replica) current).attachStandby(standbyAddress, this);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Promotes this standby to primary and redirects the clients of the failed primary here.
+     * They resume from the last sequence number they saw.
+     */
+    private void promote() {
+        primary = null;
+        metrics.increment("replication.failovers");
+        System.out.println("Primary unreachable, standby promoted to primary at sequence " + operationLog.lastSeq());
+        relocateClients(this);
+    }
+
+    /**
+     * Broadcasts the current drawing state to all clients.
+     * The refreshes are coalesced, so a client receives at most one per frame however many shapes were drawn.
+     * Each carries the latest sequence number, and the client fetches the operations it has not applied yet.
+     * @throws RemoteException
+     */
+    @Override
+    public void broadcastDrawing() throws RemoteException {
+        long seq = operationLog.lastSeq();
+        for (Map.Entry<String, IClient> entry : userClients.entrySet()) {
+            broadcastScheduler.markDirty(entry.getKey(), entry.getValue(), seq);
         }
     }
 
     /**
      * Broadcasts the current chat state to all clients.
+     * The callbacks are sent from the notifier, so a slow client does not hold up the sender or the other clients.
      * @throws RemoteException
      */
     @Override
     public void broadcastChat() throws RemoteException {
-        for (IClient client : userClients.values()) {
-            try {
-                client.refreshChatPanel();
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
+        for (Map.Entry<String, IClient> entry : userClients.entrySet()) {
+            notifyClient(entry.getKey(), entry.getValue(), IClient::refreshChatPanel);
         }
     }
 
     /**
      * Broadcasts the current user list to all clients.
+     * The callbacks are sent from the notifier, so a slow client does not hold up the caller or the other clients.
+     * Each client fetches the users who joined and left since the version of the list it has.
      * @throws RemoteException
      */
     @Override
     public void broadcastUserList() throws RemoteException {
-        for (IClient client : userClients.values()) {
-            try {
-                client.refreshUserListPanel();
-            } catch (RemoteException e) {
-                e.printStackTrace();
+        for (Map.Entry<String, IClient> entry : userClients.entrySet()) {
+            notifyClient(entry.getKey(), entry.getValue(), IClient::refreshUserListPanel);
+        }
+    }
+
+    /**
+     * Sends a callback to a client from the notifier, unless its circuit breaker is open.
+     * @param username The username of the client
+     * @param client The client
+     * @param callback The callback
+     */
+    private void notifyClient(String username, IClient client, Callback callback) {
+        if (clientMonitor.allow(username)) {
+            notifier.execute(() -> call(username, client, callback));
+        }
+    }
+
+    /**
+     * Sends a callback to a client and reports the outcome to the client monitor. A client answering again
+     * after its breaker opened has missed broadcasts, so it is brought up to date.
+     * @param username The username of the client
+     * @param client The client
+     * @param callback The callback
+     */
+    private void call(String username, IClient client, Callback callback) {
+        try {
+            callback.call(client);
+        } catch (RemoteException e) {
+            clientMonitor.failure(username);
+            System.err.println("Callback to " + username + " failed: " + e.getMessage());
+            return;
+        }
+        if (clientMonitor.success(username)) {
+            recovered(username, client);
+        }
+    }
+
+    /**
+     * Brings a client whose breaker just closed up to date, since it missed the broadcasts sent meanwhile.
+     * @param username The username of the client
+     * @param client The client
+     */
+    private void recovered(String username, IClient client) {
+        metrics.increment("clients.recovered");
+        broadcastScheduler.markDirty(username, client, operationLog.lastSeq());
+        notifyClient(username, client, IClient::refreshChatPanel);
+        notifyClient(username, client, IClient::refreshUserListPanel);
+    }
+
+    /**
+     * Pings the clients that have had no successful callback for a while and evicts those whose lease ran out.
+     * A standby leaves its clients alone, they are the primary's.
+     */
+    private void checkClients() {
+        if (primary != null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, IClient> entry : userClients.entrySet()) {
+            String username = entry.getKey();
+            IClient client = entry.getValue();
+            if (clientMonitor.claimHeartbeat(username, now)) {
+                // Sent even when the breaker is open, the heartbeat is the probe that closes it
+                notifier.execute(() -> call(username, client, IClient::ping));
+            }
+        }
+        for (Map.Entry<String, Long> entry : clientMonitor.expired(now).entrySet()) {
+            evict(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Removes a client that stopped answering, as if it had left. An evicted manager leaves the whiteboard without
+     * one, so join requests are refused rather than sent to no one.
+     * @param username The username of the client
+     * @param silenceMillis How long ago the client last answered
+     */
+    private void evict(String username, long silenceMillis) {
+        boardLock.lock();
+        try {
+            clientMonitor.remove(username);
+            if (!userClients.containsKey(username)) {
+                return;
+            }
+            commit(Operation.removeUser(username));
+            permissionRequests.remove(username);
+            if (username.equals(manager)) {
+                // No one is left to admit users, so joins are refused as for a closed whiteboard
+                commit(Operation.setManager(null));
+                System.out.println("Manager " + username + " evicted, the whiteboard has no manager");
             }
+        } finally {
+            boardLock.unlock();
+        }
+        metrics.increment("clients.evicted");
+        metrics.add("clients.evictionSilenceMillis", silenceMillis);
+        System.out.println("Evicted " + username + ", no answer for " + silenceMillis + " ms");
+        try {
+            broadcastUserList();
+        } catch (RemoteException e) {
+            e.printStackTrace();
         }
     }
 
+    /**
+     * A callback on a client.
+     */
+    private interface Callback {
+        void call(IClient client) throws RemoteException;
+    }
+
     /**
      * Notifies all clients that the whiteboard is closing.
+     * The callbacks are sent from the notifier, which runs them before it shuts down, so a dead client neither
+     * holds up the closure nor keeps the other users on the whiteboard. Every user is removed whatever the outcome.
      * @throws RemoteException
      */
     @Override
     public void notifyClosure() throws RemoteException {
-        for (String username : userClients.keySet()) {
-            if (!username.equals(manager)) {
-                IClient client = userClients.get(username);
-                client.closeByManager();
-                removeUser(username);
+        String closing = manager;
+        Map<String, IClient> clients = new HashMap<>(userClients);
+        try {
+            for (Map.Entry<String, IClient> entry : clients.entrySet()) {
+                if (!entry.getKey().equals(closing)) {
+                    notifyClient(entry.getKey(), entry.getValue(), IClient::closeByManager);
+                }
             }
+            for (String username : clients.keySet()) {
+                try {
+                    removeUser(username);
+                } catch (RemoteException e) {
+                    System.err.println("Failed to remove " + username + " on closure: " + e.getMessage());
+                }
+            }
+            setManager(null);
+        } finally {
+            // Shutdown thread pool gracefully
+            shutdownThreadPool();
         }
-        removeUser(manager);
-        manager = null;
-        
-        // Shutdown thread pool gracefully
-        shutdownThreadPool();
     }
     
+    /**
+     * Captures the complete state of the whiteboard so it can be handed off to another cluster node.
+     * @return The snapshot of the whiteboard
+     */
+    RoomSnapshot exportSnapshot() {
+        boardLock.lock();
+        try {
+            strokeSimplifier.flushAll();
+            return new RoomSnapshot(layers.getStates(null, false), new ArrayList<>(messages), manager,
+                    new ArrayList<>(userRegistry.getUsers()), new HashMap<>(userClients), new ArrayList<>(permissionRequests), new ArrayList<>(sessions.values()),
+                    strokeSimplifier.getTolerance(), operationLog.lastSeq());
+        } finally {
+            boardLock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the state of the whiteboard with a snapshot handed off by another cluster node.
+     * @param snapshot The snapshot of the whiteboard
+     */
+    void importSnapshot(RoomSnapshot snapshot) {
+        boardLock.lock();
+        try {
+            layers.clear(null, snapshot.seq);
+            layers.restore(snapshot.layers);
+            messages = new ArrayList<>(snapshot.messages);
+            chatBytes = 0;
+            for (String message : messages) {
+                chatBytes += 2L * message.length();
+            }
+            manager = snapshot.manager;
+            userRegistry.reset(snapshot.userList, snapshot.seq);
+            userClients.clear();
+            userClients.putAll(snapshot.userClients);
+            for (String username : userClients.keySet()) {
+                broadcastScheduler.add(username);
+            }
+            permissionRequests.clear();
+            permissionRequests.addAll(snapshot.permissionRequests);
+            sessions.clear();
+            for (ClientSession session : snapshot.sessions) {
+                sessions.put(session.getToken(), session);
+            }
+            strokeSimplifier.reset();
+            strokeSimplifier.setTolerance(snapshot.strokeTolerance);
+            operationLog.reset(snapshot.seq);
+            BufferedImage board = layers.composite();
+            pyramid.reset(board, List.of());
+            pyramidStale = false;
+            history.reset(snapshot.seq, board, List.of());
+        } finally {
+            boardLock.unlock();
+        }
+    }
+
+    /**
+     * Fences the board for a handoff to another node. New writes are refused, the operations already queued are
+     * run, and from then on nothing more is committed, so the operations after the snapshot handed off are final.
+     * @param sinceSeq The sequence number of the snapshot handed off
+     * @return The operations committed after the snapshot, or null if they are no longer retained
+     */
+    List<Operation> fence(long sinceSeq) {
+        moving = true;
+        threadPool.pause();
+        try {
+            if (!threadPool.awaitTermination(FENCE_DRAIN_SECONDS, TimeUnit.SECONDS)) {
+                System.err.println("Queued operations still running after " + FENCE_DRAIN_SECONDS + " s, handing off without them");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        boardLock.lock();
+        try {
+            strokeSimplifier.flushAll();
+            fenced = true;
+            return operationLog.since(sinceSeq);
+        } finally {
+            boardLock.unlock();
+        }
+    }
+
+    /**
+     * Lifts the fence after a handoff failed, so the board takes writes again.
+     */
+    void unfence() {
+        boardLock.lock();
+        try {
+            fenced = false;
+            moving = false;
+            threadPool.resume();
+        } finally {
+            boardLock.unlock();
+        }
+    }
+
+    /**
+     * Tells every client that the whiteboard has moved to another node. The callbacks are sent from the notifier,
+     * so a dead client does not hold up the move, and clients whose circuit breaker is open are skipped.
+     * @param target The whiteboard now hosting the room
+     */
+    void relocateClients(RemoteWhiteboard target) {
+        for (Map.Entry<String, IClient> entry : userClients.entrySet()) {
+            notifyClient(entry.getKey(), entry.getValue(), client -> client.relocate(target));
+        }
+    }
+
     /**
      * Shuts down the thread pool gracefully.
      */
-    private void shutdownThreadPool() {
+    void shutdownThreadPool() {
+        if (binaryTransport != null) {
+            binaryTransport.close();
+        }
+        if (maintenance != null && !maintenance.isShutdown()) {
+            maintenance.shutdownNow();
+            System.out.println(strokeSimplifier.report());
+        }
         if (threadPool != null && !threadPool.isShutdown()) {
             threadPool.shutdown();
             try {
@@ -533,6 +1803,19 @@ public class WhiteboardServer extends UnicastRemoteObject implements RemoteWhite
             }
             System.out.println("Thread pool shutdown completed");
         }
+        if (broadcastExecutor != null) {
+            // After the thread pool, so queued draws can still mark clients dirty
+            broadcastExecutor.shutdownNow();
+        }
+        if (notifier != null) {
+            notifier.shutdown();
+        }
+        if (imageUploads != null) {
+            imageUploads.shutdown();
+        }
+        if (history != null) {
+            history.shutdown();
+        }
     }
 
     /**
@@ -544,6 +1827,15 @@ public class WhiteboardServer extends UnicastRemoteObject implements RemoteWhite
         String serviceName = "Whiteboard";
 
         try {
+            if (clusterMode) {
+                startClusterNode();
+                return;
+            }
+            if (primaryAddress != null) {
+                startStandby(serviceName);
+                return;
+            }
+
             // Initialize remote object
             WhiteboardServer wbserver = new WhiteboardServer();
 
@@ -560,10 +1852,20 @@ public class WhiteboardServer extends UnicastRemoteObject implements RemoteWhite
             registry.bind(serviceName, wbserver);
             System.out.println("RMI ready");
 
+            String binaryPort = System.getProperty("whiteboard.binaryPort");
+            if (binaryPort != null) {
+                wbserver.startBinaryTransport(serverIP, parsePort(binaryPort));
+                System.out.println("Binary transport ready on port " + binaryPort);
+            }
+
         } catch (AlreadyBoundException e) {
         	JOptionPane.showMessageDialog(null, "RMI object already bound", "AlreadyBoundException", JOptionPane.WARNING_MESSAGE);
             System.err.println("RMI object already bound");
             System.exit(1);
+        } catch (NotBoundException | MalformedURLException e) {
+        	JOptionPane.showMessageDialog(null, "Room directory not found", "NotBoundException", JOptionPane.WARNING_MESSAGE);
+            System.err.println("Room directory not found: " + e.getMessage());
+            System.exit(1);
         } catch (AccessException e) {
         	JOptionPane.showMessageDialog(null, "RMI access fail", "AccessException", JOptionPane.WARNING_MESSAGE);
             System.err.println("AccessException: " + e.getMessage());
@@ -572,20 +1874,92 @@ public class WhiteboardServer extends UnicastRemoteObject implements RemoteWhite
         	JOptionPane.showMessageDialog(null, "RMI access fail", "RemoteException", JOptionPane.WARNING_MESSAGE);
             System.err.println("RemoteException: " + e.getMessage());
             System.exit(1);
+        } catch (IOException e) {
+        	JOptionPane.showMessageDialog(null, "Binary transport port unavailable", "IOException", JOptionPane.WARNING_MESSAGE);
+            System.err.println("IOException: " + e.getMessage());
+            System.exit(1);
         }
     }
 
+    /**
+     * Serves this whiteboard over the binary socket protocol in addition to RMI.
+     * @param host The address to listen on
+     * @param port The port to listen on
+     * @throws IOException if the port cannot be opened
+     */
+    void startBinaryTransport(String host, int port) throws IOException {
+        binaryTransport = new BinaryTransportServer(this, metrics, host, port);
+    }
+
+    /**
+     * Starts this process as a node of a whiteboard cluster.
+     * Without a directory address the node also hosts the room directory of the cluster.
+     * @throws RemoteException
+     * @throws AlreadyBoundException
+     * @throws NotBoundException
+     * @throws MalformedURLException
+     */
+    private static void startClusterNode() throws RemoteException, AlreadyBoundException, NotBoundException, MalformedURLException {
+        String address = serverIP + ":" + serverPort;
+        Registry registry = LocateRegistry.createRegistry(serverPort);
+
+        RoomDirectory directory;
+        if (directoryAddress == null) {
+            directory = new RoomDirectoryServer();
+            registry.bind(RoomDirectory.SERVICE_NAME, directory);
+            System.out.println("Room directory ready");
+        } else {
+            directory = (RoomDirectory) Naming.lookup("rmi://" + directoryAddress + "/" + RoomDirectory.SERVICE_NAME);
+        }
+
+        ClusterNode node = new ClusterNode(address, registry, directory);
+        registry.bind(RoomNode.SERVICE_NAME, node);
+
+        // Hand the rooms of this node off to the rest of the cluster on shutdown
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println("Leaving cluster...");
+            node.leave();
+        }));
+
+        directory.registerNode(address, node);
+        System.out.println("Cluster node ready: " + address);
+    }
+
+    /**
+     * Starts this process as the hot standby of a primary server.
+     * The standby is bound like a primary so clients can be redirected to it after a failover.
+     * @param serviceName The name to bind the whiteboard under
+     * @throws RemoteException
+     * @throws AlreadyBoundException
+     * @throws NotBoundException
+     * @throws MalformedURLException
+     */
+    private static void startStandby(String serviceName) throws RemoteException, AlreadyBoundException, NotBoundException, MalformedURLException {
+        WhiteboardServer wbserver = new WhiteboardServer();
+        Registry registry = LocateRegistry.createRegistry(serverPort);
+        registry.bind(serviceName, wbserver);
+
+        RemoteWhiteboard primary = (RemoteWhiteboard) Naming.lookup("rmi://" + primaryAddress + "/" + serviceName);
+        wbserver.followPrimary(primary, serverIP + ":" + serverPort);
+        System.out.println("Standby ready, following " + primaryAddress);
+    }
+
     /**
      * Parses the command-line arguments.
      * @param args command-line arguments
      */
     private static void parseArguments(String args[]) {
-        if (args.length < 2) {
-        	JOptionPane.showMessageDialog(null, "Arguments should be <serverIPAddress> <serverPort>", "Invalid arguments", JOptionPane.WARNING_MESSAGE);
+        boolean validMode = args.length == 2 || (args.length > 2
+                && ("--cluster".equals(args[2]) || ("--standby".equals(args[2]) && args.length > 3)));
+        if (args.length < 2 || !validMode) {
+        	JOptionPane.showMessageDialog(null, "Arguments should be <serverIPAddress> <serverPort> [--cluster [<directoryIPAddress>:<directoryPort>] | --standby <primaryIPAddress>:<primaryPort>]", "Invalid arguments", JOptionPane.WARNING_MESSAGE);
             System.exit(1);
         }
         serverIP = args[0];
         serverPort = parsePort(args[1]);
+        clusterMode = args.length > 2 && "--cluster".equals(args[2]);
+        directoryAddress = clusterMode && args.length > 3 ? args[3] : null;
+        primaryAddress = args.length > 3 && "--standby".equals(args[2]) ? args[3] : null;
     }
 
     /**